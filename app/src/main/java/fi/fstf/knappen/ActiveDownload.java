@@ -0,0 +1,92 @@
+/*
+ * Copyright 2020 Finlands svenska taltidningsförening rf.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *     */
+package fi.fstf.knappen;
+
+import java.io.File;
+
+// This is a class for one file that is being downloaded right now, the player can read the part file while the download engine writes it
+// The engine tells how many bytes are on disk, a reader can wait for more bytes to arrive
+public class ActiveDownload {
+
+    private final File mLocalFile;      // The final file, for example /20190521/01/speechgen0001.mp3
+    private final File mPartFile;       // The file the bytes are written to, speechgen0001.mp3.part
+    private final long mSize;           // Size on the server, -1 if unknown
+    private long mBytesOnDisk;
+    private boolean mFinished = false;
+    private boolean mSucceeded = false;
+
+    public ActiveDownload(File localFile, File partFile, long size, long bytesOnDisk)
+    {
+        this.mLocalFile   = localFile;
+        this.mPartFile    = partFile;
+        this.mSize        = size;
+        this.mBytesOnDisk = bytesOnDisk;
+    }
+
+    public File getLocalFile() {
+        return mLocalFile;
+    }
+
+    public File getPartFile() {
+        return mPartFile;
+    }
+
+    public long getSize() {
+        return mSize;
+    }
+
+    public synchronized long getBytesOnDisk() {
+        return mBytesOnDisk;
+    }
+
+    public synchronized boolean isFinished() {
+        return mFinished;
+    }
+
+    public synchronized boolean isSucceeded() {
+        return mSucceeded;
+    }
+
+    // Called by the download engine after each write, wakes up the readers
+    public synchronized void setBytesOnDisk(long bytesOnDisk)
+    {
+        mBytesOnDisk = bytesOnDisk;
+        notifyAll();
+    }
+
+    // Called by the download engine when the file is renamed (or failed), the readers get the rest or an error
+    public synchronized void finish(boolean succeeded)
+    {
+        mFinished = true;
+        mSucceeded = succeeded;
+        notifyAll();
+    }
+
+    // Block until there are at least wantedBytes on disk, the download is finished or the timeout has passed
+    // Returns the number of bytes on disk
+    public synchronized long awaitBytes(long wantedBytes, long timeoutMillis) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (mBytesOnDisk < wantedBytes && !mFinished)
+        {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0)
+                break;
+            wait(left);
+        }
+        return mBytesOnDisk;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2020 Finlands svenska taltidningsförening rf.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *     */
+package fi.fstf.knappen;
+
+import android.net.Uri;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+// This is the ArticleCursor class that points at the current article of the newspaper being played
+// The files and uris of all articles are resolved when the cursor is created, moving to the next or previous article is only index arithmetic
+// (no String.format(), no path concatenation and no new File for each step, the media player moves on every article boundary)
+// The files being downloaded into the newspaper come after the articles, in the same natural order (see findDownload)
+public class ArticleCursor {
+
+    private static final File[] NO_ARTICLES = new File[0];
+
+    private final String mDateFolder;
+    private final String mDistributorFolder;
+    private final File[] mArticles;         // Article n at index n, index 0 is not used (shared with the playback catalog, never changed)
+    private final Uri[] mUris;              // The uri of each article in mArticles
+    private int mIndex;                     // 1 for the first article
+    private File mDownload = null;          // The file being downloaded at mIndex (after the articles), null if not looked up since the last move
+
+    public ArticleCursor(String dateFolder, String distributorFolder, File[] articles, int index)
+    {
+        this.mDateFolder = dateFolder;
+        this.mDistributorFolder = distributorFolder;
+        this.mArticles = (articles != null) ? articles : NO_ARTICLES;
+        this.mIndex = index;
+
+        mUris = new Uri[mArticles.length];
+        for (int i = 0; i < mArticles.length; i++)
+        {
+            if (mArticles[i] != null)
+                mUris[i] = Uri.parse(mArticles[i].getPath());
+        }
+    }
+
+    // True if the cursor was created for this newspaper and these articles (the catalog gives a new array when the newspaper changes)
+    public boolean isFor(String dateFolder, String distributorFolder, File[] articles)
+    {
+        return mArticles == ((articles != null) ? articles : NO_ARTICLES) && mDateFolder.equals(dateFolder) && mDistributorFolder.equals(distributorFolder);
+    }
+
+    public int getIndex()
+    {
+        return mIndex;
+    }
+
+    // A cursor for the new articles of the newspaper (or for another newspaper), at the same article as this one
+    // An article can come in before the current one (downloaded out of order), so the current article is found again by its file, not by its index
+    // downloads are the files being downloaded into the newspaper, see DownloadRegistry.getDownloads()
+    public ArticleCursor update(String dateFolder, String distributorFolder, File[] articles, List<File> downloads)
+    {
+        ArticleCursor cursor = new ArticleCursor(dateFolder, distributorFolder, articles, mIndex);
+        if (!mDateFolder.equals(dateFolder) || !mDistributorFolder.equals(distributorFolder))
+            return cursor;
+
+        File currentFile = hasArticle() ? mArticles[mIndex] : mDownload;
+        if (currentFile == null || cursor.moveTo(currentFile))
+            return cursor;
+
+        // Still being downloaded, but there can be more articles before it now
+        int downloadIndex = cursor.withoutArticles(downloads).indexOf(currentFile);
+        if (downloadIndex >= 0)
+        {
+            cursor.mIndex = cursor.getArticleCount() + 1 + downloadIndex;
+            cursor.mDownload = currentFile;
+        }
+        return cursor;
+    }
+
+    // The number of articles we have in the newspaper
+    public int getArticleCount()
+    {
+        return Math.max(0, mArticles.length - 1);
+    }
+
+    // True if the file is one of the articles
+    public boolean contains(File file)
+    {
+        for (int i = 1; i < mArticles.length; i++)
+        {
+            if (file.equals(mArticles[i]))
+                return true;
+        }
+        return false;
+    }
+
+    // Move to the article, returns false if it is not one of the articles
+    public boolean moveTo(File file)
+    {
+        for (int i = 1; i < mArticles.length; i++)
+        {
+            if (file.equals(mArticles[i]))
+            {
+                mIndex = i;
+                mDownload = null;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Back to the first article
+    public void reset()
+    {
+        mIndex = 1;
+        mDownload = null;
+    }
+
+    public void next()
+    {
+        mIndex++;
+        mDownload = null;
+    }
+
+    public void previous()
+    {
+        mIndex--;
+        mDownload = null;
+    }
+
+    // False before the first and after the last article
+    public boolean hasArticle()
+    {
+        return mIndex > 0 && mIndex < mArticles.length && mArticles[mIndex] != null;
+    }
+
+    // Null if we don't have the current article
+    public File getFile()
+    {
+        return hasArticle() ? mArticles[mIndex] : null;
+    }
+
+    // Null if we don't have the current article
+    public Uri getUri()
+    {
+        return hasArticle() ? mUris[mIndex] : null;
+    }
+
+    // The file being downloaded at the current position, null if we are on an article or there is no such download
+    // For example with 3 articles, index 4 is the first of the downloads that are not articles already (a changed article is downloaded again)
+    public File findDownload(List<File> downloads)
+    {
+        int downloadIndex = mIndex - getArticleCount() - 1;
+        if (hasArticle() || downloadIndex < 0)
+            return null;
+
+        List<File> newFiles = withoutArticles(downloads);
+        mDownload = (downloadIndex < newFiles.size()) ? newFiles.get(downloadIndex) : null;
+        return mDownload;
+    }
+
+    private List<File> withoutArticles(List<File> downloads)
+    {
+        List<File> newFiles = new ArrayList<>();
+        for (File file : downloads)
+        {
+            if (!contains(file))
+                newFiles.add(file);
+        }
+        return newFiles;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2020 Finlands svenska taltidningsförening rf.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *     */
+package fi.fstf.knappen;
+
+import java.util.Comparator;
+import java.util.Locale;
+
+// This is the ArticleNames class that knows which files in a newspaper folder are articles and in which order they are played
+// An article is any file with one of the configured extensions (R.array.article_extensions), not only speechgen0001.mp3
+// The order is natural: the numbers in the names are compared as numbers, so "article9.mp3" comes before "article10.mp3"
+public class ArticleNames {
+
+    public static final String[] DEFAULT_EXTENSIONS = { "mp3", "ogg", "opus", "m4a" };
+
+    private static volatile String[] extensions = toSuffixes(DEFAULT_EXTENSIONS); // ".mp3", ".ogg" ...
+
+    // Sorts "speechgen0001.mp3", "speechgen0002.mp3" ... "speechgen10000.mp3" and "part2.ogg", "part10.ogg" the way a human would
+    public static final Comparator<String> NATURAL_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String first, String second) {
+            int order = compareNatural(first, second);
+            return (order != 0) ? order : first.compareTo(second); // Only equal names are equal, for example "a01" and "a1" are not
+        }
+    };
+
+    // The extensions without the dot, for example { "mp3", "ogg" }. An empty list keeps the default extensions
+    public static void setExtensions(String[] newExtensions)
+    {
+        if (newExtensions == null || newExtensions.length == 0)
+            return;
+        extensions = toSuffixes(newExtensions);
+    }
+
+    // True for "speechgen0001.mp3" and "Part 2.OGG", false for "speechgen0001.mp3.part", "index.txt" and hidden files
+    public static boolean isArticle(String fileName)
+    {
+        if (fileName == null || fileName.isEmpty() || fileName.charAt(0) == '.')
+            return false;
+
+        for (String suffix : extensions)
+        {
+            if (fileName.length() > suffix.length() && fileName.regionMatches(true, fileName.length() - suffix.length(), suffix, 0, suffix.length()))
+                return true;
+        }
+        return false;
+    }
+
+    private static String[] toSuffixes(String[] extensions)
+    {
+        String[] suffixes = new String[extensions.length];
+        for (int i = 0; i < extensions.length; i++)
+        {
+            String extension = extensions[i].trim().toLowerCase(Locale.US);
+            suffixes[i] = extension.startsWith(".") ? extension : "." + extension;
+        }
+        return suffixes;
+    }
+
+    // Walks both names at the same time, a run of digits is compared with a run of digits by its value, everything else one character at a time
+    private static int compareNatural(String first, String second)
+    {
+        int i = 0, j = 0;
+        while (i < first.length() && j < second.length())
+        {
+            char a = first.charAt(i);
+            char b = second.charAt(j);
+            if (isDigit(a) && isDigit(b))
+            {
+                int startA = i, startB = j;
+                while (i < first.length() && isDigit(first.charAt(i)))
+                    i++;
+                while (j < second.length() && isDigit(second.charAt(j)))
+                    j++;
+
+                // Leading zeros do not change the value, then the longer run is the bigger number
+                int digitsA = startA, digitsB = startB;
+                while (digitsA < i - 1 && first.charAt(digitsA) == '0')
+                    digitsA++;
+                while (digitsB < j - 1 && second.charAt(digitsB) == '0')
+                    digitsB++;
+                if (i - digitsA != j - digitsB)
+                    return (i - digitsA) - (j - digitsB);
+                for (; digitsA < i; digitsA++, digitsB++)
+                {
+                    if (first.charAt(digitsA) != second.charAt(digitsB))
+                        return first.charAt(digitsA) - second.charAt(digitsB);
+                }
+            }
+            else
+            {
+                if (a != b)
+                {
+                    int order = Character.toLowerCase(a) - Character.toLowerCase(b);
+                    if (order != 0)
+                        return order;
+                }
+                i++;
+                j++;
+            }
+        }
+        return (first.length() - i) - (second.length() - j);
+    }
+
+    private static boolean isDigit(char c)
+    {
+        return c >= '0' && c <= '9';
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2020 Finlands svenska taltidningsförening rf.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *     */
+package fi.fstf.knappen;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+// This is the Backoff class that gives the waiting time before the next try of something that failed
+// The time doubles for each try up to a max, and half of it is random so that many phones (or sessions) don't all retry at the same moment
+public class Backoff {
+
+    private final long mBaseMillis;     // The time before the first retry
+    private final long mMaxMillis;      // The time never grows above this
+    private final int mMaxAttempts;     // Number of tries in total, the first try included
+
+    public Backoff(long baseMillis, long maxMillis, int maxAttempts)
+    {
+        this.mBaseMillis = baseMillis;
+        this.mMaxMillis = maxMillis;
+        this.mMaxAttempts = maxAttempts;
+    }
+
+    public int getMaxAttempts()
+    {
+        return mMaxAttempts;
+    }
+
+    // True if another try is allowed after this many failed tries
+    public boolean canRetry(int failedAttempts)
+    {
+        return failedAttempts < mMaxAttempts;
+    }
+
+    // The time to wait after this many failed tries (1 = the first try failed), between half and all of the doubled time
+    public long getDelayMillis(int failedAttempts)
+    {
+        long delay = mBaseMillis;
+        for (int i = 1; i < failedAttempts && delay < mMaxMillis; i++)
+            delay *= 2;
+        delay = Math.min(delay, mMaxMillis);
+
+        long half = delay / 2;
+        return half + ThreadLocalRandom.current().nextLong(delay - half + 1);
+    }
+
+    // Sleep the delay, returns false if the thread was interrupted (then the caller should stop trying)
+    public boolean sleep(int failedAttempts)
+    {
+        try
+        {
+            Thread.sleep(getDelayMillis(failedAttempts));
+            return true;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2020 Finlands svenska taltidningsförening rf.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *     */
+package fi.fstf.knappen;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+import android.util.Log;
+
+import java.io.File;
+import java.util.Locale;
+
+// This is the BlobStore class that keeps the downloaded articles by content (MD5), so the same audio is never downloaded twice
+// A blob is a hard link to the article file, it takes no extra space while the article exists
+// When a paper is published again and the articles are renamed (for example one article was added in the middle),
+// the new names are linked to the blobs we already have and only the really new articles are downloaded
+public class BlobStore {
+
+    private static final String TAG = "BlobStore";
+
+    // The temporary name while linking, renamed over the article file in one step
+    private static final String LINK_SUFFIX = ".link";
+
+    private final File mFolder;
+
+    public BlobStore(File folder)
+    {
+        this.mFolder = folder;
+    }
+
+    // True if at least one blob has been stored, without blobs there is nothing to link
+    public boolean hasBlobs()
+    {
+        String[] names = mFolder.list();
+        return names != null && names.length > 0;
+    }
+
+    // Returns null if we don't have the content
+    public File getBlob(String md5)
+    {
+        if (!isValidHash(md5))
+            return null;
+        File blob = new File(mFolder, md5.toLowerCase(Locale.US));
+        return blob.isFile() ? blob : null;
+    }
+
+    // True if the file is a link to the blob of the content, then its MD5 is known without reading it
+    public boolean isBlob(File file, String md5)
+    {
+        File blob = getBlob(md5);
+        return blob != null && isSameFile(blob, file);
+    }
+
+    // Remember the content of a complete and verified file, the file itself stays where it is
+    public boolean store(File file, String md5)
+    {
+        if (!isValidHash(md5) || getBlob(md5) != null)
+            return false;
+        if (!mFolder.isDirectory() && !mFolder.mkdirs())
+            return false;
+        return link(file, new File(mFolder, md5.toLowerCase(Locale.US)));
+    }
+
+    // Make the target file have the content of the blob, replaces an older version of the target in one step
+    // The modification time is not moved backwards, all links share it and it tells the planner how new the content is
+    // Returns false if we don't have the content
+    public boolean relink(String md5, File target, long serverTime)
+    {
+        File blob = getBlob(md5);
+        if (blob == null)
+            return false;
+
+        File linkFile = new File(target.getParentFile(), target.getName() + LINK_SUFFIX);
+        if (linkFile.exists() && !linkFile.delete())
+            return false;
+        if (!link(blob, linkFile))
+            return false;
+        if (!linkFile.renameTo(target))
+        {
+            linkFile.delete();
+            return false;
+        }
+
+        if (serverTime > target.lastModified())
+            target.setLastModified(serverTime);
+        return true;
+    }
+
+    // Delete the blobs that no article links to anymore (the old newspapers have been deleted), returns the number of deleted blobs
+    public int collectGarbage()
+    {
+        File[] blobs = mFolder.listFiles();
+        if (blobs == null)
+            return 0;
+
+        int deleted = 0;
+        for (File blob : blobs)
+        {
+            // Unknown (-1) is kept, a blob is only deleted when we know it is the last link
+            if (getLinkCount(blob) == 1 && blob.delete())
+                deleted++;
+        }
+        return deleted;
+    }
+
+    // Hard link, both names are the same file afterwards
+    protected boolean link(File existing, File newLink)
+    {
+        try
+        {
+            Os.link(existing.getPath(), newLink.getPath());
+        }
+        catch (ErrnoException e)
+        {
+            Log.d(TAG, e.toString());
+            return false;
+        }
+        return newLink.isFile();
+    }
+
+    // True if both names are links to the same file
+    protected boolean isSameFile(File a, File b)
+    {
+        try
+        {
+            StructStat statA = Os.stat(a.getPath());
+            StructStat statB = Os.stat(b.getPath());
+            return statA != null && statB != null && statA.st_dev == statB.st_dev && statA.st_ino == statB.st_ino;
+        }
+        catch (ErrnoException e)
+        {
+            Log.d(TAG, e.toString());
+            return false;
+        }
+    }
+
+    // Number of names the file has, -1 if we could not find out
+    protected long getLinkCount(File file)
+    {
+        try
+        {
+            StructStat stat = Os.stat(file.getPath());
+            return stat != null ? stat.st_nlink : -1;
+        }
+        catch (ErrnoException e)
+        {
+            Log.d(TAG, e.toString());
+            return -1;
+        }
+    }
+
+    private static boolean isValidHash(String md5)
+    {
+        return md5 != null && md5.matches("[0-9a-fA-F]{32}");
+    }
+}
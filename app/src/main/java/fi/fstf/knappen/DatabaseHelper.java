@@ -44,6 +44,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     // TABLES
     public static final String TABLE_LOG                            = "log";
     public static final String TABLE_NEWSPAPERDISTRIBUTOR           = "newspaperdistributor";
+    public static final String TABLE_SYNC_MANIFEST                  = "syncmanifest";
 
     // THESE CAN BE SHARED ALONG TABLES
     public static final String COLUMN_NAME_ENTRY_ID                 = "_id";
@@ -62,6 +63,9 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     public static final String COLUMN_NAME_DISTRIBUTOR_NAME         = "distributorname";
     public static final String COLUMN_NAME_FOLDER_NAME              = "foldername";
     public static final String COLUMN_NAME_SORT_ID                  = "sortid";
+    public static final String COLUMN_NAME_DATE_FOLDER              = "datefolder";
+    public static final String COLUMN_NAME_FINGERPRINT              = "fingerprint";
+    public static final String COLUMN_NAME_FILE_COUNT               = "filecount";
 
     // https://www.sqlite.org/datatype3.html
     private static final String TEXT_TYPE   = " TEXT";
@@ -98,8 +102,19 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                     COLUMN_NAME_SORT_ID + INT_TYPE + // LAST ONE WITHOUT COMMA
                     " )";
 
+    // CREATE THE SYNC MANIFEST TABLE (one row for each distributor and date folder that has been fully downloaded)
+    private static final String SQL_CREATE_TABLE_SYNC_MANIFEST =
+            "CREATE TABLE IF NOT EXISTS " + TABLE_SYNC_MANIFEST + " (" +
+                    COLUMN_NAME_ENTRY_ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    COLUMN_NAME_FOLDER_NAME + TEXT_TYPE + COMMA_SEP +
+                    COLUMN_NAME_DATE_FOLDER + TEXT_TYPE + COMMA_SEP +
+                    COLUMN_NAME_FINGERPRINT + TEXT_TYPE + COMMA_SEP +
+                    COLUMN_NAME_FILE_COUNT + INT_TYPE + COMMA_SEP +
+                    "UNIQUE (" + COLUMN_NAME_FOLDER_NAME + COMMA_SEP + COLUMN_NAME_DATE_FOLDER + ")" + // LAST ONE WITHOUT COMMA
+                    " )";
+
     // Every time you change the database schema, you must increment the database version here
-    public static final int     DATABASE_VERSION    = 4;
+    public static final int     DATABASE_VERSION    = 5;
     public static final String  DATABASE_NAME       = "FSTF.db";
 
      /**
@@ -115,6 +130,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
 
         db.execSQL(SQL_CREATE_TABLE_LOG);
         db.execSQL(SQL_CREATE_TABLE_NEWSPAPERDISTRIBUTOR);
+        db.execSQL(SQL_CREATE_TABLE_SYNC_MANIFEST);
     }
 
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion)
@@ -132,10 +148,13 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             case 3:
                 // v3 -> v4: When changed to version 4, oldversion will be 3.
                 // Write comment here what you have changed and make sure you do proper setup to not crash old versions
-            case 4:
-                // v4 -> v5 ...
                 // New in database v4 (May 2019)
                 db.execSQL("ALTER TABLE " + TABLE_NEWSPAPERDISTRIBUTOR  + " ADD COLUMN " + COLUMN_NAME_SORT_ID + " INTEGER DEFAULT 1");
+            case 4:
+                // v4 -> v5: Added the TABLE_SYNC_MANIFEST, the sort id above must not be added again when coming from v4
+                db.execSQL(SQL_CREATE_TABLE_SYNC_MANIFEST);
+            case 5:
+                // v5 -> v6 ...
         }
     }
 
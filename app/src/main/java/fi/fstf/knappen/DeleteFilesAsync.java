@@ -47,6 +47,9 @@ public class DeleteFilesAsync extends AsyncTask<String,String,String> {
         {
             // Always delete all mp3 files and folders
             FileManager.getInstance().deleteAllDownloadedFilesAndFolders(mActivity.get(), mNewspaperDistributorFolderID);
+
+            // Nothing is downloaded anymore, all folders must be listed again
+            SyncManifestDAO.getInstance().deleteDistributor(mNewspaperDistributorFolderID);
         }
         else
         {
@@ -60,7 +63,10 @@ public class DeleteFilesAsync extends AsyncTask<String,String,String> {
             int numRowsAffected = NewspaperDistributorDAO.getInstance().deleteDistributorWithFolderID(mNewspaperDistributorFolderID);
 
             if (numRowsAffected > 0)
+            {
                 LogDAO.getInstance().add("Deleted distributor with ID :" + mNewspaperDistributorFolderID);
+                FileManager.getInstance().updatePlaybackCatalogOrder();
+            }
             else
                 LogDAO.getInstance().add("No distributor to delete!");
         }
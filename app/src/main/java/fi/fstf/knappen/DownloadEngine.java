@@ -0,0 +1,800 @@
+/*
+ * Copyright 2020 Finlands svenska taltidningsförening rf.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *     */
+package fi.fstf.knappen;
+
+import android.util.Log;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPFile;
+import org.apache.commons.net.ftp.FTPReply;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// This is the DownloadEngine class that downloads files for one newspaper distributor with several ftp sessions at the same time
+// All sessions take their next file from one shared queue, the queue always gives the newest folder first
+public class DownloadEngine {
+
+    private static final String TAG = "DownloadEngine";
+
+    // Number of ftp sessions we open against one distributor, most servers allow at least 3 logins for the same user
+    public static final int DEFAULT_MAX_SESSIONS = 3;
+
+    // Files are downloaded with this suffix and renamed when complete, for example speechgen0001.mp3.part
+    public static final String PARTIAL_FILE_SUFFIX = ".part";
+
+    // A failed file is put back in the queue and tried again after 1, 2 ... seconds, the session sleeps before the next try
+    private static final Backoff FILE_BACKOFF = new Backoff(1000, 8 * 1000, 3);
+
+    // A session that can't connect (or has lost its connection) tries again after a while before leaving the queue to the others
+    private static final Backoff CONNECT_BACKOFF = new Backoff(2 * 1000, 15 * 1000, 3);
+
+    // Number of corrupt files we keep in the quarantine folder (for finding out what went wrong), the oldest are deleted
+    public static final int MAX_QUARANTINE_FILES = 10;
+
+    // This is how the engine tells the caller what happened to each file (will be called from the download threads!)
+    public interface Listener {
+        void onFileDownloaded(DownloadJob job, File localFile);
+        void onFileFailed(DownloadJob job);
+        void onFilePlayable(DownloadJob job, File localFile); // The file can be played (enough of it is on disk, or it is complete) and its folder is in place
+    }
+
+    private final NewspaperDistributor mDistributor;
+    private final File mBaseFolder;                          // The local base folder, getFilesDir() in the app
+    private final int mMaxSessions;
+    private final PriorityBlockingQueue<DownloadJob> mQueue = new PriorityBlockingQueue<>();
+    private final AtomicInteger mFilesDownloaded = new AtomicInteger(0);
+    private final AtomicInteger mFilesFailed = new AtomicInteger(0);
+    private final Map<String, Map<String, String>> mChecksumFiles = new ConcurrentHashMap<>(); // Date folder -> (file name -> checksum) from the checksum file
+    private Listener mListener = null;
+    private File mQuarantineFolder = null;
+    private long mMaxBytesPerSecond = 0;                      // Shared by all sessions, 0 means no limit
+    private long mThrottleUntilNanos = 0;                     // When the bytes received so far are "paid for"
+    private BlobStore mBlobStore = null;                      // Verified files are remembered by content, null means they are not
+    private File mStagingFolder = null;                       // Part files and new date folders, null means everything is downloaded into mBaseFolder
+    private final Map<String, List<String>> mFolderFiles = new HashMap<>();     // Date folder -> planned file names, first article first
+    private final Map<String, Set<String>> mStagedFiles = new HashMap<>();      // Date folder -> files complete in the staging folder
+    private final Set<String> mCommittedFolders = new HashSet<>();              // Date folders that are in mBaseFolder, new files go straight there
+    private final Map<String, DownloadJob> mFirstJobs = new HashMap<>();        // Date folder -> first planned article, the folder is moved into place when it can be played
+
+    public DownloadEngine(NewspaperDistributor distributor, File baseFolder, int maxSessions)
+    {
+        this.mDistributor = distributor;
+        this.mBaseFolder = baseFolder;
+        this.mMaxSessions = Math.max(1, maxSessions);
+    }
+
+    // Files that fail the checksum are moved here, if not set they are deleted
+    public void setQuarantineFolder(File quarantineFolder)
+    {
+        this.mQuarantineFolder = quarantineFolder;
+    }
+
+    // Download into this folder and move a new date folder into the base folder when its first article can be played
+    // The player can start on the first article while it is downloading (see DownloadRegistry), the rest is downloaded straight into the base folder
+    // Until then the folder is only in the staging folder, so the player never finds a newspaper without its first article
+    // Must be on the same file system as the base folder, the files and folders are renamed
+    public void setStagingFolder(File stagingFolder)
+    {
+        this.mStagingFolder = stagingFolder;
+    }
+
+    // Remember the content of each verified file, so a renamed article can be linked instead of downloaded next time
+    public void setBlobStore(BlobStore blobStore)
+    {
+        this.mBlobStore = blobStore;
+    }
+
+    // Checksums we already have for a date folder (file name -> md5), for example from the server manifest
+    // They are used instead of the checksum file, so the folder's checksum file is not downloaded
+    public void setChecksumFile(String folderName, Map<String, String> checksums)
+    {
+        mChecksumFiles.put(folderName, checksums);
+    }
+
+    // Limit the total download speed of all sessions, 0 means no limit
+    public void setMaxBytesPerSecond(long maxBytesPerSecond)
+    {
+        this.mMaxBytesPerSecond = Math.max(0, maxBytesPerSecond);
+    }
+
+    public int getFilesDownloaded()
+    {
+        return mFilesDownloaded.get();
+    }
+
+    public int getFilesFailed()
+    {
+        return mFilesFailed.get();
+    }
+
+    // Download all jobs and block until done, returns the number of files downloaded
+    // THIS FUNCTION SHOULD BE RUN FROM ASYNC THREAD
+    public int download(List<DownloadJob> jobs, Listener listener)
+    {
+        if (jobs == null || jobs.isEmpty())
+            return 0;
+
+        mListener = listener;
+        planFolderCommits(jobs);
+        mQueue.addAll(jobs);
+
+        // Don't open more sessions than we have files
+        int numSessions = Math.min(mMaxSessions, jobs.size());
+        LogDAO.getInstance().add("Downloading " + jobs.size() + " files with " + numSessions + " ftp sessions");
+
+        ExecutorService executor = Executors.newFixedThreadPool(numSessions);
+        for (int i = 0; i < numSessions; i++)
+        {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    runSession();
+                }
+            });
+        }
+
+        // Wait for all sessions to empty the queue
+        executor.shutdown();
+        try
+        {
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES))
+            {
+                Log.d(TAG, "Still downloading, " + mQueue.size() + " files left in queue");
+            }
+        }
+        catch (InterruptedException e)
+        {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        // Sessions that could not connect leave their files in the queue, they have failed this time
+        DownloadJob job;
+        while ((job = mQueue.poll()) != null)
+            fileFailed(job);
+
+        return mFilesDownloaded.get();
+    }
+
+    // One ftp session, takes files from the shared queue until it is empty
+    private void runSession()
+    {
+        FTPClient ftp = connect();
+        if (ftp == null)
+            return; // The other sessions will take care of the queue
+
+        FTPChecksum checksum = FTPChecksum.forSession(ftp);
+        ByteBuffer buffer = createTransferBuffer(ftp, null);
+        String currentFolderName = null;
+
+        DownloadJob job;
+        while ((job = mQueue.poll()) != null)
+        {
+            // A file that failed before waits a while, the network or the server might have had a short break
+            if (job.getFailedAttempts() > 0 && !FILE_BACKOFF.sleep(job.getFailedAttempts()))
+            {
+                mQueue.add(job);
+                break;
+            }
+
+            try
+            {
+                // Only change directory on the ftp server when we move to another folder
+                if (!job.getFolderName().equals(currentFolderName))
+                {
+                    if (!ftp.changeWorkingDirectory("/" + job.getFolderName()))
+                    {
+                        LogDAO.getInstance().add("Working directory changed failed. Reply: " + ftp.getReplyString());
+                        fileFailedAttempt(job);
+                        currentFolderName = null;
+                        continue;
+                    }
+                    currentFolderName = job.getFolderName();
+                }
+
+                if (downloadFile(ftp, job, checksum, buffer))
+                    fileDownloaded(job);
+                else
+                    fileFailedAttempt(job);
+            }
+            catch (IOException e)
+            {
+                // The session is most likely broken, try to make a new one for the rest of the queue
+                Log.d(TAG, e.toString());
+                LogDAO.getInstance().add("Downloading error: " + e.toString());
+                fileFailedAttempt(job);
+
+                FTPConnectionManager.getInstance().disconnectFromFTP(ftp, false);
+                currentFolderName = null;
+                ftp = connect();
+                if (ftp == null)
+                    return;
+                checksum = FTPChecksum.forSession(ftp);
+                buffer = createTransferBuffer(ftp, buffer);
+            }
+        }
+
+        FTPConnectionManager.getInstance().disconnectFromFTP(ftp);
+    }
+
+    // Connect with a few tries, returns null if the server can't be reached
+    private FTPClient connect()
+    {
+        int failedAttempts = 0;
+        while (true)
+        {
+            FTPClient ftp = FTPConnectionManager.getInstance().connectToFTP(mDistributor.getFtpAddress(), mDistributor.getFtpPort(), mDistributor.getFtpUsername(), mDistributor.getFtpPassword());
+            if (ftp != null)
+                return ftp;
+
+            failedAttempts++;
+            if (!CONNECT_BACKOFF.canRetry(failedAttempts) || mQueue.isEmpty() || !CONNECT_BACKOFF.sleep(failedAttempts))
+                return null;
+        }
+    }
+
+    // Each session has one buffer that is used for all its files, so the download loop doesn't allocate anything
+    // The size is the buffer size TransferTuning chose for the session, a new session can get another size
+    static ByteBuffer createTransferBuffer(FTPClient ftp, ByteBuffer oldBuffer)
+    {
+        int size = Math.max(8 * 1024, ftp.getBufferSize());
+        if (oldBuffer != null && oldBuffer.capacity() == size)
+            return oldBuffer;
+        return ByteBuffer.allocate(size); // Heap buffer, the checksum needs to read the bytes as an array
+    }
+
+    private boolean downloadFile(FTPClient ftp, DownloadJob job, FTPChecksum checksum, ByteBuffer buffer) throws IOException
+    {
+        // Create the folder for the part file, for example /20190521/01 in the staging folder
+        File partFolder = getPartFolder(job.getFolderName());
+        if (partFolder == null)
+            return false;
+
+        String fileName = job.getFileName(); // speechgen0001.mp3 etc
+        long serverFileSize = job.getServerFile().getSize(); // -1 if the server did not tell us
+
+        // The file is downloaded into speechgen0001.mp3.part and renamed when it is complete
+        // This way a phone restart or network drop in the middle of a file never leaves a broken mp3 that can be played
+        File localFile = getLocalFile(job);
+        File partFile = new File(partFolder, fileName + PARTIAL_FILE_SUFFIX);
+
+        // A file that was completed in the staging folder by an earlier sync (its folder was never moved into place) is checked again like a part file
+        // Only if it still has the right size, it can be a blob and must never be appended to
+        File stagedFile = new File(partFolder, fileName);
+        if (mStagingFolder != null && !partFile.exists() && stagedFile.isFile())
+        {
+            if (stagedFile.length() != serverFileSize)
+                stagedFile.delete();
+            else if (!stagedFile.renameTo(partFile))
+                LogDAO.getInstance().add("Failed to rename " + stagedFile.getName());
+        }
+
+        // Continue from the bytes we already have from an earlier try
+        long offset = partFile.exists() ? partFile.length() : 0;
+        if (serverFileSize >= 0 && offset > serverFileSize)
+        {
+            // The file on server has changed, start from the beginning
+            offset = 0;
+        }
+
+        // The player can start on the file while it is being downloaded, see ProgressiveMediaDataSource
+        ActiveDownload download = DownloadRegistry.getInstance().start(localFile, partFile, serverFileSize, offset);
+        boolean success = false;
+        try
+        {
+            success = downloadPartFile(ftp, job, checksum, buffer, partFile, offset, download) && commitPartFile(partFile, job);
+            return success;
+        }
+        finally
+        {
+            DownloadRegistry.getInstance().finish(download, success);
+        }
+    }
+
+    // Download the rest of the part file and verify it, returns false if the part file is not complete and correct
+    private boolean downloadPartFile(FTPClient ftp, DownloadJob job, FTPChecksum checksum, ByteBuffer buffer, File partFile, long offset, ActiveDownload download) throws IOException
+    {
+        // The checksum is calculated while the file is written, a resumed file also needs the bytes we already have
+        StreamingChecksum fileChecksum = createFileChecksum(checksum, partFile, offset);
+
+        long serverFileSize = job.getServerFile().getSize();
+        if (offset > 0 && offset == serverFileSize)
+        {
+            // We have all bytes already, only the rename is missing
+            return verifyPartFile(ftp, job, checksum, fileChecksum, partFile);
+        }
+
+        boolean success = retrieveFile(ftp, job, partFile, offset, fileChecksum, buffer, download);
+        if (!success && offset > 0 && isRestRefused(ftp.getReplyCode()))
+        {
+            // The server does not support REST, try once more from the beginning
+            // Any other failure (a busy file, a transfer that was cut again) keeps the part file for the next try
+            LogDAO.getInstance().add("Resume failed, downloading whole file: " + job.getFileName());
+            fileChecksum = createFileChecksum(checksum, partFile, 0);
+            success = retrieveFile(ftp, job, partFile, 0, fileChecksum, buffer, download);
+        }
+
+        if (!success)
+        {
+            LogDAO.getInstance().add("retrieveFile() failed: " + job.getFileName());
+            return false;
+        }
+
+        return verifyPartFile(ftp, job, checksum, fileChecksum, partFile);
+    }
+
+    // True for the replies a server gives to a REST it doesn't support, a refused RETR gets 4xx or 550 and a cut transfer 426 or 451
+    private static boolean isRestRefused(int replyCode)
+    {
+        return replyCode == FTPReply.UNRECOGNIZED_COMMAND || replyCode == FTPReply.SYNTAX_ERROR_IN_ARGUMENTS
+                || replyCode == FTPReply.COMMAND_NOT_IMPLEMENTED || replyCode == FTPReply.COMMAND_NOT_IMPLEMENTED_FOR_PARAMETER;
+    }
+
+    // Reads the data connection straight into the part file channel through the session buffer
+    // FTPClient.retrieveFile() would add a BufferedInputStream, a copy buffer and our BufferedOutputStream for every file
+    // The part file is not preallocated, its length is what tells the next try where to resume
+    private boolean retrieveFile(FTPClient ftp, DownloadJob job, File partFile, long offset, StreamingChecksum fileChecksum, ByteBuffer buffer, ActiveDownload download) throws IOException
+    {
+        String fileName = job.getFileName();
+        if (offset > 0)
+        {
+            LogDAO.getInstance().add("Resuming " + fileName + " from byte " + offset);
+            ftp.setRestartOffset(offset); // Sends REST before RETR, will be reset by FTPClient after use
+        }
+
+        long started = System.currentTimeMillis();
+        InputStream inputStream;
+        try
+        {
+            inputStream = ftp.retrieveFileStream(fileName);
+        }
+        finally
+        {
+            ftp.setRestartOffset(0);
+        }
+        if (inputStream == null)
+            return false; // The server refused RETR (or REST), the reply is in ftp.getReplyString()
+
+        // Append to the part file when resuming, else overwrite it
+        long bytesReceived = 0;
+        boolean playable = offset >= DownloadRegistry.PLAYABLE_BYTES;
+        download.setBytesOnDisk(offset);
+        if (playable)
+            filePlayable(job, download.getLocalFile()); // Resumed, we already have enough
+        // A new file instead of truncating the old one, the old one might be a blob
+        if (offset == 0 && partFile.exists() && !partFile.delete())
+            LogDAO.getInstance().add("Failed to delete " + partFile.getName());
+        FileChannel channel = new FileOutputStream(partFile, offset > 0).getChannel();
+        try
+        {
+            byte[] bytes = buffer.array();
+            int read;
+            while ((read = inputStream.read(bytes, 0, bytes.length)) != -1)
+            {
+                if (fileChecksum != null)
+                    fileChecksum.update(bytes, 0, read);
+
+                buffer.clear();
+                buffer.limit(read);
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+                bytesReceived += read;
+                throttle(read);
+
+                // The bytes are in the file now, a player waiting for them can continue
+                download.setBytesOnDisk(offset + bytesReceived);
+                if (!playable && offset + bytesReceived >= DownloadRegistry.PLAYABLE_BYTES)
+                {
+                    playable = true;
+                    filePlayable(job, download.getLocalFile());
+                }
+            }
+        }
+        finally
+        {
+            // Always close both, closing the data connection is what makes the server send its final reply
+            try
+            {
+                channel.close();
+            }
+            finally
+            {
+                inputStream.close();
+            }
+        }
+
+        // Read the "226 Transfer complete" reply, a dropped transfer gives a negative reply here
+        if (!ftp.completePendingCommand())
+            return false;
+
+        // Remember how fast this buffer size was on this network, a limited speed says nothing about the network
+        long millis = System.currentTimeMillis() - started;
+        if (mMaxBytesPerSecond == 0)
+            TransferTuning.getInstance().recordTransfer(FTPConnectionManager.getInstance().getNetworkType(), ftp.getBufferSize(), bytesReceived, millis);
+        return true;
+    }
+
+    // Sleep if all sessions together have received more than the speed limit allows
+    // Each read books its time on a shared clock, a session sleeps until its bytes are within the limit
+    private void throttle(int bytes) throws InterruptedIOException
+    {
+        if (mMaxBytesPerSecond <= 0)
+            return;
+
+        long sleepNanos = reserveThrottle(bytes, System.nanoTime());
+        try
+        {
+            if (sleepNanos > 0)
+                Thread.sleep(sleepNanos / 1000000, (int) (sleepNanos % 1000000));
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttling the download");
+        }
+    }
+
+    // Books the time for the bytes on the shared clock, returns how long the session must sleep (in nanoseconds)
+    synchronized long reserveThrottle(int bytes, long nowNanos)
+    {
+        if (mMaxBytesPerSecond <= 0)
+            return 0;
+
+        if (mThrottleUntilNanos == 0 || mThrottleUntilNanos - nowNanos < 0)
+            mThrottleUntilNanos = nowNanos; // No credit is saved up while the sessions are idle
+        mThrottleUntilNanos += bytes * 1000000000L / mMaxBytesPerSecond;
+        return mThrottleUntilNanos - nowNanos;
+    }
+
+    // Returns null if the algorithm is missing on this phone, then only the file size is checked
+    private StreamingChecksum createFileChecksum(FTPChecksum checksum, File partFile, long offset) throws IOException
+    {
+        try
+        {
+            StreamingChecksum fileChecksum = new StreamingChecksum(checksum.getAlgorithm());
+            if (offset > 0)
+                fileChecksum.update(partFile);
+            return fileChecksum;
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            Log.d(TAG, e.toString());
+            return null;
+        }
+    }
+
+    // Compare our checksum with the one from the server, a corrupt file is moved to the quarantine folder
+    // Returns true if the file is ok, or if the server has no checksum for it
+    private boolean verifyPartFile(FTPClient ftp, DownloadJob job, FTPChecksum checksum, StreamingChecksum fileChecksum, File partFile) throws IOException
+    {
+        // Wrong size is handled when committing (too small files are resumed next time)
+        long serverFileSize = job.getServerFile().getSize();
+        if (fileChecksum == null || (serverFileSize >= 0 && partFile.length() != serverFileSize))
+            return true;
+
+        String expected;
+        if (checksum.getMethod() == FTPChecksum.METHOD_CHECKSUM_FILE)
+            expected = getChecksumFile(ftp, job.getFolderName()).get(job.getFileName());
+        else
+            expected = checksum.requestServerChecksum(ftp, job.getFileName());
+
+        if (expected == null)
+            return true;
+
+        String actual = fileChecksum.getHexValue();
+        if (expected.equals(actual))
+        {
+            // The content is verified, the blob is the same file as the part file (and the article after the rename)
+            if (mBlobStore != null && FTPChecksum.MD5_ALGORITHM.equals(checksum.getAlgorithm()))
+                mBlobStore.store(partFile, actual);
+            return true;
+        }
+
+        LogDAO.getInstance().add(job.getFileName() + " has wrong " + checksum.getAlgorithm() + " " + actual + ", expected " + expected);
+        quarantine(partFile, job);
+        return false;
+    }
+
+    // The checksum file is only read once for each date folder, all sessions share it (an empty map if the folder has none)
+    private Map<String, String> getChecksumFile(FTPClient ftp, String folderName) throws IOException
+    {
+        Map<String, String> checksums = mChecksumFiles.get(folderName);
+        if (checksums == null)
+        {
+            checksums = FTPChecksum.readChecksumFile(ftp);
+            mChecksumFiles.put(folderName, checksums);
+        }
+        return checksums;
+    }
+
+    // Move the corrupt file away so that the next download starts from the beginning
+    private void quarantine(File partFile, DownloadJob job)
+    {
+        if (mQuarantineFolder != null && (mQuarantineFolder.isDirectory() || mQuarantineFolder.mkdirs()))
+        {
+            File quarantineFile = new File(mQuarantineFolder, job.getFolderName() + "_" + mDistributor.getFolderName() + "_" + job.getFileName());
+            if (partFile.renameTo(quarantineFile))
+            {
+                quarantineFile.setLastModified(System.currentTimeMillis());
+                LogDAO.getInstance().add("Moved " + job.getFileName() + " to quarantine");
+                trimQuarantine();
+                return;
+            }
+        }
+
+        if (!partFile.delete())
+            LogDAO.getInstance().add("Failed to delete " + partFile.getName());
+    }
+
+    // Keep only the newest files in the quarantine folder
+    private synchronized void trimQuarantine()
+    {
+        File[] files = mQuarantineFolder.listFiles();
+        if (files == null || files.length <= MAX_QUARANTINE_FILES)
+            return;
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(b.lastModified(), a.lastModified()); // Newest first
+            }
+        });
+        for (int i = MAX_QUARANTINE_FILES; i < files.length; i++)
+            files[i].delete();
+    }
+
+    // Rename the part file to the real name when all bytes are on disk
+    private boolean commitPartFile(File partFile, DownloadJob job)
+    {
+        FTPFile serverFile = job.getServerFile();
+        long serverFileSize = serverFile.getSize();
+        long localFileSize = partFile.length();
+        if (serverFileSize >= 0 && localFileSize != serverFileSize)
+        {
+            LogDAO.getInstance().add(job.getFileName() + " is " + localFileSize + " bytes, expected " + serverFileSize);
+
+            // Too big can never be fixed by resuming, too small will be resumed next time
+            if (localFileSize > serverFileSize && !partFile.delete())
+                LogDAO.getInstance().add("Failed to delete " + partFile.getName());
+            return false;
+        }
+
+        // Use the server time as local modification time, then we can see later if the file is published again on the server
+        // Set before the rename, the file can be moved on with its folder right after it
+        if (serverFile.getTimestamp() != null)
+            partFile.setLastModified(serverFile.getTimestamp().getTimeInMillis());
+
+        if (!moveIntoPlace(partFile, job))
+            return false;
+
+        // Small files are never reported while downloading, a small first article moves its folder into place here
+        filePlayable(job, getLocalFile(job));
+        return true;
+    }
+
+    // True if files in the date folder can be found by the player
+    private synchronized boolean isInPlace(String folderName)
+    {
+        return mStagingFolder == null || mCommittedFolders.contains(folderName);
+    }
+
+    private synchronized DownloadJob getFirstJob(String folderName)
+    {
+        return mFirstJobs.get(folderName);
+    }
+
+    // The rename replaces an older version of the file in one step
+    // A file in a folder that is still staged stays in the staging folder until the folder is moved into place
+    // Synchronized with commitFolder(), so no file is renamed into a folder that is being moved
+    private synchronized boolean moveIntoPlace(File partFile, DownloadJob job)
+    {
+        String folderName = job.getFolderName();
+        boolean staged = mStagingFolder != null && !mCommittedFolders.contains(folderName);
+        File folder = staged ? partFile.getParentFile() : new File(mBaseFolder, folderName + "/" + mDistributor.getFolderName());
+
+        if (!folder.isDirectory() && !folder.mkdirs())
+        {
+            LogDAO.getInstance().add("Failed to create local folder.");
+            return false;
+        }
+        if (!partFile.renameTo(new File(folder, job.getFileName())))
+        {
+            LogDAO.getInstance().add("Failed to rename " + partFile.getName());
+            return false;
+        }
+
+        // The server renamed the article to another case, the old file is the same article
+        File replacedFile = job.getReplacedFile();
+        if (replacedFile != null && replacedFile.exists() && !replacedFile.delete())
+            LogDAO.getInstance().add("Failed to delete " + replacedFile.getName());
+
+        if (staged)
+        {
+            // The first article failed, the folder is moved into place with the other articles
+            mStagedFiles.get(folderName).add(job.getFileName());
+            if (!mFirstJobs.containsKey(folderName))
+                commitFolder(folderName);
+        }
+        return true;
+    }
+
+    // Remember the files of each date folder, and which folders are already in the base folder
+    private synchronized void planFolderCommits(List<DownloadJob> jobs)
+    {
+        if (mStagingFolder == null)
+            return;
+
+        List<DownloadJob> sortedJobs = new ArrayList<>(jobs);
+        Collections.sort(sortedJobs); // First article first in each folder
+        for (DownloadJob job : sortedJobs)
+        {
+            String folderName = job.getFolderName();
+            if (!mFolderFiles.containsKey(folderName))
+            {
+                mFolderFiles.put(folderName, new ArrayList<String>());
+                mStagedFiles.put(folderName, new HashSet<String>());
+                mFirstJobs.put(folderName, job);
+
+                // A folder we already have locally only gets new or changed files, each file is renamed into it when complete
+                if (new File(mBaseFolder, folderName + "/" + mDistributor.getFolderName()).isDirectory())
+                    mCommittedFolders.add(folderName);
+            }
+            mFolderFiles.get(folderName).add(job.getFileName());
+        }
+    }
+
+    // Move the staged date folder into the base folder, with one rename if all its files are complete
+    // Else the complete files are moved one by one, and the files still downloading are renamed into the base folder when they are done
+    private synchronized void commitFolder(String folderName)
+    {
+        if (mStagingFolder == null || mCommittedFolders.contains(folderName))
+            return;
+
+        File stagedFolder = new File(mStagingFolder, folderName + "/" + mDistributor.getFolderName());
+        File localFolder = new File(mBaseFolder, folderName + "/" + mDistributor.getFolderName());
+
+        // No session is using the staged folder when all files are complete (a complete file is never downloaded again)
+        boolean allFilesStaged = mStagedFiles.get(folderName).size() == mFolderFiles.get(folderName).size();
+        File[] stagedFiles = stagedFolder.listFiles();
+        if (stagedFiles == null)
+            return;
+
+        File dateFolder = localFolder.getParentFile();
+        if (!dateFolder.isDirectory() && !dateFolder.mkdirs())
+        {
+            LogDAO.getInstance().add("Failed to create local folder.");
+            return;
+        }
+
+        if (allFilesStaged && !localFolder.exists() && stagedFolder.renameTo(localFolder))
+        {
+            // Remove the empty date folder in the staging folder, it is only used again if the server publishes more files in it
+            stagedFolder.getParentFile().delete();
+        }
+        else
+        {
+            if (!localFolder.isDirectory() && !localFolder.mkdirs())
+            {
+                LogDAO.getInstance().add("Failed to create local folder.");
+                return;
+            }
+            for (File file : stagedFiles)
+            {
+                if (!file.getName().endsWith(PARTIAL_FILE_SUFFIX) && !file.renameTo(new File(localFolder, file.getName())))
+                {
+                    LogDAO.getInstance().add("Failed to rename " + file.getName());
+                    return; // The folder is tried again when the next file is done
+                }
+            }
+        }
+
+        mCommittedFolders.add(folderName);
+        LogDAO.getInstance().add("Newspaper " + folderName + " can be played");
+    }
+
+    // Several sessions can try to create the same folder at the same time, that's why this is synchronized
+    private synchronized File getPartFolder(String folderName)
+    {
+        File partFolder = new File(mStagingFolder != null ? mStagingFolder : mBaseFolder, folderName + "/" + mDistributor.getFolderName());
+
+        // Check if we already have created the directory, if not create it
+        if (!partFolder.isDirectory() && !partFolder.mkdirs())
+        {
+            LogDAO.getInstance().add("Failed to create local folder.");
+            return null;
+        }
+        return partFolder;
+    }
+
+    // Where the file will be when it can be played, it is only there once its folder has been moved into place
+    private File getLocalFile(DownloadJob job)
+    {
+        return new File(mBaseFolder, job.getFolderName() + "/" + mDistributor.getFolderName() + "/" + job.getFileName());
+    }
+
+    private void fileDownloaded(DownloadJob job)
+    {
+        mFilesDownloaded.incrementAndGet();
+        if (mListener != null)
+            mListener.onFileDownloaded(job, getLocalFile(job));
+    }
+
+    private void filePlayable(DownloadJob job, File localFile)
+    {
+        // The first article makes a new folder playable, also when it is still downloading
+        if (job == getFirstJob(job.getFolderName()))
+            commitFolder(job.getFolderName());
+        if (mListener != null && isInPlace(job.getFolderName()))
+            mListener.onFilePlayable(job, localFile);
+    }
+
+    // Put the file back in the queue, or give up on it after the last try
+    private void fileFailedAttempt(DownloadJob job)
+    {
+        int failedAttempts = job.addFailedAttempt();
+        if (FILE_BACKOFF.canRetry(failedAttempts))
+        {
+            LogDAO.getInstance().add("Will try " + job.getFileName() + " again (" + failedAttempts + " failed)");
+            mQueue.add(job);
+        }
+        else
+            fileFailed(job);
+    }
+
+    // A new folder whose first article can't be downloaded is moved into place with the other articles, else they would wait in the staging folder forever
+    // The folder is moved now if some articles are complete, else when the next one is
+    private synchronized void firstArticleFailed(DownloadJob job)
+    {
+        String folderName = job.getFolderName();
+        if (mStagingFolder == null || job != mFirstJobs.get(folderName) || mCommittedFolders.contains(folderName))
+            return;
+
+        LogDAO.getInstance().add("Newspaper " + folderName + " is missing " + job.getFileName());
+        mFirstJobs.remove(folderName);
+        if (!mStagedFiles.get(folderName).isEmpty())
+            commitFolder(folderName);
+    }
+
+    private void fileFailed(DownloadJob job)
+    {
+        firstArticleFailed(job);
+        mFilesFailed.incrementAndGet();
+        if (mListener != null)
+            mListener.onFileFailed(job);
+    }
+}
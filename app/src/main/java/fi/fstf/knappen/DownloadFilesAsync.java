@@ -19,19 +19,23 @@ import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
 import android.os.AsyncTask;
-import android.os.SystemClock;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
 import org.apache.commons.net.ftp.FTPClient;
 import org.apache.commons.net.ftp.FTPFile;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 // READ THESE ABOUT ALARMS AND BOOT COMPLETED
 // https://developer.android.com/training/scheduling/alarms.html
@@ -41,27 +45,69 @@ import java.lang.ref.WeakReference;
 public class DownloadFilesAsync extends AsyncTask<String,String,String> {
 
     private static final String TAG = "DownloadFilesAsync";
-    private static boolean mRetryPlayWelcomeAfterDownloading = false;
+
+    // Waiting for the network after the phone wakes up, about 45 seconds in total
+    private static final Backoff ONLINE_BACKOFF = new Backoff(1000, 16 * 1000, 7);
+
+    // Connecting and listing the server, a new session for each try
+    private static final Backoff LIST_BACKOFF = new Backoff(5 * 1000, 30 * 1000, 4);
+
     private FTPClient mFtp = null;
     private WeakReference<Activity> mActivity;
     private WeakReference<Context> mContext;
     private boolean mStartPlayingWelcomeAfterDownloading;
+    private final AtomicBoolean mWelcomeSent = new AtomicBoolean(false);
+    private boolean mDeferred;
     private FTPFile[] mServerNewspaperFolderList;            // For example: folder 0 = 20180327, folder 1 = 20180328, folder 2 = 20180329 ...
     private FTPFile[][] mServerNewspaperFileList;            // FTPFile[0][3] ... fourth ftp mp3 file in folder 0
     private NewspaperDistributor mCurrentNewspaperDistributor = null;
     private String mDistributorFolderID = "";                // For example "01"
+    private Map<String, SyncManifestItem> mListedFolders = new HashMap<>();           // The folders we listed this time, saved to the sync manifest when downloaded
+    private final Set<String> mFailedFolders = Collections.synchronizedSet(new HashSet<String>()); // Folders with at least one failed (or deferred) file
+    private boolean mListingIncomplete = false;              // A folder could not be listed, the sync must be tried again
+    private int mFilesFailed = 0;
+    private boolean mDeepVerify = false;                     // All server folders are listed this time, not only the newest ones
+    private Map<String, Map<String, String>> mServerChecksums = new HashMap<>(); // Date folder -> (file name -> md5) from the server manifest or the checksum files
 
     // Constructor
-    public DownloadFilesAsync(Activity activity, Context context, String distributorFolderID, boolean startPlayingWelcomeAfterDownloading)
+    public DownloadFilesAsync(Activity activity, Context context, String distributorFolderID, boolean startPlayingWelcomeAfterDownloading, boolean deferred)
     {
         if(activity!= null)
             this.mActivity = new WeakReference<>(activity);    // This will be used for UI updates, will be null if called from service
         this.mContext = new WeakReference<>(context);          // This will be used when this is called from the service
         this.mDistributorFolderID = distributorFolderID;       // This will be used because there can be several downloads going on at the same time
         this.mStartPlayingWelcomeAfterDownloading = startPlayingWelcomeAfterDownloading; // Start playing welcome message after downloading (only first time after reboot)
+        this.mDeferred = deferred;                             // The rest of a download that was restricted, see DownloadPolicy
     }
 
     protected String doInBackground(String... params) {
+        try
+        {
+            return sync();
+        }
+        catch (RuntimeException e)
+        {
+            // A crash must not keep the sync slot in the coordinator, onPostExecute gives it back and the sync is tried again later
+            Log.d(TAG, e.toString());
+            LogDAO.getInstance().add("Download of " + mDistributorFolderID + " failed: " + e.toString());
+            RetryScheduler.getInstance().onSyncFailed(mDistributorFolderID);
+            if (mStartPlayingWelcomeAfterDownloading && !mWelcomeSent.get())
+                SyncCoordinator.getInstance().passWelcomeOn();
+            return "fail";
+        }
+        finally
+        {
+            // Don't give a session that was left open by an error back to the pool
+            if (mFtp != null)
+            {
+                FTPConnectionManager.getInstance().disconnectFromFTP(mFtp, false);
+                mFtp = null;
+            }
+        }
+    }
+
+    // THIS FUNCTION SHOULD BE RUN FROM ASYNC THREAD
+    private String sync() {
 
         Activity localActivity = null;
         if(mContext == null || mContext.get() == null)
@@ -74,9 +120,13 @@ public class DownloadFilesAsync extends AsyncTask<String,String,String> {
         // This is a common place where a crash can occur if we expect that the manger is started from application
         LogDAO.getInstance().createDB(mContext.get());
         NewspaperDistributorDAO.getInstance().createDB(mContext.get());
+        SyncManifestDAO.getInstance().createDB(mContext.get());
         FileManager.getInstance().setApplicationContext(mContext.get());
         MediaPlayerManager.getInstance().setApplicationContext(mContext.get());
         FTPConnectionManager.getInstance().setApplicationContext(mContext.get());
+        TransferTuning.getInstance().setApplicationContext(mContext.get());
+        DownloadPolicy.getInstance().setApplicationContext(mContext.get());
+        RetryScheduler.getInstance().setApplicationContext(mContext.get());
 
 
         // First I thought about looping through all distributors but that is not ok because they are saved separately in distributor list
@@ -104,94 +154,127 @@ public class DownloadFilesAsync extends AsyncTask<String,String,String> {
         String ftpUsername = mCurrentNewspaperDistributor.getFtpUsername();
         String ftpPassword = mCurrentNewspaperDistributor.getFtpPassword();
 
-        // Stop the mediaplayer while deleting
-        MediaPlayerManager.getInstance().stop();
-        MediaPlayerManager.getInstance().setEnabled(false);
-
-        // Delete files from old filesystem "/01/Date" ...
-        // This function can be removed in next release when we know for sure that everyone has deleted these files
-        FileManager.getInstance().deleteAllOldDownloadedFilesAndFolders(localActivity);
-
-        // Delete more than one week old folders
-        FileManager.getInstance().checkAndDeleteOldDownloadedFilesAndFolders(newspaperDistributorFolder);
-
-        // Enable mediaplayer again
-        MediaPlayerManager.getInstance().setEnabled(true);
-
-        // Set the filemanager to start from first file (in the newest local folder set above)
-        FileManager.getInstance().resetCurrentIndex();
+        // Stop the mediaplayer while deleting, other downloads might be deleting at the same time
+        // The coordinator enables it again when all of them are done, and starts from the first file
+        SyncCoordinator.getInstance().pausePlayback();
+        try
+        {
+            // Delete files from old filesystem "/01/Date" ...
+            // This function can be removed in next release when we know for sure that everyone has deleted these files
+            FileManager.getInstance().deleteAllOldDownloadedFilesAndFolders(localActivity);
 
-        // Also set the media player to start from beginning of file (if we have paused in the middle of some other file)
-        MediaPlayerManager.getInstance().resetCurrentPosition();
+            // Delete more than one week old folders
+            FileManager.getInstance().checkAndDeleteOldDownloadedFilesAndFolders(newspaperDistributorFolder);
+        }
+        finally
+        {
+            SyncCoordinator.getInstance().resumePlayback();
+        }
 
         // Create the local list
         LogDAO.getInstance().add("Updating the local folder list");
         FileManager.getInstance().updateLocalFileLists(newspaperDistributorFolder); // Getting ÖT list and saved in local list in FileManager (used in compareServerAndLocalList function)
         FileManager.getInstance().updateUIThread(localActivity);
 
-        // Test if we are online
+        // Test if we are online, wait a little longer each time (the phone might just have woken up)
         boolean connected = FTPConnectionManager.getInstance().isOnline();
-        int counter = 0;
-        while (!connected && counter < 5)
+        int failedAttempts = 0;
+        while (!connected)
         {
-            SystemClock.sleep(2000); // Sleep 2 seconds and test again
+            failedAttempts++;
+            if (!ONLINE_BACKOFF.canRetry(failedAttempts) || !ONLINE_BACKOFF.sleep(failedAttempts))
+                break;
             connected = FTPConnectionManager.getInstance().isOnline();
-            counter++;
         }
 
-        // Just a last test, abort if not functioning after 10 seconds
-        connected = FTPConnectionManager.getInstance().isOnline();
         if(!connected)
         {
             LogDAO.getInstance().add("Application could not connect to internet.");
             System.err.println("Application could not connect to internet.");
+            RetryScheduler.getInstance().onSyncFailed(mDistributorFolderID);
             return "fail";
         }
 
-        // Connect to FTP
-        mFtp = FTPConnectionManager.getInstance().connectToFTP(ftpAddress, ftpPort, ftpUsername, ftpPassword);
-        FileManager.getInstance().updateUIThread(localActivity);
-
-        // Create the FTP server list
-        LogDAO.getInstance().add("Creating ftp server list");
-        createServerList();
-        FileManager.getInstance().updateUIThread(localActivity);
+        // Connect to FTP and create the FTP server list, a failed listing is tried again with a new session
+        failedAttempts = 0;
+        while (true)
+        {
+            mFtp = FTPConnectionManager.getInstance().connectToFTP(ftpAddress, ftpPort, ftpUsername, ftpPassword);
+            FileManager.getInstance().updateUIThread(localActivity);
+
+            // One download of the server manifest if there is one, else every folder is listed
+            LogDAO.getInstance().add("Creating ftp server list");
+            if (!readServerManifest())
+                createServerList();
+            FileManager.getInstance().updateUIThread(localActivity);
+            if (mServerNewspaperFolderList != null)
+                break;
+
+            FTPConnectionManager.getInstance().disconnectFromFTP(mFtp, false);
+            mFtp = null;
+
+            failedAttempts++;
+            if (!LIST_BACKOFF.canRetry(failedAttempts) || !LIST_BACKOFF.sleep(failedAttempts))
+                break;
+            LogDAO.getInstance().add("Could not list the ftp server, trying again");
+        }
 
         // Compare and make download list
         LogDAO.getInstance().add("Comparing files for " + mCurrentNewspaperDistributor.getNewspaperDistributorName() + " (" + mCurrentNewspaperDistributor.getFolderName() + ")");
-        FTPFile[][] downloadList = FileManager.getInstance().compareServerAndLocalList(mServerNewspaperFolderList, mServerNewspaperFileList);
+        List<DownloadJob> downloadList = FileManager.getInstance().compareServerAndLocalList(newspaperDistributorFolder, mServerNewspaperFolderList, mServerNewspaperFileList, mServerChecksums);
         FileManager.getInstance().updateUIThread(localActivity);
 
-        // Here we could check available space
+        // Articles we already have with another name (the paper was published again) are linked instead of downloaded
+        downloadList = relinkKnownFiles(downloadList);
+
+        // Disconnect the listing session, the download engine opens its own ftp sessions
+        FTPConnectionManager.getInstance().disconnectFromFTP(mFtp);
+
+        // Make sure we reset this
+        mFtp = null;
+
+        // On a metered or slow network only the first articles of the newest paper are downloaded now
+        downloadList = applyDownloadPolicy(downloadList);
+
+        // Make room for the files, and only download what fits so that no folder is left half written because the disk is full
+        downloadList = applyAvailableSpace(downloadList);
 
         // Download missing folders and files from downloadList
         LogDAO.getInstance().add("Starting to download...");
 
-        // Extra check for the case if you download a newspaper that is often empty (for example KP)
-        // On a restart of phone only the first one will get the boolean set to true (startPlayingWelcome), but in this case it will jump out because the download list is null
-        // that also means the updateToNewestPlayableFolder() won't be run until after the next newspaper has been fully downloaded
-        if (mRetryPlayWelcomeAfterDownloading) {
-            mStartPlayingWelcomeAfterDownloading = true;
-            mRetryPlayWelcomeAfterDownloading = false;
-        }
         // Try to download files, returns false if download list is null
         boolean didDownloadFiles = downloadAndSaveFiles(downloadList, mStartPlayingWelcomeAfterDownloading);
 
-        // This will make the next newspaper play welcome (instead of only the first, if the first is empty)
+        // Remember the folders that are now complete, they don't need to be listed next time if they look the same
+        if (didDownloadFiles)
+            updateSyncManifest();
+
+        // The content of deleted newspapers is not needed anymore
+        int deletedBlobs = FileManager.getInstance().getBlobStore().collectGarbage();
+        if (deletedBlobs > 0)
+            LogDAO.getInstance().add("Deleted " + deletedBlobs + " unused blobs");
+
+        // Extra check for the case if you download a newspaper that is often empty (for example KP)
+        // On a restart of phone only the first one will play welcome, but in this case it will jump out because the download list is null
+        // This will make the next newspaper play welcome instead (the coordinator gives it to the next download that starts)
         if (!didDownloadFiles && mStartPlayingWelcomeAfterDownloading)
-            mRetryPlayWelcomeAfterDownloading = true;
+            SyncCoordinator.getInstance().passWelcomeOn();
 
         FileManager.getInstance().updateUIThread(localActivity);
 
-        // Disconnect when we are done
-        FTPConnectionManager.getInstance().disconnectFromFTP(mFtp);
-
-        // Make sure we reset this
-        mFtp = null;
+        // Everything that was downloaded, linked or deleted during the sync
+        // The newest local folder is set for playing by the coordinator when all downloads are done
+        FileManager.getInstance().onLocalFilesChanged();
 
-        // Make sure to run the local update for playable folder, it will set the newest local folder to be able to play it in the morning!
-        FileManager.getInstance().updateToNewestPlayableFolder();
-        FileManager.getInstance().gotoFirstPlayableNewspaperInCurrentDate();
+        // Try again soon if something is missing, the next try continues from where this one stopped
+        if (mServerNewspaperFolderList == null || mListingIncomplete || mFilesFailed > 0)
+            RetryScheduler.getInstance().onSyncFailed(mDistributorFolderID);
+        else
+        {
+            RetryScheduler.getInstance().onSyncSucceeded(mDistributorFolderID);
+            if (mDeepVerify)
+                DownloadPolicy.getInstance().setDeepVerifyDone(mDistributorFolderID);
+        }
 
         // The return value here will go into onPostExecute as result
         return "ok";
@@ -211,213 +294,333 @@ public class DownloadFilesAsync extends AsyncTask<String,String,String> {
 
         // Send Broadcast to Broadcast receiver with message
         FileManager.getInstance().updateUIThread(localActivity);
+
+        // Let the next newspaper in the queue start downloading
+        SyncCoordinator.getInstance().onSyncFinished(mDistributorFolderID);
     }
 
-    // Create a list of the folder and files on the ftp server
-    private void createServerList()
+    // Called instead of onPostExecute when the task was cancelled, the slot in the coordinator must be given back the same way
+    @Override
+    protected void onCancelled(String result) {
+        if (mStartPlayingWelcomeAfterDownloading && !mWelcomeSent.get())
+            SyncCoordinator.getInstance().passWelcomeOn();
+        SyncCoordinator.getInstance().onSyncFinished(mDistributorFolderID);
+    }
+
+    // Create the folder and file lists from the manifest file on the ftp server
+    // Returns false if the server has no manifest, then the lists must be made with createServerList()
+    private boolean readServerManifest()
     {
-        int fileCounter = 0;
+        mServerChecksums.clear();
+        if (mFtp == null)
+            return false;
 
-        Activity localActivity = null;
-        if (mActivity != null && mActivity.get() != null)
-            localActivity = mActivity.get();
+        try
+        {
+            ServerManifest serverManifest = ServerManifest.read(mFtp);
+            if (serverManifest == null)
+                return false;
+
+            mListingIncomplete = false;
+            mServerNewspaperFolderList = serverManifest.getFolders();
+            mServerNewspaperFileList = serverManifest.getFiles();
+            mServerChecksums.putAll(serverManifest.getChecksums());
+            LogDAO.getInstance().add("Read the server manifest, " + mServerNewspaperFolderList.length + " ftp folders");
+
+            // All folders are known, so the sync manifest is updated like after listing every folder
+            Map<String, SyncManifestItem> manifest = SyncManifestDAO.getInstance().getFolders(mDistributorFolderID);
+            for (int folderID = 0; folderID < mServerNewspaperFolderList.length; folderID++)
+            {
+                String folderName = mServerNewspaperFolderList[folderID].getName();
+                manifest.remove(folderName);
+
+                SyncManifestItem listedFolder = new SyncManifestItem();
+                listedFolder.setDateFolder(folderName);
+                listedFolder.setFileCount(mServerNewspaperFileList[folderID].length);
+                mListedFolders.put(folderName, listedFolder);
+            }
+
+            // The folders left in the manifest are not on the server anymore
+            for (String removedFolder : manifest.keySet())
+                SyncManifestDAO.getInstance().deleteFolder(mDistributorFolderID, removedFolder);
+            return true;
+        }
+        catch (IOException e)
+        {
+            Log.d(TAG, e.toString());
+            LogDAO.getInstance().add("Could not read the server manifest: " + e.toString());
 
+            // Don't give a broken session back to the pool, createServerList() gets a new one on the next try
+            FTPConnectionManager.getInstance().disconnectFromFTP(mFtp, false);
+            mFtp = null;
+            mServerNewspaperFolderList = null;
+            mServerNewspaperFileList = null;
+            return false;
+        }
+    }
+
+    // Create a list of the folder and files on the ftp server
+    private void createServerList()
+    {
         if (mFtp == null)
         {
             LogDAO.getInstance().add("createServerList() mFTP = null");
             return;
         }
 
+        mListingIncomplete = false;
+        // After a failed sync the missing files can be in any folder, not only in the newest ones
+        mDeepVerify = DownloadPolicy.getInstance().isDeepVerifyDue(mDistributorFolderID)
+                || RetryScheduler.getInstance().getFailedAttempts(mDistributorFolderID) > 0;
         try
         {
-            // Get the folder list from ftp (for example 20180328, 20180329 etc)
-            mServerNewspaperFolderList = mFtp.listDirectories();
+            if (FTPListing.isMlsdSupported(mFtp))
+                LogDAO.getInstance().add("Server supports MLSD, using exact listings");
 
-            if(mServerNewspaperFolderList != null)
+            // What the folders looked like when we downloaded them last time
+            Map<String, SyncManifestItem> manifest = SyncManifestDAO.getInstance().getFolders(mDistributorFolderID);
+            ServerList serverList = ServerList.list(mFtp, manifest, FileManager.getInstance().getLocalIndex(mDistributorFolderID), mDeepVerify);
+            if (serverList == null)
             {
-                // Allocate space for the folder id
-                mServerNewspaperFileList = new FTPFile[mServerNewspaperFolderList.length][];
-
-                // Loop through all newspaper folders on server
-                for(int folderID = 0; folderID < mServerNewspaperFolderList.length; folderID++)
-                {
-                    // Make sure it is a folder
-                    if( !mServerNewspaperFolderList[folderID].isDirectory() )
-                        break;
-
-                    //Log.d(TAG,"Dir: " + folderID + " - " + mServerNewspaperFolderList[folderID].getName());
-
-                    String folderName = mServerNewspaperFolderList[folderID].getName();
-
-                    // Change directory on the ftp server
-                    if (mFtp.changeWorkingDirectory("/" + folderName))
-                    {
-                        LogDAO.getInstance().add("Parsing files in ftp folder: " + folderName);
-                        FileManager.getInstance().updateUIThread(localActivity);
-
-                        // Get all files in the current ftp directory into array
-                        FTPFile[] files = mFtp.listFiles(); // No sorting needed here, the check will be done with folder names in FileManager::compareServerAndLocalList()
-                        if (files != null)
-                        {
-                            // Allocate space for the files id
-                            // If the folder is empty, the mServerNewspaperFileList[xx] = null
-                            // Note, this will allocate space even for files that are not mp3 files
-                            mServerNewspaperFileList[folderID] = new FTPFile[files.length];
-                            fileCounter = 0;
-
-                            // Loop through all files in current folder
-                            for(int fileID = 0; fileID < files.length; fileID++)
-                            {
-                                // Only copy .mp3 files
-                                if (files[fileID].isFile() && files[fileID].getName().startsWith("speechgen") && files[fileID].getName().endsWith(".mp3"))
-                                {
-                                    // Save the files to our own server list array
-                                    mServerNewspaperFileList[folderID][fileCounter] = files[fileID];
-                                    fileCounter++;
-
-                                    //Log.d(TAG, "File: " + fileID + " - " + files[fileID].getName());
-                                }
-                            }
-                        }
-                    }
-                    else
-                        LogDAO.getInstance().add("Working directory changed failed. Reply: " + mFtp.getReplyString());
-                }
+                mServerNewspaperFolderList = null;
+                mServerNewspaperFileList = null;
+                return;
             }
+
+            mServerNewspaperFolderList = serverList.getFolders();
+            mServerNewspaperFileList = serverList.getFiles();
+            mListingIncomplete = serverList.isIncomplete();
+            for (SyncManifestItem listedFolder : serverList.getListedFolders())
+                mListedFolders.put(listedFolder.getDateFolder(), listedFolder);
+
+            // The folders left in the manifest are not on the server anymore
+            for (String removedFolder : serverList.getRemovedFolders())
+                SyncManifestDAO.getInstance().deleteFolder(mDistributorFolderID, removedFolder);
         }
         catch (IOException e)
         {
             Log.d(TAG, e.toString());
             LogDAO.getInstance().add("IOException: " + e.toString());
+
+            // Don't give a broken session back to the pool
+            FTPConnectionManager.getInstance().disconnectFromFTP(mFtp, false);
+            mFtp = null;
+
+            // Half a listing is not used, the whole server is listed again with a new session
+            mServerNewspaperFolderList = null;
+            mServerNewspaperFileList = null;
         }
     }
 
-    private boolean downloadAndSaveFiles(FTPFile[][] downloadList, boolean playWelcomeAfterFirstDownloadedFile)
+    private boolean downloadAndSaveFiles(final List<DownloadJob> jobs, boolean playWelcomeAfterFirstDownloadedFile)
     {
         LogDAO.getInstance().add( "Downloading files from ftp");
-        int totalFilesDownloaded = 0;
 
-        Activity localActivity = null;
-        if (mActivity != null && mActivity.get() != null)
-            localActivity = mActivity.get();
+        if(mContext.get() == null)
+            return false;
 
-        if (mFtp == null)
-        {
-            LogDAO.getInstance().add("downloadAndSaveFiles() mFTP = null");
+        // First check to see if we should exit download
+        if (jobs == null) {
+            LogDAO.getInstance().add("No files to download!");
             return false;
         }
 
-        try {
+        // This is the file that will be downloaded first (newest folder, first article), the welcome message will be played
+        // as soon as the start of it is on disk, the player can play it while the rest is downloaded
+        final DownloadJob firstJob = jobs.isEmpty() ? null : jobs.get(0);
+        final boolean playWelcome = playWelcomeAfterFirstDownloadedFile;
+        SyncCoordinator.getInstance().onDownloadStarted(mDistributorFolderID, jobs.size());
+
+        // Download all files, several ftp sessions at the same time
+        DownloadEngine engine = new DownloadEngine(mCurrentNewspaperDistributor, mContext.get().getFilesDir(), DownloadEngine.DEFAULT_MAX_SESSIONS);
+        engine.setQuarantineFolder(mContext.get().getDir("quarantine", Context.MODE_PRIVATE)); // Files with wrong checksum
+        engine.setStagingFolder(FileManager.getInstance().getStagingFolder());                 // New newspapers are moved into place when they can be played
+        engine.setMaxBytesPerSecond(DownloadPolicy.getInstance().getMaxBytesPerSecond());       // Only limited on a metered network
+        engine.setBlobStore(FileManager.getInstance().getBlobStore());                          // Renamed articles are linked next time instead of downloaded
+        for (Map.Entry<String, Map<String, String>> folder : mServerChecksums.entrySet())
+            engine.setChecksumFile(folder.getKey(), folder.getValue());
+        int totalFilesDownloaded = engine.download(jobs, new DownloadEngine.Listener() {
+            @Override
+            public void onFileDownloaded(DownloadJob job, File localFile) {
+                Activity localActivity = null;
+                if (mActivity != null && mActivity.get() != null)
+                    localActivity = mActivity.get();
+
+                // Write out the downloaded file to log, only if activity is set, which means you are actually watching the log list in Settings activity
+                if (localActivity != null)
+                    LogDAO.getInstance().add("Downloaded /" + job.getFolderName() + "/" + mDistributorFolderID + "/" + job.getFileName());
+                FileManager.getInstance().updateUIThread(localActivity);
+
+                SyncCoordinator.getInstance().onFileFinished(mDistributorFolderID, true);
+            }
 
-            // First check to see if we should exit download
-            if (downloadList == null) {
-                LogDAO.getInstance().add("No files to download!");
-                return false;
+            @Override
+            public void onFileFailed(DownloadJob job) {
+                mFailedFolders.add(job.getFolderName());
+                SyncCoordinator.getInstance().onFileFinished(mDistributorFolderID, false);
+
+                // A failed first file should not keep the welcome message away
+                onFirstFileReady(job);
             }
 
-            // Loop through downloadList and download all folders and files listed
-            // Loop backwards, meaning we will always start with the newest
-            for( int folderID = downloadList.length -1; folderID >= 0; folderID--)
-            {
-                if (downloadList[folderID] != null)
+            @Override
+            public void onFilePlayable(DownloadJob job, File localFile) {
+                // Only called when the newspaper folder is in place (a new folder as soon as its first article can be played)
+                FileManager.getInstance().updatePlaybackCatalog(job.getFolderName(), mDistributorFolderID);
+                onFirstFileReady(job);
+            }
+
+            private void onFirstFileReady(DownloadJob job) {
+                // Start playing welcome message when the first file can be played
+                if (playWelcome && job == firstJob && mWelcomeSent.compareAndSet(false, true))
                 {
-                    // Before we start downloading, make sure we are in the correct directory on the ftp
-                    String folderName = mServerNewspaperFolderList[folderID].getName();
-
-                    if (!mFtp.changeWorkingDirectory("/" + folderName))
-                        LogDAO.getInstance().add("Working directory changed failed. Reply: " + mFtp.getReplyString());
-
-                    if(mContext.get() == null)
-                        continue;
-
-                    // We also need to create the folder locally
-                    String fullFolderPath = mContext.get().getFilesDir() + "/" + folderName + "/" + mDistributorFolderID;
-                    File localFolder = new File (fullFolderPath);
-
-                    // Check if we already have created the directory
-                    if (localFolder.exists() && localFolder.isDirectory())
-                    {
-                        // It should never come here as the download code works now
-                    }
-                    else
-                    {
-                        // Create the folder locally
-                        if (!localFolder.mkdirs())
-                        {
-                            LogDAO.getInstance().add("Failed to create local folder.");
-                            return false;
-                        }
-                    }
-
-                    // Ok, now we have created the local folder on phone
-                    // Loop through list and download each file from our downloadList array
-                    for( int fileID = 0; fileID < downloadList[folderID].length; fileID++)
-                    {
-                        if (downloadList[folderID][fileID] != null)
-                        {
-                            String fileName = downloadList[folderID][fileID].getName(); // speechgen0001.mp3 etc
-
-                            // Create a local file and download (retrieve) the files data
-                            File localFile = new File(fullFolderPath, fileName);
-                            OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(localFile));
-                            boolean success = mFtp.retrieveFile(fileName, outputStream);
-                            if (success)
-                            {
-                                // Write out the downloaded file to log, only if activity is set, which means you are actually watching the log list in Settings activity
-                                if (localActivity != null)
-                                    LogDAO.getInstance().add("Downloaded /" + folderName + "/" + mDistributorFolderID + "/" + fileName);
-                                FileManager.getInstance().updateUIThread(localActivity);
-                                totalFilesDownloaded++;
-                            }
-                            else
-                            {
-                                // Log error
-                                LogDAO.getInstance().add("retrieveFile() failed: " + fileName);
-                            }
-
-                            // Always close the stream
-                            outputStream.close();
-                            outputStream = null; // GC
-                            localFile = null; // GC
-
-                            // Start playing welcome message after first file has been downloaded
-                            if (playWelcomeAfterFirstDownloadedFile)
-                            {
-                                // Update the local folder list, this will set the newest newspaper folder to be set for playing
-                                FileManager.getInstance().updateToNewestPlayableFolder();
-                                FileManager.getInstance().gotoFirstPlayableNewspaperInCurrentDate();
-
-                                // Ok, time to start the welcome message
-                                sendPlayWelcome();
-
-                                // Reset the boolean, we don't want to play welcome again, especially not after starting to download first file from next folder
-                                playWelcomeAfterFirstDownloadedFile = false;
-                            }
-                        }
-                    }
+                    // Update the local folder list, this will set the newest newspaper folder to be set for playing
+                    FileManager.getInstance().updateToNewestPlayableFolder();
+                    FileManager.getInstance().gotoFirstPlayableNewspaperInCurrentDate();
+
+                    // Ok, time to start the welcome message
+                    sendPlayWelcome();
                 }
             }
+        });
+
+        // Ok, now we are done downloading all files
+        LogDAO.getInstance().add("Number of files downloaded: " + String.valueOf(totalFilesDownloaded));
+        mFilesFailed = engine.getFilesFailed();
+        if (mFilesFailed > 0)
+            LogDAO.getInstance().add("Number of files failed: " + String.valueOf(mFilesFailed));
+
+        // Start playing welcome message even if we notice that there are no new folder/files, but we have still rebooted phone
+        if (playWelcome && firstJob == null && mWelcomeSent.compareAndSet(false, true))
+        {
+            // Update the local folder list, this will set the newest newspaper folder to be set for playing
+            FileManager.getInstance().updateToNewestPlayableFolder();
+            FileManager.getInstance().gotoFirstPlayableNewspaperInCurrentDate();
+
+            // Ok, time to start the welcome message
+            sendPlayWelcome();
+        }
+
+        return true;
+    }
 
-            // Ok, now we are done downloading all files
-            LogDAO.getInstance().add("Number of files downloaded: " + String.valueOf(totalFilesDownloaded));
+    // Returns the files to download now, the rest is left for a job that runs on an unmetered network
+    private List<DownloadJob> applyDownloadPolicy(List<DownloadJob> jobs)
+    {
+        if (jobs == null || jobs.isEmpty() || !DownloadPolicy.getInstance().isRestricted(mDeferred))
+            return jobs;
+
+        List<DownloadJob> selected = DownloadPolicy.selectFirstArticles(jobs, mServerNewspaperFolderList, mServerNewspaperFileList,
+                DownloadPolicy.getInstance().getMeteredArticleCount());
+        if (selected.size() == jobs.size())
+            return jobs;
+
+        // The deferred folders are not complete, they must be listed again next time
+        for (DownloadJob job : jobs)
+        {
+            if (!selected.contains(job))
+                mFailedFolders.add(job.getFolderName());
+        }
+
+        LogDAO.getInstance().add("Metered or slow network, downloading " + selected.size() + " of " + jobs.size() + " files now");
+        DownloadPolicy.getInstance().scheduleDeferredDownload(mDistributorFolderID);
+        return selected;
+    }
+
+    // Returns the files that must be downloaded, the ones we have the content of are linked to it
+    // The content is found with the MD5 from the server manifest or the checksum file of the folder, only folders we already have are linked into
+    private List<DownloadJob> relinkKnownFiles(List<DownloadJob> jobs)
+    {
+        if (jobs == null || jobs.isEmpty())
+            return jobs;
 
-            // Start playing welcome message even if we notice that there are no new folder/files, but we have still rebooted phone
-            if (playWelcomeAfterFirstDownloadedFile && totalFilesDownloaded == 0)
+        // Nothing stored yet, don't download checksum files for nothing
+        BlobStore blobStore = FileManager.getInstance().getBlobStore();
+        if (!blobStore.hasBlobs())
+            return jobs;
+
+        List<DownloadJob> remaining = new ArrayList<>();
+        Set<String> linkedFolders = new HashSet<>();
+        for (DownloadJob job : jobs)
+        {
+            File localFolder = new File(mContext.get().getFilesDir(), job.getFolderName() + "/" + mDistributorFolderID);
+            String md5 = localFolder.isDirectory() ? getServerChecksum(job.getFolderName(), job.getFileName()) : null;
+            long serverTime = (job.getServerFile().getTimestamp() != null) ? job.getServerFile().getTimestamp().getTimeInMillis() : 0;
+            if (md5 == null || !blobStore.relink(md5, new File(localFolder, job.getFileName()), serverTime))
             {
-                // Update the local folder list, this will set the newest newspaper folder to be set for playing
-                FileManager.getInstance().updateToNewestPlayableFolder();
-                FileManager.getInstance().gotoFirstPlayableNewspaperInCurrentDate();
+                remaining.add(job);
+                continue;
+            }
+
+            // The linked files are not planned again, so the index must have them before the watcher sees them
+            FileManager.getInstance().addLocalFile(job.getFolderName(), mDistributorFolderID, job.getFileName());
+            linkedFolders.add(job.getFolderName());
+        }
+
+        if (remaining.size() < jobs.size())
+        {
+            LogDAO.getInstance().add("Linked " + (jobs.size() - remaining.size()) + " files that were already downloaded with another name");
+            for (String folderName : linkedFolders)
+                FileManager.getInstance().updatePlaybackCatalog(folderName, mDistributorFolderID);
+        }
+        return remaining;
+    }
 
-                // Ok, time to start the welcome message
-                sendPlayWelcome();
+    // Returns null if the server has no MD5 for the file, the checksum file is read once for each folder and also given to the download engine
+    private String getServerChecksum(String folderName, String fileName)
+    {
+        Map<String, String> checksums = mServerChecksums.get(folderName);
+        if (checksums == null)
+        {
+            if (mFtp == null)
+                return null;
+            try
+            {
+                checksums = mFtp.changeWorkingDirectory("/" + folderName) ? FTPChecksum.readChecksumFile(mFtp) : new HashMap<String, String>();
+            }
+            catch (IOException e)
+            {
+                // Not saved, the download engine tries to read the checksum file again with its own sessions
+                Log.d(TAG, e.toString());
+                LogDAO.getInstance().add("Could not read the checksum file in " + folderName + ": " + e.toString());
+                return null;
             }
+            mServerChecksums.put(folderName, checksums);
+        }
+        return checksums.get(fileName);
+    }
 
-            return true;
+    // Returns the files that fit on the disk, the oldest newspapers are deleted first to make room
+    private List<DownloadJob> applyAvailableSpace(List<DownloadJob> jobs)
+    {
+        if (jobs == null || jobs.isEmpty())
+            return jobs;
+
+        long availableBytes = FileManager.getInstance().makeRoomForDownload(mDistributorFolderID, jobs);
+        List<DownloadJob> selected = DownloadPlanner.selectJobsThatFit(jobs, FileManager.getInstance().getStagingFolder(), mDistributorFolderID, availableBytes);
+        if (selected.size() == jobs.size())
+            return jobs;
+
+        // The folders that did not fit are not complete, they must be listed again next time
+        for (DownloadJob job : jobs)
+        {
+            if (!selected.contains(job))
+                mFailedFolders.add(job.getFolderName());
         }
-        catch (IOException e)
+
+        LogDAO.getInstance().add("Not enough space, downloading " + selected.size() + " of " + jobs.size() + " files");
+        return selected;
+    }
+
+    // Save the listed folders where every file was downloaded, a folder with a failed file will be listed again next time
+    private void updateSyncManifest()
+    {
+        for (SyncManifestItem folder : mListedFolders.values())
         {
-            LogDAO.getInstance().add( "Downloading error: " + e.toString());
-            return false;
+            if (mFailedFolders.contains(folder.getDateFolder()))
+                SyncManifestDAO.getInstance().deleteFolder(mDistributorFolderID, folder.getDateFolder());
+            else
+                SyncManifestDAO.getInstance().setFolder(mDistributorFolderID, folder.getDateFolder(), folder.getFingerprint(), folder.getFileCount());
         }
     }
 
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2020 Finlands svenska taltidningsförening rf.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *     */
+package fi.fstf.knappen;
+
+import org.apache.commons.net.ftp.FTPFile;
+
+import java.io.File;
+
+// This is one file that should be downloaded from the ftp server (one entry in the download queue)
+public class DownloadJob implements Comparable<DownloadJob> {
+
+    private final String mFolderName;    // The date folder on the server, for example 20190521
+    private final FTPFile mServerFile;   // The file on the server, for example speechgen0001.mp3
+    private int mFailedAttempts = 0;     // Only changed by the session that has taken the job from the queue
+    private File mReplacedFile = null;   // A local article with the same name in another case, deleted when the new file is in place
+
+    public DownloadJob(String folderName, FTPFile serverFile)
+    {
+        this.mFolderName = folderName;
+        this.mServerFile = serverFile;
+    }
+
+    public String getFolderName()
+    {
+        return mFolderName;
+    }
+
+    public FTPFile getServerFile()
+    {
+        return mServerFile;
+    }
+
+    public String getFileName()
+    {
+        return mServerFile.getName();
+    }
+
+    // Null if the local file (if any) has the same name as the server file
+    public File getReplacedFile()
+    {
+        return mReplacedFile;
+    }
+
+    public void setReplacedFile(File replacedFile)
+    {
+        this.mReplacedFile = replacedFile;
+    }
+
+    public int getFailedAttempts()
+    {
+        return mFailedAttempts;
+    }
+
+    // Returns the number of failed attempts including this one
+    public int addFailedAttempt()
+    {
+        return ++mFailedAttempts;
+    }
+
+    // The queue is sorted so that the newest folder always comes first, and inside a folder the first article (in natural order) comes first
+    // This way the welcome message and the first article of the newest newspaper are ready as early as possible
+    @Override
+    public int compareTo(DownloadJob other)
+    {
+        int folderOrder = other.mFolderName.compareTo(mFolderName); // Reversed, newest (highest date) first
+        if (folderOrder != 0)
+            return folderOrder;
+
+        return ArticleNames.NATURAL_ORDER.compare(getFileName(), other.getFileName());
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright 2020 Finlands svenska taltidningsförening rf.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *     */
+package fi.fstf.knappen;
+
+import org.apache.commons.net.ftp.FTPFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// This is the DownloadPlanner class that compares the ftp server list with the local files and decides what to download
+// Both sides are matched by folder name and file name (not by position in the lists), so one missing file only downloads that file
+public class DownloadPlanner {
+
+    // The LIST timestamps from ftp servers only have minute precision
+    private static final long TIMESTAMP_TOLERANCE_MILLIS = 60 * 1000;
+
+    private final long mSizeTolerance;
+    private Map<String, Map<String, String>> mServerChecksums = null;  // Date folder -> (file name -> md5), null if the server gave none
+    private BlobStore mBlobStore = null;                                // Knows the MD5 of the files that are linked to a blob
+
+    public DownloadPlanner(long sizeTolerance)
+    {
+        this.mSizeTolerance = sizeTolerance;
+    }
+
+    // The server manifest has no file times, with the MD5s a file that was published again with the same size is found anyway
+    // Blob store can be null, then each local file with a server MD5 and the same size is read to get its MD5
+    public void setServerChecksums(Map<String, Map<String, String>> serverChecksums, BlobStore blobStore)
+    {
+        this.mServerChecksums = serverChecksums;
+        this.mBlobStore = blobStore;
+    }
+
+    // Create an index of all local files for one distributor: date folder name -> (file name -> local file)
+    // For example "20190521" -> ("speechgen0001.mp3" -> /files/20190521/01/speechgen0001.mp3)
+    public static Map<String, Map<String, File>> createLocalIndex(File baseFolder, String distributorFolderName)
+    {
+        Map<String, Map<String, File>> localIndex = new HashMap<>();
+
+        File[] dateFolders = baseFolder.listFiles();
+        if (dateFolders == null)
+            return localIndex;
+
+        for (File dateFolder : dateFolders)
+        {
+            File[] files = new File(dateFolder, distributorFolderName).listFiles();
+            if (files == null)
+                continue; // Our distributor does not exist in this date folder
+
+            Map<String, File> folderIndex = new HashMap<>(files.length * 2);
+            for (File file : files)
+            {
+                // Skip files that are still being downloaded (speechgen0001.mp3.part), they will be resumed by the download
+                if (file.isFile() && !file.getName().endsWith(DownloadEngine.PARTIAL_FILE_SUFFIX))
+                    folderIndex.put(file.getName(), file);
+            }
+            localIndex.put(dateFolder.getName(), folderIndex);
+        }
+        return localIndex;
+    }
+
+    // Returns the names of the date folders that must be listed on the server, the newest folder first
+    // The folder names are dates (YYYYMMDD), only folders newer than the ones we already have can be new
+    // The walk goes from the newest folder and stops at the first folder we have all files of (and that looks the same on the server)
+    // A deep verification lists every folder, for finding gaps and changes in older folders
+    public static List<String> selectFoldersToList(FTPFile[] serverFolderList, Map<String, SyncManifestItem> manifest, Map<String, Map<String, File>> localIndex, boolean deepVerify)
+    {
+        List<FTPFile> folders = new ArrayList<>();
+        if (serverFolderList != null)
+        {
+            for (FTPFile folder : serverFolderList)
+            {
+                if (folder != null)
+                    folders.add(folder);
+            }
+        }
+        Collections.sort(folders, new Comparator<FTPFile>() {
+            @Override
+            public int compare(FTPFile a, FTPFile b) {
+                return b.getName().compareTo(a.getName()); // Newest first
+            }
+        });
+
+        List<String> foldersToList = new ArrayList<>();
+        for (FTPFile folder : folders)
+        {
+            String folderName = folder.getName();
+            SyncManifestItem manifestItem = (manifest != null) ? manifest.get(folderName) : null;
+            Map<String, File> localFolder = (localIndex != null) ? localIndex.get(folderName) : null;
+            int localFileCount = (localFolder != null) ? localFolder.size() : 0;
+
+            if (!deepVerify && manifestItem != null && localFileCount >= manifestItem.getFileCount())
+            {
+                // A server without folder times can't tell us about changes, then the name is all we have
+                String fingerprint = SyncManifestDAO.createFingerprint(folder);
+                if (fingerprint == null || fingerprint.equals(manifestItem.getFingerprint()))
+                    break;
+            }
+            foldersToList.add(folderName);
+        }
+        return foldersToList;
+    }
+
+    // Returns all files on the server that are missing or different locally, the newest folder first
+    // A folder that has null as file list on the server is skipped (it was not listed)
+    public List<DownloadJob> createDownloadPlan(FTPFile[] serverFolderList, FTPFile[][] serverFileList, Map<String, Map<String, File>> localIndex)
+    {
+        List<DownloadJob> plan = new ArrayList<>();
+        if (serverFolderList == null || serverFileList == null)
+            return plan;
+
+        for (int folderID = 0; folderID < serverFolderList.length && folderID < serverFileList.length; folderID++)
+        {
+            if (serverFolderList[folderID] == null || serverFileList[folderID] == null)
+                continue;
+
+            String folderName = serverFolderList[folderID].getName();
+            Map<String, File> localFiles = localIndex != null ? localIndex.get(folderName) : null;
+
+            for (FTPFile serverFile : serverFileList[folderID])
+            {
+                if (serverFile == null)
+                    continue;
+
+                File localFile = findLocalFile(localFiles, serverFile.getName());
+                if (localFile != null && !differs(folderName, serverFile, localFile))
+                    continue;
+
+                DownloadJob job = new DownloadJob(folderName, serverFile);
+                if (localFile != null && !localFile.getName().equals(serverFile.getName()))
+                    job.setReplacedFile(localFile); // Else the newspaper would have both
+                plan.add(job);
+            }
+        }
+
+        // Newest folder first, first article first
+        Collections.sort(plan);
+        return plan;
+    }
+
+    // Bytes the planned files still need on disk, what is already in the part files is not downloaded again
+    public static long getBytesNeeded(List<DownloadJob> jobs, File baseFolder, String distributorFolderName)
+    {
+        long bytesNeeded = 0;
+        for (DownloadJob job : jobs)
+            bytesNeeded += getBytesNeeded(job, baseFolder, distributorFolderName);
+        return bytesNeeded;
+    }
+
+    // Returns the first files of the plan that fit in the available bytes
+    // The plan is newest folder first, so the files left out are the oldest ones (and the last articles of a folder)
+    public static List<DownloadJob> selectJobsThatFit(List<DownloadJob> jobs, File baseFolder, String distributorFolderName, long availableBytes)
+    {
+        List<DownloadJob> selected = new ArrayList<>();
+        long bytesLeft = availableBytes;
+        for (DownloadJob job : jobs)
+        {
+            long bytesNeeded = getBytesNeeded(job, baseFolder, distributorFolderName);
+            if (bytesNeeded > bytesLeft)
+                break; // The rest of the plan must stay in order, the player plays the articles one after the other
+            bytesLeft -= bytesNeeded;
+            selected.add(job);
+        }
+        return selected;
+    }
+
+    // Returns the local date folders of the distributor that can be deleted to make room for the plan, the oldest first
+    // Only folders older than every folder in the plan, a complete folder newer than a gap we are filling must stay
+    // The folder that is being played is never deleted
+    public static List<String> selectFoldersToDelete(List<DownloadJob> jobs, File baseFolder, String distributorFolderName, String playingFolderName)
+    {
+        List<String> folderNames = new ArrayList<>();
+        String oldestPlannedFolder = null;
+        for (DownloadJob job : jobs)
+        {
+            if (oldestPlannedFolder == null || job.getFolderName().compareTo(oldestPlannedFolder) < 0)
+                oldestPlannedFolder = job.getFolderName();
+        }
+
+        // The folder names are dates (yyyyMMdd), sorting them by name puts the oldest first
+        File[] localFolderList = baseFolder.listFiles();
+        if (localFolderList == null || oldestPlannedFolder == null)
+            return folderNames;
+        for (File folder : localFolderList)
+        {
+            String folderName = folder.getName();
+            if (folderName.compareTo(oldestPlannedFolder) < 0 && !folderName.equals(playingFolderName)
+                    && new File(folder, distributorFolderName).isDirectory())
+                folderNames.add(folderName);
+        }
+        Collections.sort(folderNames);
+        return folderNames;
+    }
+
+    private static long getBytesNeeded(DownloadJob job, File baseFolder, String distributorFolderName)
+    {
+        File partFile = new File(baseFolder, job.getFolderName() + "/" + distributorFolderName + "/" + job.getFileName() + DownloadEngine.PARTIAL_FILE_SUFFIX);
+        return Math.max(0, job.getServerFile().getSize() - partFile.length());
+    }
+
+    // File names are matched without case: a server that renames "Speechgen0001.MP3" to "speechgen0001.mp3" has not published a new article,
+    // and both file systems are case sensitive, so downloading it again would give the newspaper the same article twice
+    // An unchanged local file keeps its old name, a changed one is replaced by the download. The exact name is looked up first
+    private static File findLocalFile(Map<String, File> localFiles, String fileName)
+    {
+        if (localFiles == null)
+            return null;
+
+        File localFile = localFiles.get(fileName);
+        if (localFile != null)
+            return localFile;
+
+        for (Map.Entry<String, File> entry : localFiles.entrySet())
+        {
+            if (entry.getKey().equalsIgnoreCase(fileName))
+                return entry.getValue();
+        }
+        return null;
+    }
+
+    private boolean differs(String folderName, FTPFile serverFile, File localFile)
+    {
+        long absDiff = Math.abs(serverFile.getSize() - localFile.length());
+        if (absDiff > mSizeTolerance)
+        {
+            LogDAO.getInstance().add("/" + folderName + "/" + serverFile.getName() + " differs with bytes: " + Long.toString(absDiff));
+            return true;
+        }
+
+        // Same size, the MD5 from the server tells if the content is the same
+        String serverMd5 = getServerChecksum(folderName, serverFile.getName());
+        if (serverMd5 != null)
+        {
+            if (hasContent(localFile, serverMd5))
+                return false;
+
+            LogDAO.getInstance().add("/" + folderName + "/" + serverFile.getName() + " has changed on server");
+            return true;
+        }
+
+        // Same size, check if the file has been published again on the server after we downloaded it
+        // The download sets the local modification time to the server time, if that fails the local time is the download time (which is newer)
+        Calendar serverTimestamp = serverFile.getTimestamp();
+        if (serverTimestamp != null && serverTimestamp.getTimeInMillis() > localFile.lastModified() + TIMESTAMP_TOLERANCE_MILLIS)
+        {
+            LogDAO.getInstance().add("/" + folderName + "/" + serverFile.getName() + " is newer on server");
+            return true;
+        }
+
+        return false;
+    }
+
+    private String getServerChecksum(String folderName, String fileName)
+    {
+        if (mServerChecksums == null)
+            return null;
+        Map<String, String> checksums = mServerChecksums.get(folderName);
+        return (checksums != null) ? checksums.get(fileName) : null;
+    }
+
+    // True if the local file has the MD5, a file that is linked to the blob of the MD5 is not read
+    // A file that is read and has the right MD5 is stored as a blob, so it is only read once
+    private boolean hasContent(File localFile, String md5)
+    {
+        if (mBlobStore != null && mBlobStore.isBlob(localFile, md5))
+            return true;
+
+        try
+        {
+            StreamingChecksum checksum = new StreamingChecksum(FTPChecksum.MD5_ALGORITHM);
+            checksum.update(localFile);
+            if (!md5.equalsIgnoreCase(checksum.getHexValue()))
+                return false;
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            return true; // Can't check it on this phone, the size is all we have
+        }
+        catch (IOException e)
+        {
+            LogDAO.getInstance().add("Could not read " + localFile.getName() + ": " + e.toString());
+            return false;
+        }
+
+        if (mBlobStore != null)
+            mBlobStore.store(localFile, md5);
+        return true;
+    }
+}
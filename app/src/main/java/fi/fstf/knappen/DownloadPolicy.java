@@ -0,0 +1,249 @@
+/*
+ * Copyright 2020 Finlands svenska taltidningsförening rf.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *     */
+package fi.fstf.knappen;
+
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.PersistableBundle;
+
+import org.apache.commons.net.ftp.FTPFile;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import fi.fstf.knappen.service.DeferredDownloadJobService;
+
+// This is the DownloadPolicy class that decides how much is downloaded on the current network
+// On a metered (prepaid mobile data) or slow network only the first articles of the newest paper are downloaded right away
+// The rest is downloaded by a job that Android starts when we are on an unmetered network
+public class DownloadPolicy {
+
+    // Articles of the newest paper downloaded on a metered or slow network, the user can start listening while waiting for the rest
+    public static final int DEFAULT_METERED_ARTICLE_COUNT = 5;
+
+    // Max download speed on a metered network in kilobytes per second, 0 means no limit
+    public static final int DEFAULT_METERED_MAX_KBYTES_PER_SECOND = 0;
+
+    // A network where we have measured less than this is handled like a metered one
+    public static final float SLOW_BYTES_PER_SECOND = 32 * 1024;
+
+    // A slow network is often unmetered too, don't try it again right away
+    private static final long SLOW_NETWORK_RETRY_MILLIS = 30 * 60 * 1000;
+
+    // Only measurements from the last days decide if a network is slow, the phone might be on another network now
+    private static final long SLOW_NETWORK_MAX_AGE_MILLIS = 3 * 24 * 60 * 60 * 1000L;
+
+    // Only the newest server folders are listed on a normal sync, all folders are listed (and missing files downloaded) this often
+    public static final long DEEP_VERIFY_INTERVAL_MILLIS = 7 * 24 * 60 * 60 * 1000L;
+
+    // Job IDs for the deferred downloads, one for each distributor (the folder ID is added)
+    private static final int DEFERRED_JOB_ID_BASE = 1000;
+
+    public static final String EXTRA_DISTRIBUTOR_FOLDER_ID = "NEWSPAPER_DISTRIBUTOR_FOLDER_ID";
+
+    private WeakReference<Context> mContext = null;
+
+    // Make it a static class (only one instance) | same as singleton
+    private static DownloadPolicy instance = new DownloadPolicy();
+    public static DownloadPolicy getInstance() {
+        return instance;
+    }
+
+    // This must be set before accessing context, without it everything is downloaded right away
+    public void setApplicationContext(Context cx) {
+        mContext = new WeakReference<>(cx.getApplicationContext());
+    }
+
+    // True if only the first articles should be downloaded now
+    // The deferred download is never restricted by a slow network, it would only schedule itself again
+    // It downloads without a speed limit, so it also measures the network again
+    public boolean isRestricted(boolean deferred)
+    {
+        return FTPConnectionManager.getInstance().isMetered() || (!deferred && isSlow());
+    }
+
+    // True if the downloads on this network type have been slow lately (nothing measured yet is not slow)
+    public boolean isSlow()
+    {
+        float throughput = TransferTuning.getInstance().getBestThroughput(FTPConnectionManager.getInstance().getNetworkType(), SLOW_NETWORK_MAX_AGE_MILLIS);
+        return throughput >= 0 && throughput < SLOW_BYTES_PER_SECOND;
+    }
+
+    public int getMeteredArticleCount()
+    {
+        SharedPreferences sharedPref = getSharedPreferences();
+        if (sharedPref == null)
+            return DEFAULT_METERED_ARTICLE_COUNT;
+        return Math.max(1, sharedPref.getInt(mContext.get().getString(R.string.sp_metered_article_count), DEFAULT_METERED_ARTICLE_COUNT));
+    }
+
+    public void setMeteredArticleCount(int articleCount)
+    {
+        SharedPreferences sharedPref = getSharedPreferences();
+        if (sharedPref == null)
+            return;
+
+        SharedPreferences.Editor editor = sharedPref.edit();
+        editor.putInt(mContext.get().getString(R.string.sp_metered_article_count), articleCount);
+        editor.apply();
+    }
+
+    // Returns the speed limit for downloads on the current network in bytes per second, 0 if there is no limit
+    public long getMaxBytesPerSecond()
+    {
+        if (!FTPConnectionManager.getInstance().isMetered())
+            return 0;
+        return getMeteredMaxKBytesPerSecond() * 1024L;
+    }
+
+    // The speed limit on a metered network as set in the settings, 0 if there is no limit
+    public int getMeteredMaxKBytesPerSecond()
+    {
+        SharedPreferences sharedPref = getSharedPreferences();
+        if (sharedPref == null)
+            return DEFAULT_METERED_MAX_KBYTES_PER_SECOND;
+        return Math.max(0, sharedPref.getInt(mContext.get().getString(R.string.sp_metered_max_kbytes_per_second), DEFAULT_METERED_MAX_KBYTES_PER_SECOND));
+    }
+
+    public void setMeteredMaxKBytesPerSecond(int maxKBytesPerSecond)
+    {
+        SharedPreferences sharedPref = getSharedPreferences();
+        if (sharedPref == null)
+            return;
+
+        SharedPreferences.Editor editor = sharedPref.edit();
+        editor.putInt(mContext.get().getString(R.string.sp_metered_max_kbytes_per_second), maxKBytesPerSecond);
+        editor.apply();
+    }
+
+    // Returns the jobs that are among the first articles of the newest paper on the server
+    // The jobs are in download order (newest folder first), the same order is kept
+    // serverFolders are all folders on the server, also the ones that were not listed (their serverFiles are null)
+    public static List<DownloadJob> selectFirstArticles(List<DownloadJob> jobs, FTPFile[] serverFolders, FTPFile[][] serverFiles, int articleCount)
+    {
+        List<DownloadJob> selected = new ArrayList<>();
+        if (jobs == null || serverFolders == null || serverFiles == null)
+            return selected;
+
+        // The newest paper is the folder with the highest date
+        int newestIndex = -1;
+        for (int i = 0; i < serverFolders.length && i < serverFiles.length; i++)
+        {
+            if (serverFolders[i] == null)
+                continue;
+            if (newestIndex < 0 || serverFolders[i].getName().compareTo(serverFolders[newestIndex].getName()) > 0)
+                newestIndex = i;
+        }
+
+        // The newest folder was not listed, it is unchanged since we downloaded it (or the listing failed)
+        // The first articles of an older paper are not worth the metered data, everything waits for the unmetered network
+        if (newestIndex < 0 || serverFiles[newestIndex] == null)
+            return selected;
+
+        // The first articles are the lowest file names in natural order, speechgen0001.mp3 and so on
+        String[] fileNames = new String[serverFiles[newestIndex].length];
+        for (int i = 0; i < fileNames.length; i++)
+            fileNames[i] = serverFiles[newestIndex][i].getName();
+        Arrays.sort(fileNames, ArticleNames.NATURAL_ORDER);
+        Set<String> firstArticles = new HashSet<>(Arrays.asList(fileNames).subList(0, Math.min(articleCount, fileNames.length)));
+
+        String newestFolderName = serverFolders[newestIndex].getName();
+        for (DownloadJob job : jobs)
+        {
+            if (job.getFolderName().equals(newestFolderName) && firstArticles.contains(job.getFileName()))
+                selected.add(job);
+        }
+        return selected;
+    }
+
+    // Ask Android to start the rest of the download when we are on an unmetered network
+    // A new request for the same distributor replaces the old one
+    public void scheduleDeferredDownload(String distributorFolderID)
+    {
+        if (mContext == null || mContext.get() == null)
+            return;
+
+        PersistableBundle extras = new PersistableBundle();
+        extras.putString(EXTRA_DISTRIBUTOR_FOLDER_ID, distributorFolderID);
+
+        JobInfo.Builder builder = new JobInfo.Builder(getDeferredJobID(distributorFolderID), new ComponentName(mContext.get(), DeferredDownloadJobService.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED)
+                .setExtras(extras);
+
+        // An unmetered network that is slow would start the job right away again
+        if (!FTPConnectionManager.getInstance().isMetered())
+            builder.setMinimumLatency(SLOW_NETWORK_RETRY_MILLIS);
+
+        JobScheduler jobScheduler = (JobScheduler) mContext.get().getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (jobScheduler == null || jobScheduler.schedule(builder.build()) != JobScheduler.RESULT_SUCCESS)
+            LogDAO.getInstance().add("Could not schedule the rest of the download for " + distributorFolderID);
+        else
+            LogDAO.getInstance().add("The rest of " + distributorFolderID + " will be downloaded on an unmetered network");
+    }
+
+    // True if the next sync should list all server folders, not only the ones newer than what we have
+    public boolean isDeepVerifyDue(String distributorFolderID)
+    {
+        SharedPreferences sharedPref = getSharedPreferences();
+        if (sharedPref == null)
+            return true;
+        long lastDeepVerify = sharedPref.getLong(getLastDeepVerifyKey(distributorFolderID), 0);
+        return System.currentTimeMillis() - lastDeepVerify >= DEEP_VERIFY_INTERVAL_MILLIS;
+    }
+
+    // Called when a deep verification got everything, the next one is due after DEEP_VERIFY_INTERVAL_MILLIS
+    public void setDeepVerifyDone(String distributorFolderID)
+    {
+        SharedPreferences sharedPref = getSharedPreferences();
+        if (sharedPref == null)
+            return;
+
+        SharedPreferences.Editor editor = sharedPref.edit();
+        editor.putLong(getLastDeepVerifyKey(distributorFolderID), System.currentTimeMillis());
+        editor.apply();
+    }
+
+    private String getLastDeepVerifyKey(String distributorFolderID)
+    {
+        return mContext.get().getString(R.string.sp_last_deep_verify) + "_" + distributorFolderID;
+    }
+
+    private static int getDeferredJobID(String distributorFolderID)
+    {
+        try
+        {
+            return DEFERRED_JOB_ID_BASE + Integer.parseInt(distributorFolderID); // "01" -> 1001
+        }
+        catch (NumberFormatException e)
+        {
+            return DEFERRED_JOB_ID_BASE + 100 + (distributorFolderID.hashCode() & 0xffff);
+        }
+    }
+
+    private SharedPreferences getSharedPreferences()
+    {
+        if (mContext == null || mContext.get() == null)
+            return null;
+        return mContext.get().getSharedPreferences(mContext.get().getString(R.string.sp_shared_preferences), Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2020 Finlands svenska taltidningsförening rf.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *     */
+package fi.fstf.knappen;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// This is the DownloadRegistry class that knows which files are being downloaded right now
+// The download engine registers each file when it starts, the media player looks here when an article is not on disk yet
+public class DownloadRegistry {
+
+    // This much of a file must be on disk before we start playing it (about 10 seconds of our speech mp3s)
+    public static final long PLAYABLE_BYTES = 64 * 1024;
+
+    private final ConcurrentMap<String, ActiveDownload> mDownloads = new ConcurrentHashMap<>(); // Local file path -> download
+
+    // Make it a static class (only one instance) | same as singleton
+    private static DownloadRegistry instance = new DownloadRegistry();
+    public static DownloadRegistry getInstance() {
+        return instance;
+    }
+
+    // Called by the download engine before the first byte is written
+    public ActiveDownload start(File localFile, File partFile, long size, long bytesOnDisk)
+    {
+        ActiveDownload download = new ActiveDownload(localFile, partFile, size, bytesOnDisk);
+        ActiveDownload old = mDownloads.put(localFile.getAbsolutePath(), download);
+        if (old != null)
+            old.finish(false);
+        return download;
+    }
+
+    // Called by the download engine when the file is complete (renamed) or has failed
+    public void finish(ActiveDownload download, boolean succeeded)
+    {
+        mDownloads.remove(download.getLocalFile().getAbsolutePath(), download);
+        download.finish(succeeded);
+    }
+
+    // Returns null if the file is not being downloaded
+    public ActiveDownload get(File localFile)
+    {
+        return mDownloads.get(localFile.getAbsolutePath());
+    }
+
+    // The files being downloaded into the folder, in the order they are played (see ArticleNames)
+    public List<File> getDownloads(File folder)
+    {
+        List<File> files = new ArrayList<>();
+        for (ActiveDownload download : mDownloads.values())
+        {
+            if (folder.equals(download.getLocalFile().getParentFile()))
+                files.add(download.getLocalFile());
+        }
+        Collections.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File first, File second) {
+                return ArticleNames.NATURAL_ORDER.compare(first.getName(), second.getName());
+            }
+        });
+        return files;
+    }
+
+    // True if enough of the file is on disk to start playing it
+    public boolean isPlayable(File localFile)
+    {
+        ActiveDownload download = get(localFile);
+        if (download == null)
+            return false;
+        long bytesOnDisk = download.getBytesOnDisk();
+        return bytesOnDisk >= PLAYABLE_BYTES || (download.getSize() >= 0 && bytesOnDisk >= download.getSize());
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2020 Finlands svenska taltidningsförening rf.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *     */
+package fi.fstf.knappen;
+
+import android.util.Log;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// This is the FTPChecksum class that finds out how we can get checksums from the ftp server
+// HASH (draft-bryan-ftpext-hash), XMD5 and XCRC are asked with FEAT, servers without them can have a checksum file in each date folder
+public class FTPChecksum {
+
+    private static final String TAG = "FTPChecksum";
+
+    // md5sum output in a date folder, for example "5d41402abc4b2a76b9719d911017c592  speechgen0001.mp3"
+    public static final String CHECKSUM_FILE_NAME = "MD5SUMS";
+    public static final String MD5_ALGORITHM = "MD5";
+
+    public static final int METHOD_CHECKSUM_FILE = 0;   // No command, use the checksum file if there is one
+    public static final int METHOD_HASH = 1;
+    public static final int METHOD_XMD5 = 2;
+    public static final int METHOD_XCRC = 3;
+
+    private final int mMethod;
+    private final String mAlgorithm;                   // What we calculate while downloading
+
+    private FTPChecksum(int method, String algorithm)
+    {
+        this.mMethod = method;
+        this.mAlgorithm = algorithm;
+    }
+
+    // Check the features of the session (FEAT is only sent once for each session)
+    public static FTPChecksum forSession(FTPClient ftp)
+    {
+        try
+        {
+            // HASH uses the algorithm marked with * in FEAT, for example "SHA-1;SHA-256*;MD5"
+            String[] hashValues = ftp.featureValues("HASH");
+            if (hashValues != null)
+            {
+                for (String value : hashValues)
+                {
+                    for (String algorithm : value.split(";"))
+                    {
+                        if (algorithm.endsWith("*") && isSupported(algorithm.substring(0, algorithm.length() - 1)))
+                            return new FTPChecksum(METHOD_HASH, algorithm.substring(0, algorithm.length() - 1).toUpperCase(Locale.US));
+                    }
+                }
+            }
+
+            if (ftp.hasFeature("XMD5"))
+                return new FTPChecksum(METHOD_XMD5, MD5_ALGORITHM);
+
+            if (ftp.hasFeature("XCRC"))
+                return new FTPChecksum(METHOD_XCRC, StreamingChecksum.CRC32_ALGORITHM);
+        }
+        catch (IOException e)
+        {
+            Log.d(TAG, e.toString());
+        }
+        return new FTPChecksum(METHOD_CHECKSUM_FILE, MD5_ALGORITHM);
+    }
+
+    public int getMethod()
+    {
+        return mMethod;
+    }
+
+    public String getAlgorithm()
+    {
+        return mAlgorithm;
+    }
+
+    // Ask the server for the checksum of a file in the current folder, returns lower case hex or null if we did not get one
+    public String requestServerChecksum(FTPClient ftp, String fileName) throws IOException
+    {
+        String command;
+        switch (mMethod)
+        {
+            case METHOD_HASH: command = "HASH"; break;
+            case METHOD_XMD5: command = "XMD5"; break;
+            case METHOD_XCRC: command = "XCRC"; break;
+            default:
+                return null;
+        }
+
+        int replyCode = ftp.sendCommand(command, fileName);
+        if (!FTPReply.isPositiveCompletion(replyCode))
+        {
+            LogDAO.getInstance().add(command + " failed. Reply: " + ftp.getReplyString());
+            return null;
+        }
+
+        // "213 SHA-256 0-49 <hash> speechgen0001.mp3" for HASH, "250 <hash>" for XMD5 and XCRC
+        String[] parts = ftp.getReplyString().trim().split("\\s+");
+        int hashIndex = (mMethod == METHOD_HASH) ? 3 : 1;
+        if (parts.length <= hashIndex)
+            return null;
+
+        return normalize(parts[hashIndex]);
+    }
+
+    // Read the checksum file in the current folder, file name -> lower case hex
+    // Returns an empty map if the folder has no checksum file
+    // A server can have the file in some folders only, the callers remember the result for each folder (a miss too) so it is only asked for once
+    public static Map<String, String> readChecksumFile(FTPClient ftp) throws IOException
+    {
+        Map<String, String> checksums = new HashMap<>();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        if (!ftp.retrieveFile(CHECKSUM_FILE_NAME, outputStream))
+            return checksums;
+
+        for (String line : outputStream.toString("UTF-8").split("\n"))
+        {
+            // md5sum writes "hash  name" for text mode and "hash *name" for binary mode
+            String[] parts = line.trim().split("\\s+\\*?", 2);
+            if (parts.length == 2)
+                checksums.put(parts[1].trim(), normalize(parts[0]));
+        }
+        return checksums;
+    }
+
+    // Lower case, and CRC32 always with 8 characters (some servers skip leading zeros)
+    private static String normalize(String hex)
+    {
+        String value = hex.toLowerCase(Locale.US);
+        while (value.length() < 8)
+            value = "0" + value;
+        return value;
+    }
+
+    private static boolean isSupported(String algorithm)
+    {
+        if (StreamingChecksum.CRC32_ALGORITHM.equalsIgnoreCase(algorithm))
+            return true;
+
+        try
+        {
+            MessageDigest.getInstance(algorithm);
+            return true;
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            return false;
+        }
+    }
+}
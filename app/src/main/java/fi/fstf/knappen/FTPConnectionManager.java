@@ -27,10 +27,14 @@ import org.apache.commons.net.ftp.FTPReply;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 
+// This is the FTPConnectionManager class that opens and closes all ftp sessions
+// Nothing here is synchronized on the manager, different distributors (and the connection test) connect at the same time
+// The pool keeps the state that is shared between threads, and limits the number of sessions to each server
 public class FTPConnectionManager {
 
     private static final String TAG = "FTPConnectionManager";
-    private WeakReference<Context> mContext = null;
+    private volatile WeakReference<Context> mContext = null;
+    private final FTPConnectionPool mPool = new FTPConnectionPool();
 
     // Make it a static class (only one instance) | same as singleton
     private static FTPConnectionManager instance = new FTPConnectionManager();
@@ -43,12 +47,15 @@ public class FTPConnectionManager {
         mContext = new WeakReference<>(cx);
     }
 
-    public synchronized boolean isOnline()
+    public boolean isOnline()
     {
-        if(mContext == null || mContext.get() == null)
+        // Read the reference once, another thread can set a new context at any time
+        WeakReference<Context> contextReference = mContext;
+        Context context = (contextReference != null) ? contextReference.get() : null;
+        if(context == null)
             return false;
 
-        ConnectivityManager connMgr = (ConnectivityManager)mContext.get().getSystemService(Context.CONNECTIVITY_SERVICE);
+        ConnectivityManager connMgr = (ConnectivityManager)context.getSystemService(Context.CONNECTIVITY_SERVICE);
         NetworkInfo networkInfo = connMgr.getActiveNetworkInfo();
         return (networkInfo != null && networkInfo.isConnected());
 
@@ -67,7 +74,44 @@ public class FTPConnectionManager {
         //}
     }
 
-    public synchronized boolean testConnection(NewspaperDistributor distributor)
+    // True if the active network costs money per byte (mobile data, or a wifi hotspot the user has marked as metered)
+    public boolean isMetered()
+    {
+        WeakReference<Context> contextReference = mContext;
+        Context context = (contextReference != null) ? contextReference.get() : null;
+        if(context == null)
+            return false;
+
+        ConnectivityManager connMgr = (ConnectivityManager)context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        return connMgr.isActiveNetworkMetered();
+    }
+
+    // Returns TransferTuning.NETWORK_WIFI, NETWORK_MOBILE or NETWORK_OTHER for the active network
+    public String getNetworkType()
+    {
+        WeakReference<Context> contextReference = mContext;
+        Context context = (contextReference != null) ? contextReference.get() : null;
+        if(context == null)
+            return TransferTuning.NETWORK_OTHER;
+
+        ConnectivityManager connMgr = (ConnectivityManager)context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = connMgr.getActiveNetworkInfo();
+        if (networkInfo == null)
+            return TransferTuning.NETWORK_OTHER;
+
+        switch (networkInfo.getType())
+        {
+            case ConnectivityManager.TYPE_WIFI:
+            case ConnectivityManager.TYPE_ETHERNET:
+                return TransferTuning.NETWORK_WIFI;
+            case ConnectivityManager.TYPE_MOBILE:
+                return TransferTuning.NETWORK_MOBILE;
+            default:
+                return TransferTuning.NETWORK_OTHER;
+        }
+    }
+
+    public boolean testConnection(NewspaperDistributor distributor)
     {
         FTPClient connection = null;
 
@@ -104,13 +148,65 @@ public class FTPConnectionManager {
         }
     }
 
-    public synchronized FTPClient connectToFTP(String server, int portNumber, String user, String password)
+    // Returns a logged in session, an idle session from the pool is used if there is one for the same server and user
+    // Waits if there are too many sessions to the server already, returns null on failure
+    public FTPClient connectToFTP(String server, int portNumber, String user, String password)
     {
-        FTPClient ftp = null;
+        // Buffer sizes and timeouts for the network we are on now
+        TransferTuning.Settings settings = TransferTuning.getInstance().getSettings(getNetworkType());
+
+        FTPClient ftp = mPool.acquire(server, portNumber, user, password);
+        if (ftp != null)
+        {
+            // The network might have changed since the session was opened
+            TransferTuning.getInstance().applyToSession(ftp, settings);
+            return ftp;
+        }
+
+        try
+        {
+            if (!mPool.reserve(server, portNumber))
+            {
+                LogDAO.getInstance().add("Too many ftp sessions to " + server + ", try again later.");
+                return null;
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+
+        ftp = new FTPClient();
+        TransferTuning.getInstance().applyBeforeConnect(ftp, settings);
+        if (login(ftp, server, portNumber, user, password))
+        {
+            TransferTuning.getInstance().applyToSession(ftp, settings);
+
+            // Remember the session so it can go back to the pool when we are done with it
+            mPool.register(ftp, server, portNumber, user, password);
+            return ftp;
+        }
+
+        // Don't leave a half open session behind, and let someone else use the reservation
+        try
+        {
+            if (ftp.isConnected())
+                ftp.disconnect();
+        }
+        catch (IOException e)
+        {
+            Log.d(TAG, e.toString());
+        }
+        mPool.unreserve(server, portNumber);
+        return null;
+    }
 
+    // Connect and log in with a new ftp client, returns true on success
+    private boolean login(FTPClient ftp, String server, int portNumber, String user, String password)
+    {
         try {
-            // Create a new ftp client and connect
-            ftp = new FTPClient();
+            // Connect
             ftp.connect(server, portNumber);
             LogDAO.getInstance().add("Connected. Reply: " + ftp.getReplyString());
 
@@ -120,10 +216,9 @@ public class FTPConnectionManager {
             // Check the reply code
             if (!FTPReply.isPositiveCompletion(replyCode))
             {
-                ftp.disconnect();
                 LogDAO.getInstance().add("FTP server refused connection.");
                 System.err.println("FTP server refused connection.");
-                return null;
+                return false;
             }
 
             // Log in to ftp
@@ -131,14 +226,14 @@ public class FTPConnectionManager {
                 LogDAO.getInstance().add("Logged in. Reply: " + ftp.getReplyString());
             else {
                 LogDAO.getInstance().add("Failed to log in. Reply: " + ftp.getReplyString());
-                return null;
+                return false;
             }
 
             // Set binary file type
             if (!ftp.setFileType(FTP.BINARY_FILE_TYPE)) // Can be chosen between ASCII_FILE_TYPE and BINARY_FILE_TYPE
             {
                 LogDAO.getInstance().add("File type set failed. Reply: " + ftp.getReplyString());
-                return null;
+                return false;
             }
 
             // Make sure we use local to server connection
@@ -153,36 +248,37 @@ public class FTPConnectionManager {
             // This will cause the file upload/download methods to send a NOOP approximately every 5 minutes
             ftp.setControlKeepAliveTimeout(300); // set timeout to 5 minutes
 
-
         } catch( IOException e)
         {
             Log.d(TAG, e.toString());
             LogDAO.getInstance().add(e.toString());
-            return null;
+            return false;
         }
 
-        return ftp;
+        return true;
     }
 
-    public synchronized void disconnectFromFTP(FTPClient client)
+    // Give the session back to the pool, it will be logged out after a while if nobody needs it
+    public void disconnectFromFTP(FTPClient client)
     {
-        try
-        {
-            // Log out and disconnect if we've got a connection
-            if (client != null)
-            {
-                if (client.isConnected())
-                {
-                    client.logout();
-                    client.disconnect();
-                    client = null;
-                }
-            }
-        }
-        catch (IOException e)
-        {
-            Log.d(TAG, e.toString());
-            LogDAO.getInstance().add("IOException: " + e.toString());
-        }
+        disconnectFromFTP(client, true);
+    }
+
+    // Use keepAlive = false when the session might be broken (for example an error in the middle of a transfer), it will be logged out now
+    public void disconnectFromFTP(FTPClient client, boolean keepAlive)
+    {
+        if (client == null)
+            return;
+
+        if (keepAlive)
+            mPool.release(client);
+        else
+            mPool.discard(client);
+    }
+
+    // Log out all idle sessions now
+    public void closeIdleConnections()
+    {
+        mPool.closeIdleSessions();
     }
 }
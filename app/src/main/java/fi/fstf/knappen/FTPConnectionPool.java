@@ -0,0 +1,375 @@
+/*
+ * Copyright 2020 Finlands svenska taltidningsförening rf.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *     */
+package fi.fstf.knappen;
+
+import android.util.Log;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+// This is the FTPConnectionPool class that keeps logged in ftp sessions open for a while after use
+// Several distributors are on the same server with the same user, and a sync is often followed by another sync or a connection test
+// Reusing a session saves the connect, login, TYPE I and PASV round-trips
+// The pool also limits the number of open sessions (in use and idle) to one server, so parallel syncs don't get refused logins
+public class FTPConnectionPool {
+
+    private static final String TAG = "FTPConnectionPool";
+
+    // Close idle sessions after this time, most servers close them after 5 minutes anyway
+    public static final long IDLE_TIMEOUT_MILLIS = 60 * 1000;
+
+    // Max number of idle sessions we keep for one server and user, and in total
+    public static final int MAX_IDLE_SESSIONS_PER_KEY = 3;
+    public static final int MAX_IDLE_SESSIONS = 8;
+
+    // Max number of open sessions to one server (all users), two distributors can download with DownloadEngine.DEFAULT_MAX_SESSIONS each
+    public static final int MAX_SESSIONS_PER_HOST = 2 * DownloadEngine.DEFAULT_MAX_SESSIONS;
+
+    // How long a new session waits for another session to the same server to be closed
+    public static final long RESERVE_TIMEOUT_MILLIS = 2 * 60 * 1000;
+
+    // What we know about a session that we have given out or keep in the pool
+    private static class Session {
+        final FTPClient client;
+        final String key;            // server:port:user
+        final String hostKey;        // server:port
+        final String password;       // A changed password must not get the old session
+        final String homeDirectory;  // The folder we were in after login
+        long idleSince;
+
+        Session(FTPClient client, String key, String hostKey, String password, String homeDirectory) {
+            this.client = client;
+            this.key = key;
+            this.hostKey = hostKey;
+            this.password = password;
+            this.homeDirectory = homeDirectory;
+        }
+    }
+
+    private final Object mLock = new Object();
+    private final Map<String, Deque<Session>> mIdleSessions = new HashMap<>();                  // Newest idle session last
+    private final Map<FTPClient, Session> mSessionsInUse = new IdentityHashMap<>();
+    private final Map<String, Semaphore> mHostPermits = new HashMap<>();                         // One permit for each open session
+    private int mIdleCount = 0;
+    private ScheduledExecutorService mEvictor = null;
+
+    public static String createKey(String server, int portNumber, String user)
+    {
+        return createHostKey(server, portNumber) + ":" + user;
+    }
+
+    public static String createHostKey(String server, int portNumber)
+    {
+        return server + ":" + portNumber;
+    }
+
+    // Must be called before opening a new session, waits if there are too many sessions to the server already
+    // Returns false if we waited too long, then no session must be opened
+    public boolean reserve(String server, int portNumber) throws InterruptedException
+    {
+        String hostKey = createHostKey(server, portNumber);
+        Semaphore permits = getHostPermits(hostKey);
+        if (permits.tryAcquire())
+            return true;
+
+        // Idle sessions hold permits too, all idle sessions on the server are closed to make room, also our own user's
+        // (acquire() is tried first, so the caller only loses a session that another thread gave back after that)
+        evictHost(hostKey);
+        return permits.tryAcquire(RESERVE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // Give the reservation back if the new session could not be opened
+    public void unreserve(String server, int portNumber)
+    {
+        getHostPermits(createHostKey(server, portNumber)).release();
+    }
+
+    // Returns a working idle session for the server and user, or null if there is none (then the caller must connect)
+    public FTPClient acquire(String server, int portNumber, String user, String password)
+    {
+        String key = createKey(server, portNumber, user);
+        while (true)
+        {
+            Session session;
+            synchronized (mLock)
+            {
+                Deque<Session> idle = mIdleSessions.get(key);
+                session = (idle != null) ? idle.pollLast() : null;
+                if (session == null)
+                    return null;
+                mIdleCount--;
+            }
+
+            // The network is used outside the lock, the session is ours now
+            if (isUsable(session, password))
+            {
+                synchronized (mLock)
+                {
+                    mSessionsInUse.put(session.client, session);
+                }
+                LogDAO.getInstance().add("Reusing ftp session to " + server);
+                return session.client;
+            }
+
+            // The session was dead, try the next one
+            close(session);
+        }
+    }
+
+    // Remember a new session we just logged in with (after reserve), so that it can be pooled when released
+    public void register(FTPClient client, String server, int portNumber, String user, String password)
+    {
+        String homeDirectory = null;
+        try
+        {
+            homeDirectory = client.printWorkingDirectory();
+        }
+        catch (IOException e)
+        {
+            Log.d(TAG, e.toString());
+        }
+
+        synchronized (mLock)
+        {
+            mSessionsInUse.put(client, new Session(client, createKey(server, portNumber, user), createHostKey(server, portNumber), password, homeDirectory));
+        }
+    }
+
+    // Give the session back, it is closed if it is broken or if the pool is full
+    public void release(FTPClient client)
+    {
+        if (client == null)
+            return;
+
+        boolean keep = false;
+        Session session;
+        synchronized (mLock)
+        {
+            session = mSessionsInUse.remove(client);
+            if (session != null && session.homeDirectory != null && client.isConnected() && FTPReply.isPositiveCompletion(client.getReplyCode()))
+            {
+                Deque<Session> idle = mIdleSessions.get(session.key);
+                if (idle == null)
+                {
+                    idle = new ArrayDeque<>();
+                    mIdleSessions.put(session.key, idle);
+                }
+
+                if (idle.size() < MAX_IDLE_SESSIONS_PER_KEY && mIdleCount < MAX_IDLE_SESSIONS)
+                {
+                    session.idleSince = System.currentTimeMillis();
+                    idle.addLast(session);
+                    mIdleCount++;
+                    keep = true;
+                    scheduleEviction();
+                }
+            }
+        }
+
+        if (!keep)
+            close(session, client);
+    }
+
+    // Forget the session without pooling it, for example after an error in the middle of a transfer
+    public void discard(FTPClient client)
+    {
+        if (client == null)
+            return;
+
+        Session session;
+        synchronized (mLock)
+        {
+            session = mSessionsInUse.remove(client);
+        }
+        close(session, client);
+    }
+
+    // Close all idle sessions that have been unused for too long
+    public void evictIdleSessions()
+    {
+        evict(System.currentTimeMillis() - IDLE_TIMEOUT_MILLIS);
+    }
+
+    // Close all idle sessions
+    public void closeIdleSessions()
+    {
+        evict(Long.MAX_VALUE);
+    }
+
+    public int getIdleCount()
+    {
+        synchronized (mLock)
+        {
+            return mIdleCount;
+        }
+    }
+
+    private void evict(long idleBefore)
+    {
+        evict(idleBefore, null);
+    }
+
+    // Close all idle sessions to the server, whatever user they have
+    private void evictHost(String hostKey)
+    {
+        evict(Long.MAX_VALUE, hostKey);
+    }
+
+    private void evict(long idleBefore, String hostKey)
+    {
+        List<Session> toClose = new ArrayList<>();
+        synchronized (mLock)
+        {
+            Iterator<Deque<Session>> keys = mIdleSessions.values().iterator();
+            while (keys.hasNext())
+            {
+                Deque<Session> idle = keys.next();
+                Iterator<Session> sessions = idle.iterator();
+                while (sessions.hasNext())
+                {
+                    Session session = sessions.next();
+                    if (session.idleSince < idleBefore && (hostKey == null || hostKey.equals(session.hostKey)))
+                    {
+                        sessions.remove();
+                        mIdleCount--;
+                        toClose.add(session);
+                    }
+                }
+                if (idle.isEmpty())
+                    keys.remove();
+            }
+        }
+
+        // The network is used outside the lock
+        for (Session session : toClose)
+            close(session);
+    }
+
+    private Semaphore getHostPermits(String hostKey)
+    {
+        synchronized (mLock)
+        {
+            Semaphore permits = mHostPermits.get(hostKey);
+            if (permits == null)
+            {
+                permits = new Semaphore(MAX_SESSIONS_PER_HOST, true);
+                mHostPermits.put(hostKey, permits);
+            }
+            return permits;
+        }
+    }
+
+    // Make sure idle sessions are closed even if nobody uses the pool again
+    private void scheduleEviction()
+    {
+        if (mEvictor == null)
+        {
+            mEvictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        mEvictor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                evictIdleSessions();
+            }
+        }, IDLE_TIMEOUT_MILLIS + 1000, TimeUnit.MILLISECONDS);
+    }
+
+    // NOOP tells us if the server still has the session, then go back to the home folder so the session looks like a new one
+    private boolean isUsable(Session session, String password)
+    {
+        if (session.password == null ? password != null : !session.password.equals(password))
+            return false;
+
+        if (!session.client.isConnected())
+            return false;
+
+        if (System.currentTimeMillis() - session.idleSince > IDLE_TIMEOUT_MILLIS)
+            return false;
+
+        try
+        {
+            return session.client.sendNoOp() && session.client.changeWorkingDirectory(session.homeDirectory);
+        }
+        catch (IOException e)
+        {
+            Log.d(TAG, e.toString());
+            return false;
+        }
+    }
+
+    private void close(Session session)
+    {
+        close(session, session.client);
+    }
+
+    // Log out and give the permit back, session is null for a client that the pool does not know about
+    private void close(Session session, FTPClient client)
+    {
+        try
+        {
+            disconnect(client);
+        }
+        finally
+        {
+            if (session != null)
+                getHostPermits(session.hostKey).release();
+        }
+    }
+
+    private void disconnect(FTPClient client)
+    {
+        try
+        {
+            if (client.isConnected())
+            {
+                client.logout();
+                client.disconnect();
+            }
+        }
+        catch (IOException e)
+        {
+            Log.d(TAG, e.toString());
+            try
+            {
+                client.disconnect();
+            }
+            catch (IOException ignored) {}
+        }
+    }
+}
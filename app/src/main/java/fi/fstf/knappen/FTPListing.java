@@ -0,0 +1,105 @@
+/*
+ * Copyright 2020 Finlands svenska taltidningsförening rf.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *     */
+package fi.fstf.knappen;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPFile;
+import org.apache.commons.net.ftp.FTPFileFilter;
+import org.apache.commons.net.ftp.FTPReply;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+// This is the FTPListing class that lists folders and files on the ftp server
+// MLSD (RFC 3659) is used when the server supports it, it gives exact sizes and UTC modify times in a fixed format
+// Servers without MLSD get the old LIST command, which is human formatted and depends on the server locale
+public class FTPListing {
+
+    // Only the articles (see ArticleNames), everything else in the folders is skipped while the listing is parsed
+    public static final FTPFileFilter NEWSPAPER_FILE_FILTER = new FTPFileFilter() {
+        @Override
+        public boolean accept(FTPFile file) {
+            return file != null && file.isFile() && ArticleNames.isArticle(file.getName());
+        }
+    };
+
+    // Only real folders, MLSD also gives the current and parent folder on some servers
+    public static final FTPFileFilter FOLDER_FILTER = new FTPFileFilter() {
+        @Override
+        public boolean accept(FTPFile file) {
+            return file != null && file.isDirectory() && !file.getName().equals(".") && !file.getName().equals("..");
+        }
+    };
+
+    // Sessions where the server advertised MLST but refused MLSD, they go straight to LIST from then on
+    // Weak keys, a session that is closed and dropped by the pool is forgotten
+    private static final Set<FTPClient> sessionsWithoutMlsd = Collections.newSetFromMap(Collections.synchronizedMap(new WeakHashMap<FTPClient, Boolean>()));
+
+    private FTPListing() {}
+
+    // Returns true if the server has MLSD, the answer to FEAT is saved in the FTPClient so this only costs one round-trip per session
+    public static boolean isMlsdSupported(FTPClient ftp)
+    {
+        if (sessionsWithoutMlsd.contains(ftp))
+            return false;
+
+        try
+        {
+            // The feature is called MLST in FEAT, but some servers write MLSD
+            return ftp.hasFeature("MLST") || ftp.hasFeature("MLSD");
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    // List the date folders in the path, for example 20190521, 20190522 ... returns null if the listing failed
+    public static FTPFile[] listFolders(FTPClient ftp, String path) throws IOException
+    {
+        return list(ftp, path, FOLDER_FILTER);
+    }
+
+    // List the newspaper files in the path, for example speechgen0001.mp3 ... returns null if the listing failed
+    public static FTPFile[] listNewspaperFiles(FTPClient ftp, String path) throws IOException
+    {
+        return list(ftp, path, NEWSPAPER_FILE_FILTER);
+    }
+
+    private static FTPFile[] list(FTPClient ftp, String path, FTPFileFilter filter) throws IOException
+    {
+        if (isMlsdSupported(ftp))
+        {
+            FTPFile[] files = ftp.mlistDir(path, filter);
+            if (FTPReply.isPositiveCompletion(ftp.getReplyCode()))
+                return files;
+
+            // The server said it has MLSD but refused it, try LIST before giving up (and don't ask again in this session)
+            LogDAO.getInstance().add("MLSD failed, using LIST. Reply: " + ftp.getReplyString());
+            sessionsWithoutMlsd.add(ftp);
+        }
+
+        FTPFile[] files = ftp.listFiles(path, filter);
+        if (!FTPReply.isPositiveCompletion(ftp.getReplyCode()))
+        {
+            LogDAO.getInstance().add("Listing " + path + " failed. Reply: " + ftp.getReplyString());
+            return null;
+        }
+        return files;
+    }
+}
@@ -19,21 +19,29 @@ import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
+import android.os.StatFs;
 import android.support.v4.content.LocalBroadcastManager;
 
 import org.apache.commons.net.ftp.FTPFile;
 
 import java.io.File;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.text.ParsePosition;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 // Make these available everywhere
 enum VoiceID {
@@ -61,15 +69,24 @@ enum VoiceID {
 // This is the FileManager class that will handle all local files (mp3) used by the app
 public class FileManager {
 
+    // Space left free for the database, the log and the rest of the phone when we download
+    private static final long FREE_SPACE_RESERVE_BYTES = 16 * 1024 * 1024;
+
+    // Wait this long after the last change to the local files before saving the index snapshot
+    private static final long INDEX_SNAPSHOT_DELAY_MILLIS = 5 * 1000;
+
     private WeakReference<Context> context = null;              // Save the context to be used in functions
     private static Uri voices[];                                // uri of all the voices used in app
-    private String preFileName = "speechgen";                   // prefix
-    private String fileFormat = "mp3";                          // postfix
-    private int currentIndex = 1;                               // The 1 in speechgen0001.mp3
+    private ArticleCursor articleCursor = new ArticleCursor("", "", null, 1); // The current article (index 1 is the first article in natural order)
     private String currentNewspaperFolderDateForPlayback = "";  // The current newspaper folder used (for example 20190521)
     private String currentDistributorFolderForPlayback = "";    // The current distributor folder used for playing files
-    private File[] localNewspaperDateFolderList;                // For example 20180327, 20180328, 20180329
-    private File[][] localNewspaperFileList;                    // localNewspaperFileList[0][0] = first file in first folder
+    // All local files of all distributors, several distributors can be downloaded at the same time
+    private final LocalNewspaperIndex localNewspaperIndex = new LocalNewspaperIndex();
+    private volatile LocalFileWatcher localFileWatcher = null;
+    private ScheduledExecutorService backgroundExecutor = null;          // Checks the snapshot at startup and saves it after changes
+    private final AtomicBoolean indexSnapshotPending = new AtomicBoolean(false);
+    // The newspapers we can play, navigation only looks here (no disk access when a button is pressed)
+    private final AtomicReference<PlaybackCatalog> playbackCatalog = new AtomicReference<>(PlaybackCatalog.EMPTY);
 
     // Make it a static class (only one instance) | same as singleton
     private static FileManager instance = new FileManager();
@@ -98,222 +115,279 @@ public class FileManager {
             voices[VoiceID.VID_PREVIOUS_NEWSPAPER.ordinal()] = Uri.parse("android.resource://" + context.get().getPackageName() + "/" + R.raw.p009);
             voices[VoiceID.VID_YOU_HAVE_REACHED_THE_END_OF_THE_NEWSPAPER.ordinal()] = Uri.parse("android.resource://" + context.get().getPackageName() + "/" + R.raw.p013);
         }
+
+        // Read the local newspapers once and follow the changes in the files folder from then on
+        synchronized (this)
+        {
+            if (context.get() != null && localFileWatcher == null)
+            {
+                // The file extensions that are played as articles, before anything is read
+                ArticleNames.setExtensions(context.get().getResources().getStringArray(R.array.article_extensions));
+
+                final LocalFileWatcher watcher = new LocalFileWatcher(context.get().getFilesDir(), localNewspaperIndex, new LocalFileWatcher.Listener() {
+                    @Override
+                    public void onNewspaperChanged(String dateFolder, String distributorFolder) {
+                        updatePlaybackCatalog(dateFolder, distributorFolder);
+                    }
+
+                    @Override
+                    public void onAllNewspapersChanged() {
+                        updatePlaybackCatalog();
+                    }
+                });
+                localFileWatcher = watcher;
+
+                // After a reboot we can play at once from the snapshot, the folders are checked in the background
+                if (LocalIndexSnapshot.read(getIndexSnapshotFile(), context.get().getFilesDir(), localNewspaperIndex))
+                {
+                    updatePlaybackCatalog();
+                    getBackgroundExecutor().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            watcher.start();
+                            updatePlaybackCatalog();
+                        }
+                    });
+                }
+                else
+                {
+                    watcher.start();
+                    updatePlaybackCatalog();
+                }
+            }
+        }
     }
 
-    // START currentIndex - Use these synchronized functions for current index!
-    public synchronized void resetCurrentIndex()
+    // Call after files have been downloaded, linked or deleted, the playback catalog is read again if the watcher did not see the changes
+    public void onLocalFilesChanged()
     {
-        // Reset the current index to start from 1 (speechgen0001.mp3)
-        currentIndex = 1;
+        if (localFileWatcher == null || !localFileWatcher.isWatching())
+            updatePlaybackCatalog();
     }
-    public synchronized int getCurrentIndex()
+
+    // Create the playback catalog from scratch, at startup or when the watcher is not running (see onLocalFilesChanged)
+    // The local index is used when it is up to date (or restored from the snapshot), otherwise the folders are read
+    public void updatePlaybackCatalog()
     {
-        return currentIndex;
+        if (context == null || context.get() == null)
+            return;
+
+        LocalFileWatcher watcher = localFileWatcher;
+        boolean fromIndex = watcher != null && (watcher.isWatching() || !localNewspaperIndex.getDistributors().isEmpty());
+        List<String> distributorOrder = getDistributorOrder();
+        File baseFolder = context.get().getFilesDir();
+        PlaybackCatalog current;
+        PlaybackCatalog updated;
+        do {
+            current = playbackCatalog.get();
+            if (fromIndex)
+                updated = PlaybackCatalog.build(localNewspaperIndex, distributorOrder, current.getVersion() + 1);
+            else
+                updated = PlaybackCatalog.build(baseFolder, distributorOrder, current.getVersion() + 1);
+        } while (!playbackCatalog.compareAndSet(current, updated));
+        scheduleIndexSnapshot();
     }
-    public synchronized void increaseCurrentIndex()
+
+    // The distributors have been added, deleted or sorted again, the newspapers on disk are the same
+    public void updatePlaybackCatalogOrder()
     {
-        currentIndex++;
+        List<String> distributorOrder = getDistributorOrder();
+        PlaybackCatalog current;
+        PlaybackCatalog updated;
+        do {
+            current = playbackCatalog.get();
+            updated = current.withDistributorOrder(distributorOrder, current.getVersion() + 1);
+        } while (!playbackCatalog.compareAndSet(current, updated));
     }
-    public synchronized void decreaseCurrentIndex()
+
+    // Distributor folders, most prioritized first
+    private List<String> getDistributorOrder()
     {
-        currentIndex--;
+        List<String> distributorOrder = new ArrayList<>();
+        for (NewspaperDistributor distributor : NewspaperDistributorDAO.getInstance().getAllNewspaperDistributorsSorted())
+        {
+            if (distributor != null)
+                distributorOrder.add(distributor.getFolderName());
+        }
+        return distributorOrder;
     }
-    // END currentIndex
-
 
-    public void updateLocalFileLists(String newspaperDistributorID)
+    // Read one newspaper again, for example when an article has been downloaded into it
+    public void updatePlaybackCatalog(String newspaperFolderName, String newspaperDistributorID)
     {
-        if (context == null || context.get() == null) {
-            LogDAO.getInstance().add("FileManager::updateLocalFileLists() - context is null");
+        if (context == null || context.get() == null)
             return;
-        }
-
-        // Get the list, this can be unsorted even if folder names are sorted
-        File newspaperDateFolder = context.get().getFilesDir(); // Base directory
-
-        // Check if it actually exist ... and is a directory
-        if (newspaperDateFolder.exists() && newspaperDateFolder.isDirectory())
-        {
-            // List all folders with date
-            localNewspaperDateFolderList = null; // GC
-            localNewspaperDateFolderList = newspaperDateFolder.listFiles(); // No sorting needed here // 20190521, 20190522, 20190523
-
-            localNewspaperFileList = null; // GC
 
-            // Allocate memory for the array
-            if( localNewspaperDateFolderList.length > 0 )
-            {
-                localNewspaperFileList = new File[localNewspaperDateFolderList.length][];
-            }
+        File baseFolder = context.get().getFilesDir();
+        PlaybackCatalog current;
+        PlaybackCatalog updated;
+        do {
+            current = playbackCatalog.get();
+            updated = current.withNewspaper(baseFolder, newspaperFolderName, newspaperDistributorID, current.getVersion() + 1);
+        } while (!playbackCatalog.compareAndSet(current, updated));
+        scheduleIndexSnapshot();
+    }
 
-            // Loop through local date folders and setup the file lists
-            for(int localFolderID = 0; localFolderID < localNewspaperDateFolderList.length; localFolderID++)
-            {
-                // Check if our distributor exist inside this folder
-                String newspaperDistributorFolderPath = localNewspaperDateFolderList[localFolderID] + "/" + newspaperDistributorID;
-                File newspaperDistributorFolder = new File (newspaperDistributorFolderPath);
+    // Save the local index for the next startup, a few seconds after the last change (a sync changes hundreds of files)
+    private void scheduleIndexSnapshot()
+    {
+        if (context == null || context.get() == null || !indexSnapshotPending.compareAndSet(false, true))
+            return;
 
-                // Check if it actually exist ... and is a directory
-                if (newspaperDistributorFolder.exists() && newspaperDistributorFolder.isDirectory())
+        final File snapshotFile = getIndexSnapshotFile();
+        getBackgroundExecutor().schedule(new Runnable() {
+            @Override
+            public void run() {
+                indexSnapshotPending.set(false);
+                try
                 {
-                    // Yes, we now know that we have a "01 folder for example
+                    LocalIndexSnapshot.write(snapshotFile, localNewspaperIndex);
+                }
+                catch (IOException e)
+                {
+                    LogDAO.getInstance().add("Failed to save the local file list: " + e.getMessage());
+                }
+            }
+        }, INDEX_SNAPSHOT_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
 
-                    // List all files in the folder /20190521/01/...
-                    localNewspaperFileList[localFolderID] = newspaperDistributorFolder.listFiles(); // Sorting below
+    private File getIndexSnapshotFile()
+    {
+        return new File(context.get().getDir("index", Context.MODE_PRIVATE), "local.snapshot");
+    }
 
-                    // We need to sort the array, Android might give you a sorted list ... or NOT!
-                    Arrays.sort(localNewspaperFileList[localFolderID]);
+    private synchronized ScheduledExecutorService getBackgroundExecutor()
+    {
+        if (backgroundExecutor == null)
+        {
+            backgroundExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "FileManager");
+                    thread.setDaemon(true);
+                    return thread;
                 }
-            }
+            });
         }
+        return backgroundExecutor;
     }
 
-    // This function will update to latest (newest) folder, return true on success
-    public boolean updateToNewestPlayableFolder() {
-        if (context == null || context.get() == null)
-            return false;
-
-        int newestLocalFolderID = 0;
+    public PlaybackCatalog getPlaybackCatalog()
+    {
+        return playbackCatalog.get();
+    }
 
-        File baseFolder = context.get().getFilesDir();
+    // START currentIndex - Use these synchronized functions for current index!
+    public synchronized void resetCurrentIndex()
+    {
+        // Reset the current index to start from 1 (the first article)
+        articleCursor.reset();
+    }
+    public synchronized int getCurrentIndex()
+    {
+        return articleCursor.getIndex();
+    }
+    public synchronized void increaseCurrentIndex()
+    {
+        articleCursor.next();
+    }
+    public synchronized void decreaseCurrentIndex()
+    {
+        articleCursor.previous();
+    }
+    // END currentIndex
 
-        // Check if it actually exist ... and is a directory
-        if (baseFolder.exists() && baseFolder.isDirectory()) {
-            // List all files in the base folder
-            File[] localNewspaperDateFolderList = baseFolder.listFiles(); // No sorting needed here
-
-            // Loop through local app folders to see which one that is the newest
-            // One possible way would be to pick the last folder but we don't know for sure that this will give a sorted folder list
-            for (int loopFolderID = 0; loopFolderID < localNewspaperDateFolderList.length; loopFolderID++) {
-                if (localNewspaperDateFolderList[loopFolderID].getName().compareTo(localNewspaperDateFolderList[newestLocalFolderID].getName()) > 0) {
-                    // 0 = equal
-                    // < = localFolderID is less than newestLocalFolderID
-                    // > = localFolderID is greater than newestLocalFolderID
-
-                    // ok, we found a newer folder
-                    newestLocalFolderID = loopFolderID;
-                }
-            }
+    // The cursor of the current newspaper, a new one is only created when we change newspaper or the newspaper has changed on disk
+    private synchronized ArticleCursor getArticleCursor()
+    {
+        File[] articles = playbackCatalog.get().getNewspaper(currentNewspaperFolderDateForPlayback, currentDistributorFolderForPlayback);
+        if (!articleCursor.isFor(currentNewspaperFolderDateForPlayback, currentDistributorFolderForPlayback, articles))
+            articleCursor = articleCursor.update(currentNewspaperFolderDateForPlayback, currentDistributorFolderForPlayback, articles, getCurrentDownloads());
+        return articleCursor;
+    }
 
-            // Ok, now we know which folder that is newest (if it's not empty)
-            if (localNewspaperDateFolderList.length > 0) {
-                String dateFolderName = localNewspaperDateFolderList[newestLocalFolderID].getName();
+    // The files being downloaded into the newspaper being played, in natural order
+    private List<File> getCurrentDownloads()
+    {
+        if (context == null || context.get() == null)
+            return new ArrayList<>();
 
-                // Set the current to the newest folder
-                setCurrentNewspaperFolderDateForPlayback(dateFolderName);
-                return true;
-            }
-        }
-        return false;
+        File folder = new File(context.get().getFilesDir(), currentNewspaperFolderDateForPlayback + "/" + currentDistributorFolderForPlayback);
+        return DownloadRegistry.getInstance().getDownloads(folder);
     }
 
-    public FTPFile[][] compareServerAndLocalList(FTPFile[] serverNewspaperFolderList, FTPFile[][] serverNewspaperFileList)
+
+    public void updateLocalFileLists(String newspaperDistributorID)
     {
-        //int newestLocalFolderID = 0;
+        if (context == null || context.get() == null) {
+            LogDAO.getInstance().add("FileManager::updateLocalFileLists() - context is null");
+            return;
+        }
 
-        if (serverNewspaperFolderList != null && serverNewspaperFolderList.length > 0)
+        // The watcher keeps the index up to date (and reads it at startup), only read it again when there is no watcher
+        // After a reboot the index comes from the snapshot until the watcher has checked the folders, a download is never planned from it:
+        // start() waits for the check in the background, or does it now if it has not begun (this is why it must not be called on the UI thread)
+        LocalFileWatcher watcher = localFileWatcher;
+        if (watcher != null)
         {
-            // First, allocate as many newspapers as we have on server totally (folders)
-            // The download list will contain all folders and files that should be downloaded, can be null!
-            FTPFile[][] downloadList = new FTPFile[serverNewspaperFolderList.length][];
-
-            // Loop through the server folder list
-            // Start from the end, if the server folders are sorted we can opt out to optimize this later
-            // Download all folders that are newer than the newest local folder
-            for(int serverFolderID = serverNewspaperFolderList.length -1; serverFolderID >= 0; serverFolderID--)
-            {
-                // Local folder list empty (first time before any date folders are created or everything deleted)
-                if (localNewspaperDateFolderList == null || localNewspaperDateFolderList.length == 0)
-                {
-                    downloadList[serverFolderID] = new FTPFile[serverNewspaperFileList[serverFolderID].length];
-                    downloadList[serverFolderID] = serverNewspaperFileList[serverFolderID];
-                    continue;
-                }
-
-                boolean foundServerFolder = false;
+            watcher.start();
+            return;
+        }
 
-                // Loop through the local folder list for each server folder and compare
-                for(int localFolderLoopID = 0; localFolderLoopID < localNewspaperDateFolderList.length; localFolderLoopID++)
-                {
-                    String localFolderName = localNewspaperDateFolderList[localFolderLoopID].getName(); // 20190521 for example
+        // Index all local files by date folder name and file name (used in compareServerAndLocalList function)
+        localNewspaperIndex.rescan(context.get().getFilesDir(), newspaperDistributorID);
+    }
 
-                    if (serverNewspaperFolderList[serverFolderID].getName().compareTo(localFolderName) == 0 )
-                    {
-                        // == 0 -> equal
-                        foundServerFolder = true;
-
-                        // Allocate memory before we loop through the list
-                        downloadList[serverFolderID] = new FTPFile[serverNewspaperFileList[serverFolderID].length];
-
-                        // Ok, we have the folder on both server ftp and locally
-                        // Now we need to loop through all files, because the phone may have been restarted in the middle of download process and all files are not guaranteed to exist
-                        // Note to programmers, if you would delete a file manually in the middle of mp3 range (for example speechgen0034.mp3) on server or locally, that file would be missing
-                        // and would mess up the local list or server list to be out of sync -> 34 locally would be compared to filesize of file 35 on server etc.. which means it will download
-                        // all files (even if 35 would match 35 with the file size, they would have different array ID).
-                        // However, this works great as it is now and will sync local folders to be identical as server.
-                        int serverFilesNum = serverNewspaperFileList[serverFolderID].length;
-                        for(int fileID = 0; fileID < serverFilesNum; fileID++)
-                        {
-                            long serverFileSize = 0;
-                            long localFileSize = 0;
+    // A file was put in place without downloading it (see BlobStore.relink), the index is updated now instead of waiting for the watcher
+    // Call updatePlaybackCatalog() for the newspaper when all files are added
+    public void addLocalFile(String newspaperFolderName, String newspaperDistributorID, String fileName)
+    {
+        if (context == null || context.get() == null)
+            return;
 
-                            // Get the file size on server
-                            if(serverNewspaperFileList[serverFolderID][fileID] != null)
-                                serverFileSize = serverNewspaperFileList[serverFolderID][fileID].getSize();
+        localNewspaperIndex.addFile(context.get().getFilesDir(), newspaperFolderName, newspaperDistributorID, fileName);
+    }
 
-                            if(localNewspaperFileList != null && localNewspaperFileList[localFolderLoopID] != null && fileID < localNewspaperFileList[localFolderLoopID].length && localNewspaperFileList[localFolderLoopID][fileID] != null)
-                            {
-                                // Get the local file size
-                                localFileSize = localNewspaperFileList[localFolderLoopID][fileID].length();
-                            }
+    // Number of files we have locally in the date folder
+    public int getLocalFileCount(String newspaperDistributorID, String dateFolderName)
+    {
+        Map<String, Map<String, File>> distributorIndex = localNewspaperIndex.get(newspaperDistributorID);
+        Map<String, File> folderIndex = (distributorIndex != null) ? distributorIndex.get(dateFolderName) : null;
+        if (folderIndex == null)
+            return 0;
 
-                            if (localFileSize != serverFileSize)
-                            {
+        return folderIndex.size();
+    }
 
-                                // The localNewspaperFileList[localFolderID][fileID].length() will not be 100% same every time we check the list
-                                long diff = serverFileSize - localFileSize;
-                                long absDiff = 0;
-                                try
-                                {
-                                    absDiff = Math.abs(diff);
-                                } catch (Exception e)
-                                {
-                                    absDiff = diff;
-                                }
-
-                                if (localFileSize != 0) // We don't need to show this for files that does not exist locally
-                                    LogDAO.getInstance().add("/" + localFolderName + "/" + serverNewspaperFileList[serverFolderID][fileID].getName() + " differs with bytes: " + Long.toString(absDiff));
-
-                                if (!BuildConfig.DEBUG || (BuildConfig.DEBUG && absDiff > 32)) // take alignment into account (only differs in debug version)
-                                {
-                                    // Mark the file for download
-                                    downloadList[serverFolderID][fileID] = serverNewspaperFileList[serverFolderID][fileID];
-                                }
-                            }
-                            else
-                            {
-                                // Don't download, we already have the same file locally
-                                downloadList[serverFolderID][fileID] = null;
-                            }
-                        } // end for loop for files
+    // This function will update to latest (newest) folder, return true on success
+    public boolean updateToNewestPlayableFolder() {
+        String dateFolderName = playbackCatalog.get().getNewestDate();
+        if (dateFolderName == null)
+            return false;
 
-                        continue; // We can skip the rest of local folders, will be looped through again on next server folder
-                    }
-                }
+        // Set the current to the newest folder
+        setCurrentNewspaperFolderDateForPlayback(dateFolderName);
+        return true;
+    }
 
-                if(!foundServerFolder)
-                {
-                    // Ok, when we get here we know that the folder on server does not at all exist locally, download whole folder!
+    // Returns the files that should be downloaded (newest folder first), or null if we did not get a list from the server
+    // serverChecksums are the MD5s from the server manifest (date folder -> (file name -> md5)), can be null
+    public List<DownloadJob> compareServerAndLocalList(String newspaperDistributorID, FTPFile[] serverNewspaperFolderList, FTPFile[][] serverNewspaperFileList, Map<String, Map<String, String>> serverChecksums)
+    {
+        if (serverNewspaperFolderList == null || serverNewspaperFolderList.length == 0)
+            return null;
 
-                    // NOTE, the serverNewspaperFileList[serverFolderID].length can be about double size (because of calculated non mp3 files in the folder)
-                    downloadList[serverFolderID] = new FTPFile[serverNewspaperFileList[serverFolderID].length];
-                    downloadList[serverFolderID] = serverNewspaperFileList[serverFolderID];
-                }
+        // Files and folders are matched by name, a missing file in the middle of a newspaper will only download that file
+        // take alignment into account (only differs in debug version)
+        DownloadPlanner planner = new DownloadPlanner(BuildConfig.DEBUG ? 32 : 0);
+        planner.setServerChecksums(serverChecksums, getBlobStore());
+        return planner.createDownloadPlan(serverNewspaperFolderList, serverNewspaperFileList, localNewspaperIndex.get(newspaperDistributorID));
+    }
 
-            }
-            return  downloadList;
-        }
-        return null;
+    // The local files of the distributor: date folder name -> (file name -> local file), see DownloadPlanner.createLocalIndex()
+    public Map<String, Map<String, File>> getLocalIndex(String newspaperDistributorID)
+    {
+        return localNewspaperIndex.get(newspaperDistributorID);
     }
 
     public void setCurrentNewspaperFolderDateForPlayback(String folderName)
@@ -444,121 +518,51 @@ public class FileManager {
 
     public boolean gotoPreviousPlayableFolder()
     {
-        // Always reset the current index for the file to be played = speechgen0001.mp3
+        // Always reset the current index for the file to be played = the first article
         resetCurrentIndex();
 
-        if(context == null || context.get() == null)
-            return false;
+        PlaybackCatalog catalog = playbackCatalog.get();
 
-        // First, check if we have other distributors inside the same date folder
-        List<NewspaperDistributor> distributorList = NewspaperDistributorDAO.getInstance().getAllNewspaperDistributorsSorted();
+        // First, check if we have other distributors inside the same date folder (they are in priority order)
+        String[] distributors = catalog.getDistributors(currentNewspaperFolderDateForPlayback);
         boolean foundCurrentDistributor = false;
-        for( int listLoop = 0; listLoop < distributorList.size(); listLoop++) {
-            NewspaperDistributor loopNewspaperDistributor = distributorList.get(listLoop);
-            if (loopNewspaperDistributor != null)
+        for (String distributorFolder : distributors)
+        {
+            if (foundCurrentDistributor)
             {
-                if (foundCurrentDistributor)
-                {
-                    // This means that we have found the current distributor before in this loop
-                    // And check if this distributor exist after in the list
-
-                    // Check if folder exist inside our current date folder
-                    String nextFolderPath = context.get().getFilesDir() + "/" + currentNewspaperFolderDateForPlayback + "/" + loopNewspaperDistributor.getFolderName();
-
-                    // Check if first file is in the list
-                    File dir = new File (nextFolderPath);
-                    if (dir.exists())
-                    {
-                        setDistributorFolderForPlayback(loopNewspaperDistributor.getFolderName());
+                // This means that we have found the current distributor before in this loop
+                setDistributorFolderForPlayback(distributorFolder);
 
-                        if (checkIfCurrentFileExist())
-                        {
-                            // YES, we found a folder with a new file speechgen0001.mp3
-                            return true;
-                        }
-                    }
-                }
-
-                if (loopNewspaperDistributor.getFolderName().compareTo(currentDistributorFolderForPlayback) == 0) {
-                    foundCurrentDistributor = true;
+                if (checkIfCurrentFileExist())
+                {
+                    // YES, we found a folder with a first article
+                    return true;
                 }
             }
+
+            if (distributorFolder.equals(currentDistributorFolderForPlayback))
+                foundCurrentDistributor = true;
         }
 
         // If we get here we know that there were no other distributors in the same date folder
 
-        // Create a list of all files in base folder, add them to a sorted list, sort them and get next date folder name!
-        File baseFolder = context.get().getFilesDir();
-        String[] stringDateFileNameList = baseFolder.list();
-        if (stringDateFileNameList!=null && stringDateFileNameList.length > 0)
-        {
-            List<String> sortedDateFileNameList = new ArrayList<String>();
-            for(int i=0; i < stringDateFileNameList.length; i++)
-            {
-                sortedDateFileNameList.add(stringDateFileNameList[i]);
-            }
-
-            Collections.sort(sortedDateFileNameList, new Comparator<String>() {
-                @Override
-                public int compare(String s1, String s2) {
-                    return s1.compareTo(s2);
-                }
-            });
-
-
-            // The list is now guaranteed to be sorted (oldest first, newest last)
-            // Get the current ID from date folder list
-            int currentFolderListID = 0;
-            for(int i=0; i<sortedDateFileNameList.size(); i++) {
-                if (sortedDateFileNameList.get(i).compareTo(currentNewspaperFolderDateForPlayback) == 0) {
-                    // Found current folder!!
-                    currentFolderListID = i;
-                    break;
-                }
-            }
+        // Go to the previous date folder, or back to the newest one after the oldest
+        String previousDate = catalog.getPreviousDate(currentNewspaperFolderDateForPlayback);
+        if (previousDate == null)
+            return false;
 
-            // Check if next folder is available
-            String nextFolderDateName = "";
-            currentFolderListID--;
+        // We now know which date folder to start playing from
+        // BUT, now we need to reset the distributor, we can't use currentDistributorFolderForPlayback because there might be a more prioritized distributor in this folder
+        for (String distributorFolder : catalog.getDistributors(previousDate))
+        {
+            // Yes, we have found a new folder that exists
+            setCurrentNewspaperFolderDateForPlayback(previousDate);
+            setDistributorFolderForPlayback(distributorFolder);
 
-            if(currentFolderListID >= 0) // If value is positive
-            {
-                // Get previous folder
-                nextFolderDateName = sortedDateFileNameList.get(currentFolderListID);
-            }
-            else
+            if (checkIfCurrentFileExist())
             {
-                // Go back to newest folder
-                nextFolderDateName = sortedDateFileNameList.get(sortedDateFileNameList.size()-1);
-            }
-
-            // We now know which date folder to start playing from
-            // BUT, now we need to reset the distributor, we can't use currentDistributorFolderForPlayback because there might be a more prioritized distributor in this folder
-
-            // Loop through sorted/prioritized distributor the list again
-            for( int listLoop = 0; listLoop < distributorList.size(); listLoop++) {
-
-                NewspaperDistributor loopNewspaperDistributorInNewDateFolder = distributorList.get(listLoop);
-                if (loopNewspaperDistributorInNewDateFolder != null) {
-
-                    // Try with this one in list
-                    String fullFolderPath = context.get().getFilesDir() + "/" + nextFolderDateName + "/" + loopNewspaperDistributorInNewDateFolder.getFolderName();
-
-                    // Check if first file is in the list
-                    File dir = new File (fullFolderPath);
-                    if (dir.exists())
-                    {
-                        // Yes, we have found a new folder that exists
-                        setCurrentNewspaperFolderDateForPlayback(nextFolderDateName);
-                        setDistributorFolderForPlayback(loopNewspaperDistributorInNewDateFolder.getFolderName());
-
-                        if (checkIfCurrentFileExist())
-                        {
-                            // YES, we found a folder with a new file speechgen0001.mp3
-                            return true;
-                        }
-                    }
-                }
+                // YES, we found a folder with a first article
+                return true;
             }
         }
         return false;
@@ -569,69 +573,47 @@ public class FileManager {
         // Always reset
         resetCurrentIndex();
 
-        if (context == null || context.get() == null)
+        // The distributors are in priority order
+        String[] distributors = playbackCatalog.get().getDistributors(getCurrentNewspaperFolderDateForPlayback());
+        if (distributors.length == 0)
+        {
+            // No newspapers in this date folder at all
             return false;
+        }
 
-        String currentDateSet = getCurrentNewspaperFolderDateForPlayback();
+        setDistributorFolderForPlayback(distributors[0]);
+        return true;
+    }
 
-        // First, check if we have other distributors inside the same date folder
-        List<NewspaperDistributor> distributorList = NewspaperDistributorDAO.getInstance().getAllNewspaperDistributorsSorted();
-        for( int listLoop = 0; listLoop < distributorList.size(); listLoop++) {
-            NewspaperDistributor loopNewspaperDistributor = distributorList.get(listLoop);
-            if (loopNewspaperDistributor != null)
-            {
-                String folderPath = context.get().getFilesDir() + "/" + currentDateSet + "/" + loopNewspaperDistributor.getFolderName();
-                File newspaperDistributorFolder = new File(folderPath);
-                if (newspaperDistributorFolder != null && newspaperDistributorFolder.exists())
-                {
-                    setDistributorFolderForPlayback(loopNewspaperDistributor.getFolderName());
-                    return true;
-                }
-            }
-        }
+    public synchronized boolean checkIfCurrentFileExist()
+    {
+        if (getArticleCursor().hasArticle())
+            return true;
 
-        // No newspapers in this date folder at all
-        return false;
+        // A file that is being downloaded right now can also be played
+        File currentFile = getCurrentMediaFile();
+        return currentFile != null && DownloadRegistry.getInstance().get(currentFile) != null;
     }
 
-    public boolean checkIfCurrentFileExist()
+    // Returns the current article file, it might not be complete (yet). Null if we don't have the article and it is not being downloaded
+    public synchronized File getCurrentMediaFile()
     {
-        if (context == null || context.get() == null)
-            return false;
+        File catalogFile = getArticleCursor().getFile();
+        if (catalogFile != null)
+            return catalogFile;
 
         // When going backwards, the current index can become negative
         if(getCurrentIndex() < 0)
-            return false;
-
-        // Get a string in format "speechgen0001.mp3"
-        String currentFileName = String.format("%s%04d.%s", preFileName, getCurrentIndex(), fileFormat); // here we have 9999 as max number of articles on one paper
-        String fullPath = context.get().getFilesDir() + "/" + currentNewspaperFolderDateForPlayback + "/" + currentDistributorFolderForPlayback + "/" + currentFileName;
+            return null;
 
-        if (fileExist(fullPath))
-            return true;
-        else
-            return false;
+        // The articles still downloading come after the ones we have, null if it is not an article we have or are downloading
+        return getArticleCursor().findDownload(getCurrentDownloads());
     }
 
-    public Uri getCurrentPlayableMediaFileUri()
+    // Null if the current article is not in the playback catalog (not downloaded, or still downloading)
+    public synchronized Uri getCurrentPlayableMediaFileUri()
     {
-        if (context == null || context.get() == null)
-            return null;
-
-        // EXTRA
-        //StringUtils.leftPad
-        //String formatting = String.format("%%s%%0%dd.%%s", numIndexNumbersAfterFile); // This gives us possibility to extend to more than 9999 articles in one paper
-        //String currentFileName = String.format(formatting, preFileName, getCurrentIndex(), fileFormat);
-
-        // Get a string in format "speechgen0001.mp3"
-        String currentFileName = String.format("%s%04d.%s", preFileName, getCurrentIndex(), fileFormat); // here we have 9999 as max number of articles on one paper
-
-        String fullPath = context.get().getFilesDir() + "/" + currentNewspaperFolderDateForPlayback + "/" + currentDistributorFolderForPlayback + "/" + currentFileName;
-
-        if (fileExist(fullPath))
-            return Uri.parse(fullPath);
-        else
-            return null;
+        return getArticleCursor().getUri();
     }
 
     public Uri getVoiceUri(int voiceID)
@@ -776,15 +758,26 @@ public class FileManager {
         String text = "Deleted " + String.valueOf(filesDeleted) + " files";
         LogDAO.getInstance().add(text);
 
+        // Nothing of the distributor can be played anymore
+        onLocalFilesChanged();
+
         // Refresh log
         updateUIThread(activity);
     }
 
     public void checkAndDeleteOldDownloadedFilesAndFolders(String newsPaperDistributorID)
     {
+        deleteOldNewspaperFolders(context.get().getFilesDir(), newsPaperDistributorID);
+
+        // Newspapers that never got their first articles, the server doesn't have them anymore either
+        deleteOldNewspaperFolders(getStagingFolder(), newsPaperDistributorID);
+
+        onLocalFilesChanged();
+    }
 
+    private void deleteOldNewspaperFolders(File newspaperDateFolder, String newsPaperDistributorID)
+    {
         // Get the list, this can be unsorted even if folder names are sorted
-        File newspaperDateFolder = context.get().getFilesDir(); // Base directory
 
         // Check if it actually exist ... and is a directory
         if (newspaperDateFolder.exists() && newspaperDateFolder.isDirectory()) {
@@ -808,53 +801,119 @@ public class FileManager {
                     // Only delete newspapers more than one week old
                     if (folderDate != null && folderDate.getTime() < oneWeekAgo.getTimeInMillis() )
                     {
-                        String fullFolderPath = context.get().getFilesDir()  + "/" + newspaperFolderName + "/" + newsPaperDistributorID;
+                        deleteNewspaperFolder(newspaperDateFolder, newspaperFolderName, newsPaperDistributorID, "old ");
+                    }
+                }
+            }
+        }
+    }
 
-                        // Get the files from directory
-                        File dir = new File (fullFolderPath);
+    // New newspapers are downloaded here and moved into the files folder when their first articles are complete, see DownloadEngine
+    public File getStagingFolder()
+    {
+        return context.get().getDir("staging", Context.MODE_PRIVATE);
+    }
 
-                        // Extra check because the newspaper distributor doesn't have to exist here with new folder system
-                        if (dir.exists())
-                        {
-                            File[] filesInDir = dir.listFiles(); // No sorting needed here
-                            if (filesInDir != null)
-                            {
-                                // Loop through all files
-                                for(File currentFile : filesInDir)
-                                {
-                                    // Delete the mp3 file in the folder
-                                    deleteFileOrFolder(currentFile, "/" + newspaperFolderName  + "/" + newsPaperDistributorID + "/" + currentFile.getName());
-                                }
-                            }
+    // The downloaded articles by content, see BlobStore
+    public BlobStore getBlobStore()
+    {
+        return new BlobStore(context.get().getDir("blobs", Context.MODE_PRIVATE));
+    }
 
-                            // The folder must be empty to delete it, that's why we needed to loop through all files and delete them
-                            // This is the folder with date, for example "20180328/01/"
-                            if (deleteFileOrFolder(dir, "/" + newspaperFolderName + "/" + newsPaperDistributorID))
-                                LogDAO.getInstance().add("Deleted old newspaper ID: " + newsPaperDistributorID + " from: " + newspaperFolderName);
-                        }
+    // Bytes we can download into the files folder, the reserve is already taken away
+    public long getAvailableBytes()
+    {
+        StatFs stat = new StatFs(context.get().getFilesDir().getPath());
+        return Math.max(0, stat.getAvailableBytes() - FREE_SPACE_RESERVE_BYTES);
+    }
 
-                        // Extra check to see if date folder is empty
-                        // Get the files from directory
-                        String path = context.get().getFilesDir()  + "/" + newspaperFolderName;
-                        File checkThisFolder = new File (path);
-                        if (checkThisFolder.exists())
-                        {
-                            File[] folders = checkThisFolder.listFiles(); // No sorting needed here
-                            if (folders != null && folders.length > 0)
-                            {
-                                // Do nothing
-                                // Other newspaper still exist in this date folder
-                            }
-                            else
-                            {
-                                // Delete the folder
-                                if (deleteFileOrFolder(checkThisFolder, "/" + newspaperFolderName))
-                                    LogDAO.getInstance().add("Deleted old empty newspaper: " + newspaperFolderName);
-                            }
-                        }
-                    }
+    // Make room for the planned files before downloading, a full disk would leave half written folders
+    // The oldest date folders of the distributor are deleted first, only folders that are older than all folders in the plan,
+    // and never the folder that is being played
+    // Returns the bytes we can download after deleting
+    public long makeRoomForDownload(String newsPaperDistributorID, List<DownloadJob> jobs)
+    {
+        if (context == null || context.get() == null) {
+            LogDAO.getInstance().add("FileManager::makeRoomForDownload() - context is null");
+            return Long.MAX_VALUE;
+        }
+
+        File baseFolder = context.get().getFilesDir();
+        long bytesNeeded = DownloadPlanner.getBytesNeeded(jobs, getStagingFolder(), newsPaperDistributorID);
+        long availableBytes = getAvailableBytes();
+        if (availableBytes >= bytesNeeded)
+            return availableBytes;
+
+        LogDAO.getInstance().add("Need " + (bytesNeeded / 1024) + " kB for the download but have " + (availableBytes / 1024) + " kB, deleting the oldest newspapers");
+
+        for (String newspaperFolderName : DownloadPlanner.selectFoldersToDelete(jobs, baseFolder, newsPaperDistributorID, currentNewspaperFolderDateForPlayback))
+        {
+            if (availableBytes >= bytesNeeded)
+                break;
+
+            deleteNewspaperFolder(baseFolder, newspaperFolderName, newsPaperDistributorID, "");
+            SyncManifestDAO.getInstance().deleteFolder(newsPaperDistributorID, newspaperFolderName); // Not complete anymore
+
+            // The sync goes on right away, so the index and the playback catalog are updated now instead of waiting for the watcher
+            localNewspaperIndex.removeFolder(newspaperFolderName, newsPaperDistributorID);
+            updatePlaybackCatalog(newspaperFolderName, newsPaperDistributorID);
+
+            // The articles are hard links to their blobs, the space is only free when the blobs are gone too
+            int deletedBlobs = getBlobStore().collectGarbage();
+            if (deletedBlobs > 0)
+                LogDAO.getInstance().add("Deleted " + deletedBlobs + " unused blobs");
+            availableBytes = getAvailableBytes();
+        }
+        return availableBytes;
+    }
+
+    // Delete the distributor folder in the date folder, for example "20180328/01/", and the date folder if no other newspaper is left in it
+    // The kind is only for the log, for example "old "
+    private void deleteNewspaperFolder(File baseFolder, String newspaperFolderName, String newsPaperDistributorID, String kind)
+    {
+        String fullFolderPath = baseFolder + "/" + newspaperFolderName + "/" + newsPaperDistributorID;
+
+        // Get the files from directory
+        File dir = new File (fullFolderPath);
+
+        // Extra check because the newspaper distributor doesn't have to exist here with new folder system
+        if (dir.exists())
+        {
+            File[] filesInDir = dir.listFiles(); // No sorting needed here
+            if (filesInDir != null)
+            {
+                // Loop through all files
+                for(File currentFile : filesInDir)
+                {
+                    // Delete the mp3 file in the folder
+                    deleteFileOrFolder(currentFile, "/" + newspaperFolderName  + "/" + newsPaperDistributorID + "/" + currentFile.getName());
                 }
             }
+
+            // The folder must be empty to delete it, that's why we needed to loop through all files and delete them
+            // This is the folder with date, for example "20180328/01/"
+            if (deleteFileOrFolder(dir, "/" + newspaperFolderName + "/" + newsPaperDistributorID))
+                LogDAO.getInstance().add("Deleted " + kind + "newspaper ID: " + newsPaperDistributorID + " from: " + newspaperFolderName);
+        }
+
+        // Extra check to see if date folder is empty
+        // Get the files from directory
+        String path = baseFolder + "/" + newspaperFolderName;
+        File checkThisFolder = new File (path);
+        if (checkThisFolder.exists())
+        {
+            File[] folders = checkThisFolder.listFiles(); // No sorting needed here
+            if (folders != null && folders.length > 0)
+            {
+                // Do nothing
+                // Other newspaper still exist in this date folder
+            }
+            else
+            {
+                // Delete the folder
+                if (deleteFileOrFolder(checkThisFolder, "/" + newspaperFolderName))
+                    LogDAO.getInstance().add("Deleted " + kind + "empty newspaper: " + newspaperFolderName);
+            }
         }
     }
 
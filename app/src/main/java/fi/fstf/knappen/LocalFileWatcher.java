@@ -0,0 +1,232 @@
+/*
+ * Copyright 2020 Finlands svenska taltidningsförening rf.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *     */
+package fi.fstf.knappen;
+
+import android.os.FileObserver;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// This is the LocalFileWatcher class that follows the changes in the files folder, so the local newspaper index is only read from scratch at startup
+// A FileObserver only sees one folder: there is one for the base folder, one for each date folder and one for each newspaper folder
+// For example /files/, /files/20190521/ and /files/20190521/01/
+public class LocalFileWatcher {
+
+    private static final int FOLDER_EVENTS = FileObserver.CREATE | FileObserver.DELETE | FileObserver.MOVED_FROM | FileObserver.MOVED_TO;
+
+    // The event queue was full and events were lost (IN_Q_OVERFLOW in inotify), FileObserver has no constant for it
+    private static final int Q_OVERFLOW = 0x00004000;
+
+    public interface Listener {
+        // Called on the FileObserver thread when files of the newspaper (or the whole newspaper) have been added or removed
+        void onNewspaperChanged(String dateFolder, String distributorFolder);
+
+        // Called on the FileObserver thread when changes were lost and the whole index has been read again
+        void onAllNewspapersChanged();
+    }
+
+    private final File mBaseFolder;
+    private final LocalNewspaperIndex mIndex;
+    private final Listener mListener;
+    private final Map<String, FileObserver> mObservers = new HashMap<>(); // Relative folder ("", "20190521", "20190521/01") -> observer, a FileObserver stops when it is garbage collected
+    private boolean mWatching = false;
+
+    public LocalFileWatcher(File baseFolder, LocalNewspaperIndex index, Listener listener)
+    {
+        this.mBaseFolder = baseFolder;
+        this.mIndex = index;
+        this.mListener = listener;
+    }
+
+    // Start watching and read the index from scratch, changes made after this are seen as events
+    public synchronized void start()
+    {
+        if (mWatching)
+            return;
+
+        watchAll();
+
+        // The events that come while reading are applied after it (they wait for the lock)
+        mIndex.rescan(mBaseFolder);
+        mWatching = true;
+    }
+
+    public synchronized void stop()
+    {
+        for (FileObserver observer : mObservers.values())
+            observer.stopWatching();
+        mObservers.clear();
+        mWatching = false;
+    }
+
+    public synchronized boolean isWatching()
+    {
+        return mWatching;
+    }
+
+    // Watch the base folder and all date and newspaper folders in it, observers of folders that are gone are stopped
+    private void watchAll()
+    {
+        List<String> folders = new ArrayList<>(mObservers.keySet());
+        for (String folder : folders)
+        {
+            if (!new File(mBaseFolder, folder).isDirectory())
+                mObservers.remove(folder).stopWatching();
+        }
+
+        watch("");
+        String[] dateFolders = mBaseFolder.list();
+        if (dateFolders != null)
+        {
+            for (String dateFolder : dateFolders)
+            {
+                if (new File(mBaseFolder, dateFolder).isDirectory())
+                    watchDateFolder(dateFolder);
+            }
+        }
+    }
+
+    // Returns the newspaper folders in the date folder
+    private List<String> watchDateFolder(String dateFolder)
+    {
+        watch(dateFolder);
+
+        List<String> distributorFolders = new ArrayList<>();
+        File[] folders = new File(mBaseFolder, dateFolder).listFiles();
+        if (folders != null)
+        {
+            for (File folder : folders)
+            {
+                if (folder.isDirectory())
+                {
+                    watch(dateFolder + "/" + folder.getName());
+                    distributorFolders.add(folder.getName());
+                }
+            }
+        }
+        return distributorFolders;
+    }
+
+    private void watch(final String relativeFolder)
+    {
+        if (mObservers.containsKey(relativeFolder))
+            return;
+
+        FileObserver observer = new FileObserver(new File(mBaseFolder, relativeFolder).getPath(), FOLDER_EVENTS) {
+            @Override
+            public void onEvent(int event, String path) {
+                // Lost events can be anywhere, everything is read again
+                if ((event & Q_OVERFLOW) != 0)
+                    onOverflow();
+
+                // The event can have extra bits (for example "is a folder")
+                else if (path != null)
+                    onFolderEvent(relativeFolder, event & FileObserver.ALL_EVENTS, path);
+            }
+        };
+        mObservers.put(relativeFolder, observer);
+        observer.startWatching();
+    }
+
+    // Stop watching the folder and all folders in it
+    private void unwatch(String relativeFolder)
+    {
+        List<String> folders = new ArrayList<>(mObservers.keySet());
+        for (String folder : folders)
+        {
+            if (folder.equals(relativeFolder) || folder.startsWith(relativeFolder + "/"))
+                mObservers.remove(folder).stopWatching();
+        }
+    }
+
+    // Some changes were never seen, a sync in progress could have added or removed any file
+    private synchronized void onOverflow()
+    {
+        if (!mWatching)
+            return;
+
+        LogDAO.getInstance().add("Missed changes to the local files, reading them again");
+        watchAll();
+        mIndex.rescan(mBaseFolder);
+        mListener.onAllNewspapersChanged();
+    }
+
+    private synchronized void onFolderEvent(String relativeFolder, int event, String name)
+    {
+        if (!mWatching)
+            return;
+
+        boolean added = (event & (FileObserver.CREATE | FileObserver.MOVED_TO)) != 0;
+        boolean removed = (event & (FileObserver.DELETE | FileObserver.MOVED_FROM)) != 0;
+        if (!added && !removed)
+            return;
+
+        if (relativeFolder.isEmpty())
+        {
+            // A date folder in the base folder, for example "20190521"
+            if (added && new File(mBaseFolder, name).isDirectory())
+            {
+                // The newspapers might have been moved in before we started watching the date folder
+                for (String distributorFolder : watchDateFolder(name))
+                {
+                    mIndex.addFolder(mBaseFolder, name, distributorFolder);
+                    mListener.onNewspaperChanged(name, distributorFolder);
+                }
+            }
+            else if (removed)
+            {
+                unwatch(name);
+                for (String distributorFolder : mIndex.removeDateFolder(name))
+                    mListener.onNewspaperChanged(name, distributorFolder);
+            }
+            return;
+        }
+
+        int separator = relativeFolder.indexOf('/');
+        if (separator < 0)
+        {
+            // A newspaper folder in a date folder, for example "20190521/01"
+            String newspaperFolder = relativeFolder + "/" + name;
+            if (added && new File(mBaseFolder, newspaperFolder).isDirectory())
+            {
+                watch(newspaperFolder);
+                mIndex.addFolder(mBaseFolder, relativeFolder, name);
+            }
+            else if (removed)
+            {
+                unwatch(newspaperFolder);
+                mIndex.removeFolder(relativeFolder, name);
+            }
+            else
+                return;
+            mListener.onNewspaperChanged(relativeFolder, name);
+        }
+        else
+        {
+            // An article in a newspaper folder, for example "20190521/01/speechgen0001.mp3"
+            String dateFolder = relativeFolder.substring(0, separator);
+            String distributorFolder = relativeFolder.substring(separator + 1);
+            if (added)
+                mIndex.addFile(mBaseFolder, dateFolder, distributorFolder, name);
+            else
+                mIndex.removeFile(dateFolder, distributorFolder, name);
+            mListener.onNewspaperChanged(dateFolder, distributorFolder);
+        }
+    }
+}
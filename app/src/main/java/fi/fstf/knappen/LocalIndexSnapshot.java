@@ -0,0 +1,234 @@
+/*
+ * Copyright 2020 Finlands svenska taltidningsförening rf.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *     */
+package fi.fstf.knappen;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+// This is the LocalIndexSnapshot class that saves the local newspaper index in a small binary file, so the app can play at once after a reboot
+// The file is memory mapped at startup and the index is filled from it without listing a single folder, the folders are checked later in the background
+//
+// The format (big endian):
+//   int magic, int format version, int number of newspapers
+//   for each newspaper: date folder, distributor folder, short number of files, and the files
+//   int CRC32 of everything before it
+// A folder name is a short byte count and UTF-8 bytes. A file name is stored as its number if it is "speechgen0001.mp3" style,
+// otherwise as minus the byte count followed by UTF-8 bytes
+public class LocalIndexSnapshot {
+
+    private static final int MAGIC = 0x4B4E4958; // "KNIX"
+    private static final int FORMAT_VERSION = 1;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // Most distributors name the articles "speechgen0001.mp3" and so on, those are stored as two bytes. Other names are stored as they are
+    private static final String ARTICLE_PREFIX = "speechgen";
+    private static final String ARTICLE_SUFFIX = ".mp3";
+    private static final String ARTICLE_FORMAT = ARTICLE_PREFIX + "%04d" + ARTICLE_SUFFIX;
+    private static final int ARTICLE_NAME_LENGTH = ARTICLE_PREFIX.length() + 4 + ARTICLE_SUFFIX.length();
+
+    // Writes a new file next to the old one and renames it over it, a reboot while writing leaves the old snapshot
+    public static void write(File file, LocalNewspaperIndex index) throws IOException
+    {
+        File tempFile = new File(file.getPath() + ".tmp");
+        CRC32 crc = new CRC32();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try
+        {
+            // The newspapers are counted first, the index can change while we write
+            List<String[]> newspapers = new ArrayList<>();
+            List<List<String>> files = new ArrayList<>();
+            for (String distributorFolder : index.getDistributors())
+            {
+                Map<String, Map<String, File>> distributorIndex = index.get(distributorFolder);
+                if (distributorIndex == null)
+                    continue;
+                for (Map.Entry<String, Map<String, File>> entry : distributorIndex.entrySet())
+                {
+                    newspapers.add(new String[] { entry.getKey(), distributorFolder });
+                    files.add(new ArrayList<>(entry.getValue().keySet()));
+                }
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(12);
+            buffer.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(newspapers.size());
+            writeBytes(out, crc, buffer.array());
+
+            for (int i = 0; i < newspapers.size(); i++)
+            {
+                writeString(out, crc, newspapers.get(i)[0]);
+                writeString(out, crc, newspapers.get(i)[1]);
+                List<String> fileNames = files.get(i);
+                writeShort(out, crc, Math.min(fileNames.size(), Short.MAX_VALUE));
+                for (int j = 0; j < fileNames.size() && j < Short.MAX_VALUE; j++)
+                {
+                    String fileName = fileNames.get(j);
+                    int articleNumber = getArticleNumber(fileName);
+                    if (articleNumber > 0)
+                        writeShort(out, crc, articleNumber);
+                    else
+                    {
+                        byte[] bytes = fileName.getBytes(UTF8);
+                        writeShort(out, crc, -bytes.length);
+                        writeBytes(out, crc, bytes);
+                    }
+                }
+            }
+            out.writeInt((int) crc.getValue());
+        }
+        finally
+        {
+            out.close();
+        }
+
+        if (!tempFile.renameTo(file))
+        {
+            tempFile.delete();
+            throw new IOException("Could not rename " + tempFile.getName());
+        }
+    }
+
+    // Fills the index from the snapshot, returns false if there is no snapshot or it is broken (then the index is not changed)
+    public static boolean read(File file, File baseFolder, LocalNewspaperIndex index)
+    {
+        if (!file.isFile())
+            return false;
+
+        List<String[]> newspapers = new ArrayList<>();
+        List<List<String>> files = new ArrayList<>();
+        try
+        {
+            FileInputStream inputStream = new FileInputStream(file);
+            MappedByteBuffer buffer;
+            try
+            {
+                FileChannel channel = inputStream.getChannel();
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            finally
+            {
+                inputStream.close(); // The mapping stays valid
+            }
+
+            if (buffer.limit() < 16)
+                return false;
+
+            // Check the whole file before trusting any of it
+            CRC32 crc = new CRC32();
+            ByteBuffer content = buffer.duplicate();
+            content.limit(buffer.limit() - 4);
+            byte[] chunk = new byte[8 * 1024];
+            while (content.hasRemaining())
+            {
+                int length = Math.min(chunk.length, content.remaining());
+                content.get(chunk, 0, length);
+                crc.update(chunk, 0, length);
+            }
+            if ((int) crc.getValue() != buffer.getInt(buffer.limit() - 4))
+                return false;
+
+            if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION)
+                return false;
+
+            int numNewspapers = buffer.getInt();
+            for (int i = 0; i < numNewspapers; i++)
+            {
+                newspapers.add(new String[] { readString(buffer), readString(buffer) });
+                int numFiles = buffer.getShort();
+                List<String> fileNames = new ArrayList<>(numFiles);
+                for (int j = 0; j < numFiles; j++)
+                {
+                    short value = buffer.getShort();
+                    if (value > 0)
+                        fileNames.add(String.format(Locale.US, ARTICLE_FORMAT, value));
+                    else
+                        fileNames.add(readBytes(buffer, -value));
+                }
+                files.add(fileNames);
+            }
+        }
+        catch (IOException | BufferUnderflowException | IllegalArgumentException e)
+        {
+            return false;
+        }
+
+        for (int i = 0; i < newspapers.size(); i++)
+            index.addFiles(baseFolder, newspapers.get(i)[0], newspapers.get(i)[1], files.get(i));
+        return true;
+    }
+
+    private static void writeString(DataOutputStream out, CRC32 crc, String value) throws IOException
+    {
+        byte[] bytes = value.getBytes(UTF8);
+        writeShort(out, crc, bytes.length);
+        writeBytes(out, crc, bytes);
+    }
+
+    private static void writeShort(DataOutputStream out, CRC32 crc, int value) throws IOException
+    {
+        writeBytes(out, crc, new byte[] { (byte) (value >> 8), (byte) value });
+    }
+
+    private static void writeBytes(DataOutputStream out, CRC32 crc, byte[] bytes) throws IOException
+    {
+        out.write(bytes);
+        crc.update(bytes, 0, bytes.length);
+    }
+
+    // Returns 1 for "speechgen0001.mp3", and 0 for names that are stored as they are ("speechgen1.mp3" would not come back the same)
+    private static int getArticleNumber(String fileName)
+    {
+        if (fileName.length() != ARTICLE_NAME_LENGTH || !fileName.startsWith(ARTICLE_PREFIX) || !fileName.endsWith(ARTICLE_SUFFIX))
+            return 0;
+
+        int articleNumber = 0;
+        for (int i = ARTICLE_PREFIX.length(); i < ARTICLE_PREFIX.length() + 4; i++)
+        {
+            char c = fileName.charAt(i);
+            if (c < '0' || c > '9')
+                return 0;
+            articleNumber = articleNumber * 10 + (c - '0');
+        }
+        return articleNumber;
+    }
+
+    private static String readString(ByteBuffer buffer)
+    {
+        return readBytes(buffer, buffer.getShort());
+    }
+
+    private static String readBytes(ByteBuffer buffer, int length)
+    {
+        if (length < 0)
+            throw new IllegalArgumentException("Negative length");
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF8);
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2020 Finlands svenska taltidningsförening rf.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *     */
+package fi.fstf.knappen;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// This is the LocalNewspaperIndex class that knows all local newspaper files of all distributors, used when planning what to download
+// It is read from disk once and then kept up to date one change at a time (see LocalFileWatcher)
+// For example "01" -> ("20190521" -> ("speechgen0001.mp3" -> /files/20190521/01/speechgen0001.mp3))
+public class LocalNewspaperIndex {
+
+    private final ConcurrentMap<String, ConcurrentMap<String, Map<String, File>>> mIndex = new ConcurrentHashMap<>();
+
+    // Read all newspapers of all distributors in the base folder
+    // The index is replaced one distributor at a time, it is never empty while reading (for example when checking the snapshot at startup)
+    public void rescan(File baseFolder)
+    {
+        Map<String, ConcurrentMap<String, Map<String, File>>> index = new HashMap<>();
+        String[] dateFolders = baseFolder.list();
+        if (dateFolders != null)
+        {
+            for (String dateFolder : dateFolders)
+            {
+                File[] distributorFolders = new File(baseFolder, dateFolder).listFiles();
+                if (distributorFolders == null)
+                    continue; // Not a folder
+
+                for (File distributorFolder : distributorFolders)
+                {
+                    File[] files = distributorFolder.listFiles();
+                    if (files == null)
+                        continue;
+
+                    Map<String, File> folderIndex = new ConcurrentHashMap<>(files.length * 2);
+                    for (File file : files)
+                    {
+                        if (file.isFile() && isIndexed(file.getName()))
+                            folderIndex.put(file.getName(), file);
+                    }
+
+                    ConcurrentMap<String, Map<String, File>> distributorIndex = index.get(distributorFolder.getName());
+                    if (distributorIndex == null)
+                    {
+                        distributorIndex = new ConcurrentHashMap<>();
+                        index.put(distributorFolder.getName(), distributorIndex);
+                    }
+                    distributorIndex.put(dateFolder, folderIndex);
+                }
+            }
+        }
+
+        mIndex.putAll(index);
+        mIndex.keySet().retainAll(index.keySet());
+    }
+
+    // Read all newspapers of one distributor again
+    public void rescan(File baseFolder, String distributorFolder)
+    {
+        ConcurrentMap<String, Map<String, File>> distributorIndex = new ConcurrentHashMap<>();
+        for (Map.Entry<String, Map<String, File>> entry : DownloadPlanner.createLocalIndex(baseFolder, distributorFolder).entrySet())
+            distributorIndex.put(entry.getKey(), new ConcurrentHashMap<>(entry.getValue()));
+        mIndex.put(distributorFolder, distributorIndex);
+    }
+
+    // Date folder name -> (file name -> local file) for the distributor, null if we have nothing of the distributor
+    // The maps can change while they are read, they are safe to read from any thread
+    public Map<String, Map<String, File>> get(String distributorFolder)
+    {
+        return mIndex.get(distributorFolder);
+    }
+
+    // A newspaper folder was created or moved into place, read the files it already has
+    public void addFolder(File baseFolder, String dateFolder, String distributorFolder)
+    {
+        File[] files = new File(baseFolder, dateFolder + "/" + distributorFolder).listFiles();
+        if (files == null)
+            return; // Not a folder
+
+        Map<String, File> folderIndex = getFolderIndex(dateFolder, distributorFolder);
+        for (File file : files)
+        {
+            if (file.isFile() && isIndexed(file.getName()))
+                folderIndex.put(file.getName(), file);
+        }
+    }
+
+    // Adds the files of a newspaper folder we know of without reading the disk, also an empty one
+    public void addFiles(File baseFolder, String dateFolder, String distributorFolder, List<String> fileNames)
+    {
+        Map<String, File> folderIndex = getFolderIndex(dateFolder, distributorFolder);
+        File folder = new File(baseFolder, dateFolder + "/" + distributorFolder);
+        for (String fileName : fileNames)
+        {
+            if (isIndexed(fileName))
+                folderIndex.put(fileName, new File(folder, fileName));
+        }
+    }
+
+    // The distributors we have files of
+    public Set<String> getDistributors()
+    {
+        return mIndex.keySet();
+    }
+
+    public void removeFolder(String dateFolder, String distributorFolder)
+    {
+        Map<String, Map<String, File>> distributorIndex = mIndex.get(distributorFolder);
+        if (distributorIndex != null)
+            distributorIndex.remove(dateFolder);
+    }
+
+    // Returns the distributors that had a newspaper in the date folder
+    public List<String> removeDateFolder(String dateFolder)
+    {
+        List<String> removed = new ArrayList<>();
+        for (Map.Entry<String, ConcurrentMap<String, Map<String, File>>> entry : mIndex.entrySet())
+        {
+            if (entry.getValue().remove(dateFolder) != null)
+                removed.add(entry.getKey());
+        }
+        return removed;
+    }
+
+    public void addFile(File baseFolder, String dateFolder, String distributorFolder, String fileName)
+    {
+        if (isIndexed(fileName))
+            getFolderIndex(dateFolder, distributorFolder).put(fileName, new File(baseFolder, dateFolder + "/" + distributorFolder + "/" + fileName));
+    }
+
+    public void removeFile(String dateFolder, String distributorFolder, String fileName)
+    {
+        Map<String, Map<String, File>> distributorIndex = mIndex.get(distributorFolder);
+        Map<String, File> folderIndex = (distributorIndex != null) ? distributorIndex.get(dateFolder) : null;
+        if (folderIndex != null)
+            folderIndex.remove(fileName);
+    }
+
+    private Map<String, File> getFolderIndex(String dateFolder, String distributorFolder)
+    {
+        ConcurrentMap<String, Map<String, File>> distributorIndex = mIndex.get(distributorFolder);
+        if (distributorIndex == null)
+        {
+            mIndex.putIfAbsent(distributorFolder, new ConcurrentHashMap<String, Map<String, File>>());
+            distributorIndex = mIndex.get(distributorFolder);
+        }
+
+        Map<String, File> folderIndex = distributorIndex.get(dateFolder);
+        if (folderIndex == null)
+        {
+            distributorIndex.putIfAbsent(dateFolder, new ConcurrentHashMap<String, File>());
+            folderIndex = distributorIndex.get(dateFolder);
+        }
+        return folderIndex;
+    }
+
+    // Same files as DownloadPlanner.createLocalIndex(), files that are still being downloaded are resumed by the download
+    private static boolean isIndexed(String fileName)
+    {
+        return !fileName.endsWith(DownloadEngine.PARTIAL_FILE_SUFFIX);
+    }
+}
@@ -63,6 +63,10 @@ public class LogDAO {
         // Always log to android system, use i = info as type (debug will be stripped out from release build)
         Log.i("FSTF", text);
 
+        // createDB() has not been called yet (this happens for example in the local unit tests)
+        if (dbHelper == null)
+            return null;
+
         if (dbHelper.getWritableDatabase() == null)
             return null;
 
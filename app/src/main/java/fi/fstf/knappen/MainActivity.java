@@ -63,8 +63,16 @@ public class MainActivity extends AppCompatActivity {
 
         // Create the Newspaper Distributor
         NewspaperDistributorDAO.getInstance().createDB(this);
+        SyncManifestDAO.getInstance().createDB(this);
+        SyncCoordinator.getInstance().setApplicationContext(this);
         FileManager.getInstance().setApplicationContext(getApplicationContext());
 
+        // The metered network settings are used by every download, the log shows what they are (see SettingsActivity)
+        DownloadPolicy.getInstance().setApplicationContext(getApplicationContext());
+        int meteredMaxKBytesPerSecond = DownloadPolicy.getInstance().getMeteredMaxKBytesPerSecond();
+        LogDAO.getInstance().add("On a metered network: first " + DownloadPolicy.getInstance().getMeteredArticleCount() + " articles, "
+                + (meteredMaxKBytesPerSecond > 0 ? "max " + meteredMaxKBytesPerSecond + " kB/s" : "no speed limit"));
+
         // Update to find newest date folder
         FileManager.getInstance().updateToNewestPlayableFolder();
 
@@ -72,13 +80,9 @@ public class MainActivity extends AppCompatActivity {
         List<NewspaperDistributor> sortedList = NewspaperDistributorDAO.getInstance().getAllNewspaperDistributorsSorted();
         if (sortedList.size() > 0)
         {
-            String highestPrioNewspaper = sortedList.get(0).getFolderName();
-
             // Get the most prioritized newspaper and set that one for playback
+            // The local file lists for the download are updated by each sync (DownloadFilesAsync), not here on the UI thread
             FileManager.getInstance().gotoFirstPlayableNewspaperInCurrentDate();
-
-            // This function will update local file lists (needed for file comparison before starting to download), will be run several times later also
-            FileManager.getInstance().updateLocalFileLists(highestPrioNewspaper);
         }
 
 
@@ -497,10 +501,8 @@ public class MainActivity extends AppCompatActivity {
 
                         // Start downloading and play the welcome message later when files has started to download
                         // The activity will be set here, if someone needs to follow the log and see it updating (after restart)
-                        // These files will not be downloaded at the same time, the ASYNC class is made to wait for the first to complete before starting with next one
-                        new DownloadFilesAsync(this, this, distributorFolderID, startPlayingWelcomeForThisNewspaper).execute();
-
-                        LogDAO.getInstance().add("Added " + listFromDB.get(listLoop).getNewspaperDistributorName() + " to download queue!");
+                        // The coordinator starts the most prioritized newspapers first, and a few of them at the same time
+                        SyncCoordinator.getInstance().requestSync(this, distributorFolderID, startPlayingWelcomeForThisNewspaper);
 
                         // Next newspaper, don't play welcome (only for the most prio one)
                         startPlayingWelcomeForThisNewspaper = false;
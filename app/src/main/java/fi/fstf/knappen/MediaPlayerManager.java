@@ -17,9 +17,11 @@ package fi.fstf.knappen;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.media.MediaDataSource;
 import android.media.MediaPlayer;
 import android.net.Uri;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 
@@ -87,6 +89,25 @@ public class MediaPlayerManager implements MediaPlayer.OnCompletionListener, Med
         // Get the uri to the current file that should be played
         Uri uri = FileManager.getInstance().getCurrentPlayableMediaFileUri();
 
+        if (uri == null)
+        {
+            // The article might be downloading right now (for example the first article of a new paper), play what we have so far
+            File currentFile = FileManager.getInstance().getCurrentMediaFile();
+            if (currentFile != null && DownloadRegistry.getInstance().isPlayable(currentFile))
+            {
+                MediaDataSource dataSource = ProgressiveMediaDataSource.open(currentFile);
+                if (dataSource != null)
+                {
+                    LogDAO.getInstance().add("Playing " + currentFile.getName() + " while downloading");
+                    voicePlaying = false;
+                    return play(dataSource);
+                }
+            }
+
+            // It might have been completed just now
+            uri = FileManager.getInstance().getCurrentPlayableMediaFileUri();
+        }
+
         if (uri == null)
         {
             LogDAO.getInstance().add("Did not find file to play!");
@@ -121,15 +142,7 @@ public class MediaPlayerManager implements MediaPlayer.OnCompletionListener, Med
 
         try {
             //mediaPlayer =  MediaPlayer.create(context, uri); // This will call prepare() automatically on success
-            mediaPlayer = new MediaPlayer();
-            mediaPlayer.setOnCompletionListener(this);
-            mediaPlayer.setOnPreparedListener(this);
-            mediaPlayer.setOnErrorListener(this);
-            // MediaPlayer: setScreenOnWhilePlaying(true) is ineffective without a SurfaceHolder
-            //mediaPlayer.setScreenOnWhilePlaying(true);
-
-            //SetPlaybackParamsToMedia(audio_speed, audio_pitch);
-
+            mediaPlayer = createMediaPlayer();
             mediaPlayer.setDataSource(context.get(), uri);
             mediaPlayer.prepareAsync(); // prepare async to not block main thread - will jump into onPrepared when completed prepared async
         }
@@ -144,6 +157,47 @@ public class MediaPlayerManager implements MediaPlayer.OnCompletionListener, Med
         return true;
     }
 
+    // Play from a data source that is not a complete file, MediaPlayer closes the data source when it is released
+    public boolean play(MediaDataSource dataSource)
+    {
+        // Stop if we are playing something
+        stop();
+
+        if(!isEnabled())
+            return false;
+
+        try {
+            mediaPlayer = createMediaPlayer();
+            mediaPlayer.setDataSource(dataSource);
+            mediaPlayer.prepareAsync(); // The data source blocks in the media player's own thread when it waits for more bytes
+        }
+        catch (IllegalArgumentException | IllegalStateException e)
+        {
+            LogDAO.getInstance().add(e.toString());
+            try {
+                dataSource.close();
+            } catch (IOException closeException) {
+                LogDAO.getInstance().add(closeException.toString());
+            }
+            return false;
+        }
+
+        return true;
+    }
+
+    private MediaPlayer createMediaPlayer()
+    {
+        MediaPlayer mp = new MediaPlayer();
+        mp.setOnCompletionListener(this);
+        mp.setOnPreparedListener(this);
+        mp.setOnErrorListener(this);
+        // MediaPlayer: setScreenOnWhilePlaying(true) is ineffective without a SurfaceHolder
+        //mp.setScreenOnWhilePlaying(true);
+
+        //SetPlaybackParamsToMedia(audio_speed, audio_pitch);
+        return mp;
+    }
+
     @Override
     public void onPrepared(MediaPlayer mp) {
 
@@ -61,6 +61,7 @@ public class NewspaperDistributorActivity extends AppCompatActivity implements O
         {
             // First time -> create the only newspaper we have for now
             NewspaperDistributorDAO.getInstance().add(0, 0, 0, AlarmManager.INTERVAL_DAY,"", "", "",21, 7, "Click to setup", "01", 1);
+            FileManager.getInstance().updatePlaybackCatalogOrder();
 
             // Get the list again
             listFromDB = NewspaperDistributorDAO.getInstance().getAllNewspaperDistributorsSorted();
@@ -151,6 +152,7 @@ public class NewspaperDistributorActivity extends AppCompatActivity implements O
 
                 // User chose the "add" action, add a new newspaperdistributor
                 NewspaperDistributorDAO.getInstance().add(0, 0, 0, AlarmManager.INTERVAL_DAY,"", "", "",21, 7, "Click to setup", folderStringID, nextID);
+                FileManager.getInstance().updatePlaybackCatalogOrder();
 
                 // Refresh list
                 reCreateListAdapter();
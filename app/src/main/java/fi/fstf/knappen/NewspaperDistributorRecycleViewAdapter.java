@@ -193,6 +193,9 @@ public class NewspaperDistributorRecycleViewAdapter extends RecyclerView.Adapter
         NewspaperDistributorDAO.getInstance().updateDistributorSorting(fromDist.getFolderName(), fromDist.getSortID());
         NewspaperDistributorDAO.getInstance().updateDistributorSorting(toDist.getFolderName(), toDist.getSortID());
 
+        // Changing newspaper plays the distributors in the new order
+        FileManager.getInstance().updatePlaybackCatalogOrder();
+
         //updateList();
 
         return true;
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2020 Finlands svenska taltidningsförening rf.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *     */
+package fi.fstf.knappen;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// This is the PlaybackCatalog class that knows which newspapers and articles we have locally, so that playback never has to look at the disk
+// Dates -> distributors (in priority order) -> articles, where the first article in natural order (see ArticleNames) is at index 1
+// A catalog never changes after it has been built, FileManager swaps in a new one after a sync or a delete
+public class PlaybackCatalog {
+
+    public static final PlaybackCatalog EMPTY = new PlaybackCatalog(0, Collections.<String>emptyList(), new String[0], new HashMap<String, Map<String, File[]>>(), new HashMap<String, String[]>());
+
+    private final long mVersion;
+    private final List<String> mDistributorOrder;               // Distributor folders, most prioritized first
+    private final String[] mDates;                              // Date folders with at least one newspaper, oldest first
+    private final Map<String, Map<String, File[]>> mArticles;   // Date folder -> (distributor folder -> articles)
+    private final Map<String, String[]> mDistributors;          // Date folder -> distributor folders in priority order
+
+    private PlaybackCatalog(long version, List<String> distributorOrder, String[] dates, Map<String, Map<String, File[]>> articles, Map<String, String[]> distributors)
+    {
+        this.mVersion = version;
+        this.mDistributorOrder = distributorOrder;
+        this.mDates = dates;
+        this.mArticles = articles;
+        this.mDistributors = distributors;
+    }
+
+    // Reads the newspapers of the given distributors in the base folder, for example /files/20190521/01/speechgen0001.mp3
+    // Only the folders are listed, the articles are known by name and extension (no stat() for each file)
+    public static PlaybackCatalog build(File baseFolder, List<String> distributorOrder, long version)
+    {
+        Map<String, Map<String, File[]>> articles = new HashMap<>();
+        String[] dateFolders = baseFolder.list();
+        if (dateFolders != null)
+        {
+            for (String dateFolder : dateFolders)
+            {
+                for (String distributorFolder : distributorOrder)
+                    putNewspaper(articles, baseFolder, dateFolder, distributorFolder);
+            }
+        }
+        return create(version, new ArrayList<>(distributorOrder), articles);
+    }
+
+    // Creates the catalog from the local index, without reading the disk (for example from the snapshot at startup)
+    public static PlaybackCatalog build(LocalNewspaperIndex index, List<String> distributorOrder, long version)
+    {
+        Map<String, Map<String, File[]>> articles = new HashMap<>();
+        for (String distributorFolder : distributorOrder)
+        {
+            Map<String, Map<String, File>> distributorIndex = index.get(distributorFolder);
+            if (distributorIndex == null)
+                continue;
+
+            for (Map.Entry<String, Map<String, File>> entry : distributorIndex.entrySet())
+                putNewspaper(articles, entry.getKey(), distributorFolder, entry.getValue());
+        }
+        return create(version, new ArrayList<>(distributorOrder), articles);
+    }
+
+    // Returns a new catalog where one newspaper has been read again, for example when a newspaper folder was moved into place while downloading
+    public PlaybackCatalog withNewspaper(File baseFolder, String dateFolder, String distributorFolder, long version)
+    {
+        Map<String, Map<String, File[]>> articles = new HashMap<>(mArticles);
+        Map<String, File[]> newspapers = articles.get(dateFolder);
+        articles.put(dateFolder, (newspapers != null) ? new HashMap<>(newspapers) : new HashMap<String, File[]>());
+        articles.get(dateFolder).remove(distributorFolder);
+
+        if (mDistributorOrder.contains(distributorFolder))
+            putNewspaper(articles, baseFolder, dateFolder, distributorFolder);
+        if (articles.get(dateFolder).isEmpty())
+            articles.remove(dateFolder);
+        return create(version, mDistributorOrder, articles);
+    }
+
+    // Returns a new catalog with the distributors in a new priority order, the articles are not read again
+    public PlaybackCatalog withDistributorOrder(List<String> distributorOrder, long version)
+    {
+        return create(version, new ArrayList<>(distributorOrder), mArticles);
+    }
+
+    private static PlaybackCatalog create(long version, List<String> distributorOrder, Map<String, Map<String, File[]>> articles)
+    {
+        String[] dates = articles.keySet().toArray(new String[articles.size()]);
+        Arrays.sort(dates); // The folder names are dates (yyyyMMdd), oldest first
+
+        Map<String, String[]> distributors = new HashMap<>();
+        for (String dateFolder : dates)
+        {
+            List<String> found = new ArrayList<>();
+            for (String distributorFolder : distributorOrder)
+            {
+                if (articles.get(dateFolder).containsKey(distributorFolder))
+                    found.add(distributorFolder);
+            }
+            distributors.put(dateFolder, found.toArray(new String[found.size()]));
+        }
+        return new PlaybackCatalog(version, distributorOrder, dates, articles, distributors);
+    }
+
+    // Adds the newspaper if it has at least one article
+    private static void putNewspaper(Map<String, Map<String, File[]>> articles, File baseFolder, String dateFolder, String distributorFolder)
+    {
+        File folder = new File(baseFolder, dateFolder + "/" + distributorFolder);
+        String[] fileNames = folder.list();
+        if (fileNames == null)
+            return;
+
+        List<String> articleNames = getArticleNames(Arrays.asList(fileNames));
+        if (articleNames.isEmpty())
+            return;
+
+        File[] newspaper = new File[articleNames.size() + 1];
+        for (int i = 0; i < articleNames.size(); i++)
+            newspaper[i + 1] = new File(folder, articleNames.get(i));
+        putNewspaper(articles, dateFolder, distributorFolder, newspaper);
+    }
+
+    // Same as above, but the files come from the local index (file name -> local file)
+    private static void putNewspaper(Map<String, Map<String, File[]>> articles, String dateFolder, String distributorFolder, Map<String, File> files)
+    {
+        List<String> articleNames = getArticleNames(files.keySet());
+        if (articleNames.isEmpty())
+            return;
+
+        File[] newspaper = new File[articleNames.size() + 1];
+        for (int i = 0; i < articleNames.size(); i++)
+            newspaper[i + 1] = files.get(articleNames.get(i));
+        putNewspaper(articles, dateFolder, distributorFolder, newspaper);
+    }
+
+    private static void putNewspaper(Map<String, Map<String, File[]>> articles, String dateFolder, String distributorFolder, File[] newspaper)
+    {
+        Map<String, File[]> newspapers = articles.get(dateFolder);
+        if (newspapers == null)
+        {
+            newspapers = new HashMap<>();
+            articles.put(dateFolder, newspapers);
+        }
+        newspapers.put(distributorFolder, newspaper);
+    }
+
+    // The articles among the file names, in the order they are played (see ArticleNames)
+    private static List<String> getArticleNames(Collection<String> fileNames)
+    {
+        List<String> articleNames = new ArrayList<>(fileNames.size());
+        for (String fileName : fileNames)
+        {
+            if (ArticleNames.isArticle(fileName))
+                articleNames.add(fileName);
+        }
+        Collections.sort(articleNames, ArticleNames.NATURAL_ORDER);
+        return articleNames;
+    }
+
+    // Grows by one each time FileManager swaps in a new catalog
+    public long getVersion()
+    {
+        return mVersion;
+    }
+
+    public List<String> getDistributorOrder()
+    {
+        return mDistributorOrder;
+    }
+
+    public boolean isEmpty()
+    {
+        return mDates.length == 0;
+    }
+
+    // Null if there are no newspapers
+    public String getNewestDate()
+    {
+        return (mDates.length > 0) ? mDates[mDates.length - 1] : null;
+    }
+
+    // The date before the given one, the newest date after the oldest one (or if the date is not in the catalog). Null if there are no newspapers
+    public String getPreviousDate(String dateFolder)
+    {
+        if (mDates.length == 0)
+            return null;
+
+        int position = Arrays.binarySearch(mDates, dateFolder);
+        if (position > 0)
+            return mDates[position - 1];
+        return mDates[mDates.length - 1];
+    }
+
+    // The distributors that have a newspaper on the date, most prioritized first
+    public String[] getDistributors(String dateFolder)
+    {
+        String[] distributors = mDistributors.get(dateFolder);
+        return (distributors != null) ? distributors : new String[0];
+    }
+
+    public boolean hasNewspaper(String dateFolder, String distributorFolder)
+    {
+        Map<String, File[]> newspapers = mArticles.get(dateFolder);
+        return newspapers != null && newspapers.containsKey(distributorFolder);
+    }
+
+    // The articles in the order they are played, article n at index n (index 0 is not used). Null if we don't have the newspaper
+    // The array is shared, it must not be changed. It stays the same object until the newspaper changes on disk
+    public File[] getNewspaper(String dateFolder, String distributorFolder)
+    {
+        Map<String, File[]> newspapers = mArticles.get(dateFolder);
+        return (newspapers != null) ? newspapers.get(distributorFolder) : null;
+    }
+
+    // Null if we don't have the article
+    public File getArticle(String dateFolder, String distributorFolder, int articleNumber)
+    {
+        Map<String, File[]> newspapers = mArticles.get(dateFolder);
+        File[] newspaper = (newspapers != null) ? newspapers.get(distributorFolder) : null;
+        if (newspaper == null || articleNumber < 1 || articleNumber >= newspaper.length)
+            return null;
+        return newspaper[articleNumber];
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2020 Finlands svenska taltidningsförening rf.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *     */
+package fi.fstf.knappen;
+
+import android.media.MediaDataSource;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+
+// This is the ProgressiveMediaDataSource class that lets MediaPlayer play an article while it is being downloaded
+// It reads the part file, a read past the downloaded bytes blocks until the download has caught up
+// The part file stays open when it is renamed to the real name, so the player can play it to the end
+public class ProgressiveMediaDataSource extends MediaDataSource {
+
+    // If no new bytes arrive in this time the player gets an error, the engine has then most likely lost the connection
+    private static final long STALL_TIMEOUT_MILLIS = 60 * 1000;
+
+    private final ActiveDownload mDownload;
+    private final RandomAccessFile mFile;
+
+    public ProgressiveMediaDataSource(ActiveDownload download) throws FileNotFoundException
+    {
+        this.mDownload = download;
+        this.mFile = new RandomAccessFile(download.getPartFile(), "r");
+    }
+
+    // Returns null if the file is not being downloaded (or was completed just now)
+    public static ProgressiveMediaDataSource open(File localFile)
+    {
+        ActiveDownload download = DownloadRegistry.getInstance().get(localFile);
+        if (download == null)
+            return null;
+        try
+        {
+            return new ProgressiveMediaDataSource(download);
+        }
+        catch (FileNotFoundException e)
+        {
+            return null;
+        }
+    }
+
+    // Called by MediaPlayer from its own thread, so it is ok to block here
+    @Override
+    public synchronized int readAt(long position, byte[] buffer, int offset, int size) throws IOException
+    {
+        if (size <= 0)
+            return 0;
+
+        long bytesOnDisk;
+        try
+        {
+            bytesOnDisk = mDownload.awaitBytes(position + size, STALL_TIMEOUT_MILLIS);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + mDownload.getLocalFile().getName());
+        }
+
+        if (position >= bytesOnDisk)
+        {
+            if (mDownload.isFinished() && mDownload.isSucceeded())
+                return -1; // End of file
+            if (mDownload.isFinished())
+                throw new IOException("Download failed: " + mDownload.getLocalFile().getName());
+            throw new IOException("Download stalled at byte " + bytesOnDisk + ": " + mDownload.getLocalFile().getName());
+        }
+
+        // Give what we have, the player asks again for the rest
+        mFile.seek(position);
+        return mFile.read(buffer, offset, (int) Math.min(size, bytesOnDisk - position));
+    }
+
+    // The server size, MediaPlayer needs it for seeking and duration (-1 means unknown and is also accepted)
+    @Override
+    public long getSize()
+    {
+        return mDownload.getSize();
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        mFile.close();
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2020 Finlands svenska taltidningsförening rf.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *     */
+package fi.fstf.knappen;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+
+import java.lang.ref.WeakReference;
+
+// This is the RetryScheduler class that starts a failed download again, without waiting for the next daily alarm
+// The number of failed syncs is saved for each distributor, so the waiting time keeps growing even if the app is restarted
+// The files themselves continue from where they stopped (part files and the sync manifest), a retry only downloads what is missing
+public class RetryScheduler {
+
+    // 2, 4, 8 ... minutes, at most one hour between tries and at most 10 tries after a failed sync
+    private static final Backoff SYNC_BACKOFF = new Backoff(2 * 60 * 1000, 60 * 60 * 1000, 10);
+
+    // A failure this long after the previous one is a new problem, the tries start from the beginning
+    private static final long RESET_AFTER_MILLIS = 12 * 60 * 60 * 1000;
+
+    // Must not be the same as the recurring alarm, else the retry would replace it (extras don't make intents different)
+    public static final String ACTION_RETRY_DOWNLOAD = "fi.fstf.knappen.ACTION_RETRY_DOWNLOAD";
+
+    private WeakReference<Context> mContext = null;
+
+    // Make it a static class (only one instance) | same as singleton
+    private static RetryScheduler instance = new RetryScheduler();
+    public static RetryScheduler getInstance() {
+        return instance;
+    }
+
+    // This must be set before accessing context, without it no retries are scheduled
+    public void setApplicationContext(Context cx) {
+        mContext = new WeakReference<>(cx.getApplicationContext());
+    }
+
+    // Called when a sync did not get everything, schedules the next try
+    public synchronized void onSyncFailed(String distributorFolderID)
+    {
+        SharedPreferences sharedPref = getSharedPreferences();
+        if (sharedPref == null)
+            return;
+
+        long now = System.currentTimeMillis();
+        int failedAttempts = recordFailure(sharedPref, getAttemptsKey(distributorFolderID), getLastFailureKey(distributorFolderID), now);
+        long retryMillis = getRetryTimeMillis(failedAttempts, now);
+        if (retryMillis == 0)
+        {
+            LogDAO.getInstance().add("Download of " + distributorFolderID + " failed " + failedAttempts + " times, waiting for the next alarm");
+            return;
+        }
+
+        AlarmManager alarms = (AlarmManager) mContext.get().getSystemService(Context.ALARM_SERVICE);
+        if (alarms == null)
+        {
+            LogDAO.getInstance().add("Alarm Manager service is null");
+            return;
+        }
+
+        // Allowed while idle, the phone is often in doze at night when the newspapers are published
+        alarms.setExactAndAllowWhileIdle(AlarmManager.RTC_WAKEUP, retryMillis, createRetryIntent(distributorFolderID));
+        LogDAO.getInstance().add(String.format("Download of %s failed, trying again in %d s (try %d)", distributorFolderID, (retryMillis - now) / 1000, failedAttempts + 1));
+    }
+
+    // Called when a sync got everything, the tries start from the beginning next time
+    public synchronized void onSyncSucceeded(String distributorFolderID)
+    {
+        SharedPreferences sharedPref = getSharedPreferences();
+        if (sharedPref == null || !clearFailures(sharedPref, getAttemptsKey(distributorFolderID), getLastFailureKey(distributorFolderID)))
+            return;
+
+        AlarmManager alarms = (AlarmManager) mContext.get().getSystemService(Context.ALARM_SERVICE);
+        if (alarms != null)
+            alarms.cancel(createRetryIntent(distributorFolderID));
+    }
+
+    // Saves one more failed sync, returns the number of failed syncs in a row
+    // A failure long after the previous one starts counting from the beginning
+    static int recordFailure(SharedPreferences sharedPref, String attemptsKey, String lastFailureKey, long nowMillis)
+    {
+        int failedAttempts = sharedPref.getInt(attemptsKey, 0);
+        if (nowMillis - sharedPref.getLong(lastFailureKey, 0) > RESET_AFTER_MILLIS)
+            failedAttempts = 0;
+        failedAttempts++;
+
+        SharedPreferences.Editor editor = sharedPref.edit();
+        editor.putInt(attemptsKey, failedAttempts);
+        editor.putLong(lastFailureKey, nowMillis);
+        editor.apply();
+        return failedAttempts;
+    }
+
+    // Forgets the failed syncs, returns false if there were none
+    static boolean clearFailures(SharedPreferences sharedPref, String attemptsKey, String lastFailureKey)
+    {
+        if (sharedPref.getInt(attemptsKey, 0) == 0)
+            return false;
+
+        SharedPreferences.Editor editor = sharedPref.edit();
+        editor.remove(attemptsKey);
+        editor.remove(lastFailureKey);
+        editor.apply();
+        return true;
+    }
+
+    // When the retry alarm goes off after the failed syncs in a row, 0 if there are no tries left (the next daily alarm starts the download)
+    static long getRetryTimeMillis(int failedAttempts, long nowMillis)
+    {
+        if (!SYNC_BACKOFF.canRetry(failedAttempts))
+            return 0;
+        return nowMillis + SYNC_BACKOFF.getDelayMillis(failedAttempts);
+    }
+
+    // Number of failed syncs in a row
+    public int getFailedAttempts(String distributorFolderID)
+    {
+        SharedPreferences sharedPref = getSharedPreferences();
+        if (sharedPref == null)
+            return 0;
+        return sharedPref.getInt(getAttemptsKey(distributorFolderID), 0);
+    }
+
+    private PendingIntent createRetryIntent(String distributorFolderID)
+    {
+        // AlarmReceiver starts the download the same way as for the daily alarm
+        Intent downloader = new Intent(mContext.get(), AlarmReceiver.class);
+        downloader.setAction(ACTION_RETRY_DOWNLOAD);
+        downloader.putExtra("NEWSPAPER_DISTRIBUTOR_FOLDER_ID", distributorFolderID);
+
+        // One retry alarm for each distributor, the request code is the distributor ID like for the daily alarm
+        int requestCode = 0;
+        try
+        {
+            requestCode = Integer.valueOf(distributorFolderID);
+        }
+        catch (NumberFormatException e)
+        {
+            LogDAO.getInstance().add("RetryScheduler::createRetryIntent() - Could not convert id to integer!");
+        }
+        return PendingIntent.getBroadcast(mContext.get(), requestCode, downloader, PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    private String getAttemptsKey(String distributorFolderID)
+    {
+        return mContext.get().getString(R.string.sp_retry_attempts) + "_" + distributorFolderID;
+    }
+
+    private String getLastFailureKey(String distributorFolderID)
+    {
+        return mContext.get().getString(R.string.sp_retry_last_failure) + "_" + distributorFolderID;
+    }
+
+    private SharedPreferences getSharedPreferences()
+    {
+        if (mContext == null || mContext.get() == null)
+            return null;
+        return mContext.get().getSharedPreferences(mContext.get().getString(R.string.sp_shared_preferences), Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2020 Finlands svenska taltidningsförening rf.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *     */
+package fi.fstf.knappen;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// This is the ServerList class that lists the date folders and the newspaper files of one distributor on the ftp server
+// Only the folders that can have something new are listed (see DownloadPlanner.selectFoldersToList), the others get null as file list
+// It has no Android parts, DownloadFilesAsync and the local unit tests list the server the same way
+public class ServerList {
+
+    // Listing one folder again in the same session, a short break is often enough
+    private static final Backoff FOLDER_LIST_BACKOFF = new Backoff(1000, 4 * 1000, 3);
+
+    private final FTPFile[] mFolders;                            // For example: folder 0 = 20180327, folder 1 = 20180328 ...
+    private final FTPFile[][] mFiles;                            // FTPFile[0][3] ... fourth mp3 file in folder 0, null for folders that were not listed
+    private final Map<String, SyncManifestItem> mListedFolders;  // The folders we listed, saved to the sync manifest when downloaded
+    private final List<String> mRemovedFolders;                  // In the sync manifest but not on the server anymore
+    private final boolean mIncomplete;                           // A folder could not be listed, the sync must be tried again
+
+    private ServerList(FTPFile[] folders, FTPFile[][] files, Map<String, SyncManifestItem> listedFolders, List<String> removedFolders, boolean incomplete)
+    {
+        this.mFolders = folders;
+        this.mFiles = files;
+        this.mListedFolders = listedFolders;
+        this.mRemovedFolders = removedFolders;
+        this.mIncomplete = incomplete;
+    }
+
+    // List the server, manifest is what the folders looked like when we downloaded them last time
+    // Returns null if the folder list could not be read, throws if the session is broken
+    public static ServerList list(FTPClient ftp, Map<String, SyncManifestItem> manifest, Map<String, Map<String, File>> localIndex, boolean deepVerify) throws IOException
+    {
+        // Get the folder list from ftp (for example 20180328, 20180329 etc), null is the current (home) folder
+        FTPFile[] folders = FTPListing.listFolders(ftp, null);
+        if (folders == null)
+            return null;
+
+        // Only the newest folders are listed, down to the first one we already have, older folders are checked by the deep verification
+        List<String> foldersToList = DownloadPlanner.selectFoldersToList(folders, manifest, localIndex, deepVerify);
+        if (deepVerify)
+            LogDAO.getInstance().add("Verifying all ftp folders");
+
+        FTPFile[][] files = new FTPFile[folders.length][];
+        Map<String, SyncManifestItem> listedFolders = new HashMap<>();
+        Map<String, SyncManifestItem> removedFolders = new HashMap<>(manifest);
+        boolean incomplete = false;
+        for (int folderID = 0; folderID < folders.length; folderID++)
+        {
+            String folderName = folders[folderID].getName();
+
+            // The file list stays null for skipped folders, which means nothing will be downloaded from the folder
+            removedFolders.remove(folderName);
+            if (!foldersToList.contains(folderName))
+                continue;
+
+            LogDAO.getInstance().add("Parsing files in ftp folder: " + folderName);
+
+            // Get the mp3 files in the folder, other files are skipped while the listing is parsed
+            // No need to change directory first, and no sorting needed here, the plan matches the files by name
+            files[folderID] = listNewspaperFiles(ftp, folderName);
+            if (files[folderID] == null)
+            {
+                incomplete = true;
+                continue;
+            }
+
+            // Saved to the manifest after downloading, the fingerprint is null if the server doesn't give folder times
+            SyncManifestItem listedFolder = new SyncManifestItem();
+            listedFolder.setDateFolder(folderName);
+            listedFolder.setFingerprint(SyncManifestDAO.createFingerprint(folders[folderID]));
+            listedFolder.setFileCount(files[folderID].length);
+            listedFolders.put(folderName, listedFolder);
+        }
+
+        int skippedFolders = folders.length - foldersToList.size();
+        if (skippedFolders > 0)
+            LogDAO.getInstance().add("Skipped " + skippedFolders + " older ftp folders that are already downloaded");
+
+        return new ServerList(folders, files, listedFolders, new ArrayList<>(removedFolders.keySet()), incomplete);
+    }
+
+    // List one folder, a negative reply is tried again a few times
+    private static FTPFile[] listNewspaperFiles(FTPClient ftp, String folderName) throws IOException
+    {
+        int failedAttempts = 0;
+        while (true)
+        {
+            FTPFile[] files = FTPListing.listNewspaperFiles(ftp, "/" + folderName);
+            if (files != null)
+                return files;
+
+            failedAttempts++;
+            LogDAO.getInstance().add("Listing " + folderName + " failed. Reply: " + ftp.getReplyString());
+            if (!FOLDER_LIST_BACKOFF.canRetry(failedAttempts) || !FOLDER_LIST_BACKOFF.sleep(failedAttempts))
+                return null;
+        }
+    }
+
+    public FTPFile[] getFolders()
+    {
+        return mFolders;
+    }
+
+    public FTPFile[][] getFiles()
+    {
+        return mFiles;
+    }
+
+    public boolean isIncomplete()
+    {
+        return mIncomplete;
+    }
+
+    // The listed folders that can be saved to the sync manifest, the ones with a failed (or deferred) file are left out
+    public List<SyncManifestItem> getCompleteFolders(Set<String> failedFolders)
+    {
+        List<SyncManifestItem> completeFolders = new ArrayList<>();
+        for (SyncManifestItem folder : mListedFolders.values())
+        {
+            if (!failedFolders.contains(folder.getDateFolder()))
+                completeFolders.add(folder);
+        }
+        return completeFolders;
+    }
+
+    public Collection<SyncManifestItem> getListedFolders()
+    {
+        return mListedFolders.values();
+    }
+
+    public List<String> getRemovedFolders()
+    {
+        return mRemovedFolders;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2020 Finlands svenska taltidningsförening rf.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *     */
+package fi.fstf.knappen;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPFile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+// This is the ServerManifest class that reads the optional manifest file in the home folder of the ftp server
+// The manifest has one line for each file, "folder,file,size" or "folder,file,size,md5", for example "20190521,speechgen0001.mp3,123456,5d41402abc4b2a76b9719d911017c592"
+// With a manifest the whole server is known after one download, no folders need to be listed
+public class ServerManifest {
+
+    public static final String MANIFEST_FILE_NAME = "manifest.csv";
+
+    private final FTPFile[] mFolders;                            // Same format as the folder listing, sorted by name
+    private final FTPFile[][] mFiles;                            // The files for each folder in mFolders
+    private final Map<String, Map<String, String>> mChecksums;   // Date folder -> (file name -> md5), only files that have one
+
+    private ServerManifest(FTPFile[] folders, FTPFile[][] files, Map<String, Map<String, String>> checksums)
+    {
+        this.mFolders = folders;
+        this.mFiles = files;
+        this.mChecksums = checksums;
+    }
+
+    // Download the manifest from the current folder, returns null if the server has no manifest (or nothing in it)
+    public static ServerManifest read(FTPClient ftp) throws IOException
+    {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        if (!ftp.retrieveFile(MANIFEST_FILE_NAME, outputStream))
+            return null;
+        return parse(outputStream.toString("UTF-8"));
+    }
+
+    // Returns null if there are no valid lines, then the server is listed the normal way
+    public static ServerManifest parse(String text)
+    {
+        Map<String, List<FTPFile>> filesByFolder = new TreeMap<>();
+        Map<String, Map<String, String>> checksums = new HashMap<>();
+
+        for (String line : text.split("\n"))
+        {
+            // Empty lines and comments (for example a header line "# folder,file,size,md5") are skipped
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+
+            String[] parts = line.split(",");
+            if (parts.length < 3)
+                continue;
+
+            String folderName = parts[0].trim();
+            FTPFile file = new FTPFile();
+            file.setName(parts[1].trim());
+            file.setType(FTPFile.FILE_TYPE);
+            try
+            {
+                file.setSize(Long.parseLong(parts[2].trim()));
+            }
+            catch (NumberFormatException e)
+            {
+                continue;
+            }
+
+            // Same files as a listing would give, and no paths (the file is always in the date folder)
+            if (folderName.isEmpty() || folderName.contains("/") || file.getName().contains("/") || !FTPListing.NEWSPAPER_FILE_FILTER.accept(file))
+                continue;
+
+            List<FTPFile> files = filesByFolder.get(folderName);
+            if (files == null)
+            {
+                files = new ArrayList<>();
+                filesByFolder.put(folderName, files);
+            }
+            files.add(file);
+
+            if (parts.length > 3 && !parts[3].trim().isEmpty())
+            {
+                Map<String, String> folderChecksums = checksums.get(folderName);
+                if (folderChecksums == null)
+                {
+                    folderChecksums = new HashMap<>();
+                    checksums.put(folderName, folderChecksums);
+                }
+                folderChecksums.put(file.getName(), parts[3].trim().toLowerCase(Locale.US));
+            }
+        }
+
+        if (filesByFolder.isEmpty())
+            return null;
+
+        FTPFile[] folders = new FTPFile[filesByFolder.size()];
+        FTPFile[][] files = new FTPFile[filesByFolder.size()][];
+        int folderID = 0;
+        for (Map.Entry<String, List<FTPFile>> entry : filesByFolder.entrySet())
+        {
+            FTPFile folder = new FTPFile();
+            folder.setName(entry.getKey());
+            folder.setType(FTPFile.DIRECTORY_TYPE);
+            folders[folderID] = folder;
+            files[folderID] = entry.getValue().toArray(new FTPFile[entry.getValue().size()]);
+            folderID++;
+        }
+        return new ServerManifest(folders, files, Collections.unmodifiableMap(checksums));
+    }
+
+    public FTPFile[] getFolders()
+    {
+        return mFolders;
+    }
+
+    public FTPFile[][] getFiles()
+    {
+        return mFiles;
+    }
+
+    public Map<String, Map<String, String>> getChecksums()
+    {
+        return mChecksums;
+    }
+}
@@ -38,6 +38,11 @@ public class SettingsActivity extends AppCompatActivity {
     private List<LogItem>   logItemListFromDB = null;
     private LogAdapter      logAdapter = null;
 
+    // Limits for the metered network seek bars
+    private static final int MAX_METERED_ARTICLE_COUNT  = 20;
+    private static final int METERED_SPEED_STEP_KBYTES  = 64;
+    private static final int METERED_SPEED_STEPS        = 16;   // Up to 1024 kB/s
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -179,6 +184,104 @@ public class SettingsActivity extends AppCompatActivity {
             }
         });
 
+        // PARALLEL DOWNLOADS SEEK BAR AND TEXT VALUE
+        // The coordinator needs the context to read and save the limit
+        SyncCoordinator.getInstance().setApplicationContext(getApplicationContext());
+        int maxParallelSyncs = SyncCoordinator.getInstance().getMaxParallelSyncs();
+
+        TextView parallelSyncsValue = (TextView)findViewById(R.id.parallelSyncsSeekBarValue);
+        parallelSyncsValue.setText(String.valueOf(maxParallelSyncs));
+
+        // Progress goes from 0 - 3, which is 1 - 4 parallel downloads
+        SeekBar parallelSyncsSeekBar = (SeekBar) findViewById(R.id.parallelSyncsSeekBar);
+        parallelSyncsSeekBar.setMax(SyncCoordinator.MAX_PARALLEL_SYNCS - 1);
+        parallelSyncsSeekBar.setProgress(maxParallelSyncs - 1);
+        parallelSyncsSeekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener()
+        {
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar)
+            {
+                SyncCoordinator.getInstance().setMaxParallelSyncs(seekBar.getProgress() + 1);
+                updateSyncProgress();
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar)
+            {
+            }
+
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser)
+            {
+                TextView sbValue = (TextView)findViewById(R.id.parallelSyncsSeekBarValue);
+                sbValue.setText(String.valueOf(progress + 1));
+            }
+        });
+
+        // METERED NETWORK SEEK BARS AND TEXT VALUES
+        // Only the first articles of the newest paper are downloaded on mobile data, the rest waits for an unmetered network (see DownloadPolicy)
+        DownloadPolicy.getInstance().setApplicationContext(getApplicationContext());
+        int meteredArticleCount = Math.min(MAX_METERED_ARTICLE_COUNT, DownloadPolicy.getInstance().getMeteredArticleCount());
+
+        TextView meteredArticlesValue = (TextView)findViewById(R.id.meteredArticlesSeekBarValue);
+        meteredArticlesValue.setText(String.valueOf(meteredArticleCount));
+
+        // Progress goes from 0 - 19, which is 1 - 20 articles
+        SeekBar meteredArticlesSeekBar = (SeekBar) findViewById(R.id.meteredArticlesSeekBar);
+        meteredArticlesSeekBar.setMax(MAX_METERED_ARTICLE_COUNT - 1);
+        meteredArticlesSeekBar.setProgress(meteredArticleCount - 1);
+        meteredArticlesSeekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener()
+        {
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar)
+            {
+                DownloadPolicy.getInstance().setMeteredArticleCount(seekBar.getProgress() + 1);
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar)
+            {
+            }
+
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser)
+            {
+                TextView sbValue = (TextView)findViewById(R.id.meteredArticlesSeekBarValue);
+                sbValue.setText(String.valueOf(progress + 1));
+            }
+        });
+
+        // Progress goes from 0 - 16 in steps of 64 kB/s, 0 is no limit
+        int meteredMaxKBytesPerSecond = DownloadPolicy.getInstance().getMeteredMaxKBytesPerSecond();
+        int meteredSpeedProgress = Math.min(METERED_SPEED_STEPS, (meteredMaxKBytesPerSecond + METERED_SPEED_STEP_KBYTES - 1) / METERED_SPEED_STEP_KBYTES);
+
+        TextView meteredSpeedValue = (TextView)findViewById(R.id.meteredSpeedSeekBarValue);
+        meteredSpeedValue.setText(getMeteredSpeedText(meteredMaxKBytesPerSecond));
+
+        SeekBar meteredSpeedSeekBar = (SeekBar) findViewById(R.id.meteredSpeedSeekBar);
+        meteredSpeedSeekBar.setMax(METERED_SPEED_STEPS);
+        meteredSpeedSeekBar.setProgress(meteredSpeedProgress);
+        meteredSpeedSeekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener()
+        {
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar)
+            {
+                DownloadPolicy.getInstance().setMeteredMaxKBytesPerSecond(seekBar.getProgress() * METERED_SPEED_STEP_KBYTES);
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar)
+            {
+            }
+
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser)
+            {
+                TextView sbValue = (TextView)findViewById(R.id.meteredSpeedSeekBarValue);
+                sbValue.setText(getMeteredSpeedText(progress * METERED_SPEED_STEP_KBYTES));
+            }
+        });
+
         // Register custom Broadcast receiver to show messages on activity
         LocalBroadcastManager.getInstance(this).registerReceiver(mHandleMessageReceiver, new IntentFilter(getString(R.string.broadcastUpdateUIToSettingsActivity)));
     }
@@ -195,6 +298,7 @@ public class SettingsActivity extends AppCompatActivity {
 
         // Refresh list
         reCreateListAdapter();
+        updateSyncProgress();
 
         // Check if we started this intent from the NewspaperDistributorEdit class
         Intent intent = getIntent();
@@ -228,8 +332,9 @@ public class SettingsActivity extends AppCompatActivity {
                 String downloadAllFilesManuallyForDistributorID = bundle.getString("DOWNLOAD_ALL_FILES_MANUALLY_FROM_DISTRIBUTOR_ID");
                 if (downloadAllFilesManuallyForDistributorID != null && !downloadAllFilesManuallyForDistributorID.isEmpty())
                 {
-                    // Make sure we use async for ftp
-                    new DownloadFilesAsync(SettingsActivity.this, getApplicationContext(), downloadAllFilesManuallyForDistributorID, false).execute();
+                    // Make sure we use async for ftp, the coordinator runs it when there is room (or again when done if it is already downloading)
+                    SyncCoordinator.getInstance().setApplicationContext(getApplicationContext());
+                    SyncCoordinator.getInstance().requestSync(SettingsActivity.this, downloadAllFilesManuallyForDistributorID, false);
 
                     // Remember to delete the intent, else it will run again if screen is turned sideways etc. (each onResume or onCreate)
                     intent.removeExtra("DOWNLOAD_ALL_FILES_MANUALLY_FROM_DISTRIBUTOR_ID");
@@ -261,14 +366,19 @@ public class SettingsActivity extends AppCompatActivity {
         {
             // This will run when MainActivity has got the message from another class (could be async)
             Boolean refreshLog = false;
+            Boolean refreshSyncProgress = false;
             Bundle extras = intent.getExtras();
             if (extras != null)
             {
                 refreshLog = extras.getBoolean("FSTF_UpdateLog_KEY");
+                refreshSyncProgress = extras.getBoolean("FSTF_UpdateSyncProgress_KEY");
             }
 
             if (refreshLog)
                 reCreateListAdapter();
+
+            if (refreshSyncProgress)
+                updateSyncProgress();
         }
     };
 
@@ -288,4 +398,46 @@ public class SettingsActivity extends AppCompatActivity {
         // Make sure to notify that the list is updated
         logAdapter.updateList();
     }
+
+    private static String getMeteredSpeedText(int maxKBytesPerSecond)
+    {
+        if (maxKBytesPerSecond <= 0)
+            return "No limit";
+        return maxKBytesPerSecond + " kB/s";
+    }
+
+    // Show one line for each queued or running download (see SyncCoordinator)
+    private void updateSyncProgress()
+    {
+        List<SyncProgress> progressList = SyncCoordinator.getInstance().getProgress();
+        TextView syncProgressText = (TextView)findViewById(R.id.syncProgressText);
+
+        if (progressList.isEmpty())
+        {
+            syncProgressText.setText("No downloads running");
+            return;
+        }
+
+        StringBuilder text = new StringBuilder();
+        for (SyncProgress progress : progressList)
+        {
+            if (text.length() > 0)
+                text.append("\n");
+
+            // The name is easier to read than the folder ID
+            NewspaperDistributor distributor = NewspaperDistributorDAO.getInstance().getNewspaperDistributor(progress.getDistributorFolderID());
+            text.append(distributor != null ? distributor.getNewspaperDistributorName() : progress.getDistributorFolderID()).append(": ");
+            if (!progress.isRunning())
+                text.append("waiting");
+            else if (progress.getFilesTotal() == 0)
+                text.append("checking server");
+            else
+            {
+                text.append(progress.getFilesDownloaded()).append(" / ").append(progress.getFilesTotal()).append(" files");
+                if (progress.getFilesFailed() > 0)
+                    text.append(", ").append(progress.getFilesFailed()).append(" failed");
+            }
+        }
+        syncProgressText.setText(text.toString());
+    }
 }
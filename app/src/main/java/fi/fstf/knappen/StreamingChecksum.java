@@ -0,0 +1,89 @@
+/*
+ * Copyright 2020 Finlands svenska taltidningsförening rf.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *     */
+package fi.fstf.knappen;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+// This is the StreamingChecksum class that calculates the checksum of a download while it is written
+// DownloadEngine gives it each block it reads from the data connection before the block goes to disk, there is no second read of the mp3
+public class StreamingChecksum {
+
+    public static final String CRC32_ALGORITHM = "CRC32";
+
+    private final MessageDigest mDigest;     // Null when using CRC32
+    private final CRC32 mCrc;                // Null when using a message digest
+
+    // Algorithm is a MessageDigest name (MD5, SHA-1, SHA-256 ...) or CRC32
+    public StreamingChecksum(String algorithm) throws NoSuchAlgorithmException
+    {
+        if (CRC32_ALGORITHM.equalsIgnoreCase(algorithm))
+        {
+            mDigest = null;
+            mCrc = new CRC32();
+        }
+        else
+        {
+            mDigest = MessageDigest.getInstance(algorithm);
+            mCrc = null;
+        }
+    }
+
+    // Add the bytes we already have in the file, used when a download is resumed
+    public void update(File file) throws IOException
+    {
+        byte[] buffer = new byte[8 * 1024];
+        InputStream inputStream = new FileInputStream(file);
+        try
+        {
+            int read;
+            while ((read = inputStream.read(buffer)) != -1)
+                update(buffer, 0, read);
+        }
+        finally
+        {
+            inputStream.close();
+        }
+    }
+
+    // Add a block that was read from the server
+    public void update(byte[] b, int off, int len)
+    {
+        if (mDigest != null)
+            mDigest.update(b, off, len);
+        else
+            mCrc.update(b, off, len);
+    }
+
+    // Lower case hex, for example "5d41402abc4b2a76b9719d911017c592" (CRC32 is always 8 characters)
+    // Can only be called once, the digest is reset after this
+    public String getHexValue()
+    {
+        if (mDigest == null)
+            return String.format("%08x", mCrc.getValue());
+
+        byte[] digest = mDigest.digest();
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest)
+            hex.append(String.format("%02x", b & 0xff));
+        return hex.toString();
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright 2020 Finlands svenska taltidningsförening rf.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *     */
+package fi.fstf.knappen;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.AsyncTask;
+import android.support.v4.content.LocalBroadcastManager;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+// This is the SyncCoordinator class that decides when each newspaper distributor is downloaded
+// All download requests (alarms, first start after reboot, manual download in settings) go through here
+// The distributor with the lowest sort ID goes first, independent distributors run in parallel up to a limit
+// A request for a distributor that is already queued is merged into the queued one
+// A request for a distributor that is downloading right now runs once more when the download is done, later requests are merged into that one
+// The downloads share one player, so the coordinator is the one that stops it, resets it and chooses the newspaper to play
+public class SyncCoordinator {
+
+    // Two distributors on the same server can download at full speed within the ftp session limit per server
+    public static final int DEFAULT_MAX_PARALLEL_SYNCS = 2;
+    public static final int MAX_PARALLEL_SYNCS = 4;
+
+    // One request in the queue
+    private static class SyncRequest implements Comparable<SyncRequest> {
+        final String distributorFolderID;
+        final int sortID;
+        final long sequence;                 // Same sort ID, first come first served
+        WeakReference<Activity> activity;   // Null if the request came from the service
+        boolean playWelcome;
+        boolean deferred;                   // The rest of a download that was restricted on a metered or slow network
+
+        SyncRequest(String distributorFolderID, int sortID, long sequence) {
+            this.distributorFolderID = distributorFolderID;
+            this.sortID = sortID;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(SyncRequest other) {
+            if (sortID != other.sortID)
+                return sortID < other.sortID ? -1 : 1;
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    private WeakReference<Context> mContext = null;
+    private final Object mLock = new Object();
+    private final PriorityQueue<SyncRequest> mQueue = new PriorityQueue<>();
+    private final Map<String, SyncProgress> mProgress = new LinkedHashMap<>(); // All queued and running distributors
+    private final Map<String, SyncRequest> mFollowUps = new HashMap<>();      // Requests for running distributors, queued when the download is done
+    private int mRunningCount = 0;
+    private long mSequence = 0;
+    private boolean mWelcomePending = false;    // A download that should have played the welcome message had nothing, the next one to start plays it
+    private final Object mPlaybackLock = new Object();
+    private int mPlaybackPausedCount = 0;       // Downloads that are deleting old files right now, the player is stopped until all of them are done
+
+    // Make it a static class (only one instance) | same as singleton
+    private static SyncCoordinator instance = new SyncCoordinator();
+    public static SyncCoordinator getInstance() {
+        return instance;
+    }
+
+    // This must be set before requesting a sync, the application context is used for the downloads
+    public void setApplicationContext(Context cx) {
+        mContext = new WeakReference<>(cx.getApplicationContext());
+    }
+
+    // Queue a download for the distributor, returns false if the distributor folder ID is not set
+    // Activity can be null, if set the download will update the UI log
+    // THIS FUNCTION SHOULD BE RUN FROM THE UI THREAD (the downloads are AsyncTasks)
+    public boolean requestSync(Activity activity, String distributorFolderID, boolean playWelcome)
+    {
+        return requestSync(activity, distributorFolderID, playWelcome, false);
+    }
+
+    // Same as above, deferred is set by the job that downloads the rest on an unmetered network (see DownloadPolicy)
+    public boolean requestSync(Activity activity, String distributorFolderID, boolean playWelcome, boolean deferred)
+    {
+        if (distributorFolderID == null || distributorFolderID.isEmpty())
+            return false;
+
+        // The service can call this before the app has been started
+        if (mContext != null && mContext.get() != null)
+            NewspaperDistributorDAO.getInstance().createDB(mContext.get());
+
+        synchronized (mLock)
+        {
+            // Lowest sort ID is the most prioritized newspaper
+            NewspaperDistributor distributor = NewspaperDistributorDAO.getInstance().getNewspaperDistributor(distributorFolderID);
+            int sortID = (distributor != null) ? distributor.getSortID() : Integer.MAX_VALUE;
+
+            SyncProgress progress = mProgress.get(distributorFolderID);
+            if (progress != null && !progress.isRunning())
+            {
+                // Already waiting, but the new request might want the welcome message or the UI updates
+                for (SyncRequest queued : mQueue)
+                {
+                    if (queued.distributorFolderID.equals(distributorFolderID))
+                        mergeRequest(queued, activity, playWelcome, deferred);
+                }
+                LogDAO.getInstance().add("Download of " + distributorFolderID + " is already queued");
+                return true;
+            }
+
+            if (progress != null)
+            {
+                // The running download might have listed the server before the new files were there, so it runs once more when done
+                SyncRequest followUp = mFollowUps.get(distributorFolderID);
+                if (followUp == null)
+                {
+                    followUp = new SyncRequest(distributorFolderID, sortID, mSequence++);
+                    mFollowUps.put(distributorFolderID, followUp);
+                }
+                mergeRequest(followUp, activity, playWelcome, deferred);
+                LogDAO.getInstance().add("Download of " + distributorFolderID + " is running, it will run again when done");
+                return true;
+            }
+
+            SyncRequest request = new SyncRequest(distributorFolderID, sortID, mSequence++);
+            mergeRequest(request, activity, playWelcome, deferred);
+            mQueue.add(request);
+
+            progress = new SyncProgress();
+            progress.setDistributorFolderID(distributorFolderID);
+            mProgress.put(distributorFolderID, progress);
+        }
+
+        LogDAO.getInstance().add("Added " + distributorFolderID + " to download queue!");
+        startNext();
+        broadcastProgress();
+        return true;
+    }
+
+    // Set the flags of a new request on a queued one, the activity of the newest request gets the UI updates
+    private static void mergeRequest(SyncRequest request, Activity activity, boolean playWelcome, boolean deferred)
+    {
+        request.playWelcome |= playWelcome;
+        request.deferred |= deferred;
+        if (activity != null)
+            request.activity = new WeakReference<>(activity);
+    }
+
+    // Returns a copy of the progress for all queued and running distributors, running first
+    public List<SyncProgress> getProgress()
+    {
+        List<SyncProgress> list = new ArrayList<>();
+        synchronized (mLock)
+        {
+            for (SyncProgress progress : mProgress.values())
+            {
+                if (progress.isRunning())
+                    list.add(new SyncProgress(progress));
+            }
+            for (SyncProgress progress : mProgress.values())
+            {
+                if (!progress.isRunning())
+                    list.add(new SyncProgress(progress));
+            }
+        }
+        return list;
+    }
+
+    public int getMaxParallelSyncs()
+    {
+        if (mContext == null || mContext.get() == null)
+            return DEFAULT_MAX_PARALLEL_SYNCS;
+
+        SharedPreferences sharedPref = mContext.get().getSharedPreferences(mContext.get().getString(R.string.sp_shared_preferences), Context.MODE_PRIVATE);
+        int maxParallelSyncs = sharedPref.getInt(mContext.get().getString(R.string.sp_max_parallel_syncs), DEFAULT_MAX_PARALLEL_SYNCS);
+        return Math.max(1, Math.min(MAX_PARALLEL_SYNCS, maxParallelSyncs));
+    }
+
+    public void setMaxParallelSyncs(int maxParallelSyncs)
+    {
+        if (mContext == null || mContext.get() == null)
+            return;
+
+        SharedPreferences sharedPref = mContext.get().getSharedPreferences(mContext.get().getString(R.string.sp_shared_preferences), Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = sharedPref.edit();
+        editor.putInt(mContext.get().getString(R.string.sp_max_parallel_syncs), maxParallelSyncs);
+        editor.apply();
+
+        // A higher limit can start more downloads right away
+        startNext();
+    }
+
+    // Called by DownloadFilesAsync when it knows how many files it will download
+    void onDownloadStarted(String distributorFolderID, int filesTotal)
+    {
+        synchronized (mLock)
+        {
+            SyncProgress progress = mProgress.get(distributorFolderID);
+            if (progress != null)
+                progress.setFilesTotal(filesTotal);
+        }
+        broadcastProgress();
+    }
+
+    // Called by DownloadFilesAsync for each file (from the download threads)
+    void onFileFinished(String distributorFolderID, boolean success)
+    {
+        synchronized (mLock)
+        {
+            SyncProgress progress = mProgress.get(distributorFolderID);
+            if (progress == null)
+                return;
+
+            if (success)
+                progress.setFilesDownloaded(progress.getFilesDownloaded() + 1);
+            else
+                progress.setFilesFailed(progress.getFilesFailed() + 1);
+        }
+        broadcastProgress();
+    }
+
+    // Called by DownloadFilesAsync when it is done or cancelled (from the UI thread), the next distributor in the queue can start
+    void onSyncFinished(String distributorFolderID)
+    {
+        boolean allDone;
+        synchronized (mLock)
+        {
+            SyncProgress progress = mProgress.remove(distributorFolderID);
+            if (progress == null || !progress.isRunning())
+                return;
+
+            mRunningCount--;
+
+            // A request that came in while downloading goes to the queue now
+            SyncRequest followUp = mFollowUps.remove(distributorFolderID);
+            if (followUp != null)
+            {
+                mQueue.add(followUp);
+                SyncProgress followUpProgress = new SyncProgress();
+                followUpProgress.setDistributorFolderID(distributorFolderID);
+                mProgress.put(distributorFolderID, followUpProgress);
+            }
+            allDone = mProgress.isEmpty();
+        }
+
+        // Make sure the newest local newspaper is the one that will be played in the morning, once for all downloads
+        if (allDone)
+        {
+            FileManager.getInstance().updateToNewestPlayableFolder();
+            FileManager.getInstance().gotoFirstPlayableNewspaperInCurrentDate();
+        }
+        startNext();
+        broadcastProgress();
+    }
+
+    // Called by DownloadFilesAsync before it deletes old files, the first one stops the player
+    void pausePlayback()
+    {
+        synchronized (mPlaybackLock)
+        {
+            if (mPlaybackPausedCount++ > 0)
+                return;
+
+            MediaPlayerManager.getInstance().stop();
+            MediaPlayerManager.getInstance().setEnabled(false);
+        }
+    }
+
+    // Called by DownloadFilesAsync when the old files are deleted, the last one enables the player and starts from the first article again
+    void resumePlayback()
+    {
+        synchronized (mPlaybackLock)
+        {
+            if (mPlaybackPausedCount == 0 || --mPlaybackPausedCount > 0)
+                return;
+
+            MediaPlayerManager.getInstance().setEnabled(true);
+            FileManager.getInstance().resetCurrentIndex();
+            MediaPlayerManager.getInstance().resetCurrentPosition(); // If we have paused in the middle of some other file
+        }
+    }
+
+    // Called by DownloadFilesAsync when it should have played the welcome message but downloaded nothing (for example a newspaper that is often empty)
+    // The next download that starts plays it instead, only one download at a time has the welcome message
+    void passWelcomeOn()
+    {
+        synchronized (mLock)
+        {
+            mWelcomePending = true;
+        }
+    }
+
+    // Start as many queued downloads as the limit allows
+    private void startNext()
+    {
+        if (mContext == null || mContext.get() == null)
+        {
+            LogDAO.getInstance().add("SyncCoordinator: no context set, can't start downloading!");
+            return;
+        }
+
+        int maxParallelSyncs = getMaxParallelSyncs();
+        List<SyncRequest> toStart = new ArrayList<>();
+        synchronized (mLock)
+        {
+            while (mRunningCount < maxParallelSyncs && !mQueue.isEmpty())
+            {
+                SyncRequest request = mQueue.poll();
+                if (mWelcomePending)
+                {
+                    request.playWelcome = true;
+                    mWelcomePending = false;
+                }
+                mProgress.get(request.distributorFolderID).setRunning(true);
+                mRunningCount++;
+                toStart.add(request);
+            }
+        }
+
+        for (SyncRequest request : toStart)
+        {
+            Activity activity = (request.activity != null) ? request.activity.get() : null;
+            LogDAO.getInstance().add("Starting download of " + request.distributorFolderID);
+
+            // The default AsyncTask executor runs one task at a time, the limit above decides how many run here
+            new DownloadFilesAsync(activity, mContext.get(), request.distributorFolderID, request.playWelcome, request.deferred).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        }
+    }
+
+    // Tell the settings activity that the download progress has changed, it shows the progress if it is open
+    private void broadcastProgress()
+    {
+        if (mContext == null || mContext.get() == null)
+            return;
+
+        Intent intent = new Intent(mContext.get().getString(R.string.broadcastUpdateUIToSettingsActivity));
+        intent.putExtra("FSTF_UpdateSyncProgress_KEY", true);
+        LocalBroadcastManager.getInstance(mContext.get()).sendBroadcast(intent);
+    }
+}
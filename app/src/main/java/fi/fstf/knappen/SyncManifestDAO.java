@@ -0,0 +1,128 @@
+/*
+ * Copyright 2020 Finlands svenska taltidningsförening rf.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *     */
+package fi.fstf.knappen;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.apache.commons.net.ftp.FTPFile;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// This is the DAO for the sync manifest, it remembers what each date folder on the ftp server looked like when we downloaded it
+// A folder that looks the same in the next top level listing does not need to be listed again
+public class SyncManifestDAO {
+
+    // Make sure we only make one DAO for the sync manifest
+    private static SyncManifestDAO ourInstance = new SyncManifestDAO();
+    public static synchronized SyncManifestDAO getInstance() {
+        return ourInstance;
+    }
+
+    // Database fields
+    private DatabaseHelper dbHelper = null;
+    private String[] allColumns =
+            {
+                    DatabaseHelper.COLUMN_NAME_DATE_FOLDER,
+                    DatabaseHelper.COLUMN_NAME_FINGERPRINT,
+                    DatabaseHelper.COLUMN_NAME_FILE_COUNT
+            };
+
+    private SyncManifestDAO() {}
+
+    public void createDB(Context context) throws SQLException {
+        if (dbHelper==null)
+            dbHelper = DatabaseHelper.getInstance(context);
+    }
+
+    // The fingerprint of a date folder in the top level listing, the modify time changes when files are added, removed or renamed in the folder
+    // Returns null if the server did not give us a time, then the folder must always be listed
+    public static String createFingerprint(FTPFile folder)
+    {
+        if (folder == null || folder.getTimestamp() == null)
+            return null;
+
+        return folder.getTimestamp().getTimeInMillis() + ":" + folder.getSize();
+    }
+
+    // Returns all saved date folders for the distributor, date folder -> item
+    public synchronized Map<String, SyncManifestItem> getFolders(String distributorFolderID)
+    {
+        Map<String, SyncManifestItem> folders = new HashMap<>();
+
+        // createDB() has not been called yet, same as an empty manifest (everything will be listed)
+        if (dbHelper == null || dbHelper.getDatabase() == null)
+            return folders;
+
+        Cursor cursor = dbHelper.getDatabase().query(DatabaseHelper.TABLE_SYNC_MANIFEST, allColumns, DatabaseHelper.COLUMN_NAME_FOLDER_NAME + "=?", new String[] { distributorFolderID }, null, null, null);
+
+        cursor.moveToFirst();
+        while (!cursor.isAfterLast()) {
+            SyncManifestItem item = cursorToItem(cursor);
+            folders.put(item.getDateFolder(), item);
+            cursor.moveToNext();
+        }
+        // make sure to close the cursor
+        cursor.close();
+        return folders;
+    }
+
+    // Save the folder when all files in it have been downloaded
+    public synchronized void setFolder(String distributorFolderID, String dateFolder, String fingerprint, int fileCount)
+    {
+        if (dbHelper == null || dbHelper.getDatabase() == null)
+            return;
+
+        ContentValues values = new ContentValues();
+        values.put(DatabaseHelper.COLUMN_NAME_FOLDER_NAME, distributorFolderID);
+        values.put(DatabaseHelper.COLUMN_NAME_DATE_FOLDER, dateFolder);
+        values.put(DatabaseHelper.COLUMN_NAME_FINGERPRINT, fingerprint);
+        values.put(DatabaseHelper.COLUMN_NAME_FILE_COUNT, fileCount);
+
+        // Replaces the old row for the same distributor and date folder
+        dbHelper.getDatabase().insertWithOnConflict(DatabaseHelper.TABLE_SYNC_MANIFEST, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    public synchronized void deleteFolder(String distributorFolderID, String dateFolder)
+    {
+        if (dbHelper == null || dbHelper.getDatabase() == null)
+            return;
+
+        dbHelper.getDatabase().delete(DatabaseHelper.TABLE_SYNC_MANIFEST, DatabaseHelper.COLUMN_NAME_FOLDER_NAME + "=? AND " + DatabaseHelper.COLUMN_NAME_DATE_FOLDER + "=?", new String[] { distributorFolderID, dateFolder });
+    }
+
+    // Forget everything about the distributor, for example when all local files have been deleted
+    public synchronized void deleteDistributor(String distributorFolderID)
+    {
+        if (dbHelper == null || dbHelper.getDatabase() == null)
+            return;
+
+        dbHelper.getDatabase().delete(DatabaseHelper.TABLE_SYNC_MANIFEST, DatabaseHelper.COLUMN_NAME_FOLDER_NAME + "=?", new String[] { distributorFolderID });
+    }
+
+    private SyncManifestItem cursorToItem(Cursor cursor) {
+        int cursorID = 0;
+        SyncManifestItem newItem = new SyncManifestItem();
+        newItem.setDateFolder(cursor.getString(cursorID));   cursorID++;
+        newItem.setFingerprint(cursor.getString(cursorID));  cursorID++;
+        newItem.setFileCount(cursor.getInt(cursorID));       cursorID++;
+        return newItem;
+    }
+}
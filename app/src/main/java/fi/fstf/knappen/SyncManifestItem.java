@@ -0,0 +1,56 @@
+/*
+ * Copyright 2020 Finlands svenska taltidningsförening rf.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *     */
+package fi.fstf.knappen;
+
+// This is a simple class for holding data for one date folder in the sync manifest
+public class SyncManifestItem {
+
+    private String  dateFolder;      // For example 20190521
+    private String  fingerprint;     // What the folder looked like in the ftp listing when we downloaded it
+    private int     fileCount;       // Number of mp3 files we downloaded from the folder
+
+    public SyncManifestItem()
+    {
+        super();
+        this.dateFolder  = "";
+        this.fingerprint = "";
+        this.fileCount   = 0;
+    }
+
+    public String getDateFolder() {
+        return dateFolder;
+    }
+
+    public void setDateFolder(String dateFolder) {
+        this.dateFolder = dateFolder;
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public void setFingerprint(String fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    public void setFileCount(int fileCount) {
+        this.fileCount = fileCount;
+    }
+}
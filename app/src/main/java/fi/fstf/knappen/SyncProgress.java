@@ -0,0 +1,87 @@
+/*
+ * Copyright 2020 Finlands svenska taltidningsförening rf.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *     */
+package fi.fstf.knappen;
+
+// This is a simple class for holding the sync state of one newspaper distributor (queued or running)
+public class SyncProgress {
+
+    private String  distributorFolderID;    // For example "01"
+    private boolean running;                // False while waiting in the queue
+    private int     filesTotal;             // Number of files to download, 0 until the server has been listed
+    private int     filesDownloaded;
+    private int     filesFailed;
+
+    public SyncProgress()
+    {
+        super();
+        this.distributorFolderID = "";
+        this.running             = false;
+        this.filesTotal          = 0;
+        this.filesDownloaded     = 0;
+        this.filesFailed         = 0;
+    }
+
+    // Copy, the coordinator only gives out copies of its own items
+    public SyncProgress(SyncProgress other)
+    {
+        super();
+        this.distributorFolderID = other.distributorFolderID;
+        this.running             = other.running;
+        this.filesTotal          = other.filesTotal;
+        this.filesDownloaded     = other.filesDownloaded;
+        this.filesFailed         = other.filesFailed;
+    }
+
+    public String getDistributorFolderID() {
+        return distributorFolderID;
+    }
+
+    public void setDistributorFolderID(String distributorFolderID) {
+        this.distributorFolderID = distributorFolderID;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public void setRunning(boolean running) {
+        this.running = running;
+    }
+
+    public int getFilesTotal() {
+        return filesTotal;
+    }
+
+    public void setFilesTotal(int filesTotal) {
+        this.filesTotal = filesTotal;
+    }
+
+    public int getFilesDownloaded() {
+        return filesDownloaded;
+    }
+
+    public void setFilesDownloaded(int filesDownloaded) {
+        this.filesDownloaded = filesDownloaded;
+    }
+
+    public int getFilesFailed() {
+        return filesFailed;
+    }
+
+    public void setFilesFailed(int filesFailed) {
+        this.filesFailed = filesFailed;
+    }
+}
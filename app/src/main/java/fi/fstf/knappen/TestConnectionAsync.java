@@ -45,6 +45,7 @@ public class TestConnectionAsync extends AsyncTask<String,String,String> {
 
         // The FTP connection needs to be ASYNC!
         FTPConnectionManager.getInstance().setApplicationContext(mContext.get());
+        TransferTuning.getInstance().setApplicationContext(mContext.get());
         boolean success = FTPConnectionManager.getInstance().testConnection(distributor);
 
         // The return value here will go into onPostExecute as result
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2020 Finlands svenska taltidningsförening rf.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *     */
+package fi.fstf.knappen;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.apache.commons.net.ftp.FTPClient;
+
+import java.lang.ref.WeakReference;
+import java.net.SocketException;
+import java.util.HashMap;
+import java.util.Map;
+
+// This is the TransferTuning class that decides buffer sizes and timeouts for the ftp sessions
+// The values depend on the network type (wifi or mobile), and the throughput of each buffer size is saved so the next run starts with the best one
+public class TransferTuning {
+
+    private static final String TAG = "TransferTuning";
+
+    public static final String NETWORK_WIFI = "wifi";
+    public static final String NETWORK_MOBILE = "mobile";
+    public static final String NETWORK_OTHER = "other";
+
+    // The buffer sizes we try, FTPClient uses this size when copying from the data connection to the file
+    public static final int[] BUFFER_SIZES = { 16 * 1024, 32 * 1024, 64 * 1024, 128 * 1024 };
+
+    // Files smaller than this are mostly round-trips, they don't say anything about the buffer size
+    public static final long MIN_SAMPLE_BYTES = 64 * 1024;
+
+    // Try another buffer size than the best one every n:th run, the network can have changed since we measured
+    private static final int EXPLORE_EVERY_RUNS = 10;
+
+    // One run uses the same buffer size for all sessions, so that the measurements are comparable
+    private static final long RUN_LENGTH_MILLIS = 10 * 60 * 1000;
+
+    // How much a new measurement changes the saved average (exponential moving average)
+    private static final float AVERAGE_WEIGHT = 0.3f;
+
+    // The settings for one network type
+    public static class Settings {
+        public final String networkType;
+        public final int bufferSize;
+        public final int connectTimeoutMillis;
+        public final int dataTimeoutMillis;
+
+        Settings(String networkType, int bufferSize, int connectTimeoutMillis, int dataTimeoutMillis) {
+            this.networkType = networkType;
+            this.bufferSize = bufferSize;
+            this.connectTimeoutMillis = connectTimeoutMillis;
+            this.dataTimeoutMillis = dataTimeoutMillis;
+        }
+    }
+
+    private WeakReference<Context> mContext = null;
+    private final Map<String, Settings> mCurrentRun = new HashMap<>();      // Network type -> settings for this run
+    private final Map<String, Long> mCurrentRunStarted = new HashMap<>();
+
+    // Make it a static class (only one instance) | same as singleton
+    private static TransferTuning instance = new TransferTuning();
+    public static TransferTuning getInstance() {
+        return instance;
+    }
+
+    // This must be set before accessing context, without it the defaults are used and nothing is saved
+    public void setApplicationContext(Context cx) {
+        mContext = new WeakReference<>(cx.getApplicationContext());
+    }
+
+    // Set before connecting, for example the connect timeout
+    public void applyBeforeConnect(FTPClient ftp, Settings settings)
+    {
+        ftp.setConnectTimeout(settings.connectTimeoutMillis);
+        ftp.setDefaultTimeout(settings.dataTimeoutMillis);     // Control connection read timeout
+    }
+
+    // Set on a connected session (new or from the pool)
+    public void applyToSession(FTPClient ftp, Settings settings)
+    {
+        ftp.setBufferSize(settings.bufferSize);
+        ftp.setReceieveDataSocketBufferSize(2 * settings.bufferSize); // Room for one buffer in the socket while we write the other to disk
+        ftp.setDataTimeout(settings.dataTimeoutMillis);
+        try
+        {
+            // Commands are small, don't wait for more data before sending them
+            ftp.setTcpNoDelay(true);
+        }
+        catch (SocketException e)
+        {
+            Log.d(TAG, e.toString());
+        }
+    }
+
+    // Returns the settings for the network type, the same during one run
+    public synchronized Settings getSettings(String networkType)
+    {
+        Long started = mCurrentRunStarted.get(networkType);
+        if (started != null && System.currentTimeMillis() - started < RUN_LENGTH_MILLIS)
+            return mCurrentRun.get(networkType);
+
+        Settings settings = chooseSettings(networkType);
+        mCurrentRun.put(networkType, settings);
+        mCurrentRunStarted.put(networkType, System.currentTimeMillis());
+        return settings;
+    }
+
+    // Called after each downloaded file, bytes and time only for the data transfer
+    public synchronized void recordTransfer(String networkType, int bufferSize, long bytes, long millis)
+    {
+        SharedPreferences sharedPref = getSharedPreferences();
+        if (sharedPref == null || bytes < MIN_SAMPLE_BYTES || millis <= 0)
+            return;
+
+        float bytesPerSecond = bytes * 1000f / millis;
+        String key = getThroughputKey(networkType, bufferSize);
+        float average = sharedPref.getFloat(key, -1);
+        average = (average < 0) ? bytesPerSecond : average + AVERAGE_WEIGHT * (bytesPerSecond - average);
+
+        SharedPreferences.Editor editor = sharedPref.edit();
+        editor.putFloat(key, average);
+        editor.putLong(key + "_time", System.currentTimeMillis());
+        editor.apply();
+    }
+
+    // Saved average throughput in bytes per second, or -1 if the buffer size has not been tried on the network type
+    public float getThroughput(String networkType, int bufferSize)
+    {
+        SharedPreferences sharedPref = getSharedPreferences();
+        if (sharedPref == null)
+            return -1;
+        return sharedPref.getFloat(getThroughputKey(networkType, bufferSize), -1);
+    }
+
+    // The best saved throughput of any buffer size on the network type, or -1 if nothing has been measured during the last maxAgeMillis
+    // The network behind a network type changes (another wifi, another mobile operator), an old measurement says nothing about it
+    public float getBestThroughput(String networkType, long maxAgeMillis)
+    {
+        SharedPreferences sharedPref = getSharedPreferences();
+        if (sharedPref == null)
+            return -1;
+
+        float best = -1;
+        for (int bufferSize : BUFFER_SIZES)
+        {
+            String key = getThroughputKey(networkType, bufferSize);
+            if (System.currentTimeMillis() - sharedPref.getLong(key + "_time", 0) <= maxAgeMillis)
+                best = Math.max(best, sharedPref.getFloat(key, -1));
+        }
+        return best;
+    }
+
+    private Settings chooseSettings(String networkType)
+    {
+        // Mobile networks have longer round-trips and pauses, give them more time before giving up
+        boolean mobile = NETWORK_MOBILE.equals(networkType);
+        int connectTimeoutMillis = mobile ? 30 * 1000 : 15 * 1000;
+        int dataTimeoutMillis = mobile ? 120 * 1000 : 60 * 1000;
+        int defaultBufferSize = mobile ? 32 * 1024 : 64 * 1024;
+
+        SharedPreferences sharedPref = getSharedPreferences();
+        if (sharedPref == null)
+            return new Settings(networkType, defaultBufferSize, connectTimeoutMillis, dataTimeoutMillis);
+
+        // Count the runs, every n:th run tries a neighbour of the best size
+        String runsKey = mContext.get().getString(R.string.sp_transfer_runs) + "_" + networkType;
+        int runs = sharedPref.getInt(runsKey, 0) + 1;
+        SharedPreferences.Editor editor = sharedPref.edit();
+        editor.putInt(runsKey, runs);
+        editor.apply();
+
+        int bestIndex = -1;
+        float bestThroughput = -1;
+        for (int i = 0; i < BUFFER_SIZES.length; i++)
+        {
+            float throughput = getThroughput(networkType, BUFFER_SIZES[i]);
+            if (throughput < 0)
+            {
+                // Never tried, try it now
+                LogDAO.getInstance().add("Trying " + BUFFER_SIZES[i] / 1024 + " KB buffers on " + networkType);
+                return new Settings(networkType, BUFFER_SIZES[i], connectTimeoutMillis, dataTimeoutMillis);
+            }
+            if (throughput > bestThroughput)
+            {
+                bestThroughput = throughput;
+                bestIndex = i;
+            }
+        }
+
+        int index = bestIndex;
+        if (runs % EXPLORE_EVERY_RUNS == 0)
+            index = (bestIndex + 1 < BUFFER_SIZES.length) ? bestIndex + 1 : bestIndex - 1;
+
+        LogDAO.getInstance().add("Using " + BUFFER_SIZES[index] / 1024 + " KB buffers on " + networkType + " (best " + Math.round(bestThroughput / 1024) + " KB/s)");
+        return new Settings(networkType, BUFFER_SIZES[index], connectTimeoutMillis, dataTimeoutMillis);
+    }
+
+    private String getThroughputKey(String networkType, int bufferSize)
+    {
+        return mContext.get().getString(R.string.sp_transfer_throughput) + "_" + networkType + "_" + bufferSize;
+    }
+
+    private SharedPreferences getSharedPreferences()
+    {
+        if (mContext == null || mContext.get() == null)
+            return null;
+        return mContext.get().getSharedPreferences(mContext.get().getString(R.string.sp_shared_preferences), Context.MODE_PRIVATE);
+    }
+}
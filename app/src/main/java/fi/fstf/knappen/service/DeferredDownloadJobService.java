@@ -0,0 +1,63 @@
+/*
+ * Copyright 2020 Finlands svenska taltidningsförening rf.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *     */
+package fi.fstf.knappen.service;
+
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+
+import fi.fstf.knappen.DownloadPolicy;
+import fi.fstf.knappen.LogDAO;
+import fi.fstf.knappen.SyncCoordinator;
+
+// This is the DeferredDownloadJobService class that Android starts when we are on an unmetered network
+// It downloads the rest of a newspaper that was only partly downloaded on a metered network (see DownloadPolicy)
+public class DeferredDownloadJobService extends JobService {
+
+    @Override
+    public boolean onStartJob(JobParameters params)
+    {
+        LogDAO.getInstance().createDB(this);
+
+        String newspaperDistributorFolderID = params.getExtras().getString(DownloadPolicy.EXTRA_DISTRIBUTOR_FOLDER_ID);
+        if (newspaperDistributorFolderID == null || newspaperDistributorFolderID.equals(""))
+        {
+            LogDAO.getInstance().add("DeferredDownloadJobService:onStartJob() error - no folder ID set");
+            return false;
+        }
+
+        LogDAO.getInstance().add("DeferredDownloadJobService:onStartJob() " + newspaperDistributorFolderID);
+
+        // The download runs in its own AsyncTask, the job is done when it has been handed over
+        // If this newspaper is already downloading, the coordinator runs it once more when that download is done
+        // A slow network doesn't restrict this download again, we are here because Android found an unmetered network
+        SyncCoordinator.getInstance().setApplicationContext(this);
+        if (!SyncCoordinator.getInstance().requestSync(null, newspaperDistributorFolderID, false, true))
+        {
+            // Not handed over, ask Android for a new job so the rest is not forgotten
+            LogDAO.getInstance().add("DeferredDownloadJobService:onStartJob() download not accepted, trying again later");
+            DownloadPolicy.getInstance().setApplicationContext(this);
+            DownloadPolicy.getInstance().scheduleDeferredDownload(newspaperDistributorFolderID);
+        }
+        return false;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params)
+    {
+        // Nothing is running in the job itself
+        return false;
+    }
+}
@@ -20,8 +20,8 @@ import android.content.Intent;
 import android.os.Bundle;
 import android.os.IBinder;
 
-import fi.fstf.knappen.DownloadFilesAsync;
 import fi.fstf.knappen.LogDAO;
+import fi.fstf.knappen.SyncCoordinator;
 
 // This is the DownloaderService class that will be triggered by the AlarmReceiver
 public class DownloaderService extends Service {
@@ -61,7 +61,9 @@ public class DownloaderService extends Service {
                 // Use the DownloaderService as context
                 // The activity will be null here, if activity is set the class will know to update the UI log
                 // But this is done in the background now and we don't need to see what's happening
-                new DownloadFilesAsync(null, this, newspaperDistributorFolderID, false).execute();
+                // If this newspaper is already downloading (for example two alarms close together), the coordinator runs it once more when that download is done
+                SyncCoordinator.getInstance().setApplicationContext(this);
+                SyncCoordinator.getInstance().requestSync(null, newspaperDistributorFolderID, false);
 
                 // Remember to delete the intent
                 intent.removeExtra("NEWSPAPER_DISTRIBUTOR_FOLDER_ID");
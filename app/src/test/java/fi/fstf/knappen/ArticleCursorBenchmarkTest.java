@@ -0,0 +1,87 @@
+package fi.fstf.knappen;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Steps through a newspaper with the old String.format() and new File path and with ArticleCursor, and counts the bytes allocated by each.
+ * Needs a JVM that counts the allocations of a thread, the test is skipped on others.
+ */
+public class ArticleCursorBenchmarkTest {
+
+    private static final int ARTICLES = 200;
+    private static final int ROUNDS = 5000;
+    private static final File BASE_FOLDER = new File("/data/data/fi.fstf.knappen/files");
+
+    // All steps of the cursor together may allocate this much (reading the counter allocates a little), one object per step would be megabytes
+    private static final long MAX_CURSOR_BYTES = 4 * 1024;
+
+    @Test
+    public void cursorStepsDoNotAllocate() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue("No allocation counter in this JVM", threadBean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemorySupported());
+        ((com.sun.management.ThreadMXBean) threadBean).setThreadAllocatedMemoryEnabled(true);
+
+        File[] articles = new File[ARTICLES + 1];
+        for (int i = 1; i <= ARTICLES; i++)
+            articles[i] = new File(BASE_FOLDER, String.format("20190521/01/speechgen%04d.mp3", i));
+        ArticleCursor cursor = new ArticleCursor("20190521", "01", articles, 1);
+
+        // Warm up both paths (class loading, JIT) before measuring
+        int found = walkOldPath() + walkCursor(cursor);
+
+        long allocated = getAllocatedBytes();
+        found += walkOldPath();
+        long oldBytes = getAllocatedBytes() - allocated;
+
+        allocated = getAllocatedBytes();
+        found += walkCursor(cursor);
+        long cursorBytes = getAllocatedBytes() - allocated;
+
+        assertEquals(4 * ROUNDS * ARTICLES, found);
+
+        // The old path allocates on every step, so the counter works, and the cursor does not
+        assertTrue("Old path allocated " + oldBytes + " bytes", oldBytes > MAX_CURSOR_BYTES);
+        assertTrue("Cursor allocated " + cursorBytes + " bytes", cursorBytes < MAX_CURSOR_BYTES);
+    }
+
+    // The way FileManager found the next article before, kept here to compare with
+    private static int walkOldPath() {
+        int found = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int index = 1; index <= ARTICLES + 1; index++) {
+                String currentFileName = String.format("%s%04d.%s", "speechgen", index, "mp3");
+                File file = new File(BASE_FOLDER + "/" + "20190521" + "/" + "01" + "/" + currentFileName);
+                if (index <= ARTICLES && file.getPath().length() > 0)
+                    found++;
+            }
+        }
+        return found;
+    }
+
+    private static int walkCursor(ArticleCursor cursor) {
+        int found = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            cursor.reset();
+            while (cursor.hasArticle()) {
+                if (cursor.getFile() != null)
+                    found++;
+                cursor.getUri();
+                cursor.next();
+            }
+        }
+        return found;
+    }
+
+    private static long getAllocatedBytes() {
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,78 @@
+package fi.fstf.knappen;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static fi.fstf.knappen.TestFixtures.*;
+import static org.junit.Assert.*;
+
+/**
+ * Moves through a newspaper while its articles are downloaded, the cursor must stay on the same article when the catalog changes.
+ */
+public class ArticleCursorTest {
+
+    private static final File FOLDER = new File("/data/data/fi.fstf.knappen/files/20190521/01");
+    private static final List<File> NO_DOWNLOADS = Collections.emptyList();
+
+    @Test
+    public void earlierArticleMidPlaybackKeepsTheCurrentArticle() {
+        ArticleCursor cursor = new ArticleCursor("20190521", "01", articles(1, 3, 4), 1);
+        cursor.next();
+        assertEquals(article(3), cursor.getFile());
+
+        // Article 2 is committed while article 3 is playing
+        cursor = cursor.update("20190521", "01", articles(1, 2, 3, 4), NO_DOWNLOADS);
+        assertEquals(article(3), cursor.getFile());
+        assertEquals(3, cursor.getIndex());
+
+        cursor.next();
+        assertEquals(article(4), cursor.getFile());
+        cursor.previous();
+        cursor.previous();
+        assertEquals(article(2), cursor.getFile());
+    }
+
+    @Test
+    public void earlierArticleKeepsTheCurrentDownload() {
+        // Articles 1 and 2 are on disk, 4 and 5 are downloading, the player is on article 5
+        ArticleCursor cursor = new ArticleCursor("20190521", "01", articles(1, 2), 4);
+        assertNull(cursor.getFile());
+        assertEquals(article(5), cursor.findDownload(Arrays.asList(article(4), article(5))));
+
+        // Article 3 is committed out of order, the player is still on article 5
+        cursor = cursor.update("20190521", "01", articles(1, 2, 3), Arrays.asList(article(4), article(5)));
+        assertEquals(5, cursor.getIndex());
+        assertEquals(article(5), cursor.findDownload(Arrays.asList(article(4), article(5))));
+
+        // Article 5 is complete before article 4
+        cursor = cursor.update("20190521", "01", articles(1, 2, 3, 5), Arrays.asList(article(4)));
+        assertEquals(article(5), cursor.getFile());
+
+        cursor.previous();
+        assertEquals(article(3), cursor.getFile());
+    }
+
+    @Test
+    public void otherNewspaperKeepsTheIndex() {
+        ArticleCursor cursor = new ArticleCursor("20190521", "01", articles(1, 2, 3), 3);
+        cursor = cursor.update("20190522", "01", articles(1, 2), NO_DOWNLOADS);
+        assertEquals(3, cursor.getIndex());
+        assertFalse(cursor.hasArticle());
+    }
+
+    // The catalog's array: article n at index n, in natural order
+    private static File[] articles(int... numbers) {
+        File[] articles = new File[numbers.length + 1];
+        for (int i = 0; i < numbers.length; i++)
+            articles[i + 1] = article(numbers[i]);
+        return articles;
+    }
+
+    private static File article(int number) {
+        return new File(FOLDER, createFileName(number));
+    }
+}
@@ -0,0 +1,50 @@
+package fi.fstf.knappen;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tells articles from other files and sorts them the way they are played.
+ */
+public class ArticleNamesTest {
+
+    @After
+    public void tearDown() {
+        ArticleNames.setExtensions(ArticleNames.DEFAULT_EXTENSIONS);
+    }
+
+    @Test
+    public void sortsNumbersByValue() {
+        List<String> names = Arrays.asList("speechgen10000.mp3", "speechgen0010.mp3", "speechgen0002.mp3", "Speechgen0003.mp3", "speechgen1.mp3", "speechgen01.mp3");
+        Collections.sort(names, ArticleNames.NATURAL_ORDER);
+
+        assertEquals(Arrays.asList("speechgen01.mp3", "speechgen1.mp3", "speechgen0002.mp3", "Speechgen0003.mp3", "speechgen0010.mp3", "speechgen10000.mp3"), names);
+        assertTrue(ArticleNames.NATURAL_ORDER.compare("a9b", "a10") < 0);
+        assertTrue(ArticleNames.NATURAL_ORDER.compare("a", "a1") < 0);
+        assertEquals(0, ArticleNames.NATURAL_ORDER.compare("a1", "a1"));
+    }
+
+    @Test
+    public void onlyConfiguredExtensionsAreArticles() {
+        assertTrue(ArticleNames.isArticle("speechgen0001.mp3"));
+        assertTrue(ArticleNames.isArticle("Part 1.OGG"));
+        assertFalse(ArticleNames.isArticle("speechgen0001.mp3.part"));
+        assertFalse(ArticleNames.isArticle(".hidden.mp3"));
+        assertFalse(ArticleNames.isArticle(".mp3"));
+        assertFalse(ArticleNames.isArticle("notes.txt"));
+
+        ArticleNames.setExtensions(new String[] { "wav" });
+        assertTrue(ArticleNames.isArticle("speechgen0001.wav"));
+        assertFalse(ArticleNames.isArticle("speechgen0001.mp3"));
+
+        // An empty list keeps what we had
+        ArticleNames.setExtensions(new String[0]);
+        assertTrue(ArticleNames.isArticle("speechgen0001.wav"));
+    }
+}
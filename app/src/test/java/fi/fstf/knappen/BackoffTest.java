@@ -0,0 +1,50 @@
+package fi.fstf.knappen;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * The waiting time doubles for each failed try, stays under the max and is spread out by the jitter.
+ */
+public class BackoffTest {
+
+    @Test
+    public void delayDoublesUpToMax() {
+        Backoff backoff = new Backoff(1000, 8000, 10);
+        long[] expected = { 1000, 2000, 4000, 8000, 8000, 8000 };
+        for (int i = 0; i < expected.length; i++) {
+            for (int sample = 0; sample < 100; sample++) {
+                long delay = backoff.getDelayMillis(i + 1);
+                assertTrue(delay >= expected[i] / 2);
+                assertTrue(delay <= expected[i]);
+            }
+        }
+    }
+
+    @Test
+    public void delayIsJittered() {
+        Backoff backoff = new Backoff(60 * 1000, 60 * 60 * 1000, 10);
+        long first = backoff.getDelayMillis(3);
+        boolean different = false;
+        for (int sample = 0; sample < 100 && !different; sample++)
+            different = backoff.getDelayMillis(3) != first;
+        assertTrue(different);
+    }
+
+    @Test
+    public void stopsAfterMaxAttempts() {
+        Backoff backoff = new Backoff(1000, 8000, 3);
+        assertTrue(backoff.canRetry(1));
+        assertTrue(backoff.canRetry(2));
+        assertFalse(backoff.canRetry(3));
+    }
+
+    @Test
+    public void largeAttemptCountDoesNotOverflow() {
+        Backoff backoff = new Backoff(2 * 60 * 1000, 60 * 60 * 1000, 10);
+        long delay = backoff.getDelayMillis(1000);
+        assertTrue(delay >= 30 * 60 * 1000);
+        assertTrue(delay <= 60 * 60 * 1000);
+    }
+}
@@ -0,0 +1,183 @@
+package fi.fstf.knappen;
+
+import org.apache.commons.net.ftp.FTPFile;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static fi.fstf.knappen.TestFixtures.*;
+import static org.junit.Assert.*;
+
+/**
+ * A paper is published again with one article added in the middle, only the new article should need a download.
+ */
+public class BlobStoreTest {
+
+    private static final String DISTRIBUTOR = "01";
+    private static final String FOLDER = "20190521";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File localRoot;
+    private File localFolder;
+    private File blobFolder;
+    private BlobStore blobStore;
+
+    @Before
+    public void setUp() throws Exception {
+        localRoot = temporaryFolder.newFolder("local");
+        localFolder = new File(localRoot, FOLDER + "/" + DISTRIBUTOR);
+        assertTrue(localFolder.mkdirs());
+
+        // android.system.Os is not there on the build machine, the same links are made with java.nio
+        blobFolder = temporaryFolder.newFolder("blobs");
+        blobStore = new BlobStore(blobFolder) {
+            @Override
+            protected boolean link(File existing, File newLink) {
+                try {
+                    Files.createLink(newLink.toPath(), existing.toPath());
+                    return true;
+                } catch (IOException e) {
+                    return false;
+                }
+            }
+
+            @Override
+            protected long getLinkCount(File file) {
+                try {
+                    return ((Number) Files.getAttribute(file.toPath(), "unix:nlink")).longValue();
+                } catch (Exception e) {
+                    return -1;
+                }
+            }
+        };
+    }
+
+    @Test
+    public void insertedArticleCostsOneDownload() throws Exception {
+        // Five articles downloaded and verified, each one is stored as a blob
+        List<byte[]> articles = new ArrayList<>();
+        for (int i = 1; i <= 5; i++) {
+            byte[] content = createContent(i);
+            articles.add(content);
+            File file = new File(localFolder, createFileName(i));
+            Files.write(file.toPath(), content);
+            assertTrue(blobStore.store(file, md5(content)));
+        }
+
+        // Published again with a new third article, the old articles 3, 4 and 5 are now 4, 5 and 6
+        articles.add(2, createContent(99));
+        FTPFile[] serverFiles = new FTPFile[articles.size()];
+        Map<String, String> serverChecksums = new HashMap<>();
+        for (int i = 0; i < articles.size(); i++) {
+            serverFiles[i] = new FTPFile();
+            serverFiles[i].setName(createFileName(i + 1));
+            serverFiles[i].setSize(articles.get(i).length);
+            serverFiles[i].setType(FTPFile.FILE_TYPE);
+            serverChecksums.put(createFileName(i + 1), md5(articles.get(i)));
+        }
+        FTPFile serverFolder = new FTPFile();
+        serverFolder.setName(FOLDER);
+        serverFolder.setType(FTPFile.DIRECTORY_TYPE);
+
+        // Every article from the third one has another size now
+        List<DownloadJob> plan = new DownloadPlanner(0).createDownloadPlan(new FTPFile[] { serverFolder }, new FTPFile[][] { serverFiles },
+                DownloadPlanner.createLocalIndex(localRoot, DISTRIBUTOR));
+        assertEquals(4, plan.size());
+
+        List<DownloadJob> downloads = new ArrayList<>();
+        for (DownloadJob job : plan) {
+            if (!blobStore.relink(serverChecksums.get(job.getFileName()), new File(localFolder, job.getFileName()), 0))
+                downloads.add(job);
+        }
+
+        assertEquals(1, downloads.size());
+        assertEquals(createFileName(3), downloads.get(0).getFileName());
+        for (int i = 4; i <= 6; i++)
+            assertArrayEquals(articles.get(i - 1), Files.readAllBytes(new File(localFolder, createFileName(i)).toPath()));
+        assertArrayEquals(articles.get(0), Files.readAllBytes(new File(localFolder, createFileName(1)).toPath()));
+    }
+
+    @Test
+    public void unusedBlobsAreDeleted() throws Exception {
+        File kept = new File(localFolder, createFileName(1));
+        File deleted = new File(localFolder, createFileName(2));
+        Files.write(kept.toPath(), createContent(1));
+        Files.write(deleted.toPath(), createContent(2));
+        assertTrue(blobStore.store(kept, md5(createContent(1))));
+        assertTrue(blobStore.store(deleted, md5(createContent(2))));
+
+        // Deleting the old newspaper leaves the blob as the only link
+        assertTrue(deleted.delete());
+        assertEquals(1, blobStore.collectGarbage());
+
+        assertNotNull(blobStore.getBlob(md5(createContent(1))));
+        assertNull(blobStore.getBlob(md5(createContent(2))));
+        assertFalse(blobStore.relink(md5(createContent(2)), deleted, 0));
+    }
+
+    @Test
+    public void storingTheSameContentTwiceKeepsTheFirstBlob() throws Exception {
+        File first = new File(localFolder, createFileName(1));
+        File second = new File(localFolder, createFileName(2));
+        Files.write(first.toPath(), createContent(1));
+        Files.write(second.toPath(), createContent(1));
+
+        assertTrue(blobStore.store(first, md5(createContent(1))));
+        assertFalse(blobStore.store(second, md5(createContent(1))));
+        assertFalse(blobStore.store(second, "not a hash"));
+    }
+
+    @Test
+    public void evictedFolderOnlyFreesSpaceWithItsBlobs() throws Exception {
+        // An old paper and the paper that is played, every article is stored as a blob
+        File oldFolder = new File(localRoot, "20190520/" + DISTRIBUTOR);
+        assertTrue(oldFolder.mkdirs());
+        long oldBytes = 0;
+        for (int i = 1; i <= 3; i++) {
+            Files.write(new File(oldFolder, createFileName(i)).toPath(), createContent(i));
+            Files.write(new File(localFolder, createFileName(i)).toPath(), createContent(10 + i));
+            assertTrue(blobStore.store(new File(oldFolder, createFileName(i)), md5(createContent(i))));
+            assertTrue(blobStore.store(new File(localFolder, createFileName(i)), md5(createContent(10 + i))));
+            oldBytes += createContent(i).length;
+        }
+        long blobBytes = getBytes(blobFolder);
+
+        // A newer paper needs room, the old one is evicted
+        List<DownloadJob> plan = Arrays.asList(new DownloadJob("20190522", createFtpFile(createFileName(1), 1000)));
+        assertEquals(Arrays.asList("20190520"), DownloadPlanner.selectFoldersToDelete(plan, localRoot, DISTRIBUTOR, FOLDER));
+        for (File file : oldFolder.listFiles())
+            assertTrue(file.delete());
+
+        // The blobs still hold the old articles, nothing is free before the garbage is collected
+        assertEquals(blobBytes, getBytes(blobFolder));
+        assertEquals(3, blobStore.collectGarbage());
+        assertEquals(blobBytes - oldBytes, getBytes(blobFolder));
+        assertNotNull(blobStore.getBlob(md5(createContent(11))));
+    }
+
+    private static long getBytes(File folder) {
+        long bytes = 0;
+        for (File file : folder.listFiles())
+            bytes += file.length();
+        return bytes;
+    }
+
+    private static byte[] createContent(int article) {
+        // Different sizes, like real articles
+        byte[] content = new byte[1000 + article * 37];
+        Arrays.fill(content, (byte) article);
+        return content;
+    }
+}
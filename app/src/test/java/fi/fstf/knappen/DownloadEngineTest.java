@@ -0,0 +1,343 @@
+package fi.fstf.knappen;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static fi.fstf.knappen.TestFixtures.*;
+import static org.junit.Assert.*;
+
+/**
+ * Downloads a week of newspapers from the local ftp stand-in, with one session and with several sessions.
+ */
+public class DownloadEngineTest {
+
+    private static final int NUM_FOLDERS = 8;
+    private static final int FILES_PER_FOLDER = 25;
+    private static final int FILE_SIZE = 32 * 1024;
+    private static final long COMMAND_LATENCY_MILLIS = 10;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File serverRoot;
+    private LocalFtpServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        serverRoot = temporaryFolder.newFolder("server");
+        LocalFtpServer.createNewspaperTree(serverRoot, "20190515", NUM_FOLDERS, FILES_PER_FOLDER, FILE_SIZE);
+        server = new LocalFtpServer(serverRoot, COMMAND_LATENCY_MILLIS);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        FTPConnectionManager.getInstance().closeIdleConnections();
+        server.stop();
+    }
+
+    @Test
+    public void downloadsEveryFileNewestFolderFirst() throws Exception {
+        File localRoot = temporaryFolder.newFolder("local");
+        final List<DownloadJob> finished = Collections.synchronizedList(new ArrayList<DownloadJob>());
+
+        DownloadEngine engine = new DownloadEngine(server.createDistributor("01"), localRoot, DownloadEngine.DEFAULT_MAX_SESSIONS);
+        int downloaded = engine.download(createJobs(serverRoot), new DownloadEngine.Listener() {
+            @Override
+            public void onFileDownloaded(DownloadJob job, File localFile) {
+                finished.add(job);
+            }
+
+            @Override
+            public void onFileFailed(DownloadJob job) {
+                fail("Failed to download " + job.getFileName());
+            }
+
+            @Override
+            public void onFilePlayable(DownloadJob job, File localFile) {
+            }
+        });
+
+        assertEquals(NUM_FOLDERS * FILES_PER_FOLDER, downloaded);
+        assertEquals(0, engine.getFilesFailed());
+
+        // The first files come from the newest folder
+        String newestFolder = String.valueOf(20190515 + NUM_FOLDERS - 1);
+        for (int i = 0; i < DownloadEngine.DEFAULT_MAX_SESSIONS; i++)
+            assertEquals(newestFolder, finished.get(i).getFolderName());
+
+        File localFile = new File(localRoot, newestFolder + "/01/speechgen0001.mp3");
+        assertEquals(FILE_SIZE, localFile.length());
+    }
+
+    @Test
+    public void resumesPartiallyDownloadedFile() throws Exception {
+        String folderName = String.valueOf(20190515 + NUM_FOLDERS - 1);
+        File serverFile = new File(serverRoot, folderName + "/speechgen0001.mp3");
+        byte[] serverContent = Files.readAllBytes(serverFile.toPath());
+
+        // The first half was downloaded before the network dropped
+        File localRoot = temporaryFolder.newFolder("local");
+        File localFolder = new File(localRoot, folderName + "/01");
+        assertTrue(localFolder.mkdirs());
+        File partFile = new File(localFolder, "speechgen0001.mp3" + DownloadEngine.PARTIAL_FILE_SUFFIX);
+        Files.write(partFile.toPath(), Arrays.copyOf(serverContent, FILE_SIZE / 2));
+
+        List<DownloadJob> jobs = new ArrayList<>();
+        jobs.add(new DownloadJob(folderName, createFtpFile(serverFile)));
+        DownloadEngine engine = new DownloadEngine(server.createDistributor("01"), localRoot, 1);
+        assertEquals(1, engine.download(jobs, null));
+
+        File localFile = new File(localFolder, "speechgen0001.mp3");
+        assertArrayEquals(serverContent, Files.readAllBytes(localFile.toPath()));
+        assertFalse(partFile.exists());
+    }
+
+    @Test
+    public void resumeThatIsCutAgainKeepsItsBytes() throws Exception {
+        String folderName = String.valueOf(20190515 + NUM_FOLDERS - 1);
+        File serverFile = new File(serverRoot, folderName + "/speechgen0001.mp3");
+
+        // The first try and the first resume are both cut after a quarter of the file
+        server.cutNextDownloads(2, FILE_SIZE / 4);
+        File localRoot = temporaryFolder.newFolder("local");
+        List<DownloadJob> jobs = new ArrayList<>();
+        jobs.add(new DownloadJob(folderName, createFtpFile(serverFile)));
+        DownloadEngine engine = new DownloadEngine(server.createDistributor("01"), localRoot, 1);
+        assertEquals(1, engine.download(jobs, null));
+        assertArrayEquals(Files.readAllBytes(serverFile.toPath()), Files.readAllBytes(new File(localRoot, folderName + "/01/speechgen0001.mp3").toPath()));
+
+        // Both tries after a cut went on from the part file, no byte was sent twice
+        assertEquals(2, server.getDownloadsCut());
+        assertEquals(2, server.getRestCommands());
+        assertEquals(FILE_SIZE, server.getBytesSent());
+    }
+
+    @Test
+    public void failedFileIsDownloadedWhenTriedAgain() throws Exception {
+        String folderName = String.valueOf(20190515 + NUM_FOLDERS - 1);
+        List<DownloadJob> jobs = createJobs(serverRoot, folderName).subList(0, 3);
+
+        // The second article is busy on the server the first time
+        server.refuseFirstRetrOf(createFileName(2));
+        File localRoot = temporaryFolder.newFolder("local");
+        DownloadEngine engine = new DownloadEngine(server.createDistributor("01"), localRoot, 1);
+        assertEquals(3, engine.download(jobs, null));
+        assertEquals(0, engine.getFilesFailed());
+
+        // Three articles and the checksum file that isn't there, and the second article once more
+        assertEquals(5, server.getRetrCommands());
+        byte[] serverContent = Files.readAllBytes(new File(serverRoot, folderName + "/" + createFileName(2)).toPath());
+        assertArrayEquals(serverContent, Files.readAllBytes(new File(localRoot, folderName + "/01/" + createFileName(2)).toPath()));
+    }
+
+    @Test
+    public void quarantinesFileWithWrongChecksum() throws Exception {
+        String folderName = String.valueOf(20190515 + NUM_FOLDERS - 1);
+        File serverFolder = new File(serverRoot, folderName);
+
+        // The checksum file has the right MD5 for all files except speechgen0002.mp3
+        StringBuilder checksums = new StringBuilder();
+        List<DownloadJob> jobs = new ArrayList<>();
+        for (int i = 1; i <= 3; i++) {
+            File serverFile = new File(serverFolder, String.format("speechgen%04d.mp3", i));
+            String md5 = md5(Files.readAllBytes(serverFile.toPath()));
+            if (i == 2)
+                md5 = md5(new byte[0]);
+            checksums.append(md5).append("  ").append(serverFile.getName()).append("\n");
+            jobs.add(new DownloadJob(folderName, createFtpFile(serverFile)));
+        }
+        Files.write(new File(serverFolder, FTPChecksum.CHECKSUM_FILE_NAME).toPath(), checksums.toString().getBytes("UTF-8"));
+
+        File localRoot = temporaryFolder.newFolder("local");
+        File quarantineFolder = temporaryFolder.newFolder("quarantine");
+        DownloadEngine engine = new DownloadEngine(server.createDistributor("01"), localRoot, 1);
+        engine.setQuarantineFolder(quarantineFolder);
+
+        assertEquals(2, engine.download(jobs, null));
+        assertEquals(1, engine.getFilesFailed());
+
+        File localFolder = new File(localRoot, folderName + "/01");
+        assertTrue(new File(localFolder, "speechgen0001.mp3").exists());
+        assertFalse(new File(localFolder, "speechgen0002.mp3").exists());
+        assertFalse(new File(localFolder, "speechgen0002.mp3" + DownloadEngine.PARTIAL_FILE_SUFFIX).exists());
+        assertTrue(new File(localFolder, "speechgen0003.mp3").exists());
+        assertTrue(new File(quarantineFolder, folderName + "_01_speechgen0002.mp3").exists());
+    }
+
+    @Test
+    public void missingChecksumFileIsOnlyAskedForOnceInEachFolder() throws Exception {
+        // The server has no checksum files, each folder's file is asked for once and not again for every article
+        DownloadEngine engine = new DownloadEngine(server.createDistributor("01"), temporaryFolder.newFolder("local"), 1);
+        assertEquals(NUM_FOLDERS * FILES_PER_FOLDER, engine.download(createJobs(serverRoot), null));
+        assertEquals(0, engine.getFilesFailed());
+        assertEquals(NUM_FOLDERS * FILES_PER_FOLDER + NUM_FOLDERS, server.getRetrCommands());
+    }
+
+    @Test
+    public void checksumFileIsReadAfterAFolderWithoutOne() throws Exception {
+        // The newest folder has no checksum file, the one before has a file with a wrong MD5 for speechgen0001.mp3
+        String folderName = String.valueOf(20190515 + NUM_FOLDERS - 2);
+        Files.write(new File(serverRoot, folderName + "/" + FTPChecksum.CHECKSUM_FILE_NAME).toPath(), (md5(new byte[0]) + "  " + createFileName(1) + "\n").getBytes("UTF-8"));
+
+        // One session downloads the newest folder first, the missing file there doesn't stop it from reading the next one
+        File localRoot = temporaryFolder.newFolder("local");
+        DownloadEngine engine = new DownloadEngine(server.createDistributor("01"), localRoot, 1);
+        engine.setQuarantineFolder(temporaryFolder.newFolder("quarantine"));
+        assertEquals(NUM_FOLDERS * FILES_PER_FOLDER - 1, engine.download(createJobs(serverRoot), null));
+        assertEquals(1, engine.getFilesFailed());
+        assertFalse(new File(localRoot, folderName + "/01/" + createFileName(1)).exists());
+    }
+
+    @Test
+    public void stagedFolderIsOnlyPlayableWithItsFirstArticle() throws Exception {
+        final File localRoot = temporaryFolder.newFolder("local");
+        File stagingRoot = temporaryFolder.newFolder("staging");
+        final List<String> problems = Collections.synchronizedList(new ArrayList<String>());
+
+        DownloadEngine engine = new DownloadEngine(server.createDistributor("01"), localRoot, DownloadEngine.DEFAULT_MAX_SESSIONS);
+        engine.setStagingFolder(stagingRoot);
+        int downloaded = engine.download(createJobs(serverRoot), new DownloadEngine.Listener() {
+            @Override
+            public void onFileDownloaded(DownloadJob job, File localFile) {
+            }
+
+            @Override
+            public void onFileFailed(DownloadJob job) {
+                problems.add("Failed to download " + job.getFileName());
+            }
+
+            @Override
+            public void onFilePlayable(DownloadJob job, File localFile) {
+                // Whenever the player hears about a folder, its first article can be played
+                File article = new File(localRoot, job.getFolderName() + "/01/" + createFileName(1));
+                if (article.length() != FILE_SIZE && !DownloadRegistry.getInstance().isPlayable(article))
+                    problems.add(article + " is missing");
+            }
+        });
+
+        assertEquals(NUM_FOLDERS * FILES_PER_FOLDER, downloaded);
+        assertEquals(Collections.emptyList(), problems);
+        for (File folder : serverRoot.listFiles()) {
+            String[] localFiles = new File(localRoot, folder.getName() + "/01").list();
+            assertNotNull(localFiles);
+            assertEquals(FILES_PER_FOLDER, localFiles.length);
+        }
+
+        // Nothing is left behind in the staging folder
+        assertNoFiles(stagingRoot);
+    }
+
+    @Test
+    public void newFolderIsPlayableWhileItsFirstArticleIsDownloading() throws Exception {
+        // Bigger than DownloadRegistry.PLAYABLE_BYTES, the player can start before the article is complete
+        String folderName = "20190601";
+        LocalFtpServer.createNewspaperTree(serverRoot, folderName, 1, 2, 4 * (int) DownloadRegistry.PLAYABLE_BYTES);
+        final List<String> playableWhileDownloading = Collections.synchronizedList(new ArrayList<String>());
+
+        DownloadEngine engine = new DownloadEngine(server.createDistributor("01"), temporaryFolder.newFolder("local"), 1);
+        engine.setStagingFolder(temporaryFolder.newFolder("staging"));
+        int downloaded = engine.download(createJobs(serverRoot, folderName), new DownloadEngine.Listener() {
+            @Override
+            public void onFileDownloaded(DownloadJob job, File localFile) {
+            }
+
+            @Override
+            public void onFileFailed(DownloadJob job) {
+            }
+
+            @Override
+            public void onFilePlayable(DownloadJob job, File localFile) {
+                // The folder is in place, the article itself is still in the download registry
+                if (!localFile.exists() && localFile.getParentFile().isDirectory() && DownloadRegistry.getInstance().isPlayable(localFile))
+                    playableWhileDownloading.add(job.getFileName());
+            }
+        });
+
+        assertEquals(2, downloaded);
+        assertTrue(playableWhileDownloading.contains(createFileName(1)));
+    }
+
+    @Test
+    public void folderWithFailingFirstArticleIsMovedIntoPlace() throws Exception {
+        String folderName = String.valueOf(20190515 + NUM_FOLDERS - 1);
+        List<DownloadJob> jobs = createJobs(serverRoot, folderName).subList(0, 4);
+
+        // The first article has the wrong checksum and can't be downloaded
+        File serverFolder = new File(serverRoot, folderName);
+        Files.write(new File(serverFolder, FTPChecksum.CHECKSUM_FILE_NAME).toPath(), (md5(new byte[0]) + "  " + createFileName(1) + "\n").getBytes("UTF-8"));
+
+        File localRoot = temporaryFolder.newFolder("local");
+        File stagingRoot = temporaryFolder.newFolder("staging");
+        DownloadEngine engine = new DownloadEngine(server.createDistributor("01"), localRoot, 1);
+        engine.setStagingFolder(stagingRoot);
+        assertEquals(3, engine.download(jobs, null));
+        assertEquals(1, engine.getFilesFailed());
+
+        // The other articles don't wait in the staging folder for an article that never comes
+        File localFolder = new File(localRoot, folderName + "/01");
+        assertFalse(new File(localFolder, createFileName(1)).exists());
+        for (int i = 2; i <= 4; i++)
+            assertTrue(new File(localFolder, createFileName(i)).exists());
+        assertNoFiles(stagingRoot);
+    }
+
+    @Test
+    public void sessionCountFollowsTheLimit() throws Exception {
+        assertEquals(1, maxSessionsWhileDownloading(1));
+
+        // Several sessions really download at the same time, but never more than asked for
+        int maxSessions = maxSessionsWhileDownloading(DownloadEngine.DEFAULT_MAX_SESSIONS);
+        assertTrue(maxSessions > 1);
+        assertTrue(maxSessions <= DownloadEngine.DEFAULT_MAX_SESSIONS);
+    }
+
+    @Test
+    public void speedLimitCoversAllSessions() {
+        DownloadEngine engine = new DownloadEngine(server.createDistributor("01"), serverRoot, DownloadEngine.DEFAULT_MAX_SESSIONS);
+        engine.setMaxBytesPerSecond(100 * 1024);
+        long now = 5000000000L;
+
+        // 50 kB at 100 kB/s is half a second, two sessions reading at the same time wait for each other
+        assertEquals(500000000L, engine.reserveThrottle(50 * 1024, now));
+        assertEquals(1000000000L, engine.reserveThrottle(50 * 1024, now));
+
+        // No credit is saved up while the sessions are idle
+        assertEquals(500000000L, engine.reserveThrottle(50 * 1024, now + 10000000000L));
+    }
+
+    @Test
+    public void noSpeedLimitNeverWaits() {
+        DownloadEngine engine = new DownloadEngine(server.createDistributor("01"), serverRoot, DownloadEngine.DEFAULT_MAX_SESSIONS);
+        assertEquals(0, engine.reserveThrottle(1024 * 1024, 5000000000L));
+    }
+
+    private int maxSessionsWhileDownloading(int sessions) throws Exception {
+        // Idle sessions in the pool from an earlier download would be counted too
+        FTPConnectionManager.getInstance().closeIdleConnections();
+        server.resetMaxOpenSessions();
+
+        DownloadEngine engine = new DownloadEngine(server.createDistributor("01"), temporaryFolder.newFolder("local" + sessions), sessions);
+        assertEquals(NUM_FOLDERS * FILES_PER_FOLDER, engine.download(createJobs(serverRoot), null));
+        return server.getMaxOpenSessions();
+    }
+
+    private static void assertNoFiles(File folder) {
+        File[] files = folder.listFiles();
+        assertNotNull(files);
+        for (File file : files) {
+            assertTrue(file.getPath(), file.isDirectory());
+            assertNoFiles(file);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package fi.fstf.knappen;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import static fi.fstf.knappen.TestFixtures.*;
+import static org.junit.Assert.*;
+
+/**
+ * Downloads the same files with the old retrieveFile() stream copy and with the engine's file channel path, and checks that the channel path reuses its buffer.
+ */
+public class DownloadPathTest {
+
+    private static final String FOLDER = "20190520";
+    private static final int FILES = 4;
+    private static final int FILE_SIZE = 256 * 1024 + 17; // Not a multiple of the buffer size, the last read is a short one
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File serverRoot;
+    private LocalFtpServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        serverRoot = temporaryFolder.newFolder("server");
+        LocalFtpServer.createNewspaperTree(serverRoot, FOLDER, 1, FILES, FILE_SIZE);
+        server = new LocalFtpServer(serverRoot, 0);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        FTPConnectionManager.getInstance().closeIdleConnections();
+        server.stop();
+    }
+
+    @Test
+    public void channelPathWritesTheSameBytesAsStreamCopy() throws Exception {
+        File streamRoot = temporaryFolder.newFolder("stream");
+        streamCopy(streamRoot);
+
+        File channelRoot = temporaryFolder.newFolder("channel");
+        DownloadEngine engine = new DownloadEngine(server.createDistributor("01"), channelRoot, 1);
+        assertEquals(FILES, engine.download(createJobs(serverRoot, FOLDER), null));
+
+        for (int i = 1; i <= FILES; i++) {
+            String fileName = createFileName(i);
+            byte[] serverContent = Files.readAllBytes(new File(serverRoot, FOLDER + "/" + fileName).toPath());
+            assertArrayEquals(fileName, serverContent, Files.readAllBytes(new File(streamRoot, fileName).toPath()));
+            assertArrayEquals(fileName, serverContent, Files.readAllBytes(new File(channelRoot, FOLDER + "/01/" + fileName).toPath()));
+        }
+    }
+
+    @Test
+    public void transferBufferIsReusedWhileTheSizeIsTheSame() {
+        FTPClient ftp = new FTPClient();
+        ftp.setBufferSize(64 * 1024);
+        ByteBuffer buffer = DownloadEngine.createTransferBuffer(ftp, null);
+        assertEquals(64 * 1024, buffer.capacity());
+        assertSame(buffer, DownloadEngine.createTransferBuffer(ftp, buffer));
+
+        // A new session with another buffer size gets a new buffer
+        ftp.setBufferSize(128 * 1024);
+        ByteBuffer newBuffer = DownloadEngine.createTransferBuffer(ftp, buffer);
+        assertNotSame(buffer, newBuffer);
+        assertEquals(128 * 1024, newBuffer.capacity());
+    }
+
+    @Test
+    public void transferBufferIsNeverSmallerThanEightKilobytes() {
+        FTPClient ftp = new FTPClient();
+        ftp.setBufferSize(0);
+        assertEquals(8 * 1024, DownloadEngine.createTransferBuffer(ftp, null).capacity());
+    }
+
+    // The way DownloadEngine copied files before, kept here to compare with
+    private void streamCopy(File localRoot) throws Exception {
+        FTPClient ftp = FTPConnectionManager.getInstance().connectToFTP("127.0.0.1", server.getPort(), LocalFtpServer.USERNAME, LocalFtpServer.PASSWORD);
+        assertNotNull(ftp);
+        assertTrue(ftp.changeWorkingDirectory("/" + FOLDER));
+        try {
+            for (DownloadJob job : createJobs(serverRoot, FOLDER)) {
+                File file = new File(localRoot, job.getFileName());
+                OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(file), Math.max(8 * 1024, ftp.getBufferSize()));
+                try {
+                    assertTrue(ftp.retrieveFile(job.getFileName(), outputStream));
+                } finally {
+                    outputStream.close();
+                }
+            }
+        } finally {
+            FTPConnectionManager.getInstance().disconnectFromFTP(ftp);
+        }
+    }
+}
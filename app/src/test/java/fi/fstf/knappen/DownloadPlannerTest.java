@@ -0,0 +1,359 @@
+package fi.fstf.knappen;
+
+import org.apache.commons.net.ftp.FTPFile;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static fi.fstf.knappen.TestFixtures.*;
+import static org.junit.Assert.*;
+
+/**
+ * Compares server listings with local folders, the files are matched by name and not by position in the lists.
+ */
+public class DownloadPlannerTest {
+
+    private static final String DISTRIBUTOR = "01";
+    private static final int FILE_SIZE = 1000;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File localRoot;
+    private DownloadPlanner planner;
+
+    @Before
+    public void setUp() throws Exception {
+        localRoot = temporaryFolder.newFolder("local");
+        planner = new DownloadPlanner(0);
+    }
+
+    @Test
+    public void emptyLocalFolderDownloadsEverything() throws Exception {
+        FTPFile[] folders = { createFtpFolder("20190520"), createFtpFolder("20190521") };
+        FTPFile[][] files = {
+                { createFtpFile("speechgen0001.mp3", FILE_SIZE), createFtpFile("speechgen0002.mp3", FILE_SIZE) },
+                { createFtpFile("speechgen0001.mp3", FILE_SIZE) }
+        };
+
+        List<DownloadJob> plan = planner.createDownloadPlan(folders, files, DownloadPlanner.createLocalIndex(localRoot, DISTRIBUTOR));
+
+        assertEquals(3, plan.size());
+        assertEquals("20190521", plan.get(0).getFolderName()); // Newest folder first
+        assertEquals("20190520", plan.get(1).getFolderName());
+        assertEquals("speechgen0001.mp3", plan.get(1).getFileName());
+        assertEquals("speechgen0002.mp3", plan.get(2).getFileName());
+    }
+
+    @Test
+    public void gapOnlyDownloadsMissingFile() throws Exception {
+        // speechgen0034.mp3 is missing locally, the old positional compare would download every file after it
+        FTPFile[] serverFiles = new FTPFile[40];
+        for (int i = 0; i < serverFiles.length; i++)
+        {
+            String fileName = createFileName(i + 1);
+            serverFiles[i] = createFtpFile(fileName, FILE_SIZE);
+            if (i + 1 != 34)
+                createLocalFile("20190521", fileName, FILE_SIZE);
+        }
+
+        List<DownloadJob> plan = planner.createDownloadPlan(new FTPFile[] { createFtpFolder("20190521") }, new FTPFile[][] { serverFiles },
+                DownloadPlanner.createLocalIndex(localRoot, DISTRIBUTOR));
+
+        assertEquals(1, plan.size());
+        assertEquals("speechgen0034.mp3", plan.get(0).getFileName());
+    }
+
+    @Test
+    public void gapOnServerDownloadsNothing() throws Exception {
+        // The server has removed one article, the rest are the same files as we have locally
+        List<FTPFile> serverFiles = new ArrayList<>();
+        for (int i = 1; i <= 10; i++)
+        {
+            createLocalFile("20190521", createFileName(i), FILE_SIZE);
+            if (i != 5)
+                serverFiles.add(createFtpFile(createFileName(i), FILE_SIZE));
+        }
+
+        List<DownloadJob> plan = planner.createDownloadPlan(new FTPFile[] { createFtpFolder("20190521") },
+                new FTPFile[][] { serverFiles.toArray(new FTPFile[0]) }, DownloadPlanner.createLocalIndex(localRoot, DISTRIBUTOR));
+
+        assertTrue(plan.isEmpty());
+    }
+
+    @Test
+    public void reorderedListsDownloadNothing() throws Exception {
+        // Neither the server nor File.listFiles() promise any order
+        createLocalFile("20190520", "speechgen0001.mp3", FILE_SIZE);
+        createLocalFile("20190521", "speechgen0001.mp3", FILE_SIZE);
+        createLocalFile("20190521", "speechgen0002.mp3", FILE_SIZE + 1);
+        createLocalFile("20190521", "speechgen0003.mp3", FILE_SIZE + 2);
+
+        FTPFile[] folders = { createFtpFolder("20190521"), createFtpFolder("20190520") };
+        FTPFile[][] files = {
+                { createFtpFile("speechgen0003.mp3", FILE_SIZE + 2), createFtpFile("speechgen0001.mp3", FILE_SIZE), createFtpFile("speechgen0002.mp3", FILE_SIZE + 1) },
+                { createFtpFile("speechgen0001.mp3", FILE_SIZE) }
+        };
+
+        List<DownloadJob> plan = planner.createDownloadPlan(folders, files, DownloadPlanner.createLocalIndex(localRoot, DISTRIBUTOR));
+
+        assertTrue(plan.isEmpty());
+    }
+
+    @Test
+    public void fileNamesAreMatchedWithoutCase() throws Exception {
+        // The server renamed the articles to lower case, only the changed one and the new one are downloaded
+        createLocalFile("20190521", "Speechgen0001.MP3", FILE_SIZE);
+        File renamed = createLocalFile("20190521", "SPEECHGEN0002.mp3", FILE_SIZE);
+        FTPFile[][] files = {
+                { createFtpFile("speechgen0001.mp3", FILE_SIZE), createFtpFile("speechgen0002.mp3", FILE_SIZE + 1), createFtpFile("speechgen0003.mp3", FILE_SIZE) }
+        };
+
+        List<DownloadJob> plan = planner.createDownloadPlan(new FTPFile[] { createFtpFolder("20190521") }, files,
+                DownloadPlanner.createLocalIndex(localRoot, DISTRIBUTOR));
+
+        assertEquals(2, plan.size());
+        assertEquals("speechgen0002.mp3", plan.get(0).getFileName());
+        assertEquals(renamed, plan.get(0).getReplacedFile()); // The newspaper must not have it twice
+        assertEquals("speechgen0003.mp3", plan.get(1).getFileName());
+        assertNull(plan.get(1).getReplacedFile());
+    }
+
+    @Test
+    public void mixedFolderDownloadsNewChangedAndRepublishedFiles() throws Exception {
+        File unchanged = createLocalFile("20190521", "speechgen0001.mp3", FILE_SIZE);
+        createLocalFile("20190521", "speechgen0002.mp3", FILE_SIZE - 100);               // Changed size on server
+        File republished = createLocalFile("20190521", "speechgen0003.mp3", FILE_SIZE);  // Same size, newer on server
+        createLocalFile("20190521", "speechgen0004.mp3" + DownloadEngine.PARTIAL_FILE_SUFFIX, FILE_SIZE / 2); // Half downloaded
+
+        Calendar downloadTime = Calendar.getInstance();
+        downloadTime.add(Calendar.HOUR, -2);
+        assertTrue(unchanged.setLastModified(downloadTime.getTimeInMillis()));
+        assertTrue(republished.setLastModified(downloadTime.getTimeInMillis()));
+
+        Calendar publishTime = Calendar.getInstance();
+        FTPFile[] serverFiles = {
+                createFtpFile("speechgen0001.mp3", FILE_SIZE, downloadTime),
+                createFtpFile("speechgen0002.mp3", FILE_SIZE, downloadTime),
+                createFtpFile("speechgen0003.mp3", FILE_SIZE, publishTime),
+                createFtpFile("speechgen0004.mp3", FILE_SIZE, downloadTime),
+                createFtpFile("speechgen0005.mp3", FILE_SIZE, downloadTime)                 // New article
+        };
+
+        Map<String, Map<String, File>> localIndex = DownloadPlanner.createLocalIndex(localRoot, DISTRIBUTOR);
+        assertFalse(localIndex.get("20190521").containsKey("speechgen0004.mp3" + DownloadEngine.PARTIAL_FILE_SUFFIX));
+
+        List<DownloadJob> plan = planner.createDownloadPlan(new FTPFile[] { createFtpFolder("20190521") }, new FTPFile[][] { serverFiles }, localIndex);
+
+        assertEquals(4, plan.size());
+        assertEquals("speechgen0002.mp3", plan.get(0).getFileName());
+        assertEquals("speechgen0003.mp3", plan.get(1).getFileName());
+        assertEquals("speechgen0004.mp3", plan.get(2).getFileName());
+        assertEquals("speechgen0005.mp3", plan.get(3).getFileName());
+    }
+
+    @Test
+    public void sizeToleranceIgnoresSmallDifferences() throws Exception {
+        createLocalFile("20190521", "speechgen0001.mp3", FILE_SIZE - 16);
+        createLocalFile("20190521", "speechgen0002.mp3", FILE_SIZE - 64);
+
+        FTPFile[][] files = { { createFtpFile("speechgen0001.mp3", FILE_SIZE), createFtpFile("speechgen0002.mp3", FILE_SIZE) } };
+        List<DownloadJob> plan = new DownloadPlanner(32).createDownloadPlan(new FTPFile[] { createFtpFolder("20190521") }, files,
+                DownloadPlanner.createLocalIndex(localRoot, DISTRIBUTOR));
+
+        assertEquals(1, plan.size());
+        assertEquals("speechgen0002.mp3", plan.get(0).getFileName());
+    }
+
+    @Test
+    public void folderWithoutListingIsSkipped() throws Exception {
+        FTPFile[] folders = { createFtpFolder("20190520"), createFtpFolder("20190521") };
+        FTPFile[][] files = { null, { createFtpFile("speechgen0001.mp3", FILE_SIZE) } };
+
+        List<DownloadJob> plan = planner.createDownloadPlan(folders, files, DownloadPlanner.createLocalIndex(localRoot, DISTRIBUTOR));
+
+        assertEquals(1, plan.size());
+        assertEquals("20190521", plan.get(0).getFolderName());
+    }
+
+    @Test
+    public void listingStopsAtFirstDownloadedFolder() throws Exception {
+        createLocalFile("20190521", "speechgen0001.mp3", FILE_SIZE);
+        createLocalFile("20190521", "speechgen0002.mp3", FILE_SIZE);
+
+        Map<String, SyncManifestItem> manifest = new HashMap<>();
+        manifest.put("20190521", createManifestItem("20190521", null, 2));
+        manifest.put("20190520", createManifestItem("20190520", null, 2)); // Older folders are not looked at, even with files missing
+
+        // The server gives the folders in any order
+        FTPFile[] folders = { createFtpFolder("20190520"), createFtpFolder("20190523"), createFtpFolder("20190521"), createFtpFolder("20190522") };
+        List<String> foldersToList = DownloadPlanner.selectFoldersToList(folders, manifest, DownloadPlanner.createLocalIndex(localRoot, DISTRIBUTOR), false);
+
+        assertEquals(Arrays.asList("20190523", "20190522"), foldersToList);
+    }
+
+    @Test
+    public void changedOrIncompleteFolderDoesNotStopListing() throws Exception {
+        Calendar listed = Calendar.getInstance();
+        listed.setTimeInMillis(1558400000000L);
+        Calendar changed = Calendar.getInstance();
+        changed.setTimeInMillis(1558403600000L);
+
+        createLocalFile("20190522", "speechgen0001.mp3", FILE_SIZE);
+        createLocalFile("20190521", "speechgen0001.mp3", FILE_SIZE);
+        createLocalFile("20190520", "speechgen0001.mp3", FILE_SIZE);
+
+        Map<String, SyncManifestItem> manifest = new HashMap<>();
+        manifest.put("20190522", createManifestItem("20190522", SyncManifestDAO.createFingerprint(createFtpFolder("20190522", listed)), 1));
+        manifest.put("20190521", createManifestItem("20190521", null, 2)); // A file was deleted locally
+        manifest.put("20190520", createManifestItem("20190520", SyncManifestDAO.createFingerprint(createFtpFolder("20190520", listed)), 1));
+
+        FTPFile[] folders = { createFtpFolder("20190522", changed), createFtpFolder("20190521"), createFtpFolder("20190520", listed) };
+        List<String> foldersToList = DownloadPlanner.selectFoldersToList(folders, manifest, DownloadPlanner.createLocalIndex(localRoot, DISTRIBUTOR), false);
+
+        assertEquals(Arrays.asList("20190522", "20190521"), foldersToList);
+    }
+
+    @Test
+    public void unchangedFolderIsSkipped() throws Exception {
+        Calendar listed = Calendar.getInstance();
+        listed.setTimeInMillis(1558400000000L);
+        createLocalFile("20190521", "speechgen0001.mp3", FILE_SIZE);
+        createLocalFile("20190521", "speechgen0002.mp3", FILE_SIZE);
+
+        Map<String, SyncManifestItem> manifest = new HashMap<>();
+        manifest.put("20190521", createManifestItem("20190521", SyncManifestDAO.createFingerprint(createFtpFolder("20190521", listed)), 2));
+
+        FTPFile[] folders = { createFtpFolder("20190521", listed) };
+        assertTrue(DownloadPlanner.selectFoldersToList(folders, manifest, DownloadPlanner.createLocalIndex(localRoot, DISTRIBUTOR), false).isEmpty());
+    }
+
+    @Test
+    public void folderWithFilesMissingLocallyIsListed() throws Exception {
+        Calendar listed = Calendar.getInstance();
+        listed.setTimeInMillis(1558400000000L);
+        createLocalFile("20190521", "speechgen0001.mp3", FILE_SIZE);
+
+        // Same fingerprint, but only one of the two downloaded files is left
+        Map<String, SyncManifestItem> manifest = new HashMap<>();
+        manifest.put("20190521", createManifestItem("20190521", SyncManifestDAO.createFingerprint(createFtpFolder("20190521", listed)), 2));
+
+        FTPFile[] folders = { createFtpFolder("20190521", listed) };
+        assertEquals(Arrays.asList("20190521"), DownloadPlanner.selectFoldersToList(folders, manifest, DownloadPlanner.createLocalIndex(localRoot, DISTRIBUTOR), false));
+    }
+
+    @Test
+    public void serverWithoutFolderTimesSkipsByName() throws Exception {
+        Calendar listed = Calendar.getInstance();
+        listed.setTimeInMillis(1558400000000L);
+        createLocalFile("20190521", "speechgen0001.mp3", FILE_SIZE);
+        createLocalFile("20190520", "speechgen0001.mp3", FILE_SIZE);
+
+        // Saved without a fingerprint, and saved while the server still gave folder times
+        Map<String, SyncManifestItem> manifest = new HashMap<>();
+        manifest.put("20190521", createManifestItem("20190521", null, 1));
+        manifest.put("20190520", createManifestItem("20190520", SyncManifestDAO.createFingerprint(createFtpFolder("20190520", listed)), 1));
+        Map<String, Map<String, File>> localIndex = DownloadPlanner.createLocalIndex(localRoot, DISTRIBUTOR);
+
+        assertTrue(DownloadPlanner.selectFoldersToList(new FTPFile[] { createFtpFolder("20190521") }, manifest, localIndex, false).isEmpty());
+        assertTrue(DownloadPlanner.selectFoldersToList(new FTPFile[] { createFtpFolder("20190520") }, manifest, localIndex, false).isEmpty());
+
+        // A folder we never downloaded is always listed
+        assertEquals(Arrays.asList("20190522"), DownloadPlanner.selectFoldersToList(new FTPFile[] { createFtpFolder("20190522"), createFtpFolder("20190521") }, manifest, localIndex, false));
+    }
+
+    @Test
+    public void deepVerifyListsAllFolders() throws Exception {
+        createLocalFile("20190521", "speechgen0001.mp3", FILE_SIZE);
+
+        Map<String, SyncManifestItem> manifest = new HashMap<>();
+        manifest.put("20190521", createManifestItem("20190521", null, 1));
+
+        FTPFile[] folders = { createFtpFolder("20190520"), createFtpFolder("20190521") };
+        List<String> foldersToList = DownloadPlanner.selectFoldersToList(folders, manifest, DownloadPlanner.createLocalIndex(localRoot, DISTRIBUTOR), true);
+
+        assertEquals(Arrays.asList("20190521", "20190520"), foldersToList);
+    }
+
+    @Test
+    public void partFilesAreNotCountedTwice() throws Exception {
+        createLocalFile("20190521", "speechgen0001.mp3" + DownloadEngine.PARTIAL_FILE_SUFFIX, 400);
+
+        List<DownloadJob> plan = new ArrayList<>();
+        plan.add(new DownloadJob("20190521", createFtpFile("speechgen0001.mp3", FILE_SIZE)));
+        plan.add(new DownloadJob("20190521", createFtpFile("speechgen0002.mp3", FILE_SIZE)));
+
+        assertEquals(2 * FILE_SIZE - 400, DownloadPlanner.getBytesNeeded(plan, localRoot, DISTRIBUTOR));
+    }
+
+    @Test
+    public void onlyFirstFilesThatFitAreSelected() throws Exception {
+        FTPFile[] folders = { createFtpFolder("20190520"), createFtpFolder("20190521") };
+        FTPFile[][] files = {
+                { createFtpFile("speechgen0001.mp3", FILE_SIZE) },
+                { createFtpFile("speechgen0001.mp3", FILE_SIZE), createFtpFile("speechgen0002.mp3", 3 * FILE_SIZE), createFtpFile("speechgen0003.mp3", 10) }
+        };
+        List<DownloadJob> plan = planner.createDownloadPlan(folders, files, DownloadPlanner.createLocalIndex(localRoot, DISTRIBUTOR));
+
+        // The small third article would fit, but it must not be downloaded without the second one
+        List<DownloadJob> selected = DownloadPlanner.selectJobsThatFit(plan, localRoot, DISTRIBUTOR, 2 * FILE_SIZE);
+        assertEquals(1, selected.size());
+        assertEquals("20190521", selected.get(0).getFolderName());
+        assertEquals("speechgen0001.mp3", selected.get(0).getFileName());
+
+        assertEquals(plan, DownloadPlanner.selectJobsThatFit(plan, localRoot, DISTRIBUTOR, 5 * FILE_SIZE + 10));
+        assertTrue(DownloadPlanner.selectJobsThatFit(plan, localRoot, DISTRIBUTOR, 0).isEmpty());
+    }
+
+    @Test
+    public void onlyFoldersOlderThanThePlanAreDeleted() throws Exception {
+        createLocalFile("20190517", "speechgen0001.mp3", FILE_SIZE);
+        createLocalFile("20190518", "speechgen0001.mp3", FILE_SIZE);
+        createLocalFile("20190520", "speechgen0001.mp3", FILE_SIZE);
+        createLocalFile("20190521", "speechgen0001.mp3", FILE_SIZE);
+
+        // 20190519 is a gap below the complete 20190520, filling it must not delete the newer paper
+        List<DownloadJob> plan = new ArrayList<>();
+        plan.add(new DownloadJob("20190522", createFtpFile("speechgen0001.mp3", FILE_SIZE)));
+        plan.add(new DownloadJob("20190519", createFtpFile("speechgen0001.mp3", FILE_SIZE)));
+
+        assertEquals(Arrays.asList("20190517", "20190518"), DownloadPlanner.selectFoldersToDelete(plan, localRoot, DISTRIBUTOR, null));
+
+        // The paper that is being played stays
+        assertEquals(Collections.singletonList("20190518"), DownloadPlanner.selectFoldersToDelete(plan, localRoot, DISTRIBUTOR, "20190517"));
+    }
+
+    private File createLocalFile(String folderName, String fileName, int size) throws IOException {
+        File folder = new File(localRoot, folderName + "/" + DISTRIBUTOR);
+        assertTrue(folder.isDirectory() || folder.mkdirs());
+
+        File file = new File(folder, fileName);
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(new byte[size]);
+        } finally {
+            outputStream.close();
+        }
+        return file;
+    }
+
+    private static SyncManifestItem createManifestItem(String folderName, String fingerprint, int fileCount) {
+        SyncManifestItem item = new SyncManifestItem();
+        item.setDateFolder(folderName);
+        item.setFingerprint(fingerprint);
+        item.setFileCount(fileCount);
+        return item;
+    }
+}
@@ -0,0 +1,78 @@
+package fi.fstf.knappen;
+
+import org.apache.commons.net.ftp.FTPFile;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static fi.fstf.knappen.TestFixtures.*;
+import static org.junit.Assert.*;
+
+/**
+ * On a metered network only the first articles of the newest paper are downloaded right away.
+ */
+public class DownloadPolicyTest {
+
+    private static final int ARTICLE_COUNT = 3;
+
+    @Test
+    public void selectsFirstArticlesOfNewestPaper() {
+        FTPFile[] folders = { createFtpFolder("20190520"), createFtpFolder("20190521") };
+        FTPFile[][] files = { createFtpFiles(1, 10), createFtpFiles(1, 10) };
+
+        List<DownloadJob> jobs = new ArrayList<>();
+        for (int i = 1; i <= 10; i++) {
+            jobs.add(createJob("20190520", i));
+            jobs.add(createJob("20190521", i));
+        }
+        Collections.sort(jobs);
+
+        List<DownloadJob> selected = DownloadPolicy.selectFirstArticles(jobs, folders, files, ARTICLE_COUNT);
+
+        assertEquals(ARTICLE_COUNT, selected.size());
+        for (int i = 0; i < ARTICLE_COUNT; i++) {
+            assertEquals("20190521", selected.get(i).getFolderName());
+            assertEquals(createFileName(i + 1), selected.get(i).getFileName());
+        }
+    }
+
+    @Test
+    public void downloadedFirstArticlesAreNotReplacedByLaterOnes() {
+        // Articles 1-3 were downloaded earlier on the metered network, the rest waits for wifi
+        FTPFile[] folders = { createFtpFolder("20190521") };
+        FTPFile[][] files = { createFtpFiles(1, 10) };
+
+        List<DownloadJob> jobs = new ArrayList<>();
+        for (int i = 4; i <= 10; i++)
+            jobs.add(createJob("20190521", i));
+
+        assertTrue(DownloadPolicy.selectFirstArticles(jobs, folders, files, ARTICLE_COUNT).isEmpty());
+    }
+
+    @Test
+    public void unlistedNewestFolderDefersEverything() {
+        // The newest folder was not listed (unchanged since last time), an older paper's first articles are not downloaded on metered data
+        FTPFile[] folders = { createFtpFolder("20190520"), createFtpFolder("20190521") };
+        FTPFile[][] files = { createFtpFiles(1, 10), null };
+
+        List<DownloadJob> jobs = new ArrayList<>();
+        for (int i = 1; i <= 10; i++)
+            jobs.add(createJob("20190520", i));
+
+        assertTrue(DownloadPolicy.selectFirstArticles(jobs, folders, files, ARTICLE_COUNT).isEmpty());
+    }
+
+    private static DownloadJob createJob(String folderName, int index) {
+        return new DownloadJob(folderName, createFtpFile(createFileName(index), 1000));
+    }
+
+    private static FTPFile[] createFtpFiles(int first, int last) {
+        // Listed in reverse, the server does not promise any order
+        FTPFile[] files = new FTPFile[last - first + 1];
+        for (int i = 0; i < files.length; i++)
+            files[i] = createFtpFile(createFileName(last - i), 1000);
+        return files;
+    }
+}
@@ -0,0 +1,99 @@
+package fi.fstf.knappen;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static fi.fstf.knappen.TestFixtures.*;
+import static org.junit.Assert.*;
+
+/**
+ * Several distributors on the same local ftp stand-in sync at the same time, while the connection is tested over and over.
+ */
+public class FTPConnectionManagerTest {
+
+    private static final String[] DISTRIBUTORS = { "01", "02", "03", "04" };
+    private static final int NUM_FOLDERS = 3;
+    private static final int FILES_PER_FOLDER = 10;
+    private static final int FILE_SIZE = 16 * 1024;
+    private static final long COMMAND_LATENCY_MILLIS = 20;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private LocalFtpServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        File serverRoot = temporaryFolder.newFolder("server");
+        LocalFtpServer.createNewspaperTree(serverRoot, "20190520", NUM_FOLDERS, FILES_PER_FOLDER, FILE_SIZE);
+        server = new LocalFtpServer(serverRoot, COMMAND_LATENCY_MILLIS);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        FTPConnectionManager.getInstance().closeIdleConnections();
+        server.stop();
+    }
+
+    @Test
+    public void distributorsSyncConcurrentlyWithinHostLimit() throws Exception {
+        File serverRoot = new File(temporaryFolder.getRoot(), "server");
+        final List<DownloadJob> jobs = createJobs(serverRoot);
+
+        // All distributors at the same time, and someone pressing "Test connection"
+        ExecutorService executor = Executors.newFixedThreadPool(DISTRIBUTORS.length + 1);
+        List<Future<Integer>> results = new ArrayList<>();
+        for (final String distributor : DISTRIBUTORS) {
+            final File localRoot = temporaryFolder.newFolder("concurrent" + distributor);
+            results.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return download(localRoot, distributor, jobs);
+                }
+            }));
+        }
+        Future<Integer> connectionTests = executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                int succeeded = 0;
+                for (int i = 0; i < 10; i++) {
+                    FTPClient ftp = FTPConnectionManager.getInstance().connectToFTP("127.0.0.1", server.getPort(), LocalFtpServer.USERNAME, LocalFtpServer.PASSWORD);
+                    if (ftp != null) {
+                        succeeded++;
+                        FTPConnectionManager.getInstance().disconnectFromFTP(ftp);
+                    }
+                }
+                return succeeded;
+            }
+        });
+
+        for (Future<Integer> result : results)
+            assertEquals(jobs.size(), (int) result.get());
+        assertEquals(10, (int) connectionTests.get());
+        executor.shutdown();
+
+        // The distributors really used the server at the same time, but never with more sessions than the host limit
+        assertTrue(server.getMaxOpenSessions() > DownloadEngine.DEFAULT_MAX_SESSIONS);
+        assertTrue(server.getMaxOpenSessions() <= FTPConnectionPool.MAX_SESSIONS_PER_HOST);
+    }
+
+    private int download(File localRoot, String distributor, List<DownloadJob> jobs) {
+        DownloadEngine engine = new DownloadEngine(server.createDistributor(distributor), localRoot, DownloadEngine.DEFAULT_MAX_SESSIONS);
+        int downloaded = engine.download(jobs, null);
+        assertEquals(0, engine.getFilesFailed());
+        return downloaded;
+    }
+}
@@ -0,0 +1,97 @@
+package fi.fstf.knappen;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+/**
+ * Back-to-back connections to the local ftp stand-in should get the same warm session.
+ */
+public class FTPConnectionPoolTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private LocalFtpServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        File serverRoot = temporaryFolder.newFolder("server");
+        LocalFtpServer.createNewspaperTree(serverRoot, "20190520", 2, 2, 100);
+        server = new LocalFtpServer(serverRoot, 0);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        FTPConnectionManager.getInstance().closeIdleConnections();
+        server.stop();
+    }
+
+    @Test
+    public void reusesReleasedSession() throws Exception {
+        FTPClient first = connect(LocalFtpServer.PASSWORD);
+        String home = first.printWorkingDirectory();
+        assertTrue(first.changeWorkingDirectory("/20190520"));
+        FTPConnectionManager.getInstance().disconnectFromFTP(first);
+
+        FTPClient second = connect(LocalFtpServer.PASSWORD);
+        assertSame(first, second);
+        assertEquals(home, second.printWorkingDirectory()); // Back in the home folder
+        FTPConnectionManager.getInstance().disconnectFromFTP(second);
+    }
+
+    @Test
+    public void sessionsInUseAreNotShared() throws Exception {
+        FTPClient first = connect(LocalFtpServer.PASSWORD);
+        FTPClient second = connect(LocalFtpServer.PASSWORD);
+        assertNotSame(first, second);
+
+        FTPConnectionManager.getInstance().disconnectFromFTP(first);
+        FTPConnectionManager.getInstance().disconnectFromFTP(second);
+    }
+
+    @Test
+    public void discardedSessionIsNotReused() throws Exception {
+        FTPClient first = connect(LocalFtpServer.PASSWORD);
+        FTPConnectionManager.getInstance().disconnectFromFTP(first, false);
+        assertFalse(first.isConnected());
+
+        FTPClient second = connect(LocalFtpServer.PASSWORD);
+        assertNotSame(first, second);
+        FTPConnectionManager.getInstance().disconnectFromFTP(second);
+    }
+
+    @Test
+    public void deadSessionIsClosed() throws Exception {
+        FTPClient first = connect(LocalFtpServer.PASSWORD);
+        FTPConnectionManager.getInstance().disconnectFromFTP(first);
+
+        // The server goes away, the pool only notices on the next NOOP
+        server.stop();
+
+        assertNull(FTPConnectionManager.getInstance().connectToFTP("127.0.0.1", server.getPort(), LocalFtpServer.USERNAME, LocalFtpServer.PASSWORD));
+        assertFalse(first.isConnected());
+    }
+
+    @Test
+    public void changedPasswordDoesNotGetOldSession() throws Exception {
+        FTPClient first = connect(LocalFtpServer.PASSWORD);
+        FTPConnectionManager.getInstance().disconnectFromFTP(first);
+
+        assertNull(FTPConnectionManager.getInstance().connectToFTP("127.0.0.1", server.getPort(), LocalFtpServer.USERNAME, "wrong"));
+    }
+
+    private FTPClient connect(String password) {
+        FTPClient client = FTPConnectionManager.getInstance().connectToFTP("127.0.0.1", server.getPort(), LocalFtpServer.USERNAME, password);
+        assertNotNull(client);
+        return client;
+    }
+}
@@ -0,0 +1,134 @@
+package fi.fstf.knappen;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Lists the local ftp stand-in with MLSD, and with LIST when the server refuses MLSD.
+ */
+public class FTPListingTest {
+
+    private static final int NUM_FOLDERS = 3;
+    private static final int FILES_PER_FOLDER = 12;
+    private static final int FILE_SIZE = 4321;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File serverRoot;
+    private LocalFtpServer server;
+    private FTPClient ftp;
+
+    @Before
+    public void setUp() throws Exception {
+        serverRoot = temporaryFolder.newFolder("server");
+        LocalFtpServer.createNewspaperTree(serverRoot, "20190520", NUM_FOLDERS, FILES_PER_FOLDER, FILE_SIZE);
+
+        // Things that are not newspaper files must not end up in the list
+        FileOutputStream outputStream = new FileOutputStream(new File(serverRoot, "20190520/index.txt"));
+        outputStream.write(new byte[10]);
+        outputStream.close();
+        assertTrue(new File(serverRoot, "20190520/speechgen0099.mp3.tmp").createNewFile());
+        assertTrue(new File(serverRoot, "20190520/speechgen0100.mp3").mkdir());
+
+        server = new LocalFtpServer(serverRoot, 0);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        FTPConnectionManager.getInstance().disconnectFromFTP(ftp);
+        server.stop();
+    }
+
+    @Test
+    public void listsWithMlsd() throws Exception {
+        ftp = connect();
+        assertTrue(FTPListing.isMlsdSupported(ftp));
+        assertListing();
+    }
+
+    @Test
+    public void fallsBackToListWhenMlsdIsRefused() throws Exception {
+        server.setMlsdEnabled(false);
+        ftp = connect();
+        assertListing();
+    }
+
+    @Test
+    public void refusedMlsdIsNotTriedAgain() throws Exception {
+        server.setMlsdEnabled(false);
+        ftp = connect();
+
+        // The first listing finds out, MLSD and then LIST
+        int listCommands = server.getListCommands();
+        assertNotNull(FTPListing.listFolders(ftp, null));
+        assertEquals(listCommands + 2, server.getListCommands());
+        assertFalse(FTPListing.isMlsdSupported(ftp));
+
+        // The rest of the session only uses LIST
+        assertNotNull(FTPListing.listNewspaperFiles(ftp, "/20190520"));
+        assertNotNull(FTPListing.listNewspaperFiles(ftp, "/20190521"));
+        assertEquals(listCommands + 4, server.getListCommands());
+    }
+
+    @Test
+    public void mlsdAndListGiveSameFiles() throws Exception {
+        ftp = connect();
+        Map<String, Long> mlsdSizes = sizesByName(FTPListing.listNewspaperFiles(ftp, "/20190521"));
+        FTPConnectionManager.getInstance().disconnectFromFTP(ftp);
+
+        server.setMlsdEnabled(false);
+        ftp = connect();
+        Map<String, Long> listSizes = sizesByName(FTPListing.listNewspaperFiles(ftp, "/20190521"));
+
+        assertEquals(mlsdSizes, listSizes);
+    }
+
+    private void assertListing() throws Exception {
+        FTPFile[] folders = FTPListing.listFolders(ftp, null);
+        assertNotNull(folders);
+        String[] folderNames = new String[folders.length];
+        for (int i = 0; i < folders.length; i++) {
+            folderNames[i] = folders[i].getName();
+            assertNotNull(folders[i].getTimestamp());
+        }
+        Arrays.sort(folderNames);
+        assertArrayEquals(new String[] { "20190520", "20190521", "20190522" }, folderNames);
+
+        FTPFile[] files = FTPListing.listNewspaperFiles(ftp, "/20190520");
+        assertNotNull(files);
+        assertEquals(FILES_PER_FOLDER, files.length);
+        for (FTPFile file : files) {
+            assertTrue(file.getName().matches("speechgen\\d{4}\\.mp3"));
+            assertEquals(FILE_SIZE, file.getSize());
+        }
+    }
+
+    private FTPClient connect() {
+        FTPClient client = FTPConnectionManager.getInstance().connectToFTP("127.0.0.1", server.getPort(), LocalFtpServer.USERNAME, LocalFtpServer.PASSWORD);
+        assertNotNull(client);
+        return client;
+    }
+
+    private static Map<String, Long> sizesByName(FTPFile[] files) {
+        assertNotNull(files);
+        Map<String, Long> sizes = new HashMap<>();
+        for (FTPFile file : files)
+            sizes.put(file.getName(), file.getSize());
+        return sizes;
+    }
+}
@@ -0,0 +1,528 @@
+package fi.fstf.knappen;
+
+import org.apache.ftpserver.ConnectionConfigFactory;
+import org.apache.ftpserver.FtpServer;
+import org.apache.ftpserver.FtpServerFactory;
+import org.apache.ftpserver.ftplet.Authority;
+import org.apache.ftpserver.ftplet.DefaultFtpReply;
+import org.apache.ftpserver.filesystem.nativefs.NativeFileSystemFactory;
+import org.apache.ftpserver.ftplet.DefaultFtplet;
+import org.apache.ftpserver.ftplet.FileSystemFactory;
+import org.apache.ftpserver.ftplet.FileSystemView;
+import org.apache.ftpserver.ftplet.FtpException;
+import org.apache.ftpserver.ftplet.FtpFile;
+import org.apache.ftpserver.ftplet.FtpReply;
+import org.apache.ftpserver.ftplet.FtpRequest;
+import org.apache.ftpserver.ftplet.FtpSession;
+import org.apache.ftpserver.ftplet.Ftplet;
+import org.apache.ftpserver.ftplet.FtpletContext;
+import org.apache.ftpserver.ftplet.FtpletResult;
+import org.apache.ftpserver.ftplet.User;
+import org.apache.ftpserver.ftplet.UserManager;
+import org.apache.ftpserver.listener.ListenerFactory;
+import org.apache.ftpserver.usermanager.PropertiesUserManagerFactory;
+import org.apache.ftpserver.usermanager.impl.BaseUser;
+import org.apache.ftpserver.usermanager.impl.ConcurrentLoginPermission;
+import org.apache.ftpserver.usermanager.impl.TransferRatePermission;
+import org.apache.ftpserver.usermanager.impl.WritePermission;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Embedded ftp server on loopback, used as a stand-in for the newspaper distributors ftp servers in the local unit tests.
+ * Latency, slow listings, a bandwidth cap and downloads cut in the middle can be set before start(), the counters tell what a sync cost.
+ */
+public class LocalFtpServer {
+
+    public static final String USERNAME = "knappen";
+    public static final String PASSWORD = "knappen";
+
+    private final File rootFolder;
+    private final long commandLatencyMillis;
+    private FtpServer server;
+    private int port;
+    private volatile boolean mlsdEnabled = true;
+    private final AtomicInteger openSessions = new AtomicInteger(0);
+    private final AtomicInteger maxOpenSessions = new AtomicInteger(0);
+    private final AtomicInteger listCommands = new AtomicInteger(0);
+    private final AtomicInteger retrCommands = new AtomicInteger(0);
+    private final AtomicInteger restCommands = new AtomicInteger(0);
+    private final AtomicInteger downloadsStarted = new AtomicInteger(0);
+    private final AtomicInteger downloadsCut = new AtomicInteger(0);
+    private final AtomicInteger nextDownloadsToCut = new AtomicInteger(0);
+    private final AtomicLong bytesSent = new AtomicLong(0);
+    private final List<String> distributorUsers = new ArrayList<>();
+    private volatile long listLatencyMillis = 0;
+    private volatile int maxDownloadBytesPerSecond = 0;
+    private volatile int cutEveryNthDownload = 0;
+    private volatile int cutAfterBytes = 0;
+    private final Set<String> refusedOnce = Collections.synchronizedSet(new HashSet<String>());
+    private volatile FtpletContext ftpletContext;
+
+    public LocalFtpServer(File rootFolder, long commandLatencyMillis) {
+        this.rootFolder = rootFolder;
+        this.commandLatencyMillis = commandLatencyMillis;
+    }
+
+    public void start() throws IOException, FtpException {
+        // Pick a free port on loopback
+        ServerSocket socket = new ServerSocket(0);
+        port = socket.getLocalPort();
+        socket.close();
+
+        FtpServerFactory serverFactory = new FtpServerFactory();
+
+        ListenerFactory listenerFactory = new ListenerFactory();
+        listenerFactory.setServerAddress("127.0.0.1");
+        listenerFactory.setPort(port);
+        serverFactory.addListener("default", listenerFactory.createListener());
+
+        ConnectionConfigFactory connectionConfigFactory = new ConnectionConfigFactory();
+        connectionConfigFactory.setMaxLogins(50);
+        serverFactory.setConnectionConfig(connectionConfigFactory.createConnectionConfig());
+
+        UserManager userManager = new PropertiesUserManagerFactory().createUserManager();
+        userManager.save(createUser(USERNAME, rootFolder));
+        for (String distributorFolder : distributorUsers)
+            userManager.save(createUser(USERNAME + distributorFolder, new File(rootFolder, distributorFolder)));
+        serverFactory.setUserManager(userManager);
+
+        // The files are read from disk like normal, but some downloads stop in the middle (see setCutEveryNthDownload)
+        serverFactory.setFileSystem(new CuttingFileSystemFactory(new NativeFileSystemFactory()));
+
+        // Every command on the control connection takes a while, like on a real mobile link
+        Map<String, Ftplet> ftplets = new HashMap<>();
+        ftplets.put("latency", new DefaultFtplet() {
+            @Override
+            public void init(FtpletContext context) throws FtpException {
+                ftpletContext = context;
+                super.init(context);
+            }
+
+            @Override
+            public FtpletResult beforeCommand(FtpSession session, FtpRequest request) throws FtpException, IOException {
+                sleep(commandLatencyMillis);
+
+                // Listings of big folders can take seconds on a busy server
+                String command = request.getCommand().toUpperCase(Locale.US);
+                if (command.equals("LIST") || command.equals("MLSD") || command.equals("NLST")) {
+                    listCommands.incrementAndGet();
+                    sleep(listLatencyMillis);
+                }
+
+                // A download that goes on from where the last one was cut
+                if (command.equals("REST"))
+                    restCommands.incrementAndGet();
+
+                if (command.equals("RETR")) {
+                    retrCommands.incrementAndGet();
+
+                    // A file that is busy on the server for a moment, the next try gets it
+                    if (refusedOnce.remove(request.getArgument())) {
+                        session.write(new DefaultFtpReply(FtpReply.REPLY_450_REQUESTED_FILE_ACTION_NOT_TAKEN, "File busy"));
+                        return FtpletResult.SKIP;
+                    }
+                }
+
+                // Act like an old server that advertises MLST but refuses MLSD
+                if (!mlsdEnabled && "MLSD".equalsIgnoreCase(request.getCommand())) {
+                    session.write(new DefaultFtpReply(FtpReply.REPLY_502_COMMAND_NOT_IMPLEMENTED, "MLSD not implemented"));
+                    return FtpletResult.SKIP;
+                }
+                return super.beforeCommand(session, request);
+            }
+
+            @Override
+            public FtpletResult onConnect(FtpSession session) throws FtpException, IOException {
+                int open = openSessions.incrementAndGet();
+                int max;
+                while (open > (max = maxOpenSessions.get()) && !maxOpenSessions.compareAndSet(max, open));
+                return super.onConnect(session);
+            }
+
+            @Override
+            public FtpletResult onDisconnect(FtpSession session) throws FtpException, IOException {
+                openSessions.decrementAndGet();
+                return super.onDisconnect(session);
+            }
+        });
+        serverFactory.setFtplets(ftplets);
+
+        server = serverFactory.createServer();
+        server.start();
+    }
+
+    public void stop() {
+        if (server != null && !server.isStopped())
+            server.stop();
+    }
+
+    public void setMlsdEnabled(boolean mlsdEnabled) {
+        this.mlsdEnabled = mlsdEnabled;
+    }
+
+    // Extra time for each LIST, MLSD and NLST on top of the command latency
+    public void setListLatencyMillis(long listLatencyMillis) {
+        this.listLatencyMillis = listLatencyMillis;
+    }
+
+    // Max download speed of each transfer, 0 means no limit. Must be set before start()
+    public void setMaxDownloadBytesPerSecond(int maxDownloadBytesPerSecond) {
+        this.maxDownloadBytesPerSecond = maxDownloadBytesPerSecond;
+    }
+
+    // Every nth download stops after the given number of bytes and the data connection is closed, like a mobile connection that drops
+    // in the middle of a file. The client keeps what it got and can resume with REST. 0 means never
+    public void setCutEveryNthDownload(int cutEveryNthDownload, int cutAfterBytes) {
+        this.cutEveryNthDownload = cutEveryNthDownload;
+        this.cutAfterBytes = cutAfterBytes;
+    }
+
+    // The next downloads (of any file) stop after the given number of bytes, see setCutEveryNthDownload
+    public void cutNextDownloads(int count, int cutAfterBytes) {
+        this.cutAfterBytes = cutAfterBytes;
+        nextDownloadsToCut.set(count);
+    }
+
+    // The first RETR of the file is refused with 450, the following ones send it
+    public void refuseFirstRetrOf(String fileName) {
+        refusedOnce.add(fileName);
+    }
+
+    // A login of its own for the distributor, with the distributor's folder in the root as home folder (see createNewspaperTrees). Must be called before start()
+    public void addDistributorUser(String distributorFolder) {
+        distributorUsers.add(distributorFolder);
+    }
+
+    // Bytes read from the files for all downloads, also the ones that were cut
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    // Bytes in the files that have been downloaded completely
+    public long getBytesDownloaded() {
+        return ftpletContext != null ? ftpletContext.getFtpStatistics().getTotalDownloadSize() : 0;
+    }
+
+    // LIST, MLSD and NLST commands received
+    public int getListCommands() {
+        return listCommands.get();
+    }
+
+    // RETR commands received, also the ones that were refused or cut
+    public int getRetrCommands() {
+        return retrCommands.get();
+    }
+
+    // REST commands received, each one is a download that was resumed instead of started over
+    public int getRestCommands() {
+        return restCommands.get();
+    }
+
+    // Downloads that were stopped in the middle, see setCutEveryNthDownload
+    public int getDownloadsCut() {
+        return downloadsCut.get();
+    }
+
+    // The highest number of control connections that have been open at the same time
+    public int getMaxOpenSessions() {
+        return maxOpenSessions.get();
+    }
+
+    public void resetMaxOpenSessions() {
+        maxOpenSessions.set(openSessions.get());
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public NewspaperDistributor createDistributor(String folderName) {
+        NewspaperDistributor distributor = new NewspaperDistributor();
+        distributor.setFtpAddress("127.0.0.1");
+        distributor.setFtpPort(port);
+        distributor.setFtpUsername(distributorUsers.contains(folderName) ? USERNAME + folderName : USERNAME);
+        distributor.setFtpPassword(PASSWORD);
+        distributor.setFolderName(folderName);
+        distributor.setNewspaperDistributorName("Local " + folderName);
+        return distributor;
+    }
+
+    // Creates folders like /20190521/speechgen0001.mp3 ... with random content
+    public static void createNewspaperTree(File rootFolder, String firstDate, int numFolders, int filesPerFolder, int fileSize) throws IOException {
+        Random random = new Random(42);
+        byte[] content = new byte[fileSize];
+        int date = Integer.parseInt(firstDate);
+        for (int folder = 0; folder < numFolders; folder++) {
+            File folderFile = new File(rootFolder, String.valueOf(date + folder));
+            if (!folderFile.mkdirs())
+                throw new IOException("Could not create " + folderFile);
+
+            for (int file = 1; file <= filesPerFolder; file++) {
+                random.nextBytes(content);
+                FileOutputStream outputStream = new FileOutputStream(new File(folderFile, String.format("speechgen%04d.mp3", file)));
+                outputStream.write(content);
+                outputStream.close();
+            }
+        }
+    }
+
+    // Creates a tree for each distributor, like /01/20190521/speechgen0001.mp3 ... see addDistributorUser()
+    public static void createNewspaperTrees(File rootFolder, String[] distributorFolders, String firstDate, int numFolders, int filesPerFolder, int fileSize) throws IOException {
+        for (String distributorFolder : distributorFolders)
+            createNewspaperTree(new File(rootFolder, distributorFolder), firstDate, numFolders, filesPerFolder, fileSize);
+    }
+
+    private BaseUser createUser(String name, File homeFolder) {
+        BaseUser user = new BaseUser();
+        user.setName(name);
+        user.setPassword(PASSWORD);
+        user.setHomeDirectory(homeFolder.getAbsolutePath());
+        List<Authority> authorities = new ArrayList<>();
+        authorities.add(new WritePermission());
+        authorities.add(new ConcurrentLoginPermission(50, 50));
+        authorities.add(new TransferRatePermission(maxDownloadBytesPerSecond, 0));
+        user.setAuthorities(authorities);
+        return user;
+    }
+
+    // Gives out the files of the native file system, every nth file that is read for a download is cut short
+    private class CuttingFileSystemFactory implements FileSystemFactory {
+        private final FileSystemFactory factory;
+
+        CuttingFileSystemFactory(FileSystemFactory factory) {
+            this.factory = factory;
+        }
+
+        @Override
+        public FileSystemView createFileSystemView(User user) throws FtpException {
+            final FileSystemView view = factory.createFileSystemView(user);
+            return new FileSystemView() {
+                @Override
+                public FtpFile getHomeDirectory() throws FtpException {
+                    return view.getHomeDirectory();
+                }
+
+                @Override
+                public FtpFile getWorkingDirectory() throws FtpException {
+                    return view.getWorkingDirectory();
+                }
+
+                @Override
+                public boolean changeWorkingDirectory(String dir) throws FtpException {
+                    return view.changeWorkingDirectory(dir);
+                }
+
+                @Override
+                public FtpFile getFile(String file) throws FtpException {
+                    return new CuttingFile(view.getFile(file));
+                }
+
+                @Override
+                public boolean isRandomAccessible() throws FtpException {
+                    return view.isRandomAccessible();
+                }
+
+                @Override
+                public void dispose() {
+                    view.dispose();
+                }
+            };
+        }
+    }
+
+    private class CuttingFile implements FtpFile {
+        private final FtpFile file;
+
+        CuttingFile(FtpFile file) {
+            this.file = file;
+        }
+
+        @Override
+        public InputStream createInputStream(long offset) throws IOException {
+            InputStream inputStream = file.createInputStream(offset);
+            int download = downloadsStarted.incrementAndGet();
+            if ((cutEveryNthDownload > 0 && download % cutEveryNthDownload == 0) || takeNextCut()) {
+                downloadsCut.incrementAndGet();
+                return new SentInputStream(inputStream, cutAfterBytes);
+            }
+            return new SentInputStream(inputStream, Long.MAX_VALUE);
+        }
+
+        private boolean takeNextCut() {
+            int cuts;
+            do {
+                cuts = nextDownloadsToCut.get();
+                if (cuts <= 0)
+                    return false;
+            } while (!nextDownloadsToCut.compareAndSet(cuts, cuts - 1));
+            return true;
+        }
+
+        @Override
+        public OutputStream createOutputStream(long offset) throws IOException {
+            return file.createOutputStream(offset);
+        }
+
+        @Override
+        public boolean move(FtpFile destination) {
+            return file.move(destination instanceof CuttingFile ? ((CuttingFile) destination).file : destination);
+        }
+
+        @Override
+        public String getAbsolutePath() {
+            return file.getAbsolutePath();
+        }
+
+        @Override
+        public String getName() {
+            return file.getName();
+        }
+
+        @Override
+        public boolean isHidden() {
+            return file.isHidden();
+        }
+
+        @Override
+        public boolean isDirectory() {
+            return file.isDirectory();
+        }
+
+        @Override
+        public boolean isFile() {
+            return file.isFile();
+        }
+
+        @Override
+        public boolean doesExist() {
+            return file.doesExist();
+        }
+
+        @Override
+        public boolean isReadable() {
+            return file.isReadable();
+        }
+
+        @Override
+        public boolean isWritable() {
+            return file.isWritable();
+        }
+
+        @Override
+        public boolean isRemovable() {
+            return file.isRemovable();
+        }
+
+        @Override
+        public String getOwnerName() {
+            return file.getOwnerName();
+        }
+
+        @Override
+        public String getGroupName() {
+            return file.getGroupName();
+        }
+
+        @Override
+        public int getLinkCount() {
+            return file.getLinkCount();
+        }
+
+        @Override
+        public long getLastModified() {
+            return file.getLastModified();
+        }
+
+        @Override
+        public boolean setLastModified(long time) {
+            return file.setLastModified(time);
+        }
+
+        @Override
+        public long getSize() {
+            return file.getSize();
+        }
+
+        @Override
+        public Object getPhysicalFile() {
+            return file.getPhysicalFile();
+        }
+
+        @Override
+        public boolean mkdir() {
+            return file.mkdir();
+        }
+
+        @Override
+        public boolean delete() {
+            return file.delete();
+        }
+
+        @Override
+        public List<? extends FtpFile> listFiles() {
+            return file.listFiles();
+        }
+    }
+
+    // Counts the bytes sent, and fails like a broken connection after the limit. The server closes the data connection and replies with an error
+    private class SentInputStream extends FilterInputStream {
+        private long remaining;
+
+        SentInputStream(InputStream inputStream, long bytes) {
+            super(inputStream);
+            this.remaining = bytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0)
+                throw new IOException("Data connection cut");
+            int b = super.read();
+            if (b >= 0) {
+                remaining--;
+                bytesSent.incrementAndGet();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0)
+                throw new IOException("Data connection cut");
+            int read = super.read(buffer, offset, (int) Math.min(length, remaining));
+            if (read > 0) {
+                remaining -= read;
+                bytesSent.addAndGet(read);
+            }
+            return read;
+        }
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0)
+            return;
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package fi.fstf.knappen;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static fi.fstf.knappen.TestFixtures.*;
+import static org.junit.Assert.*;
+
+/**
+ * Saves the local index and reads it back the way the app does after a reboot, without listing the folders.
+ */
+public class LocalIndexSnapshotTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File baseFolder;
+    private File snapshotFile;
+
+    @Before
+    public void setUp() throws Exception {
+        baseFolder = temporaryFolder.newFolder("files");
+        snapshotFile = new File(temporaryFolder.newFolder("index"), "local.snapshot");
+        createLocalNewspapers(baseFolder);
+    }
+
+    @Test
+    public void snapshotGivesSameIndex() throws Exception {
+        LocalNewspaperIndex index = new LocalNewspaperIndex();
+        index.rescan(baseFolder);
+        LocalIndexSnapshot.write(snapshotFile, index);
+
+        LocalNewspaperIndex restored = new LocalNewspaperIndex();
+        assertTrue(LocalIndexSnapshot.read(snapshotFile, baseFolder, restored));
+        assertEquals(index.getDistributors(), restored.getDistributors());
+        assertEquals(index.get("01"), restored.get("01"));
+        assertEquals(index.get("02"), restored.get("02"));
+
+        // The catalog from the snapshot is the same as the one read from the folders
+        PlaybackCatalog catalog = PlaybackCatalog.build(restored, Arrays.asList("01", "02"), 1);
+        PlaybackCatalog fromDisk = PlaybackCatalog.build(baseFolder, Arrays.asList("01", "02"), 1);
+        assertEquals(fromDisk.getNewestDate(), catalog.getNewestDate());
+        assertArrayEquals(fromDisk.getDistributors("20190521"), catalog.getDistributors("20190521"));
+        assertEquals(fromDisk.getArticle("20190521", "02", 3), catalog.getArticle("20190521", "02", 3));
+        assertEquals(fromDisk.getArticle("20190521", "02", 12), catalog.getArticle("20190521", "02", 12));
+    }
+
+    @Test
+    public void brokenSnapshotIsNotUsed() throws Exception {
+        LocalNewspaperIndex index = new LocalNewspaperIndex();
+        index.rescan(baseFolder);
+        LocalIndexSnapshot.write(snapshotFile, index);
+
+        RandomAccessFile file = new RandomAccessFile(snapshotFile, "rw");
+        file.seek(20);
+        int value = file.read();
+        file.seek(20);
+        file.write(value ^ 0xFF);
+        file.close();
+
+        LocalNewspaperIndex restored = new LocalNewspaperIndex();
+        assertFalse(LocalIndexSnapshot.read(snapshotFile, baseFolder, restored));
+        assertTrue(restored.getDistributors().isEmpty());
+
+        assertFalse(LocalIndexSnapshot.read(new File(snapshotFile.getParentFile(), "missing"), baseFolder, restored));
+    }
+}
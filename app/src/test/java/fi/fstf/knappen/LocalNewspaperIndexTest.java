@@ -0,0 +1,77 @@
+package fi.fstf.knappen;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static fi.fstf.knappen.TestFixtures.*;
+import static org.junit.Assert.*;
+
+/**
+ * Applies file changes to the local index one at a time, the result must be the same as reading the folders again.
+ */
+public class LocalNewspaperIndexTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File baseFolder;
+    private LocalNewspaperIndex index;
+
+    @Before
+    public void setUp() throws Exception {
+        baseFolder = temporaryFolder.newFolder("files");
+        createLocalNewspapers(baseFolder);
+        index = new LocalNewspaperIndex();
+        index.rescan(baseFolder);
+    }
+
+    @Test
+    public void rescanFindsAllDistributors() {
+        assertEquals(DownloadPlanner.createLocalIndex(baseFolder, "01"), index.get("01"));
+        assertEquals(DownloadPlanner.createLocalIndex(baseFolder, "02"), index.get("02"));
+        assertNull(index.get("03"));
+    }
+
+    @Test
+    public void changesGiveSameIndexAsRescan() throws Exception {
+        // A part file is completed, an article is deleted and a new newspaper is moved into place
+        assertTrue(new File(baseFolder, "20190521/01/speechgen0002.mp3.part").renameTo(new File(baseFolder, "20190521/01/speechgen0002.mp3")));
+        index.removeFile("20190521", "01", "speechgen0002.mp3.part");
+        index.addFile(baseFolder, "20190521", "01", "speechgen0002.mp3");
+
+        assertTrue(new File(baseFolder, "20190520/01/speechgen0002.mp3").delete());
+        index.removeFile("20190520", "01", "speechgen0002.mp3");
+
+        createFiles(baseFolder, "20190523/01", "speechgen0001.mp3", "speechgen0002.mp3");
+        index.addFolder(baseFolder, "20190523", "01");
+
+        assertEquals(DownloadPlanner.createLocalIndex(baseFolder, "01"), index.get("01"));
+    }
+
+    @Test
+    public void removedDateFolderTellsWhichNewspapersWereInIt() {
+        List<String> removed = index.removeDateFolder("20190521");
+        Collections.sort(removed);
+        assertEquals(Arrays.asList("01", "02"), removed);
+
+        assertFalse(index.get("01").containsKey("20190521"));
+        assertTrue(index.get("01").containsKey("20190520"));
+        assertTrue(index.get("02").isEmpty());
+    }
+
+    @Test
+    public void partFilesAreNotIndexed() {
+        index.addFile(baseFolder, "20190520", "01", "speechgen0003.mp3.part");
+        Map<String, File> folderIndex = index.get("01").get("20190520");
+        assertFalse(folderIndex.containsKey("speechgen0003.mp3.part"));
+        assertEquals(3, folderIndex.size());
+    }
+}
@@ -0,0 +1,144 @@
+package fi.fstf.knappen;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reads a local newspaper tree into a catalog and navigates it without touching the disk.
+ */
+public class PlaybackCatalogTest {
+
+    private static final List<String> DISTRIBUTOR_ORDER = Arrays.asList("02", "01");
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File baseFolder;
+
+    @Before
+    public void setUp() throws Exception {
+        baseFolder = temporaryFolder.newFolder("files");
+        createArticles("20190520/01", 3);
+        createArticles("20190521/01", 2);
+        createArticles("20190521/02", 4);
+        createArticles("20190522/03", 2); // Not one of our distributors
+    }
+
+    @Test
+    public void readsNewspapersInPriorityOrder() {
+        PlaybackCatalog catalog = PlaybackCatalog.build(baseFolder, DISTRIBUTOR_ORDER, 1);
+
+        assertEquals("20190521", catalog.getNewestDate());
+        assertArrayEquals(new String[] { "02", "01" }, catalog.getDistributors("20190521"));
+        assertArrayEquals(new String[] { "01" }, catalog.getDistributors("20190520"));
+        assertEquals(0, catalog.getDistributors("20190522").length);
+
+        assertEquals(new File(baseFolder, "20190521/02/speechgen0004.mp3"), catalog.getArticle("20190521", "02", 4));
+        assertNull(catalog.getArticle("20190521", "02", 5));
+        assertNull(catalog.getArticle("20190521", "02", 0));
+        assertNull(catalog.getArticle("20190520", "02", 1));
+    }
+
+    @Test
+    public void previousDateWrapsToNewest() {
+        PlaybackCatalog catalog = PlaybackCatalog.build(baseFolder, DISTRIBUTOR_ORDER, 1);
+
+        assertEquals("20190520", catalog.getPreviousDate("20190521"));
+        assertEquals("20190521", catalog.getPreviousDate("20190520"));
+        assertEquals("20190521", catalog.getPreviousDate("20180101"));
+        assertNull(PlaybackCatalog.EMPTY.getPreviousDate("20190521"));
+    }
+
+    @Test
+    public void onlyArticlesAreInTheCatalog() throws Exception {
+        File folder = new File(baseFolder, "20190520/01");
+        assertTrue(new File(folder, "speechgen0004.mp3.part").createNewFile());
+        assertTrue(new File(folder, "speechgen0005.mp3.link").createNewFile());
+        assertTrue(new File(folder, "notes.txt").createNewFile());
+
+        PlaybackCatalog catalog = PlaybackCatalog.build(baseFolder, DISTRIBUTOR_ORDER, 1);
+        assertNull(catalog.getArticle("20190520", "01", 4));
+        assertNull(catalog.getArticle("20190520", "01", 5));
+        assertEquals(new File(folder, "speechgen0003.mp3"), catalog.getArticle("20190520", "01", 3));
+    }
+
+    @Test
+    public void gapsAndLongNewspapersArePlayedInOrder() throws Exception {
+        File folder = new File(baseFolder, "20190523/01");
+        assertTrue(folder.mkdirs());
+        for (String fileName : new String[] { "speechgen10000.mp3", "speechgen0003.mp3", "speechgen9999.mp3", "speechgen0001.mp3" })
+            assertTrue(new File(folder, fileName).createNewFile());
+
+        PlaybackCatalog catalog = PlaybackCatalog.build(baseFolder, DISTRIBUTOR_ORDER, 1);
+        File[] newspaper = catalog.getNewspaper("20190523", "01");
+        assertEquals(5, newspaper.length);
+        assertEquals("speechgen0001.mp3", newspaper[1].getName());
+        assertEquals("speechgen0003.mp3", newspaper[2].getName());
+        assertEquals("speechgen9999.mp3", newspaper[3].getName());
+        assertEquals("speechgen10000.mp3", newspaper[4].getName());
+    }
+
+    @Test
+    public void otherNamesAndFormatsArePlayed() throws Exception {
+        File folder = new File(baseFolder, "20190523/01");
+        assertTrue(folder.mkdirs());
+        for (String fileName : new String[] { "Part 10.ogg", "part 2.OPUS", "Part 1.m4a", "cover.jpg" })
+            assertTrue(new File(folder, fileName).createNewFile());
+
+        // Built from the folders and from the index, the order is the same
+        LocalNewspaperIndex index = new LocalNewspaperIndex();
+        index.rescan(baseFolder);
+        for (PlaybackCatalog catalog : Arrays.asList(PlaybackCatalog.build(baseFolder, DISTRIBUTOR_ORDER, 1), PlaybackCatalog.build(index, DISTRIBUTOR_ORDER, 1))) {
+            assertEquals("Part 1.m4a", catalog.getArticle("20190523", "01", 1).getName());
+            assertEquals("part 2.OPUS", catalog.getArticle("20190523", "01", 2).getName());
+            assertEquals("Part 10.ogg", catalog.getArticle("20190523", "01", 3).getName());
+            assertNull(catalog.getArticle("20190523", "01", 4));
+        }
+    }
+
+    @Test
+    public void updatedNewspaperLeavesOldCatalogAlone() throws Exception {
+        PlaybackCatalog first = PlaybackCatalog.build(baseFolder, DISTRIBUTOR_ORDER, 1);
+
+        createArticles("20190523/01", 1);
+        PlaybackCatalog second = first.withNewspaper(baseFolder, "20190523", "01", 2);
+
+        assertEquals(2, second.getVersion());
+        assertEquals("20190523", second.getNewestDate());
+        assertNotNull(second.getArticle("20190523", "01", 1));
+        assertNotNull(second.getArticle("20190520", "01", 3));
+
+        assertEquals(1, first.getVersion());
+        assertEquals("20190521", first.getNewestDate());
+        assertNull(first.getArticle("20190523", "01", 1));
+
+        // A deleted newspaper disappears, and its date with it
+        assertTrue(new File(baseFolder, "20190523/01/speechgen0001.mp3").delete());
+        PlaybackCatalog third = second.withNewspaper(baseFolder, "20190523", "01", 3);
+        assertEquals("20190521", third.getNewestDate());
+    }
+
+    @Test
+    public void newOrderKeepsArticles() {
+        PlaybackCatalog catalog = PlaybackCatalog.build(baseFolder, DISTRIBUTOR_ORDER, 1).withDistributorOrder(Arrays.asList("01", "02"), 2);
+
+        assertArrayEquals(new String[] { "01", "02" }, catalog.getDistributors("20190521"));
+        assertNotNull(catalog.getArticle("20190521", "02", 1));
+    }
+
+    private void createArticles(String newspaperFolder, int articles) throws IOException {
+        File folder = new File(baseFolder, newspaperFolder);
+        assertTrue(folder.mkdirs());
+        for (int i = 1; i <= articles; i++)
+            assertTrue(new File(folder, String.format("speechgen%04d.mp3", i)).createNewFile());
+    }
+}
@@ -0,0 +1,98 @@
+package fi.fstf.knappen;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reads a part file while another thread is still writing it, the way the player reads an article that is being downloaded.
+ */
+public class ProgressiveMediaDataSourceTest {
+
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final int NUM_CHUNKS = 8;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void readBlocksUntilDownloadCatchesUp() throws Exception {
+        File localFile = new File(temporaryFolder.getRoot(), "speechgen0001.mp3");
+        final File partFile = new File(temporaryFolder.getRoot(), "speechgen0001.mp3" + DownloadEngine.PARTIAL_FILE_SUFFIX);
+        assertTrue(partFile.createNewFile());
+        final ActiveDownload download = DownloadRegistry.getInstance().start(localFile, partFile, CHUNK_SIZE * NUM_CHUNKS, 0);
+        assertFalse(DownloadRegistry.getInstance().isPlayable(localFile));
+
+        ProgressiveMediaDataSource dataSource = ProgressiveMediaDataSource.open(localFile);
+        assertNotNull(dataSource);
+        assertEquals(CHUNK_SIZE * NUM_CHUNKS, dataSource.getSize());
+
+        // A slow download, one chunk at a time, renamed when complete
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    FileOutputStream outputStream = new FileOutputStream(partFile);
+                    for (int i = 0; i < NUM_CHUNKS; i++) {
+                        byte[] chunk = new byte[CHUNK_SIZE];
+                        Arrays.fill(chunk, (byte) i);
+                        outputStream.write(chunk);
+                        download.setBytesOnDisk((long) (i + 1) * CHUNK_SIZE);
+                        Thread.sleep(20);
+                    }
+                    outputStream.close();
+                    assertTrue(partFile.renameTo(download.getLocalFile()));
+                    DownloadRegistry.getInstance().finish(download, true);
+                } catch (IOException | InterruptedException e) {
+                    DownloadRegistry.getInstance().finish(download, false);
+                }
+            }
+        });
+        writer.start();
+
+        // Read the whole file from the start, every byte must be the one that was written
+        byte[] buffer = new byte[CHUNK_SIZE / 2];
+        long position = 0;
+        int read;
+        while ((read = dataSource.readAt(position, buffer, 0, buffer.length)) != -1) {
+            for (int i = 0; i < read; i++)
+                assertEquals((byte) ((position + i) / CHUNK_SIZE), buffer[i]);
+            position += read;
+        }
+        dataSource.close();
+        writer.join();
+
+        assertEquals(CHUNK_SIZE * NUM_CHUNKS, position);
+        assertNull(DownloadRegistry.getInstance().get(localFile));
+    }
+
+    @Test(expected = IOException.class)
+    public void failedDownloadGivesError() throws Exception {
+        File localFile = new File(temporaryFolder.getRoot(), "speechgen0002.mp3");
+        File partFile = new File(temporaryFolder.getRoot(), "speechgen0002.mp3" + DownloadEngine.PARTIAL_FILE_SUFFIX);
+        FileOutputStream outputStream = new FileOutputStream(partFile);
+        outputStream.write(new byte[CHUNK_SIZE]);
+        outputStream.close();
+
+        ActiveDownload download = DownloadRegistry.getInstance().start(localFile, partFile, CHUNK_SIZE * NUM_CHUNKS, CHUNK_SIZE);
+        ProgressiveMediaDataSource dataSource = ProgressiveMediaDataSource.open(localFile);
+        assertNotNull(dataSource);
+
+        byte[] buffer = new byte[CHUNK_SIZE];
+        assertEquals(CHUNK_SIZE, dataSource.readAt(0, buffer, 0, buffer.length));
+
+        DownloadRegistry.getInstance().finish(download, false);
+        try {
+            dataSource.readAt(CHUNK_SIZE, buffer, 0, buffer.length);
+        } finally {
+            dataSource.close();
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package fi.fstf.knappen;
+
+import android.content.SharedPreferences;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * The failed syncs are counted in the shared preferences, start over after a long break and decide when the retry alarm goes off.
+ */
+public class RetrySchedulerTest {
+
+    private static final String ATTEMPTS_KEY = "attempts_01";
+    private static final String LAST_FAILURE_KEY = "last_failure_01";
+    private static final long HOUR_MILLIS = 60 * 60 * 1000;
+    private static final long NOW = 1558000000000L;
+
+    @Test
+    public void failedSyncsAreCountedInThePreferences() {
+        MapPreferences preferences = new MapPreferences();
+        assertEquals(1, RetryScheduler.recordFailure(preferences, ATTEMPTS_KEY, LAST_FAILURE_KEY, NOW));
+        assertEquals(2, RetryScheduler.recordFailure(preferences, ATTEMPTS_KEY, LAST_FAILURE_KEY, NOW + HOUR_MILLIS));
+
+        // A restarted app reads the same count
+        assertEquals(2, preferences.getInt(ATTEMPTS_KEY, 0));
+        assertEquals(NOW + HOUR_MILLIS, preferences.getLong(LAST_FAILURE_KEY, 0));
+    }
+
+    @Test
+    public void countStartsOverAfterTwelveHours() {
+        MapPreferences preferences = new MapPreferences();
+        RetryScheduler.recordFailure(preferences, ATTEMPTS_KEY, LAST_FAILURE_KEY, NOW);
+        RetryScheduler.recordFailure(preferences, ATTEMPTS_KEY, LAST_FAILURE_KEY, NOW + HOUR_MILLIS);
+        assertEquals(3, RetryScheduler.recordFailure(preferences, ATTEMPTS_KEY, LAST_FAILURE_KEY, NOW + 13 * HOUR_MILLIS));
+
+        // The next night's failure is a new problem
+        assertEquals(1, RetryScheduler.recordFailure(preferences, ATTEMPTS_KEY, LAST_FAILURE_KEY, NOW + 26 * HOUR_MILLIS));
+    }
+
+    @Test
+    public void successClearsTheCount() {
+        MapPreferences preferences = new MapPreferences();
+        assertFalse(RetryScheduler.clearFailures(preferences, ATTEMPTS_KEY, LAST_FAILURE_KEY));
+
+        RetryScheduler.recordFailure(preferences, ATTEMPTS_KEY, LAST_FAILURE_KEY, NOW);
+        RetryScheduler.recordFailure(preferences, ATTEMPTS_KEY, LAST_FAILURE_KEY, NOW);
+        assertTrue(RetryScheduler.clearFailures(preferences, ATTEMPTS_KEY, LAST_FAILURE_KEY));
+        assertFalse(preferences.contains(ATTEMPTS_KEY));
+        assertFalse(preferences.contains(LAST_FAILURE_KEY));
+        assertEquals(1, RetryScheduler.recordFailure(preferences, ATTEMPTS_KEY, LAST_FAILURE_KEY, NOW));
+    }
+
+    @Test
+    public void retryAlarmWaitsLongerForEachFailure() {
+        // 2 minutes after the first failure, at most one hour later on
+        long first = RetryScheduler.getRetryTimeMillis(1, NOW) - NOW;
+        assertTrue(first >= 60 * 1000 && first <= 2 * 60 * 1000);
+        long fourth = RetryScheduler.getRetryTimeMillis(4, NOW) - NOW;
+        assertTrue(fourth >= 8 * 60 * 1000 && fourth <= 16 * 60 * 1000);
+        long eighth = RetryScheduler.getRetryTimeMillis(8, NOW) - NOW;
+        assertTrue(eighth >= HOUR_MILLIS / 2 && eighth <= HOUR_MILLIS);
+    }
+
+    @Test
+    public void noRetryAlarmAfterTheLastTry() {
+        assertTrue(RetryScheduler.getRetryTimeMillis(9, NOW) > NOW);
+        assertEquals(0, RetryScheduler.getRetryTimeMillis(10, NOW));
+    }
+
+    // The shared preferences of the app, kept in a map
+    private static class MapPreferences implements SharedPreferences {
+
+        private final Map<String, Object> values = new HashMap<>();
+
+        @Override
+        public Map<String, ?> getAll() {
+            return new HashMap<>(values);
+        }
+
+        @Override
+        public String getString(String key, String defValue) {
+            return values.containsKey(key) ? (String) values.get(key) : defValue;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Set<String> getStringSet(String key, Set<String> defValues) {
+            return values.containsKey(key) ? (Set<String>) values.get(key) : defValues;
+        }
+
+        @Override
+        public int getInt(String key, int defValue) {
+            return values.containsKey(key) ? (Integer) values.get(key) : defValue;
+        }
+
+        @Override
+        public long getLong(String key, long defValue) {
+            return values.containsKey(key) ? (Long) values.get(key) : defValue;
+        }
+
+        @Override
+        public float getFloat(String key, float defValue) {
+            return values.containsKey(key) ? (Float) values.get(key) : defValue;
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defValue) {
+            return values.containsKey(key) ? (Boolean) values.get(key) : defValue;
+        }
+
+        @Override
+        public boolean contains(String key) {
+            return values.containsKey(key);
+        }
+
+        @Override
+        public Editor edit() {
+            return new MapEditor();
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        }
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        }
+
+        private class MapEditor implements Editor {
+
+            private final Map<String, Object> changes = new HashMap<>();
+            private final Set<String> removed = new HashSet<>();
+            private boolean clear = false;
+
+            @Override
+            public Editor putString(String key, String value) {
+                changes.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putStringSet(String key, Set<String> values) {
+                changes.put(key, values);
+                return this;
+            }
+
+            @Override
+            public Editor putInt(String key, int value) {
+                changes.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putLong(String key, long value) {
+                changes.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putFloat(String key, float value) {
+                changes.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor putBoolean(String key, boolean value) {
+                changes.put(key, value);
+                return this;
+            }
+
+            @Override
+            public Editor remove(String key) {
+                removed.add(key);
+                return this;
+            }
+
+            @Override
+            public Editor clear() {
+                clear = true;
+                return this;
+            }
+
+            @Override
+            public boolean commit() {
+                apply();
+                return true;
+            }
+
+            @Override
+            public void apply() {
+                if (clear)
+                    values.clear();
+                for (String key : removed)
+                    values.remove(key);
+                values.putAll(changes);
+            }
+        }
+    }
+}
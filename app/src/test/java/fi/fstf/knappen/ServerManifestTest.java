@@ -0,0 +1,149 @@
+package fi.fstf.knappen;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.List;
+
+import static fi.fstf.knappen.TestFixtures.*;
+import static org.junit.Assert.*;
+
+/**
+ * Plans a sync from the manifest file in the server home folder, and falls back to listing when there is no manifest.
+ */
+public class ServerManifestTest {
+
+    private static final String DISTRIBUTOR = "01";
+    private static final int FILE_SIZE = 1000;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File serverRoot;
+    private LocalFtpServer server;
+    private FTPClient ftp;
+
+    @Before
+    public void setUp() throws Exception {
+        serverRoot = temporaryFolder.newFolder("server");
+        LocalFtpServer.createNewspaperTree(serverRoot, "20190520", 2, 3, FILE_SIZE);
+        server = new LocalFtpServer(serverRoot, 0);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        FTPConnectionManager.getInstance().disconnectFromFTP(ftp);
+        server.stop();
+    }
+
+    @Test
+    public void parsesFoldersFilesAndChecksums() {
+        ServerManifest manifest = ServerManifest.parse("# folder,file,size,md5\n"
+                + "20190521,speechgen0001.mp3,1000,5D41402ABC4B2A76B9719D911017C592\r\n"
+                + "20190520,speechgen0002.mp3,2000\n"
+                + "20190520,speechgen0001.mp3,1000,\n"
+                + "\n"
+                + "20190520,index.txt,10\n"           // Not a newspaper file
+                + "20190520,speechgen0003.mp3,big\n"  // Broken size
+                + "../etc,speechgen0001.mp3,1000\n");
+
+        assertNotNull(manifest);
+        FTPFile[] folders = manifest.getFolders();
+        assertEquals(2, folders.length);
+        assertEquals("20190520", folders[0].getName());
+        assertTrue(folders[0].isDirectory());
+        assertEquals("20190521", folders[1].getName());
+
+        assertEquals(2, manifest.getFiles()[0].length);
+        assertEquals(2000, manifest.getFiles()[0][0].getSize());
+        assertEquals(1, manifest.getFiles()[1].length);
+
+        assertNull(manifest.getChecksums().get("20190520"));
+        assertEquals("5d41402abc4b2a76b9719d911017c592", manifest.getChecksums().get("20190521").get("speechgen0001.mp3"));
+    }
+
+    @Test
+    public void manifestWithoutFilesIsNotUsed() {
+        assertNull(ServerManifest.parse(""));
+        assertNull(ServerManifest.parse("# folder,file,size,md5\n"));
+    }
+
+    @Test
+    public void oneDownloadPlansTheSync() throws Exception {
+        writeServerFile("manifest.csv", "20190520,speechgen0001.mp3,1000\n20190521,speechgen0001.mp3,1000\n20190521,speechgen0002.mp3,1000\n");
+        File localRoot = temporaryFolder.newFolder("local");
+        File localFolder = new File(localRoot, "20190521/" + DISTRIBUTOR);
+        assertTrue(localFolder.mkdirs());
+        FileOutputStream outputStream = new FileOutputStream(new File(localFolder, "speechgen0001.mp3"));
+        outputStream.write(new byte[FILE_SIZE]);
+        outputStream.close();
+
+        ftp = connect();
+        ServerManifest manifest = ServerManifest.read(ftp);
+        assertNotNull(manifest);
+
+        List<DownloadJob> plan = new DownloadPlanner(0).createDownloadPlan(manifest.getFolders(), manifest.getFiles(),
+                DownloadPlanner.createLocalIndex(localRoot, DISTRIBUTOR));
+        assertEquals(2, plan.size());
+        assertEquals("20190521", plan.get(0).getFolderName());
+        assertEquals("speechgen0002.mp3", plan.get(0).getFileName());
+        assertEquals("20190520", plan.get(1).getFolderName());
+    }
+
+    @Test
+    public void sameSizeRepublishIsFoundByChecksum() throws Exception {
+        File localRoot = temporaryFolder.newFolder("local");
+        File localFolder = new File(localRoot, "20190521/" + DISTRIBUTOR);
+        assertTrue(localFolder.mkdirs());
+        byte[] oldContent = new byte[FILE_SIZE];
+        byte[] newContent = new byte[FILE_SIZE];
+        newContent[0] = 1;
+        Files.write(new File(localFolder, "speechgen0001.mp3").toPath(), oldContent);
+        Files.write(new File(localFolder, "speechgen0002.mp3").toPath(), oldContent);
+
+        // The first article was published again with the same size, the manifest has no file times but the MD5 has changed
+        ServerManifest manifest = ServerManifest.parse("20190521,speechgen0001.mp3,1000," + md5(newContent) + "\n"
+                + "20190521,speechgen0002.mp3,1000," + md5(oldContent) + "\n");
+        DownloadPlanner planner = new DownloadPlanner(0);
+        planner.setServerChecksums(manifest.getChecksums(), null);
+
+        List<DownloadJob> plan = planner.createDownloadPlan(manifest.getFolders(), manifest.getFiles(), DownloadPlanner.createLocalIndex(localRoot, DISTRIBUTOR));
+        assertEquals(1, plan.size());
+        assertEquals("speechgen0001.mp3", plan.get(0).getFileName());
+    }
+
+    @Test
+    public void missingManifestFallsBackToListing() throws Exception {
+        ftp = connect();
+        assertNull(ServerManifest.read(ftp));
+
+        // The session can still be used for listing
+        FTPFile[] folders = FTPListing.listFolders(ftp, null);
+        assertNotNull(folders);
+        assertEquals(2, folders.length);
+    }
+
+    private void writeServerFile(String name, String text) throws Exception {
+        FileOutputStream outputStream = new FileOutputStream(new File(serverRoot, name));
+        try {
+            outputStream.write(text.getBytes("UTF-8"));
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    private FTPClient connect() {
+        FTPClient client = FTPConnectionManager.getInstance().connectToFTP("127.0.0.1", server.getPort(), LocalFtpServer.USERNAME, LocalFtpServer.PASSWORD);
+        assertNotNull(client);
+        return client;
+    }
+}
@@ -0,0 +1,197 @@
+package fi.fstf.knappen;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Full syncs of several distributors against the local ftp stand-in, with slow listings, downloads cut in the middle and restricted syncs.
+ * Fails if a sync downloads or lists more than it should.
+ */
+public class SyncHarnessTest {
+
+    private static final String[] DISTRIBUTORS = { "01", "02", "03" };
+    private static final String FIRST_DATE = "20190520";
+    private static final int NUM_DATES = 4;
+    private static final int FILES_PER_FOLDER = 200;
+    private static final int FILE_SIZE = 2 * 1024;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private LocalFtpServer server;
+    private File serverRoot;
+    private File stagingRoot;
+    private final Map<String, Map<String, SyncManifestItem>> manifests = new HashMap<>();
+
+    @Before
+    public void setUp() throws Exception {
+        serverRoot = temporaryFolder.newFolder("server");
+        LocalFtpServer.createNewspaperTrees(serverRoot, DISTRIBUTORS, FIRST_DATE, NUM_DATES, FILES_PER_FOLDER, FILE_SIZE);
+        stagingRoot = temporaryFolder.newFolder("staging");
+        server = new LocalFtpServer(serverRoot, 2);
+        for (String distributor : DISTRIBUTORS)
+            server.addDistributorUser(distributor);
+    }
+
+    @After
+    public void tearDown() {
+        FTPConnectionManager.getInstance().closeIdleConnections();
+        server.stop();
+    }
+
+    @Test
+    public void secondSyncOnlyListsTheFolderList() throws Exception {
+        server.start();
+        File localRoot = temporaryFolder.newFolder("local");
+
+        for (String distributor : DISTRIBUTORS)
+            assertEquals(NUM_DATES * FILES_PER_FOLDER, sync(distributor, localRoot, 0));
+        assertEquals((long) DISTRIBUTORS.length * NUM_DATES * FILES_PER_FOLDER * FILE_SIZE, server.getBytesDownloaded());
+        assertEquals(DISTRIBUTORS.length * NUM_DATES * FILES_PER_FOLDER, server.getRetrCommands());
+        assertAllFilesDownloaded(localRoot);
+
+        // Nothing changed on the server, so nothing is downloaded and no date folder is listed
+        long bytesDownloaded = server.getBytesDownloaded();
+        int listCommands = server.getListCommands();
+        for (String distributor : DISTRIBUTORS)
+            assertEquals(0, sync(distributor, localRoot, 0));
+        assertEquals(bytesDownloaded, server.getBytesDownloaded());
+        assertEquals(listCommands + DISTRIBUTORS.length, server.getListCommands());
+    }
+
+    @Test
+    public void syncResumesDownloadsThatWereCut() throws Exception {
+        server.setCutEveryNthDownload(50, FILE_SIZE / 2);
+        server.setListLatencyMillis(200);
+        server.start();
+        File localRoot = temporaryFolder.newFolder("local");
+
+        // A file that fails too many times is left for the next sync, like the app does
+        for (String distributor : DISTRIBUTORS) {
+            int downloaded = 0;
+            for (int round = 0; round < 3 && downloaded < NUM_DATES * FILES_PER_FOLDER; round++)
+                downloaded += sync(distributor, localRoot, 0);
+            assertEquals(NUM_DATES * FILES_PER_FOLDER, downloaded);
+        }
+        assertAllFilesDownloaded(localRoot);
+
+        // Every cut download went on from where it was cut, so each byte was sent once
+        assertTrue(server.getDownloadsCut() > 0);
+        assertEquals(server.getDownloadsCut(), server.getRestCommands());
+        assertEquals((long) DISTRIBUTORS.length * NUM_DATES * FILES_PER_FOLDER * FILE_SIZE, server.getBytesSent());
+    }
+
+    @Test
+    public void restrictedSyncOnlyDownloadsTheFirstArticlesOfTheNewestPaper() throws Exception {
+        server.start();
+        File localRoot = temporaryFolder.newFolder("local");
+        String newestFolder = String.valueOf(Integer.parseInt(FIRST_DATE) + NUM_DATES - 1);
+
+        // On a metered network the newest paper can be started, the rest waits for a better network
+        assertEquals(5, sync(DISTRIBUTORS[0], localRoot, 5));
+        File[] files = new File(localRoot, newestFolder + "/" + DISTRIBUTORS[0]).listFiles();
+        assertNotNull(files);
+        assertEquals(5, files.length);
+        assertEquals(1, localRoot.listFiles().length);
+
+        // The paper is not complete, so it is listed and finished by the next sync
+        assertTrue(manifests.get(DISTRIBUTORS[0]).isEmpty());
+        assertEquals(NUM_DATES * FILES_PER_FOLDER - 5, sync(DISTRIBUTORS[0], localRoot, 0));
+        assertEquals(NUM_DATES, manifests.get(DISTRIBUTORS[0]).size());
+        assertEquals((long) NUM_DATES * FILES_PER_FOLDER * FILE_SIZE, server.getBytesDownloaded());
+    }
+
+    // One sync of a distributor with the same steps as DownloadFilesAsync: ServerList, DownloadPlanner, DownloadPolicy and a staged DownloadEngine
+    // firstArticles > 0 is a restricted sync (metered network), returns the number of downloaded files
+    private int sync(String distributorFolder, File localRoot, int firstArticles) throws Exception {
+        NewspaperDistributor distributor = server.createDistributor(distributorFolder);
+        Map<String, SyncManifestItem> manifest = manifests.get(distributorFolder);
+        if (manifest == null) {
+            manifest = new HashMap<>();
+            manifests.put(distributorFolder, manifest);
+        }
+
+        FTPClient ftp = FTPConnectionManager.getInstance().connectToFTP(distributor.getFtpAddress(), distributor.getFtpPort(), distributor.getFtpUsername(), distributor.getFtpPassword());
+        assertNotNull(ftp);
+        ServerList serverList;
+        try {
+            serverList = ServerList.list(ftp, new HashMap<>(manifest), DownloadPlanner.createLocalIndex(localRoot, distributorFolder), false);
+            assertNotNull(serverList);
+            assertFalse(serverList.isIncomplete());
+        } finally {
+            FTPConnectionManager.getInstance().disconnectFromFTP(ftp);
+        }
+        for (String removedFolder : serverList.getRemovedFolders())
+            manifest.remove(removedFolder);
+
+        Map<String, Map<String, File>> localIndex = DownloadPlanner.createLocalIndex(localRoot, distributorFolder);
+        List<DownloadJob> jobs = new DownloadPlanner(0).createDownloadPlan(serverList.getFolders(), serverList.getFiles(), localIndex);
+        final Set<String> failedFolders = Collections.synchronizedSet(new HashSet<String>());
+        if (firstArticles > 0) {
+            List<DownloadJob> selected = DownloadPolicy.selectFirstArticles(jobs, serverList.getFolders(), serverList.getFiles(), firstArticles);
+            for (DownloadJob job : jobs) {
+                if (!selected.contains(job))
+                    failedFolders.add(job.getFolderName());
+            }
+            jobs = selected;
+        }
+
+        DownloadEngine engine = new DownloadEngine(distributor, localRoot, DownloadEngine.DEFAULT_MAX_SESSIONS);
+        engine.setStagingFolder(stagingRoot);
+        int downloaded = engine.download(jobs, new DownloadEngine.Listener() {
+            @Override
+            public void onFileDownloaded(DownloadJob job, File localFile) {
+            }
+
+            @Override
+            public void onFileFailed(DownloadJob job) {
+                failedFolders.add(job.getFolderName());
+            }
+
+            @Override
+            public void onFilePlayable(DownloadJob job, File localFile) {
+            }
+        });
+
+        // Like DownloadFilesAsync.updateSyncManifest, a folder with a failed or deferred file is listed again next time
+        for (SyncManifestItem folder : serverList.getListedFolders())
+            manifest.remove(folder.getDateFolder());
+        for (SyncManifestItem folder : serverList.getCompleteFolders(failedFolders))
+            manifest.put(folder.getDateFolder(), folder);
+        return downloaded;
+    }
+
+    // Every file is there, with the same content as on the server
+    private void assertAllFilesDownloaded(File localRoot) throws IOException {
+        File[] dateFolders = localRoot.listFiles();
+        assertNotNull(dateFolders);
+        assertEquals(NUM_DATES, dateFolders.length);
+        for (File dateFolder : dateFolders) {
+            for (String distributor : DISTRIBUTORS) {
+                File[] files = new File(dateFolder, distributor).listFiles();
+                assertNotNull(files);
+                assertEquals(FILES_PER_FOLDER, files.length);
+                for (File file : files) {
+                    File serverFile = new File(serverRoot, distributor + "/" + dateFolder.getName() + "/" + file.getName());
+                    assertArrayEquals(file.getName(), Files.readAllBytes(serverFile.toPath()), Files.readAllBytes(file.toPath()));
+                }
+            }
+        }
+    }
+}
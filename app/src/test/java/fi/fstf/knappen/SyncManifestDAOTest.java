@@ -0,0 +1,38 @@
+package fi.fstf.knappen;
+
+import org.apache.commons.net.ftp.FTPFile;
+import org.junit.Test;
+
+import java.util.Calendar;
+
+import static fi.fstf.knappen.TestFixtures.*;
+import static org.junit.Assert.*;
+
+/**
+ * The fingerprint of a date folder changes when the folder changes on the server, and is missing when the server can't tell.
+ */
+public class SyncManifestDAOTest {
+
+    @Test
+    public void fingerprintFollowsTimeAndSize() {
+        Calendar listed = Calendar.getInstance();
+        listed.setTimeInMillis(1558400000000L);
+        Calendar changed = Calendar.getInstance();
+        changed.setTimeInMillis(1558403600000L);
+
+        String fingerprint = SyncManifestDAO.createFingerprint(createFtpFolder("20190521", listed));
+        assertNotNull(fingerprint);
+        assertEquals(fingerprint, SyncManifestDAO.createFingerprint(createFtpFolder("20190521", (Calendar) listed.clone())));
+        assertNotEquals(fingerprint, SyncManifestDAO.createFingerprint(createFtpFolder("20190521", changed)));
+
+        FTPFile resized = createFtpFolder("20190521", listed);
+        resized.setSize(4096);
+        assertNotEquals(fingerprint, SyncManifestDAO.createFingerprint(resized));
+    }
+
+    @Test
+    public void noFingerprintWithoutFolderTime() {
+        assertNull(SyncManifestDAO.createFingerprint(createFtpFolder("20190521")));
+        assertNull(SyncManifestDAO.createFingerprint(null));
+    }
+}
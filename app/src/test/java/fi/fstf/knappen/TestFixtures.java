@@ -0,0 +1,106 @@
+package fi.fstf.knappen;
+
+import org.apache.commons.net.ftp.FTPFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Server listings, download jobs, checksums and local newspaper folders for the local unit tests, so each test doesn't need its own copy.
+ */
+public class TestFixtures {
+
+    private TestFixtures() {
+    }
+
+    public static String createFileName(int index) {
+        return String.format("speechgen%04d.mp3", index);
+    }
+
+    public static FTPFile createFtpFile(String name, long size) {
+        return createFtpFile(name, size, null);
+    }
+
+    public static FTPFile createFtpFile(String name, long size, Calendar timestamp) {
+        FTPFile ftpFile = new FTPFile();
+        ftpFile.setName(name);
+        ftpFile.setSize(size);
+        ftpFile.setType(FTPFile.FILE_TYPE);
+        ftpFile.setTimestamp(timestamp);
+        return ftpFile;
+    }
+
+    // The server's listing of a file in the ftp server's root folder
+    public static FTPFile createFtpFile(File file) {
+        return createFtpFile(file.getName(), file.length());
+    }
+
+    public static FTPFile createFtpFolder(String name) {
+        return createFtpFolder(name, null);
+    }
+
+    public static FTPFile createFtpFolder(String name, Calendar timestamp) {
+        FTPFile ftpFile = new FTPFile();
+        ftpFile.setName(name);
+        ftpFile.setType(FTPFile.DIRECTORY_TYPE);
+        ftpFile.setTimestamp(timestamp);
+        return ftpFile;
+    }
+
+    // One job for each article in the date folders of the ftp server's root folder, in download order
+    public static List<DownloadJob> createJobs(File serverRoot) {
+        File[] folders = serverRoot.listFiles();
+        assertNotNull(folders);
+        Arrays.sort(folders);
+        List<DownloadJob> jobs = new ArrayList<>();
+        for (File folder : folders)
+            jobs.addAll(createJobs(serverRoot, folder.getName()));
+        Collections.sort(jobs);
+        return Collections.unmodifiableList(jobs);
+    }
+
+    // One job for each article in one date folder, in download order
+    public static List<DownloadJob> createJobs(File serverRoot, String folderName) {
+        File[] files = new File(serverRoot, folderName).listFiles();
+        assertNotNull(files);
+        List<DownloadJob> jobs = new ArrayList<>();
+        for (File file : files) {
+            if (ArticleNames.isArticle(file.getName()))
+                jobs.add(new DownloadJob(folderName, createFtpFile(file)));
+        }
+        Collections.sort(jobs);
+        return jobs;
+    }
+
+    // The local newspapers of two distributors, with a part file, a file that is not an article, article names of other styles
+    // and an empty newspaper folder
+    public static void createLocalNewspapers(File baseFolder) throws IOException {
+        createFiles(baseFolder, "20190520/01", "speechgen0001.mp3", "speechgen0002.mp3", "extra.txt");
+        createFiles(baseFolder, "20190521/01", "speechgen0001.mp3", "speechgen0002.mp3.part");
+        createFiles(baseFolder, "20190521/02", "speechgen0001.mp3", "speechgen12.mp3", "speechgen0003.mp3");
+        assertTrue(new File(baseFolder, "20190522/01").mkdirs());
+    }
+
+    // Empty files in a newspaper folder, for example createFiles(baseFolder, "20190521/01", "speechgen0001.mp3")
+    public static void createFiles(File baseFolder, String newspaperFolder, String... fileNames) throws IOException {
+        File folder = new File(baseFolder, newspaperFolder);
+        assertTrue(folder.mkdirs());
+        for (String fileName : fileNames)
+            assertTrue(new File(folder, fileName).createNewFile());
+    }
+
+    public static String md5(byte[] content) throws Exception {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("MD5").digest(content))
+            hex.append(String.format("%02x", b & 0xff));
+        return hex.toString();
+    }
+}